@@ -1030,21 +1030,13 @@ public class IJ {
 			if (hideProcessStackDialog)
 				return flags;
 			String note = ((flags&PlugInFilter.NO_CHANGES)==0)?" There is\nno Undo if you select \"Yes\".":"";
+			if (imp.getStack().isVirtual() && (flags&PlugInFilter.NO_CHANGES)==0)
+				note = "\nThis is a virtual stack; the processed images\nwill be saved in a new TIFF file.";
  			YesNoCancelDialog d = new YesNoCancelDialog(getInstance(),
 				"Process Stack?", "Process all "+stackSize+" images?"+note);
 			if (d.cancelPressed())
 				return PlugInFilter.DONE;
 			else if (d.yesPressed()) {
-		    	if (imp.getStack().isVirtual() && ((flags&PlugInFilter.NO_CHANGES)==0)) {
-		    		int size = (stackSize*imp.getWidth()*imp.getHeight()*imp.getBytesPerPixel()+524288)/1048576;
-		    		String msg =
-						"Use the Process>Batch>Virtual Stack command\n"+
-						"to process a virtual stack or convert it into a\n"+
-						"normal stack using Image>Duplicate, which\n"+
-						"will require "+size+"MB of additional memory.";
-		    		error(msg);
-					return PlugInFilter.DONE;
-		    	}
 				if (Recorder.record)
 					Recorder.recordOption("stack");
 				return flags | PlugInFilter.DOES_STACKS;
@@ -1733,7 +1725,10 @@ public class IJ {
 
 	/* Saves the specified image. The format argument must be "tiff",  
 		"jpeg", "gif", "zip", "raw", "avi", "bmp", "fits", "pgm", "png", 
-		"text image", "lut", "selection" or "xy Coordinates". */
+		"text image", "lut", "selection" or "xy Coordinates". TIFFs are saved
+		with LZW or ZIP (Deflate) compression if the format contains "lzw" or
+		"zip", e.g. "tiff lzw", and with the horizontal differencing predictor
+		if it also contains "predictor", e.g. "tiff zip predictor". */
  	public static void saveAs(ImagePlus imp, String format, String path) {
 		if (format==null)
 			return;
@@ -1741,7 +1736,7 @@ public class IJ {
 			path = null;
 		format = format.toLowerCase(Locale.US);
 		if (format.indexOf("tif")!=-1) {
-			saveAsTiff(imp, path);
+			saveAsTiff(imp, path, getTiffCompression(format));
 			return;
 		} else if (format.indexOf("jpeg")!=-1  || format.indexOf("jpg")!=-1) {
 			path = updateExtension(path, ".jpg");
@@ -1806,13 +1801,22 @@ public class IJ {
 		if 'path' is null or an empty string. Returns 'false' if there is an
 		error or if the user selects "Cancel" in the file save dialog. */
 	public static boolean saveAsTiff(ImagePlus imp, String path) {
+		return saveAsTiff(imp, path, FileInfo.COMPRESSION_NONE);
+	}
+
+	/** Saves the specified image in TIFF format with the specified compression
+		(FileInfo.COMPRESSION_NONE, FileInfo.LZW, FileInfo.ZIP, FileInfo.LZW_WITH_DIFFERENCING
+		or FileInfo.ZIP_WITH_DIFFERENCING). Displays a file save dialog if 'path'
+		is null or an empty string. */
+	public static boolean saveAsTiff(ImagePlus imp, String path, int compression) {
 		if (imp==null)
 			imp = getImage();
+		FileSaver fs = new FileSaver(imp);
+		fs.setCompression(compression);
 		if (path==null || path.equals(""))
-			return (new FileSaver(imp)).saveAsTiff();
+			return fs.saveAsTiff();
 		if (!path.endsWith(".tiff"))
 			path = updateExtension(path, ".tif");
-		FileSaver fs = new FileSaver(imp);
 		boolean ok;
 		if (imp.getStackSize()>1)
 			ok = fs.saveAsTiffStack(path);
@@ -1823,6 +1827,16 @@ public class IJ {
 		return ok;
 	}
 	
+	private static int getTiffCompression(String format) {
+		boolean predictor = format.indexOf("predictor")!=-1;
+		if (format.indexOf("lzw")!=-1)
+			return predictor?FileInfo.LZW_WITH_DIFFERENCING:FileInfo.LZW;
+		else if (format.indexOf("zip")!=-1 || format.indexOf("deflate")!=-1)
+			return predictor?FileInfo.ZIP_WITH_DIFFERENCING:FileInfo.ZIP;
+		else
+			return FileInfo.COMPRESSION_NONE;
+	}
+
 	static String updateExtension(String path, String extension) {
 		if (path==null) return null;
 		int dotIndex = path.lastIndexOf(".");
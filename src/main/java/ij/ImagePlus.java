@@ -1961,6 +1961,8 @@ public class ImagePlus implements ImageObserver, Measurements, Cloneable {
 		if (roi!=null) roi.setImage(null);
 		roi = null;
 		if (stack!=null && stack.viewers(-1)<=0) {
+			if (stack instanceof VirtualStack)
+				SliceCache.remove((VirtualStack)stack);
 			Object[] arrays = stack.getImageArray();
 			if (arrays!=null) {
 				for (int i=0; i<arrays.length; i++)
@@ -2137,18 +2139,21 @@ public class ImagePlus implements ImageObserver, Measurements, Cloneable {
 	}
 
 	String getFFTLocation(int x, int y, Calibration cal) {
-		double center = width/2.0;
-		double r = Math.sqrt((x-center)*(x-center) + (y-center)*(y-center));
-		double theta = Math.atan2(y-center, x-center);
+		double xCenter = width/2.0;
+		double yCenter = height/2.0;
+		double r = Math.sqrt((x-xCenter)*(x-xCenter) + (y-yCenter)*(y-yCenter));
+		double fx = (x-xCenter)/width, fy = (y-yCenter)/height;	// frequency in cycles per pixel
+		double period = 1.0/Math.sqrt(fx*fx + fy*fy);
+		double theta = Math.atan2(fy, fx);
 		theta = theta*180.0/Math.PI;
 		if (theta<0) theta=360.0+theta;
 		String s = "r=";
 		if (r<1.0)
 			return s+"Infinity/c (0)"; //origin ('DC offset'), no angle
 		else if (cal.scaled()) 
-			s += IJ.d2s((width/r)*cal.pixelWidth,2) + " " + cal.getUnit() + "/c (" + IJ.d2s(r,0) + ")";
+			s += IJ.d2s(period*cal.pixelWidth,2) + " " + cal.getUnit() + "/c (" + IJ.d2s(r,0) + ")";
 		else
-			s += IJ.d2s(width/r,2) + " p/c (" + IJ.d2s(r,0) + ")";
+			s += IJ.d2s(period,2) + " p/c (" + IJ.d2s(r,0) + ")";
 		s += ", theta= " + IJ.d2s(theta,2) + IJ.degreeSymbol;
 		return s;
 	}
@@ -37,6 +37,7 @@ public class Prefs {
     public static final String NOISE_SD = "noise.sd";
     public static final String MENU_SIZE = "menu.size";
     public static final String THREADS = "threads";
+    public static final String SLICE_CACHE = "slice.cache";
 	public static final String KEY_PREFIX = ".";
  
 	private static final int USE_POINTER=1<<0, ANTIALIASING=1<<1, INTERPOLATE=1<<2, ONE_HUNDRED_PERCENT=1<<3,
@@ -382,6 +383,8 @@ public class Prefs {
 			prefs.put(DIV_BY_ZERO_VALUE, Double.toString(FloatBlitter.divideByZeroValue));
 			prefs.put(NOISE_SD, Double.toString(Filters.getSD()));
 			if (threads>1) prefs.put(THREADS, Integer.toString(threads));
+			if (SliceCache.getMaxMemorySetting()>=0)
+				prefs.put(SLICE_CACHE, Integer.toString(SliceCache.getMaxMemorySetting()));
 			if (IJ.isMacOSX()) useJFileChooser = false;
 			saveOptions(prefs);
 			savePluginPrefs(prefs);
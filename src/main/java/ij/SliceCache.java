@@ -0,0 +1,287 @@
+package ij;
+import ij.process.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import ij.plugin.FileInfoVirtualStack;
+
+/** This class is a memory-bounded, least-recently-used cache of the decoded
+	slices of virtual stacks, shared by all VirtualStacks and FileInfoVirtualStacks.
+	When a FileInfoVirtualStack is accessed sequentially (e.g. while scrolling, playing,
+	projecting or filtering), the next slices in the same direction are read in advance
+	by a background thread, one slice after the other. Other VirtualStacks are not
+	read in advance since their readProcessor method may modify global state (such as
+	IJ.redirectErrorMessages). The slices of a stack are never read by more than one
+	thread at a time. The cache size is set in Edit>Options>Memory &amp; Threads;
+	a size of zero disables caching and read-ahead.
+	<p>
+	VirtualStack.getProcessor() never returns the cached image itself, thus
+	modifying the image returned does not modify the cache.
+*/
+public class SliceCache {
+	private static final int MAX_READ_AHEAD = 8;	// maximum number of slices read in advance
+	private static long maxBytes = -1;				// -1: not initialized yet
+	private static int megabytesSet = -1;			// -1: default size, not set by the user
+	private static long bytes;
+	private static long hits, misses;
+	private static LinkedHashMap<Key,ImageProcessor> cache = new LinkedHashMap<Key,ImageProcessor>(64, 0.75f, true);
+	private static HashMap<Key,FutureTask<ImageProcessor>> pending = new HashMap<Key,FutureTask<ImageProcessor>>();
+	private static final AtomicInteger threadCount = new AtomicInteger();
+
+	private SliceCache() {}
+
+	/** Returns slice 'n' of the given virtual stack, from the cache if possible. */
+	static ImageProcessor getProcessor(VirtualStack stack, int n) {
+		if (getMaxMemory()<=0)
+			return read(stack, n);
+		Key key = new Key(stack, n);
+		ImageProcessor ip = null;
+		FutureTask<ImageProcessor> task = null;
+		synchronized(SliceCache.class) {
+			ip = cache.get(key);
+			if (ip==null)
+				task = pending.get(key);
+			if (ip!=null || task!=null)
+				hits++;
+			else
+				misses++;
+		}
+		if (task!=null) {						// scheduled for reading in advance
+			try {
+				task.run();						// does nothing if started by a background thread already
+				ip = task.get();
+			} catch (Exception e) {
+				ip = null;
+			}
+		}
+		if (ip!=null)
+			ip = copy(ip);
+		else {
+			ip = read(stack, n);
+			if (put(key, ip))
+				ip = copy(ip);		// only copied if cached
+		}
+		readAhead(stack, n);
+		return ip;
+	}
+
+	/** Reads a slice from disk; a stack is never read by two threads at the same time. */
+	private static ImageProcessor read(VirtualStack stack, int n) {
+		synchronized(stack.readLock) {
+			return stack.readProcessor(n);
+		}
+	}
+
+	/** Reads slices in advance if the stack is accessed sequentially */
+	private static void readAhead(final VirtualStack stack, int n) {
+		int direction = 0;
+		synchronized(SliceCache.class) {
+			int previous = stack.previousSliceRequested;
+			stack.previousSliceRequested = n;
+			if (n==previous+1 || n==previous-1) {
+				direction = n - previous;
+				if (stack.sequentialRequests<MAX_READ_AHEAD) stack.sequentialRequests++;
+			} else {
+				stack.sequentialRequests = 0;
+				cancelReadAhead(stack);
+			}
+			if (stack.sequentialRequests<2 || !(stack instanceof FileInfoVirtualStack))
+				return;
+			direction *= stack.sequentialRequests;	// read further ahead the longer the sequence is
+		}
+		int size = stack.getSize();
+		long sliceBytes = (long)stack.getWidth()*stack.getHeight()*bytesPerPixel(stack.getBitDepth());
+		int maxSlices = sliceBytes>0 ? (int)Math.min(getMaxMemory()/(2*sliceBytes), MAX_READ_AHEAD) : 0;
+		int nAhead = Math.min(Math.abs(direction), maxSlices);
+		int step = direction>0 ? 1 : -1;
+		for (int i=1; i<=nAhead; i++) {
+			final int n2 = n + i*step;
+			if (n2<1 || n2>size)
+				break;
+			final Key key = new Key(stack, n2);
+			FutureTask<ImageProcessor> task = null;
+			synchronized(SliceCache.class) {
+				if (cache.containsKey(key) || pending.containsKey(key))
+					continue;
+				task = new FutureTask<ImageProcessor>(new Callable<ImageProcessor>() {
+					public ImageProcessor call() {
+						ImageProcessor ip = null;
+						try {
+							ip = read(stack, n2);
+						} finally {
+							synchronized(SliceCache.class) {
+								pending.remove(key);
+							}
+							put(key, ip);
+						}
+						return ip;
+					}
+				});
+				pending.put(key, task);
+			}
+			getReadAheadExecutor(stack).execute(task);
+		}
+	}
+
+	/** Discards the slices of the given stack that are scheduled for reading in advance
+		but not started yet, e.g. when the user jumps to a different position. */
+	private static synchronized void cancelReadAhead(VirtualStack stack) {
+		Iterator<Map.Entry<Key,FutureTask<ImageProcessor>>> it = pending.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Key,FutureTask<ImageProcessor>> entry = it.next();
+			if (entry.getKey().stack==stack && entry.getValue().cancel(false))
+				it.remove();
+		}
+	}
+
+	/** Adds an image to the cache; returns false if it is not cached. */
+	private static synchronized boolean put(Key key, ImageProcessor ip) {
+		if (ip==null || maxBytes<=0 || key.generation!=key.stack.cacheGeneration)
+			return false;
+		long size = sizeOf(ip);
+		if (size>maxBytes/2)
+			return false;			// don't flush the complete cache for one large image
+		ImageProcessor old = cache.put(key, ip);
+		if (old!=null)
+			bytes -= sizeOf(old);
+		bytes += size;
+		trim(maxBytes);
+		return true;
+	}
+
+	/** Removes the least recently used images until the cache is not larger than 'limit' bytes. */
+	private static void trim(long limit) {
+		Iterator<Map.Entry<Key,ImageProcessor>> it = cache.entrySet().iterator();
+		while (bytes>limit && it.hasNext()) {
+			bytes -= sizeOf(it.next().getValue());
+			it.remove();
+		}
+	}
+
+	/** Removes all cached slices of the given stack. Must be called if slices
+		of a virtual stack are deleted or reordered, or if they should be re-read from disk. */
+	public static synchronized void remove(VirtualStack stack) {
+		stack.cacheGeneration++;		// images that are currently read will not be cached
+		cancelReadAhead(stack);
+		Iterator<Map.Entry<Key,ImageProcessor>> it = cache.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Key,ImageProcessor> entry = it.next();
+			if (entry.getKey().stack==stack) {
+				bytes -= sizeOf(entry.getValue());
+				it.remove();
+			}
+		}
+	}
+
+	/** Removes all images from the cache, discards the slices scheduled for
+		reading in advance and resets the hit and miss counts. */
+	public static synchronized void clear() {
+		for (FutureTask<ImageProcessor> task : pending.values())
+			task.cancel(false);
+		pending.clear();
+		cache.clear();
+		bytes = 0;
+		hits = misses = 0;
+	}
+
+	/** Sets the maximum memory used by the cache, in megabytes. Zero disables the cache. */
+	public static synchronized void setMaxMemory(int megabytes) {
+		if (megabytes<0) megabytes = 0;
+		megabytesSet = megabytes;
+		maxBytes = megabytes*1048576L;
+		trim(maxBytes);
+	}
+
+	/** Returns the maximum memory used by the cache, in bytes. Unless set in
+		Edit>Options>Memory &amp; Threads, this is 1/8 of the available memory,
+		but not more than 1 GB. */
+	public static synchronized long getMaxMemory() {
+		if (maxBytes<0) {
+			megabytesSet = Prefs.getInt(Prefs.SLICE_CACHE, -1);
+			if (megabytesSet>=0)
+				maxBytes = megabytesSet*1048576L;
+			else
+				maxBytes = Math.min(IJ.maxMemory()/8, 1024*1048576L);
+		}
+		return maxBytes;
+	}
+
+	/** Returns the cache size set by the user (in MB), or -1 if the default size is used. */
+	static synchronized int getMaxMemorySetting() {
+		return megabytesSet;
+	}
+
+	/** Returns the memory currently used by the cache, in bytes. */
+	public static synchronized long getMemory() {
+		return bytes;
+	}
+
+	/** Returns the number of requests that were served from the cache (including
+		slices that were being read in advance). */
+	public static synchronized long getHits() {
+		return hits;
+	}
+
+	/** Returns the number of requests that had to be read from disk. */
+	public static synchronized long getMisses() {
+		return misses;
+	}
+
+	/** Returns the executor reading slices of the given stack in advance. It has
+		one thread, which terminates if it is idle, thus slices are read in sequence. */
+	private static synchronized ExecutorService getReadAheadExecutor(VirtualStack stack) {
+		if (stack.readAheadExecutor==null) {
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 10L, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "Virtual stack read-ahead "+threadCount.incrementAndGet());
+						thread.setDaemon(true);
+						thread.setPriority(Thread.NORM_PRIORITY-1);
+						return thread;
+					}
+				});
+			executor.allowCoreThreadTimeOut(true);
+			stack.readAheadExecutor = executor;
+		}
+		return stack.readAheadExecutor;
+	}
+
+	private static ImageProcessor copy(ImageProcessor ip) {
+		ImageProcessor ip2 = ip.duplicate();
+		ip2.setCalibrationTable(ip.getCalibrationTable());
+		ip2.setOverlay(ip.getOverlay());
+		return ip2;
+	}
+
+	private static long sizeOf(ImageProcessor ip) {
+		return (long)ip.getWidth()*ip.getHeight()*bytesPerPixel(ip.getBitDepth());
+	}
+
+	private static int bytesPerPixel(int bitDepth) {
+		return bitDepth==24 ? 4 : (bitDepth+7)/8;
+	}
+
+	/** Identifies a slice of a virtual stack; 'generation' invalidates keys
+		if the stack has been modified. */
+	private static class Key {
+		final VirtualStack stack;
+		final int n, generation;
+
+		Key(VirtualStack stack, int n) {
+			this.stack = stack;
+			this.n = n;
+			this.generation = stack.cacheGeneration;
+		}
+
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) return false;
+			Key key = (Key)obj;
+			return key.stack==stack && key.n==n && key.generation==generation;
+		}
+
+		public int hashCode() {
+			return System.identityHashCode(stack)*31 + n + generation*65599;
+		}
+	}
+
+}
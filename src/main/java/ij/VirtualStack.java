@@ -4,6 +4,7 @@ import ij.io.*;
 import ij.gui.ImageCanvas;
 import ij.util.Tools;
 import java.io.*;
+import java.util.concurrent.ExecutorService;
 import java.awt.Font;
 import java.awt.image.ColorModel;
 
@@ -15,6 +16,10 @@ public class VirtualStack extends ImageStack {
 	private String[] names;
 	private String[] labels;
 	private int bitDepth;
+	int cacheGeneration;				// used by SliceCache
+	int previousSliceRequested, sequentialRequests;	// used by SliceCache for read-ahead
+	ExecutorService readAheadExecutor;	// used by SliceCache for read-ahead
+	final Object readLock = new Object();		// used by SliceCache, only one thread may read
 	
 	/** Default constructor. */
 	public VirtualStack() { }
@@ -67,6 +72,7 @@ public class VirtualStack extends ImageStack {
 				names[i-1] = names[i];
 			names[nSlices-1] = null;
 			nSlices--;
+			SliceCache.remove(this);
 		}
 	
 	/** Deletes the last slice in the stack. */
@@ -91,8 +97,19 @@ public class VirtualStack extends ImageStack {
 
    /** Returns an ImageProcessor for the specified slice,
 		were 1<=n<=nslices. Returns null if the stack is empty.
+		Recently used slices are kept in memory by the SliceCache,
+		but a new ImageProcessor is returned with each call.
 	*/
 	public ImageProcessor getProcessor(int n) {
+		return SliceCache.getProcessor(this, n);
+	}
+
+	/** Reads the specified slice from disk, bypassing the cache; were 1<=n<=nslices.
+		Subclasses that read images in a different way should override this method
+		instead of getProcessor() to take advantage of the SliceCache.
+		Not called by more than one thread at a time.
+	*/
+	protected ImageProcessor readProcessor(int n) {
 		//IJ.log("getProcessor: "+n+"  "+names[n-1]+"  "+bitDepth);
 		Opener opener = new Opener();
 		opener.setSilentMode(true);
@@ -142,7 +159,8 @@ public class VirtualStack extends ImageStack {
 		return ip;
 	 }
  
-	/** Currently not implemented */
+	/** Currently not implemented. PlugInFilters processing a virtual stack
+		write the processed slices to a new file instead (see PlugInFilterRunner). */
 	public int saveChanges(int n) {
 		return -1;
 	}
@@ -193,6 +211,8 @@ public class VirtualStack extends ImageStack {
 	
 	/** Sets the bit depth (8, 16, 24 or 32). */
 	public void setBitDepth(int bitDepth) {
+		if (bitDepth!=this.bitDepth)
+			SliceCache.remove(this);
 		this.bitDepth = bitDepth;
 	}
 
@@ -212,6 +232,7 @@ public class VirtualStack extends ImageStack {
 			names[i] = names2[slice-1];
 			labels[i] = info[slice-1];
 		}
+		SliceCache.remove(this);
 		return this;
 	}
 
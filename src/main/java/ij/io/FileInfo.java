@@ -89,6 +89,7 @@ public class FileInfo implements Cloneable {
 	public static final int JPEG = 4;
 	public static final int PACK_BITS = 5;
 	public static final int ZIP = 6;
+	public static final int ZIP_WITH_DIFFERENCING = 7;
 	
 	/* File format (TIFF, GIF_OR_JPG, BMP, etc.). Used by the File/Revert command */
 	public int fileFormat;
@@ -107,9 +108,10 @@ public class FileInfo implements Cloneable {
     public boolean whiteIsZero;
     public boolean intelByteOrder;
 	public int compression;
-    public int[] stripOffsets; 
-    public int[] stripLengths;
+    public int[] stripOffsets; // tile offsets if the image is tiled
+    public int[] stripLengths; // tile byte counts if the image is tiled
     public int rowsPerStrip;
+    public int tileWidth, tileHeight; // zero if the image is not tiled
 	public int lutSize;
 	public byte[] reds;
 	public byte[] greens;
@@ -132,6 +134,8 @@ public class FileInfo implements Cloneable {
 	public String description;
 	// Use <i>longOffset</i> instead of <i>offset</i> when offset>2147483647.
 	public long longOffset;  // Use getOffset() to read
+	// Set instead of <i>stripOffsets</i> when a strip offset is larger than 4GB (BigTIFF)
+	public long[] longStripOffsets;  // Use getStripOffset() to read
 	// Extra metadata to be stored in the TIFF header
 	public int[] metaDataTypes; // must be < 0xffffff
 	public byte[][] metaData;
@@ -159,6 +163,11 @@ public class FileInfo implements Cloneable {
     public final long getOffset() {
     	return longOffset>0L?longOffset:((long)offset)&0xffffffffL;
     }
+
+    /** Returns the offset of strip 'i' as a long. */
+    public final long getStripOffset(int i) {
+    	return longStripOffsets!=null?longStripOffsets[i]:((long)stripOffsets[i])&0xffffffffL;
+    }
     
 	/** Returns the number of bytes used per pixel. */
 	public int getBytesPerPixel() {
@@ -189,7 +198,8 @@ public class FileInfo implements Cloneable {
 			+ ", lutSize=" + lutSize
 			+ ", comp=" + compression
 			+ ", ranges=" + (displayRanges!=null?""+displayRanges.length/2:"null")
-			+ ", samples=" + samplesPerPixel;
+			+ ", samples=" + samplesPerPixel
+			+ (tileWidth>0?", tiles="+tileWidth+"x"+tileHeight:"");
     }
     
     private String getType() {
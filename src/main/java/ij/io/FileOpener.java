@@ -5,6 +5,7 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.zip.GZIPInputStream;
+import java.nio.channels.FileChannel;
 import ij.gui.*;
 import ij.process.*;
 import ij.measure.*;
@@ -36,6 +37,7 @@ public class FileOpener {
 	private static boolean showConflictMessage = true;
 	private double minValue, maxValue;
 	private static boolean silentMode;
+	private static final long MIN_CHANNEL_SIZE = 1048576L; // smaller images are read with an InputStream
 
 	public FileOpener(FileInfo fi) {
 		this.fi = fi;
@@ -182,6 +184,15 @@ public class FileOpener {
 		ImageStack stack = new ImageStack(fi.width, fi.height, cm);
 		long skip = fi.getOffset();
 		Object pixels;
+		File channelFile = getChannelFile(fi);
+		if (channelFile!=null) {
+			if (readChannelStack(channelFile, stack)) {
+				if (IJ.escapePressed())
+					return null;
+				return createStackImage(stack, show);
+			}
+			stack = new ImageStack(fi.width, fi.height, cm);	// file too short, read with an InputStream
+		}
 		try {
 			ImageReader reader = new ImageReader(fi);
 			InputStream is = createInputStream(fi);
@@ -213,6 +224,51 @@ public class FileOpener {
 			stack.trim();
 		}
 		if (!silentMode) IJ.showProgress(1.0);
+		return createStackImage(stack, show);
+	}
+
+	/** Reads an uncompressed stack with positional reads of a FileChannel, which avoids
+		copying the data through intermediate streams. Returns false if the file is too short,
+		in this case the caller should read it with an InputStream. */
+	private boolean readChannelStack(File f, ImageStack stack) {
+		long offset = fi.getOffset();
+		long imageSize = (long)fi.width*fi.height*(fi.fileType==FileInfo.RGB_PLANAR?3:fi.getBytesPerPixel());
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(f, "r");
+			FileChannel channel = raf.getChannel();
+			ImageReader reader = new ImageReader(fi);
+			IJ.resetEscape();
+			for (int i=1; i<=fi.nImages; i++) {
+				if (!silentMode)
+					IJ.showStatus("Reading: " + i + "/" + fi.nImages);
+				if (IJ.escapePressed()) {
+					IJ.beep();
+					IJ.showProgress(1.0);
+					silentMode = false;
+					return true;
+				}
+				Object pixels = reader.readPixels(channel, offset);
+				if (pixels==null)
+					return false;
+				stack.addSlice(null, pixels);
+				offset += imageSize + fi.gapBetweenImages;
+				if (!silentMode)
+					IJ.showProgress(i, fi.nImages);
+			}
+		} catch (Exception e) {
+			IJ.log("" + e);
+		} catch(OutOfMemoryError e) {
+			IJ.outOfMemory(fi.fileName);
+			stack.trim();
+		} finally {
+			if (raf!=null) try {raf.close();} catch (IOException e) {}
+		}
+		if (!silentMode) IJ.showProgress(1.0);
+		return true;
+	}
+
+	private ImagePlus createStackImage(ImageStack stack, boolean show) {
 		if (stack.getSize()==0)
 			return null;
 		if (fi.sliceLabels!=null && fi.sliceLabels.length<=stack.getSize()) {
@@ -443,7 +499,7 @@ public class FileOpener {
 				is = new FileInputStream(f);
 		}
 		if (is!=null) {
-		    if (fi.compression>=FileInfo.LZW)
+		    if (fi.compression>=FileInfo.LZW || fi.tileWidth>0)
 				is = new RandomAccessStream(is);
 			else if (gzip)
 				is = new GZIPInputStream(is, 50000);
@@ -451,6 +507,23 @@ public class FileOpener {
 		return is;
 	}
 	
+	/** Returns the file if the image described by 'fi' is a local, uncompressed
+		and sufficiently large file that can be read via a FileChannel, otherwise null. */
+	File getChannelFile(FileInfo fi) {
+		if (fi.inputStream!=null || (fi.url!=null && !fi.url.equals("")) || fi.fileName==null || fi.directory==null)
+			return null;
+		if (fi.fileName.endsWith(".gz") || fi.fileName.endsWith(".GZ"))
+			return null;
+		if ((long)fi.width*fi.height*fi.getBytesPerPixel()<MIN_CHANNEL_SIZE || !ImageReader.isContiguous(fi))
+			return null;
+		if (fi.directory.length()>0 && !fi.directory.endsWith(Prefs.separator))
+			fi.directory += Prefs.separator;
+		File f = new File(fi.directory + fi.fileName);
+		if (!f.exists() || f.isDirectory())
+			return null;
+		return f;
+	}
+
 	static boolean validateFileInfo(File f, FileInfo fi) {
 		long offset = fi.getOffset();
 		long length = 0;
@@ -496,6 +569,20 @@ public class FileOpener {
 	/** Reads the pixel data from an image described by a FileInfo object. */
 	Object readPixels(FileInfo fi) {
 		Object pixels = null;
+		File channelFile = getChannelFile(fi);
+		if (channelFile!=null) {
+			RandomAccessFile raf = null;
+			try {
+				raf = new RandomAccessFile(channelFile, "r");
+				pixels = new ImageReader(fi).readPixels(raf.getChannel(), fi.getOffset());
+			} catch (Exception e) {
+				pixels = null;
+			} finally {
+				if (raf!=null) try {raf.close();} catch (IOException e) {}
+			}
+			if (pixels!=null)
+				return pixels;
+		}
 		try {
 			InputStream is = createInputStream(fi);
 			if (is==null)
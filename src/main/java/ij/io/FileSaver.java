@@ -28,6 +28,7 @@ public class FileSaver {
 	private String name;
 	private String directory;
 	private boolean saveName;
+	private int compression = FileInfo.COMPRESSION_NONE;
 
 	/** Constructs a FileSaver from an ImagePlus. */
 	public FileSaver(ImagePlus imp) {
@@ -35,6 +36,15 @@ public class FileSaver {
 		fi = imp.getFileInfo();
 	}
 
+	/** Sets the compression used by saveAsTiff() and saveAsTiffStack():
+		FileInfo.COMPRESSION_NONE (the default), FileInfo.LZW, FileInfo.ZIP,
+		FileInfo.LZW_WITH_DIFFERENCING or FileInfo.ZIP_WITH_DIFFERENCING.
+		Compressed TIFFs are usually much smaller and can still be opened
+		as virtual stacks. */
+	public void setCompression(int compression) {
+		this.compression = compression;
+	}
+
 	/** Resaves the image. Calls saveAsTiff() if this is a new image, not a TIFF,
 		or if the image was loaded using a URL. Returns false if saveAsTiff() is
 		called and the user selects cancel in the file save dialog box. */
@@ -111,6 +121,7 @@ public class FileSaver {
 		DataOutputStream out = null;
 		try {
 			TiffEncoder file = new TiffEncoder(fi);
+			file.setCompression(compression);
 			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)));
 			file.write(out);
 			out.close();
@@ -169,36 +180,25 @@ public class FileSaver {
 		if (fi.nImages==1)
 			{error("This is not a stack"); return false;}
 		boolean virtualStack = imp.getStack().isVirtual();
-		if (virtualStack)
-			fi.virtualStack = (VirtualStack)imp.getStack();
 		fi.info = imp.getInfoProperty();
 		fi.description = getDescriptionString();
 		if (virtualStack) {
 			FileInfo fi = imp.getOriginalFileInfo();
-			if (path!=null && path.equals(fi.directory+fi.fileName)) {
+			if (fi!=null && path!=null && path.equals(fi.directory+fi.fileName)) {
 				error("TIFF virtual stacks cannot be saved in place.");
 				return false;
 			}
-			String[] labels = null;
-			ImageStack vs = imp.getStack();
-			for (int i=1; i<=vs.getSize(); i++) {
-				ImageProcessor ip = vs.getProcessor(i);
-				String label = vs.getSliceLabel(i);
-				if (i==1 && label==null)
-					break;
-				if (labels==null)
-					labels = new String[vs.getSize()];
-				labels[i-1] = label;
-			}
-			this.fi.sliceLabels = labels;
 		} else
 			fi.sliceLabels = imp.getStack().getSliceLabels();
 		fi.roi = RoiEncoder.saveAsByteArray(imp.getRoi());
 		fi.overlay = getOverlay(imp);
 		if (imp.isComposite()) saveDisplayRangesAndLuts(imp, fi);
+		if (virtualStack)
+			return saveVirtualStack((VirtualStack)imp.getStack(), path);
 		DataOutputStream out = null;
 		try {
 			TiffEncoder file = new TiffEncoder(fi);
+			file.setCompression(compression);
 			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)));
 			file.write(out);
 			out.close();
@@ -213,6 +213,36 @@ public class FileSaver {
 		return true;
 	}
 	
+	/** Saves a virtual stack with a TiffStackWriter, one slice at a
+		time, so the slices are only read once and need not fit into memory. */
+	private boolean saveVirtualStack(VirtualStack stack, String path) {
+		TiffStackWriter writer = new TiffStackWriter(fi);
+		writer.setCompression(compression);
+		int n = stack.getSize();
+		boolean saved = false;
+		try {
+			writer.open(path);
+			for (int i=1; i<=n; i++) {
+				IJ.showStatus("Writing: " + i + "/" + n);
+				IJ.showProgress(i, n);
+				writer.appendPlane(stack.getProcessor(i), stack.getSliceLabel(i));
+			}
+			writer.close();
+			saved = true;
+		} catch (IOException e) {
+			showErrorMessage("saveAsTiffStack", path, e);
+		} finally {
+			if (!saved)
+				try {writer.close();} catch (IOException e) {}
+			IJ.showStatus("");
+			IJ.showProgress(1.0);
+		}
+		if (!saved)
+			return false;
+		updateImp(fi, FileInfo.TIFF);
+		return true;
+	}
+
 	/** Converts this image to a TIFF encoded array of bytes, 
 		which can be decoded using Opener.deserialize(). */
 	public byte[] serialize() {
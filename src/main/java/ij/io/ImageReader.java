@@ -3,10 +3,14 @@ import ij.*;
 import ij.process.*;
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import javax.imageio.ImageIO;
 import java.util.zip.Inflater;
 import java.util.zip.DataFormatException;
+import ij.util.ThreadUtil;
 
 
 /** Reads raw 8-bit, 16-bit or 32-bit (float or RGB)
@@ -15,6 +19,7 @@ public class ImageReader {
 
 	private static final int CLEAR_CODE = 256;
 	private static final int EOI_CODE = 257;
+	private static final int CHANNEL_BUFFER_SIZE = 1048576;	// bytes read from a FileChannel at once
 
     private FileInfo fi;
     private int width, height;
@@ -25,6 +30,7 @@ public class ImageReader {
 	private int eofErrorCount;
 	private long startTime;
 	public double min, max; // readRGB48() calculates min/max pixel values
+	private byte[][] compressedStrips; // strips read in advance, see decodePixels()
 
 	/**
 	Constructs a new ImageReader using a FileInfo object to describe the file to be read.
@@ -65,25 +71,12 @@ public class ImageReader {
 		byte[] pixels = new byte[nPixels];
 		int current = 0;
 		byte last = 0;
-		for (int i=0; i<fi.stripOffsets.length; i++) {
-			if (in instanceof RandomAccessStream)
-				((RandomAccessStream)in).seek(fi.stripOffsets[i]);
-			else if (i > 0) {
-				long skip = (fi.stripOffsets[i]&0xffffffffL) - (fi.stripOffsets[i-1]&0xffffffffL) - fi.stripLengths[i-1];
-				if (skip > 0L) in.skip(skip);
-			}
-			byte[] byteArray = new byte[fi.stripLengths[i]];
-			int read = 0, left = byteArray.length;
-			while (left > 0) {
-				int r = in.read(byteArray, read, left);
-				if (r == -1) {eofError(); break;}
-				read += r;
-				left -= r;
-			}
-			byteArray = uncompress(byteArray);
+		byte[][] strips = readUncompressedStrips(in);
+		for (int i=0; i<strips.length; i++) {
+			byte[] byteArray = strips[i];
 			int length = byteArray.length;
 			length = length - (length%fi.width);
-			if (fi.compression==FileInfo.LZW_WITH_DIFFERENCING) {
+			if (differencing()) {
 				for (int b=0; b<length; b++) {
 					byteArray[b] += last;
 					last = b % fi.width == fi.width - 1 ? 0 : byteArray[b];
@@ -92,7 +85,7 @@ public class ImageReader {
 			if (current+length>pixels.length) length = pixels.length-current;
 			System.arraycopy(byteArray, 0, pixels, current, length);
 			current += length;
-			showProgress(i+1, fi.stripOffsets.length);
+			showProgress(i+1, strips.length);
 		}
 		return pixels;
 	}
@@ -152,23 +145,9 @@ public class ImageReader {
 		short[] pixels = new short[nPixels];
 		int base = 0;
 		short last = 0;
-		for (int k=0; k<fi.stripOffsets.length; k++) {
-			//IJ.log("seek: "+fi.stripOffsets[k]+" "+fi.stripLengths[k]+"  "+(in instanceof RandomAccessStream));
-			if (in instanceof RandomAccessStream)
-				((RandomAccessStream)in).seek(fi.stripOffsets[k]);
-			else if (k > 0) {
-				long skip = (fi.stripOffsets[k]&0xffffffffL) - (fi.stripOffsets[k-1]&0xffffffffL) - fi.stripLengths[k-1];
-				if (skip > 0L) in.skip(skip);
-			}
-			byte[] byteArray = new byte[fi.stripLengths[k]];
-			int read = 0, left = byteArray.length;
-			while (left > 0) {
-				int r = in.read(byteArray, read, left);
-				if (r == -1) {eofError(); break;}
-				read += r;
-				left -= r;
-			}
-			byteArray = uncompress(byteArray);
+		byte[][] strips = readUncompressedStrips(in);
+		for (int k=0; k<strips.length; k++) {
+			byte[] byteArray = strips[k];
 			int pixelsRead = byteArray.length/bytesPerPixel;
 			pixelsRead = pixelsRead - (pixelsRead%fi.width);
 			int pmax = base+pixelsRead;
@@ -180,14 +159,14 @@ public class ImageReader {
 				for (int i=base,j=0; i<pmax; i++,j+=2)
 					pixels[i] = (short)(((byteArray[j]&0xff)<<8) | (byteArray[j+1]&0xff));
 			}
-			if (fi.compression==FileInfo.LZW_WITH_DIFFERENCING) {
+			if (differencing()) {
 				for (int b=base; b<pmax; b++) {
 					pixels[b] += last;
 					last = b % fi.width == fi.width - 1 ? 0 : pixels[b];
 				}
 			}
 			base += pixelsRead;
-			showProgress(k+1, fi.stripOffsets.length);
+			showProgress(k+1, strips.length);
 		}
 		if (fi.fileType==FileInfo.GRAY16_SIGNED) {
 			// convert to unsigned
@@ -261,23 +240,9 @@ public class ImageReader {
 		float[] pixels = new float[nPixels];
 		int base = 0;
 		float last = 0;
-		for (int k=0; k<fi.stripOffsets.length; k++) {
-			//IJ.log("seek: "+fi.stripOffsets[k]+" "+(in instanceof RandomAccessStream));
-			if (in instanceof RandomAccessStream)
-				((RandomAccessStream)in).seek(fi.stripOffsets[k]);
-			else if (k > 0) {
-				long skip = (fi.stripOffsets[k]&0xffffffffL) - (fi.stripOffsets[k-1]&0xffffffffL) - fi.stripLengths[k-1];
-				if (skip > 0L) in.skip(skip);
-			}
-			byte[] byteArray = new byte[fi.stripLengths[k]];
-			int read = 0, left = byteArray.length;
-			while (left > 0) {
-				int r = in.read(byteArray, read, left);
-				if (r == -1) {eofError(); break;}
-				read += r;
-				left -= r;
-			}
-			byteArray = uncompress(byteArray);
+		byte[][] strips = readUncompressedStrips(in);
+		for (int k=0; k<strips.length; k++) {
+			byte[] byteArray = strips[k];
 			int pixelsRead = byteArray.length/bytesPerPixel;
 			pixelsRead = pixelsRead - (pixelsRead%fi.width);
 			int pmax = base+pixelsRead;
@@ -304,14 +269,14 @@ public class ImageReader {
 						pixels[i] = tmp;
 				}
 			}
-			if (fi.compression==FileInfo.LZW_WITH_DIFFERENCING) {
+			if (differencing()) {
 				for (int b=base; b<pmax; b++) {
 					pixels[b] += last;
 					last = b % fi.width == fi.width - 1 ? 0 : pixels[b];
 				}
 			}
 			base += pixelsRead;
-			showProgress(k+1, fi.stripOffsets.length);
+			showProgress(k+1, strips.length);
 		}
 		return pixels;
 	}
@@ -447,23 +412,10 @@ public class ImageReader {
 		int red=0, green=0, blue=0, alpha = 0;
 		boolean bgr = fi.fileType==FileInfo.BGR;
 		boolean cmyk = fi.fileType==FileInfo.CMYK;
-		boolean differencing = fi.compression == FileInfo.LZW_WITH_DIFFERENCING;
-		for (int i=0; i<fi.stripOffsets.length; i++) {
-			if (in instanceof RandomAccessStream)
-				((RandomAccessStream)in).seek(fi.stripOffsets[i]);
-			else if (i > 0) {
-				long skip = (fi.stripOffsets[i]&0xffffffffL) - (fi.stripOffsets[i-1]&0xffffffffL) - fi.stripLengths[i-1];
-				if (skip > 0L) in.skip(skip);
-			}
-			byte[] byteArray = new byte[fi.stripLengths[i]];
-			int read = 0, left = byteArray.length;
-			while (left > 0) {
-				int r = in.read(byteArray, read, left);
-				if (r == -1) {eofError(); break;}
-				read += r;
-				left -= r;
-			}
-			byteArray = uncompress(byteArray);
+		boolean differencing = differencing();
+		byte[][] strips = readUncompressedStrips(in);
+		for (int i=0; i<strips.length; i++) {
+			byte[] byteArray = strips[i];
 			if (differencing) {
 				for (int b=0; b<byteArray.length; b++) {
 					if (b / bytesPerPixel % fi.width == 0) continue;
@@ -497,7 +449,7 @@ public class ImageReader {
 					pixels[j] = 0xff000000 | (red<<16) | (green<<8) | blue;
 			}
 			base += pixelsRead;
-			showProgress(i+1, fi.stripOffsets.length);
+			showProgress(i+1, strips.length);
 		}
 		return pixels;
 	}
@@ -587,7 +539,7 @@ public class ImageReader {
 		}
 		for (int i=0; i<fi.stripOffsets.length; i++) {
 			if (i>0) {
-				long skip = (fi.stripOffsets[i]&0xffffffffL) - (fi.stripOffsets[i-1]&0xffffffffL) - fi.stripLengths[i-1];
+				long skip = fi.getStripOffset(i) - fi.getStripOffset(i-1) - fi.stripLengths[i-1];
 				if (skip>0L) dis.skip(skip);
 			}
 			int len = fi.stripLengths[i];
@@ -619,23 +571,16 @@ public class ImageReader {
 	}
 
 	Object readCompressedRGB48(InputStream in) throws IOException {
-		if (fi.compression==FileInfo.LZW_WITH_DIFFERENCING)
-			throw new IOException("ImageJ cannot open 48-bit LZW compressed TIFFs with predictor");
+		if (differencing())
+			throw new IOException("ImageJ cannot open 48-bit compressed TIFFs with predictor");
 		int channels = 3;
 		short[][] stack = new short[channels][nPixels];
-		DataInputStream dis = new DataInputStream(in);
 		int pixel = 0;
 		int min=65535, max=0;
-		for (int i=0; i<fi.stripOffsets.length; i++) {
-			if (i>0) {
-				long skip = (fi.stripOffsets[i]&0xffffffffL) - (fi.stripOffsets[i-1]&0xffffffffL) - fi.stripLengths[i-1];
-				if (skip>0L) dis.skip(skip);
-			}
-			int len = fi.stripLengths[i];
-			byte[] buffer = new byte[len];
-			dis.readFully(buffer);
-			buffer = uncompress(buffer);
-			len = buffer.length;
+		byte[][] strips = readUncompressedStrips(in);
+		for (int i=0; i<strips.length; i++) {
+			byte[] buffer = strips[i];
+			int len = buffer.length;
 			if (len % 2 != 0) len--;
 			int value;
 			int channel=0;
@@ -654,7 +599,7 @@ public class ImageReader {
 					pixel++;
 				}
 			}
-			showProgress(i+1, fi.stripOffsets.length);
+			showProgress(i+1, strips.length);
 		}
 		this.min=min; this.max=max;
 		return stack;
@@ -770,6 +715,11 @@ public class ImageReader {
 		Object pixels;
 		startTime = System.currentTimeMillis();
 		try {
+			if (fi.tileWidth>0) {
+				pixels = readTiledImage(in);
+				showProgress(1, 1);
+				return pixels;
+			}
 			switch (fi.fileType) {
 				case FileInfo.GRAY8:
 				case FileInfo.COLOR8:
@@ -861,6 +811,506 @@ public class ImageReader {
 			return pixels;
 	}
 	
+	/** Reads all strips of the image and uncompresses them. The strips are
+		independent, thus they are uncompressed in parallel threads. */
+	byte[][] readUncompressedStrips(InputStream in) throws IOException {
+		byte[][] strips = compressedStrips!=null ? compressedStrips : readStrips(in);
+		compressedStrips = null;
+		return uncompressStrips(strips);
+	}
+
+	/**
+	Reads the (compressed) data of all strips of the image, without uncompressing
+	them. With a RandomAccessStream, the strips are read at the positions given
+	by fi.stripOffsets, otherwise the InputStream must be positioned at the first
+	strip. Use decodePixels() to convert the strips into a pixel array.
+	*/
+	public byte[][] readStrips(InputStream in) throws IOException {
+		byte[][] strips = new byte[fi.stripOffsets.length][];
+		for (int i=0; i<fi.stripOffsets.length; i++) {
+			if (in instanceof RandomAccessStream)
+				((RandomAccessStream)in).seek(fi.getStripOffset(i));
+			else if (i > 0) {
+				long skip = fi.getStripOffset(i) - fi.getStripOffset(i-1) - fi.stripLengths[i-1];
+				if (skip > 0L) in.skip(skip);
+			}
+			byte[] byteArray = new byte[fi.stripLengths[i]];
+			int read = 0, left = byteArray.length;
+			while (left > 0) {
+				int r = in.read(byteArray, read, left);
+				if (r == -1) {eofError(); break;}
+				read += r;
+				left -= r;
+			}
+			strips[i] = byteArray;
+		}
+		return strips;
+	}
+
+	private byte[][] uncompressStrips(final byte[][] strips) {
+		if (fi.compression<=FileInfo.COMPRESSION_NONE)
+			return strips;
+		if (strips.length==1)
+			strips[0] = uncompress(strips[0]);
+		else {
+			ThreadUtil.parallelFor(0, strips.length, ThreadUtil.getChunkSize(strips.length, 1), new ThreadUtil.RangeTask() {
+				public void run(int from, int to) {
+					for (int i=from; i<to; i++)
+						strips[i] = uncompress(strips[i]);
+				}
+			});
+		}
+		return strips;
+	}
+
+	/** Returns 'true' if the image was compressed with the horizontal differencing predictor. */
+	private boolean differencing() {
+		return fi.compression==FileInfo.LZW_WITH_DIFFERENCING || fi.compression==FileInfo.ZIP_WITH_DIFFERENCING;
+	}
+
+	/** Returns 'true' if the image described by 'fi' is LZW, ZIP or PackBits compressed
+		and of a type that can be decoded from strips with decodePixels(). */
+	public static boolean isStripCompressed(FileInfo fi) {
+		if (fi.stripOffsets==null || fi.stripLengths==null || fi.tileWidth>0)
+			return false;
+		switch (fi.compression) {
+			case FileInfo.LZW: case FileInfo.LZW_WITH_DIFFERENCING:
+			case FileInfo.PACK_BITS: case FileInfo.ZIP: case FileInfo.ZIP_WITH_DIFFERENCING:
+				break;
+			default:
+				return false;
+		}
+		switch (fi.fileType) {
+			case FileInfo.GRAY8: case FileInfo.COLOR8:
+			case FileInfo.GRAY16_SIGNED: case FileInfo.GRAY16_UNSIGNED:
+			case FileInfo.GRAY32_INT: case FileInfo.GRAY32_UNSIGNED: case FileInfo.GRAY32_FLOAT:
+			case FileInfo.RGB: case FileInfo.BGR: case FileInfo.ARGB: case FileInfo.ABGR:
+			case FileInfo.RGB_PLANAR:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	Converts the strips read by readStrips() into a pixel array (byte, short,
+	int or float). Several ImageReaders may decode images in parallel threads.
+	Returns null if the image type is not supported (see isStripCompressed).
+	*/
+	public Object decodePixels(byte[][] strips) {
+		if (!isStripCompressed(fi))
+			return null;
+		compressedStrips = strips;
+		skipCount = 0L;
+		showProgressBar = false;
+		return readPixels((InputStream)null);
+	}
+
+	/** Returns 'true' if the image described by 'fi' is uncompressed, stored in one
+		contiguous block and of a type supported by readPixels(FileChannel,long).
+	*/
+	public static boolean isContiguous(FileInfo fi) {
+		if (fi.compression>FileInfo.COMPRESSION_NONE || fi.tileWidth>0)
+			return false;
+		switch (fi.fileType) {
+			case FileInfo.GRAY8: case FileInfo.COLOR8:
+			case FileInfo.GRAY16_SIGNED: case FileInfo.GRAY16_UNSIGNED:
+			case FileInfo.GRAY32_INT: case FileInfo.GRAY32_UNSIGNED: case FileInfo.GRAY32_FLOAT:
+			case FileInfo.RGB: case FileInfo.BGR: case FileInfo.ARGB: case FileInfo.ABGR: case FileInfo.BARG:
+			case FileInfo.RGB_PLANAR:
+				break;
+			default:
+				return false;
+		}
+		if (fi.stripOffsets!=null && fi.stripOffsets.length>1) {
+			if (fi.stripLengths==null || fi.stripLengths.length!=fi.stripOffsets.length)
+				return false;
+			for (int i=1; i<fi.stripOffsets.length; i++) {		// strips must be contiguous
+				long end = fi.getStripOffset(i-1) + (fi.stripLengths[i-1]&0xffffffffL);
+				if (fi.getStripOffset(i)!=end)
+					return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	Reads an uncompressed image starting at 'offset' in the file with positional
+	reads of the FileChannel. 8-bit data are read into the pixel array directly, other
+	types are decoded with bulk gets from a heap buffer of at most 1 MB. The file is
+	not memory-mapped, thus it is not locked after the channel has been closed (on
+	Windows, a mapped file cannot be modified or deleted until the buffer is garbage
+	collected). Returns null if the file is too short or the image type is not
+	supported (see isContiguous). Does not close the FileChannel.
+	*/
+	public Object readPixels(FileChannel channel, long offset) throws IOException {
+		if (!isContiguous(fi))
+			return null;
+		bytesPerPixel = fi.fileType==FileInfo.RGB_PLANAR ? 3 : fi.getBytesPerPixel();
+		nPixels = width*height;
+		byteCount = ((long)width)*height*bytesPerPixel;
+		if (offset<0L || offset+byteCount>channel.size() || byteCount>Integer.MAX_VALUE)
+			return null;
+		if (fi.fileType==FileInfo.GRAY8 || fi.fileType==FileInfo.COLOR8) {
+			byte[] bytes = new byte[nPixels];
+			readFully(channel, ByteBuffer.wrap(bytes), offset);
+			return bytes;
+		}
+		int pixelSize = fi.fileType==FileInfo.RGB_PLANAR ? 1 : bytesPerPixel;
+		int chunkSize = Math.max(CHANNEL_BUFFER_SIZE/pixelSize, 1);	// pixels per read
+		ByteBuffer buffer = ByteBuffer.allocate((int)Math.min((long)chunkSize*pixelSize, byteCount));
+		buffer.order(fi.intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+		switch (fi.fileType) {
+			case FileInfo.GRAY16_SIGNED:
+			case FileInfo.GRAY16_UNSIGNED:
+				short[] shorts = new short[nPixels];
+				for (int i=0; i<nPixels; i+=chunkSize) {
+					int n = Math.min(chunkSize, nPixels-i);
+					readChunk(channel, buffer, offset+2L*i, 2*n);
+					buffer.asShortBuffer().get(shorts, i, n);
+				}
+				if (fi.fileType==FileInfo.GRAY16_SIGNED) {
+					for (int i=0; i<nPixels; i++)
+						shorts[i] = (short)(shorts[i]+32768);
+				}
+				return shorts;
+			case FileInfo.GRAY32_FLOAT:
+				float[] floats = new float[nPixels];
+				for (int i=0; i<nPixels; i+=chunkSize) {
+					int n = Math.min(chunkSize, nPixels-i);
+					readChunk(channel, buffer, offset+4L*i, 4*n);
+					buffer.asFloatBuffer().get(floats, i, n);
+				}
+				return floats;
+			case FileInfo.GRAY32_INT:
+			case FileInfo.GRAY32_UNSIGNED:
+				float[] pixels = new float[nPixels];
+				for (int i=0; i<nPixels; i+=chunkSize) {
+					int n = Math.min(chunkSize, nPixels-i);
+					readChunk(channel, buffer, offset+4L*i, 4*n);
+					IntBuffer ints = buffer.asIntBuffer();
+					if (fi.fileType==FileInfo.GRAY32_UNSIGNED) {
+						for (int j=0; j<n; j++)
+							pixels[i+j] = (float)(ints.get(j)&0xffffffffL);
+					} else {
+						for (int j=0; j<n; j++)
+							pixels[i+j] = ints.get(j);
+					}
+				}
+				return pixels;
+			case FileInfo.RGB_PLANAR:
+				int[] rgb = new int[nPixels];
+				for (int c=0; c<3; c++) {
+					int shift = 16-8*c;
+					for (int i=0; i<nPixels; i+=chunkSize) {
+						int n = Math.min(chunkSize, nPixels-i);
+						readChunk(channel, buffer, offset+(long)c*nPixels+i, n);
+						for (int j=0; j<n; j++)
+							rgb[i+j] |= (buffer.get(j)&0xff)<<shift;
+					}
+				}
+				for (int i=0; i<nPixels; i++)
+					rgb[i] |= 0xff000000;
+				return rgb;
+			default:
+				int[] argb = new int[nPixels];
+				for (int i=0; i<nPixels; i+=chunkSize) {
+					int n = Math.min(chunkSize, nPixels-i);
+					readChunk(channel, buffer, offset+(long)bytesPerPixel*i, bytesPerPixel*n);
+					readChunkyRGB(buffer, argb, i, n);
+				}
+				return argb;
+		}
+	}
+
+	/** Reads 'length' bytes at 'position' into the buffer, which is then ready to be read from the start */
+	private static void readChunk(FileChannel channel, ByteBuffer buffer, long position, int length) throws IOException {
+		buffer.clear();
+		buffer.limit(length);
+		readFully(channel, buffer, position);
+		buffer.flip();
+	}
+
+	/** Fills the remaining space of the buffer with the data at 'position' in the file */
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		long start = position - buffer.position();
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, start+buffer.position())<0)
+				throw new EOFException();
+		}
+	}
+
+	/** Decodes 'n' RGB, BGR, ARGB, ABGR or BARG pixels from a buffer into pixels[first]...pixels[first+n-1] */
+	private void readChunkyRGB(ByteBuffer buffer, int[] pixels, int first, int n) {
+		int r, g, b;
+		int j = 0;
+		for (int i=first; i<first+n; i++) {
+			switch (fi.fileType) {
+				case FileInfo.BARG:
+					b = buffer.get(j)&0xff; r = buffer.get(j+2)&0xff; g = buffer.get(j+3)&0xff;
+					break;
+				case FileInfo.ABGR:
+				case FileInfo.BGR:
+					b = buffer.get(j)&0xff; g = buffer.get(j+1)&0xff; r = buffer.get(j+2)&0xff;
+					break;
+				default: // RGB, ARGB
+					r = buffer.get(j)&0xff; g = buffer.get(j+1)&0xff; b = buffer.get(j+2)&0xff;
+			}
+			j += bytesPerPixel;
+			pixels[i] = 0xff000000 | (r<<16) | (g<<8) | b;
+		}
+	}
+
+	/** Returns 'true' if the tiles or strips of the image described by 'fi'
+		can be read with readRegion(), i.e., if the image is uncompressed or
+		LZW, ZIP or PackBits compressed, and has a whole number of bytes per sample. */
+	public static boolean isTileable(FileInfo fi) {
+		if (fi.tileWidth>0 && (fi.tileHeight<=0 || fi.stripOffsets==null || fi.stripLengths==null))
+			return false;
+		if (fi.compression>FileInfo.COMPRESSION_NONE && (fi.stripOffsets==null || fi.stripLengths==null))
+			return false;
+		switch (fi.compression) {
+			case FileInfo.COMPRESSION_NONE: case FileInfo.LZW: case FileInfo.LZW_WITH_DIFFERENCING:
+			case FileInfo.PACK_BITS: case FileInfo.ZIP: case FileInfo.ZIP_WITH_DIFFERENCING:
+				break;
+			default:
+				return false;
+		}
+		return getBytesPerSample(fi)>0;
+	}
+
+	/** Returns the number of bytes per sample, or 0 if samples are not byte-aligned. */
+	private static int getBytesPerSample(FileInfo fi) {
+		switch (fi.fileType) {
+			case FileInfo.GRAY8: case FileInfo.COLOR8: case FileInfo.RGB_PLANAR:
+			case FileInfo.RGB: case FileInfo.BGR: case FileInfo.ARGB: case FileInfo.ABGR:
+			case FileInfo.BARG: case FileInfo.CMYK:
+				return 1;
+			case FileInfo.GRAY16_SIGNED: case FileInfo.GRAY16_UNSIGNED:
+			case FileInfo.RGB48: case FileInfo.RGB48_PLANAR:
+				return 2;
+			case FileInfo.GRAY32_INT: case FileInfo.GRAY32_UNSIGNED: case FileInfo.GRAY32_FLOAT:
+				return 4;
+			case FileInfo.GRAY64_FLOAT:
+				return 8;
+			default:
+				return 0;
+		}
+	}
+
+	/** Returns the number of samples per pixel in each plane. */
+	private static int getSamplesPerPlane(FileInfo fi) {
+		switch (fi.fileType) {
+			case FileInfo.RGB: case FileInfo.BGR: return 3;
+			case FileInfo.ARGB: case FileInfo.ABGR: case FileInfo.BARG: case FileInfo.CMYK: return 4;
+			case FileInfo.RGB48: return fi.samplesPerPixel;
+			default: return 1;
+		}
+	}
+
+	/** Returns the number of planes of images with planar configuration. */
+	private static int getPlanes(FileInfo fi) {
+		switch (fi.fileType) {
+			case FileInfo.RGB_PLANAR: return 3;
+			case FileInfo.RGB48_PLANAR: return fi.samplesPerPixel;
+			default: return 1;
+		}
+	}
+
+	/** Returns a FileInfo describing the uncompressed data returned by readRegion(). */
+	static FileInfo getRegionInfo(FileInfo fi, int width, int height) {
+		FileInfo fi2 = (FileInfo)fi.clone();
+		fi2.width = width;
+		fi2.height = height;
+		fi2.nImages = 1;
+		fi2.offset = 0;
+		fi2.longOffset = 0L;
+		fi2.compression = FileInfo.COMPRESSION_NONE;
+		fi2.tileWidth = fi2.tileHeight = 0;
+		fi2.stripOffsets = new int[] {0};
+		fi2.longStripOffsets = null;
+		fi2.stripLengths = new int[] {(int)((long)width*height*getBytesPerSample(fi)*getSamplesPerPlane(fi)*getPlanes(fi))};
+		fi2.rowsPerStrip = height;
+		fi2.inputStream = null;
+		return fi2;
+	}
+
+	Object readTiledImage(InputStream in) throws IOException {
+		RandomAccessStream ras = in instanceof RandomAccessStream?(RandomAccessStream)in:new RandomAccessStream(in);
+		byte[] data = readRegion(ras, new Rectangle(0, 0, width, height));
+		return decodeRegion(data, width, height);
+	}
+
+	/**
+	Reads the pixels in rectangle 'r' of a tiled or striped TIFF image and returns
+	them as a byte, short, float or int array (or an array of three short arrays
+	for 48-bit RGB images) of size r.width*r.height. Only the tiles or strips that
+	intersect the rectangle are read and uncompressed.
+	*/
+	public Object readPixels(RandomAccessStream in, Rectangle r) throws IOException {
+		showProgressBar = false;
+		byte[] data = readRegion(in, r);
+		return decodeRegion(data, r.width, r.height);
+	}
+
+	private Object decodeRegion(byte[] data, int width, int height) {
+		ImageReader reader = new ImageReader(getRegionInfo(fi, width, height));
+		Object pixels = reader.readPixels(new ByteArrayInputStream(data), 0L);
+		min = reader.min;
+		max = reader.max;
+		return pixels;
+	}
+
+	/**
+	Reads the tiles (or strips) that intersect rectangle 'r' and returns the
+	uncompressed data of the rectangle, with the byte order and sample layout
+	of the file. Data of images with planar configuration are returned plane
+	by plane. Use isTileable() to check whether the image can be read this way.
+	Compressed tiles are uncompressed in parallel threads.
+	*/
+	public byte[] readRegion(RandomAccessStream in, Rectangle r) throws IOException {
+		if (!isTileable(fi))
+			throw new IOException("ImageReader: cannot read regions of this type of image");
+		r = r.intersection(new Rectangle(0, 0, width, height));
+		if (r.isEmpty())
+			throw new IOException("ImageReader: rectangle is outside of image");
+		final int pixelBytes = getBytesPerSample(fi)*getSamplesPerPlane(fi);
+		final int nPlanes = getPlanes(fi);
+		long size = (long)r.width*r.height*pixelBytes*nPlanes;
+		if (size>Integer.MAX_VALUE)
+			throw new IOException("ImageReader: region is larger than 2GB");
+		final byte[] data = new byte[(int)size];
+		final int tileWidth = fi.tileWidth>0?fi.tileWidth:width;
+		int rowsPerStrip = fi.stripOffsets!=null&&fi.rowsPerStrip>0&&fi.rowsPerStrip<height?fi.rowsPerStrip:height;
+		final int tileHeight = fi.tileWidth>0?fi.tileHeight:rowsPerStrip;
+		int tilesAcross = (width+tileWidth-1)/tileWidth;
+		int tilesDown = (height+tileHeight-1)/tileHeight;
+		int nTiles = fi.stripOffsets!=null?fi.stripOffsets.length:1;
+		int[] tiles = new int[tilesAcross*tilesDown*nPlanes];
+		int count = 0;
+		for (int p=0; p<nPlanes; p++) {
+			for (int ty=r.y/tileHeight; ty<=(r.y+r.height-1)/tileHeight; ty++) {
+				for (int tx=r.x/tileWidth; tx<=(r.x+r.width-1)/tileWidth; tx++) {
+					int tile = (p*tilesDown+ty)*tilesAcross+tx;
+					if (tile<nTiles)
+						tiles[count++] = tile;
+				}
+			}
+		}
+		final int[] region = {r.x, r.y, r.width, r.height};
+		final int tilesPerPlane = tilesAcross*tilesDown;
+		if (fi.compression==FileInfo.COMPRESSION_NONE) {
+			for (int i=0; i<count; i++) {
+				int tile = tiles[i];
+				long offset = fi.stripOffsets!=null?fi.getStripOffset(tile):fi.getOffset();
+				int plane = tile/tilesPerPlane;
+				int x0 = (tile%tilesPerPlane%tilesAcross)*tileWidth;
+				int y0 = (tile%tilesPerPlane/tilesAcross)*tileHeight;
+				int x1 = Math.max(x0, r.x), x2 = Math.min(Math.min(x0+tileWidth, width), r.x+r.width);
+				int y1 = Math.max(y0, r.y), y2 = Math.min(Math.min(y0+tileHeight, height), r.y+r.height);
+				int length = (x2-x1)*pixelBytes;
+				int dst = plane*r.width*r.height*pixelBytes + ((y1-r.y)*r.width+x1-r.x)*pixelBytes;
+				if (x2-x1==tileWidth && x2-x1==r.width) {		// whole rows, contiguous in file and region
+					in.seek(offset + (long)(y1-y0)*tileWidth*pixelBytes);
+					readFully(in, data, dst, length*(y2-y1));
+				} else {
+					for (int y=y1; y<y2; y++) {
+						in.seek(offset + ((long)(y-y0)*tileWidth+x1-x0)*pixelBytes);
+						readFully(in, data, dst, length);
+						dst += r.width*pixelBytes;
+					}
+				}
+				showProgress(i+1, count);
+			}
+			return data;
+		}
+		byteCount = (long)tileWidth*tileHeight*pixelBytes;	// limits the output of lzwUncompress()
+		final byte[][] tileData = new byte[count][];
+		for (int i=0; i<count; i++) {
+			in.seek(fi.getStripOffset(tiles[i]));
+			tileData[i] = new byte[fi.stripLengths[tiles[i]]];
+			readFully(in, tileData[i], 0, tileData[i].length);
+		}
+		final int[] tiles2 = tiles;
+		final int tilesAcross2 = tilesAcross;
+		ThreadUtil.parallelFor(0, count, ThreadUtil.getChunkSize(count, 1), new ThreadUtil.RangeTask() {
+			public void run(int from, int to) {
+				for (int i=from; i<to; i++) {
+					int tile = tiles2[i];
+					decodeTile(tileData[i], tile/tilesPerPlane, (tile%tilesPerPlane%tilesAcross2)*tileWidth,
+						(tile%tilesPerPlane/tilesAcross2)*tileHeight, tileWidth, tileHeight, pixelBytes, region, data);
+					tileData[i] = null;
+				}
+			}
+		});
+		return data;
+	}
+
+	/** Uncompresses a tile with upper left corner (x0,y0) and copies the part
+		inside 'region' (x, y, width, height) to 'data'. */
+	private void decodeTile(byte[] input, int plane, int x0, int y0, int tileWidth, int tileHeight, int pixelBytes, int[] region, byte[] data) {
+		int rowBytes = tileWidth*pixelBytes;
+		byte[] tile;
+		if (fi.compression==FileInfo.PACK_BITS)
+			tile = packBitsUncompress(input, rowBytes*tileHeight);
+		else
+			tile = uncompress(input);
+		if (differencing())
+			undoDifferencing(tile, rowBytes, pixelBytes);
+		int x1 = Math.max(x0, region[0]), x2 = Math.min(Math.min(x0+tileWidth, width), region[0]+region[2]);
+		int y1 = Math.max(y0, region[1]), y2 = Math.min(Math.min(y0+tileHeight, height), region[1]+region[3]);
+		int length = (x2-x1)*pixelBytes;
+		int dst = plane*region[2]*region[3]*pixelBytes + ((y1-region[1])*region[2]+x1-region[0])*pixelBytes;
+		for (int y=y1; y<y2; y++) {
+			int src = ((y-y0)*tileWidth+x1-x0)*pixelBytes;
+			int n = Math.min(length, tile.length-src);	// tile data may be truncated
+			if (n<=0) break;
+			System.arraycopy(tile, src, data, dst, n);
+			dst += region[2]*pixelBytes;
+		}
+	}
+
+	/** Reverses the horizontal differencing predictor, row by row, for samples of 1, 2 or 4 bytes. */
+	private void undoDifferencing(byte[] tile, int rowBytes, int pixelBytes) {
+		int sampleBytes = getBytesPerSample(fi);
+		boolean intel = fi.intelByteOrder;
+		for (int row=0; row+rowBytes<=tile.length; row+=rowBytes) {
+			if (sampleBytes==1) {
+				for (int i=row+pixelBytes; i<row+rowBytes; i++)
+					tile[i] += tile[i-pixelBytes];
+			} else if (sampleBytes==2) {
+				for (int i=row+pixelBytes; i<row+rowBytes; i+=2) {
+					int lo = intel?i:i+1, hi = intel?i+1:i;
+					int v = ((tile[hi]&0xff)<<8|(tile[lo]&0xff)) + ((tile[hi-pixelBytes]&0xff)<<8|(tile[lo-pixelBytes]&0xff));
+					tile[lo] = (byte)v;
+					tile[hi] = (byte)(v>>8);
+				}
+			} else if (sampleBytes==4) {
+				for (int i=row+pixelBytes; i<row+rowBytes; i+=4) {
+					int v = getInt(tile, i, intel) + getInt(tile, i-pixelBytes, intel);
+					for (int b=0; b<4; b++)
+						tile[intel?i+b:i+3-b] = (byte)(v>>(8*b));
+				}
+			}
+		}
+	}
+
+	private static int getInt(byte[] b, int i, boolean intel) {
+		if (intel)
+			return (b[i+3]&0xff)<<24 | (b[i+2]&0xff)<<16 | (b[i+1]&0xff)<<8 | (b[i]&0xff);
+		else
+			return (b[i]&0xff)<<24 | (b[i+1]&0xff)<<16 | (b[i+2]&0xff)<<8 | (b[i+3]&0xff);
+	}
+
+	private void readFully(InputStream in, byte[] buffer, int offset, int length) throws IOException {
+		while (length>0) {
+			int n = in.read(buffer, offset, length);
+			if (n<0) {eofError(); break;}
+			offset += n;
+			length -= n;
+		}
+	}
+
 	/** 
 	Reads the image from a URL and returns the pixel array (byte, 
 	short, int or float). Returns null if there was an IO exception.
@@ -880,7 +1330,7 @@ public class ImageReader {
 			return packBitsUncompress(input, fi.rowsPerStrip*fi.width*fi.getBytesPerPixel());
 		else if (fi.compression==FileInfo.LZW || fi.compression==FileInfo.LZW_WITH_DIFFERENCING)
 			return lzwUncompress(input);
-		else if (fi.compression==FileInfo.ZIP)
+		else if (fi.compression==FileInfo.ZIP || fi.compression==FileInfo.ZIP_WITH_DIFFERENCING)
 			return zipUncompress(input);
 		else
 			return input;
@@ -9,6 +9,7 @@ import ij.util.Java2;
 import ij.measure.ResultsTable;
 import ij.macro.Interpreter;
 import ij.util.Tools;
+import ij.util.ThreadUtil;
 import java.awt.*;
 import java.awt.image.*;
 import java.io.*;
@@ -691,7 +692,7 @@ public class Opener {
 				&& info[i].height==info[0].height;
 			contiguous &= info[i].getOffset()==startingOffset+i*size;
 		}
-		if (contiguous &&  info[0].fileType!=FileInfo.RGB48)
+		if (contiguous &&  info[0].fileType!=FileInfo.RGB48 && info[0].tileWidth==0)
 			info[0].nImages = info.length;
 		//if (IJ.debugMode) {
 		//	IJ.log("sameSizeAndType: " + sameSizeAndType);
@@ -727,7 +728,13 @@ public class Opener {
 				InputStream is = createInputStream(fi);
 				ImageReader reader = new ImageReader(fi);
 				IJ.resetEscape();
-				for (int i=0; i<info.length; i++) {
+				int first = 0;
+				if (is instanceof RandomAccessStream && canDecodeInParallel(info)) {
+					first = readCompressedStack(info, (RandomAccessStream)is, stack);
+					if (first<0)
+						return null;		// cancelled
+				}
+				for (int i=first; i<info.length; i++) {
 					nChannels = 1;
 					Object[] channels = null;
 					if (!silentMode)
@@ -738,6 +745,7 @@ public class Opener {
 						return null;
 					}
 					fi.stripOffsets = info[i].stripOffsets;
+					fi.longStripOffsets = info[i].longStripOffsets;
 					fi.stripLengths = info[i].stripLengths;
 					int bpp = info[i].getBytesPerPixel();
 					if (info[i].samplesPerPixel>1 && !(bpp==3||bpp==4||bpp==6)) {
@@ -753,7 +761,7 @@ public class Opener {
 					loc += imageSize*nChannels+skip;
 					if (i<(info.length-1)) {
 						skip = info[i+1].getOffset()-loc;
-						if (info[i+1].compression>=FileInfo.LZW) skip = 0;
+						if (info[i+1].compression>=FileInfo.LZW || info[i+1].tileWidth>0) skip = 0;
 						if (skip<0L) {
 							IJ.error("Opener", "Unexpected image offset");
 							break;
@@ -795,11 +803,20 @@ public class Opener {
 			}
 			//if (fi.whiteIsZero)
 			//	new StackProcessor(stack, stack.getProcessor(1)).invert();
+			if (fi.sliceLabels!=null && fi.sliceLabels.length<=stack.getSize()) {
+				for (int i=0; i<fi.sliceLabels.length; i++)
+					stack.setSliceLabel(fi.sliceLabels[i], i+1);
+			}
 			ImagePlus imp = new ImagePlus(fi.fileName, stack);
-			new FileOpener(fi).setCalibration(imp);
+			FileOpener fo = new FileOpener(fi);
+			fo.setCalibration(imp);
 			imp.setFileInfo(fi);
 			if (fi.info!=null)
 				imp.setProperty("Info", fi.info);
+			if (fi.roi!=null)
+				imp.setRoi(RoiDecoder.openFromByteArray(fi.roi));
+			if (fi.overlay!=null)
+				fo.setOverlay(imp, fi.overlay);
 			if (fi.description!=null && fi.description.contains("order=zct"))
 				new HyperStackConverter().shuffle(imp, HyperStackConverter.ZCT);
 			int stackSize = stack.getSize();
@@ -814,6 +831,66 @@ public class Opener {
 		}
 	}
 	
+	/** Returns true if all images are LZW, ZIP or PackBits compressed single-channel
+		or RGB images, which can be decoded in parallel by readCompressedStack(). */
+	private boolean canDecodeInParallel(FileInfo[] info) {
+		if (info.length<2 || Prefs.getThreads()<2)
+			return false;
+		for (int i=0; i<info.length; i++) {
+			int bpp = info[i].getBytesPerPixel();
+			if (!ImageReader.isStripCompressed(info[i]) || (info[i].samplesPerPixel>1 && !(bpp==3||bpp==4)))
+				return false;
+		}
+		return true;
+	}
+
+	/** Reads the compressed strips of the images with one thread, and uncompresses
+		and decodes the images in parallel threads. Images are read in batches to
+		limit the memory needed for the compressed data. Returns the number of
+		images read, which is less than info.length if an image could not be
+		decoded (the remaining ones are then read by the serial code, which
+		reports the error), or -1 if the user has pressed 'Esc'. */
+	private int readCompressedStack(FileInfo[] info, RandomAccessStream is, ImageStack stack) throws IOException {
+		FileInfo fi = info[0];
+		int batchSize = 2*Prefs.getThreads();
+		for (int first=0; first<info.length; first+=batchSize) {
+			if (IJ.escapePressed()) {
+				IJ.beep();
+				IJ.showProgress(1.0);
+				return -1;
+			}
+			int n = Math.min(batchSize, info.length-first);
+			final ImageReader[] readers = new ImageReader[n];
+			final byte[][][] strips = new byte[n][][];
+			for (int i=0; i<n; i++) {
+				FileInfo fi2 = (FileInfo)fi.clone();
+				fi2.stripOffsets = info[first+i].stripOffsets;
+				fi2.longStripOffsets = info[first+i].longStripOffsets;
+				fi2.stripLengths = info[first+i].stripLengths;
+				readers[i] = new ImageReader(fi2);
+				strips[i] = readers[i].readStrips(is);
+			}
+			if (!silentMode)
+				IJ.showStatus("Reading: " + (first+n) + "/" + info.length);
+			final Object[] pixels = new Object[n];
+			ThreadUtil.parallelFor(0, n, 1, new ThreadUtil.RangeTask() {
+				public void run(int from, int to) {
+					for (int i=from; i<to; i++) {
+						pixels[i] = readers[i].decodePixels(strips[i]);
+						strips[i] = null;
+					}
+				}
+			});
+			for (int i=0; i<n; i++) {
+				if (pixels[i]==null)
+					return first+i;
+				stack.addSlice(null, pixels[i]);
+			}
+			IJ.showProgress(first+n, info.length);
+		}
+		return info.length;
+	}
+
 	/** Attempts to open the specified file as a tiff.
 		Returns an ImagePlus object if successful. */
 	public ImagePlus openTiff(String directory, String name) {
@@ -861,12 +938,74 @@ public class Opener {
 			fi.longOffset = info[n-1].getOffset();
 			fi.offset = 0;
 			fi.stripOffsets = info[n-1].stripOffsets; 
+			fi.longStripOffsets = info[n-1].longStripOffsets; 
 			fi.stripLengths = info[n-1].stripLengths; 
 		}
 		FileOpener fo = new FileOpener(fi);
 		return fo.open(false);
 	}
 
+	/** Opens rectangle 'r' of image 'n' (1-based) of a TIFF file. Only the tiles
+		or strips that intersect the rectangle are read and uncompressed, thus a small
+		region of an image that is too large to be opened as a whole can be read quickly.
+		With multi-image TIFFs, image 'n' may have a different size than the first
+		image, e.g., a lower-resolution level of a pyramidal TIFF.
+		Returns null if the region cannot be read.
+	*/
+	public ImagePlus openTiff(String path, int n, Rectangle r) {
+		TiffDecoder td = new TiffDecoder(getDir(path), getName(path));
+		if (IJ.debugMode) td.enableDebugging();
+		FileInfo[] info=null;
+		try {
+			info = td.getTiffInfo();
+		} catch (IOException e) {
+			String msg = e.getMessage();
+			if (msg==null||msg.equals("")) msg = ""+e;
+			IJ.error("Open TIFF", msg);
+			return null;
+		}
+		if (info==null) return null;
+		FileInfo fi = info[0];
+		if (info.length==1 && fi.nImages>1) {
+			if (n<1 || n>fi.nImages)
+				throw new IllegalArgumentException("N out of 1-"+fi.nImages+" range");
+			long size = (long)fi.width*fi.height*fi.getBytesPerPixel();
+			fi.longOffset = fi.getOffset() + (n-1)*(size+fi.gapBetweenImages);
+			fi.offset = 0;
+			fi.nImages = 1;
+			fi.stripOffsets = null;
+			fi.longStripOffsets = null;
+			fi.stripLengths = null;
+		} else {
+			if (n<1 || n>info.length)
+				throw new IllegalArgumentException("N out of 1-"+info.length+" range");
+			if (info[n-1].width==fi.width && info[n-1].height==fi.height) {
+				fi.stripOffsets = info[n-1].stripOffsets; 
+				fi.longStripOffsets = info[n-1].longStripOffsets; 
+				fi.stripLengths = info[n-1].stripLengths; 
+			} else
+				fi = info[n-1];
+		}
+		Rectangle r2 = r.intersection(new Rectangle(0, 0, fi.width, fi.height));
+		if (r2.isEmpty())
+			throw new IllegalArgumentException("Rectangle outside of "+fi.width+"x"+fi.height+" image");
+		RandomAccessStream in = null;
+		try {
+			in = new RandomAccessStream(new RandomAccessFile(path, "r"));
+			byte[] data = new ImageReader(fi).readRegion(in, r2);
+			FileInfo fi2 = ImageReader.getRegionInfo(fi, r2.width, r2.height);
+			fi2.inputStream = new ByteArrayInputStream(data);
+			return new FileOpener(fi2).open(false);
+		} catch (IOException e) {
+			String msg = e.getMessage();
+			if (msg==null||msg.equals("")) msg = ""+e;
+			IJ.error("Open TIFF", msg);
+			return null;
+		} finally {
+			if (in!=null) try {in.close();} catch (IOException e) {}
+		}
+	}
+
 	/** Returns the FileInfo of the specified TIFF file. */
 	public static FileInfo[] getTiffFileInfo(String path) {
 		Opener o = new Opener();
@@ -1028,7 +1167,7 @@ public class Opener {
 		imp = fo.open(false);
 		if (imp==null) return null;
 		int[] offsets = info[0].stripOffsets;
-		if (offsets!=null&&offsets.length>1 && offsets[offsets.length-1]<offsets[0])
+		if (offsets!=null&&offsets.length>1 && info[0].tileWidth==0 && info[0].getStripOffset(offsets.length-1)<info[0].getStripOffset(0))
 			ij.IJ.run(imp, "Flip Vertically", "stack");
 		imp = makeComposite(imp, info[0]);
 		if (imp.getBitDepth()==32 && imp.getTitle().startsWith("FFT of"))
@@ -1167,11 +1306,11 @@ public class Opener {
 		 // Big-endian TIFF ("MM")
 		if (name.endsWith(".lsm"))
 				return UNKNOWN; // The LSM	Reader plugin opens these files
-		if (b0==73 && b1==73 && b2==42 && b3==0 && !(bioformats&&name.endsWith(".flex")))
+		if (b0==73 && b1==73 && (b2==42||b2==43) && b3==0 && !(bioformats&&name.endsWith(".flex")))
 			return TIFF;
 
 		 // Little-endian TIFF ("II")
-		if (b0==77 && b1==77 && b2==0 && b3==42)
+		if (b0==77 && b1==77 && b2==0 && (b3==42||b3==43))
 			return TIFF;
 
 		 // JPEG
@@ -1277,7 +1416,7 @@ public class Opener {
 				return null;
 			else {
 				InputStream is = new FileInputStream(f);
-				if (fi.compression>=FileInfo.LZW || (fi.stripOffsets!=null&&fi.stripOffsets.length>1))
+				if (fi.compression>=FileInfo.LZW || (fi.stripOffsets!=null&&fi.stripOffsets.length>1) || fi.tileWidth>0)
 					is = new RandomAccessStream(is);
 				return is;
 			}
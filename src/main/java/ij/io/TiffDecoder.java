@@ -34,6 +34,9 @@ public class TiffDecoder {
 	public static final int PREDICTOR = 317;
 	public static final int COLOR_MAP = 320;
 	public static final int TILE_WIDTH = 322;
+	public static final int TILE_LENGTH = 323;
+	public static final int TILE_OFFSETS = 324;
+	public static final int TILE_BYTE_COUNTS = 325;
 	public static final int SAMPLE_FORMAT = 339;
 	public static final int JPEG_TABLES = 347;
 	public static final int METAMORPH1 = 33628;
@@ -51,6 +54,7 @@ public class TiffDecoder {
 	//field types
 	static final int SHORT = 3;
 	static final int LONG = 4;
+	static final int LONG8 = 16;  // BigTIFF
 
 	// metadata types
 	static final int MAGIC_NUMBER = 0x494a494a;  // "IJIJ"
@@ -67,6 +71,7 @@ public class TiffDecoder {
 	protected RandomAccessStream in;
 	protected boolean debugMode;
 	private boolean littleEndian;
+	private boolean bigTiff;
 	private String dInfo;
 	private int ifdCount;
 	private int[] metaDataCounts;
@@ -134,7 +139,13 @@ public class TiffDecoder {
 			in.close();
 			return -1;
 		}
-		int magicNumber = getShort(); // 42
+		int magicNumber = getShort(); // 42, or 43 for BigTIFF
+		bigTiff = magicNumber==43;
+		if (bigTiff) {
+			int bytesPerOffset = getShort(); // 8
+			int unused = getShort();
+			return readLong();
+		}
 		long offset = ((long)getInt())&0xffffffffL;
 		return offset;
 	}
@@ -150,6 +161,44 @@ public class TiffDecoder {
 		return value;
 	}	
 	
+	/** Reads the 8-byte value field of a BigTIFF IFD entry. Returns the value of single
+		SHORT, LONG and LONG8 fields, the offset of the data if they do not fit into the
+		value field and, otherwise, the position of the value field, i.e., of the data. */
+	long getBigTiffValue(int fieldType, long count) throws IOException {
+		long loc = in.getLongFilePointer();
+		if (count*getFieldSize(fieldType)>8)
+			return readLong();
+		long value = loc;
+		if (count==1 && fieldType==SHORT)
+			value = getShort();
+		else if (count==1 && fieldType==LONG)
+			value = getUnsignedInt();
+		else if (count==1 && fieldType==LONG8)
+			value = readLong();
+		in.seek(loc+8);
+		return value;
+	}
+
+	/** Returns the size in bytes of a TIFF field type. */
+	int getFieldSize(int fieldType) {
+		switch (fieldType) {
+			case 3: case 8: return 2;			// SHORT, SSHORT
+			case 4: case 9: case 11: return 4;	// LONG, SLONG, FLOAT
+			case 5: case 10: case 12: case 16: case 17: case 18: return 8; // RATIONAL, SRATIONAL, DOUBLE, LONG8, SLONG8, IFD8
+			default: return 1;					// BYTE, ASCII, SBYTE, UNDEFINED
+		}
+	}
+
+	/** Reads an element of a SHORT, LONG or LONG8 array. */
+	long getArrayValue(int fieldType) throws IOException {
+		if (fieldType==SHORT)
+			return getShort();
+		else if (fieldType==LONG8)
+			return readLong();
+		else
+			return getUnsignedInt();
+	}
+
 	void getColorMap(long offset, FileInfo fi) throws IOException {
 		byte[] colorTable16 = new byte[768*2];
 		long saveLoc = in.getLongFilePointer();
@@ -199,7 +248,7 @@ public class TiffDecoder {
 		if (id.length()<7) return;
 		fi.description = id;
         int index1 = id.indexOf("images=");
-        if (index1>0) {
+        if (index1>0 && fi.compression==FileInfo.COMPRESSION_NONE) { // compressed images are not contiguous
             int index2 = id.indexOf("\n", index1);
             if (index2>0) {
                 String images = id.substring(index1+7,index2);
@@ -332,6 +381,10 @@ public class TiffDecoder {
 			case COMPRESSION: name="Compression"; break; 
 			case PREDICTOR: name="Predictor"; break; 
 			case COLOR_MAP: name="ColorMap"; break; 
+			case TILE_WIDTH: name="TileWidth"; break; 
+			case TILE_LENGTH: name="TileLength"; break; 
+			case TILE_OFFSETS: name="TileOffsets"; break; 
+			case TILE_BYTE_COUNTS: name="TileByteCounts"; break; 
 			case SAMPLE_FORMAT: name="SampleFormat"; break; 
 			case JPEG_TABLES: name="JPEGTables"; break; 
 			case NIH_IMAGE_HDR: name="NIHImageHeader"; break; 
@@ -357,7 +410,8 @@ public class TiffDecoder {
 	FileInfo OpenIFD() throws IOException {
 	// Get Image File Directory data
 		int tag, fieldType, count, value;
-		int nEntries = getShort();
+		long lvalue;
+		int nEntries = bigTiff?(int)readLong():getShort();
 		if (nEntries<1 || nEntries>1000)
 			return null;
 		ifdCount++;
@@ -368,9 +422,15 @@ public class TiffDecoder {
 		for (int i=0; i<nEntries; i++) {
 			tag = getShort();
 			fieldType = getShort();
-			count = getInt();
-			value = getValue(fieldType, count);
-			long lvalue = ((long)value)&0xffffffffL;
+			if (bigTiff) {
+				count = (int)readLong();
+				lvalue = getBigTiffValue(fieldType, count);
+				value = (int)lvalue;
+			} else {
+				count = getInt();
+				value = getValue(fieldType, count);
+				lvalue = ((long)value)&0xffffffffL;
+			}
 			if (debugMode && ifdCount<10) dumpTag(tag, count, value, fi);
 			//ij.IJ.write(i+"/"+nEntries+" "+tag + ", count=" + count + ", value=" + value);
 			//if (tag==0) return null;
@@ -382,34 +442,42 @@ public class TiffDecoder {
 				case IMAGE_LENGTH: 
 					fi.height = value;
 					break;
- 				case STRIP_OFFSETS:
+ 				case STRIP_OFFSETS: case TILE_OFFSETS:
+					long[] offsets;
 					if (count==1)
-						fi.stripOffsets = new int[] {value};
+						offsets = new long[] {lvalue};
 					else {
 						long saveLoc = in.getLongFilePointer();
 						in.seek(lvalue);
-						fi.stripOffsets = new int[count];
+						offsets = new long[count];
 						for (int c=0; c<count; c++)
-							fi.stripOffsets[c] = getInt();
+							offsets[c] = getArrayValue(fieldType);
 						in.seek(saveLoc);
 					}
-					fi.offset = count>0?fi.stripOffsets[0]:value;
-					if (count>1 && (((long)fi.stripOffsets[count-1])&0xffffffffL)<(((long)fi.stripOffsets[0])&0xffffffffL))
-						fi.offset = fi.stripOffsets[count-1];
+					fi.stripOffsets = new int[offsets.length];
+					long maxOffset = 0L;
+					for (int c=0; c<offsets.length; c++) {
+						fi.stripOffsets[c] = (int)offsets[c];
+						maxOffset = Math.max(maxOffset, offsets[c]);
+					}
+					if (maxOffset>0xffffffffL)
+						fi.longStripOffsets = offsets;
+					long offset = count>0?offsets[0]:lvalue;
+					if (count>1 && offsets[count-1]<offsets[0])
+						offset = offsets[count-1];
+					fi.offset = (int)offset;
+					if (offset>0xffffffffL)
+						fi.longOffset = offset;
 					break;
-				case STRIP_BYTE_COUNT:
+				case STRIP_BYTE_COUNT: case TILE_BYTE_COUNTS:
 					if (count==1)
 						fi.stripLengths = new int[] {value};
 					else {
 						long saveLoc = in.getLongFilePointer();
 						in.seek(lvalue);
 						fi.stripLengths = new int[count];
-						for (int c=0; c<count; c++) {
-							if (fieldType==SHORT)
-								fi.stripLengths[c] = getShort();
-							else
-								fi.stripLengths[c] = getInt();
-						}
+						for (int c=0; c<count; c++)
+							fi.stripLengths[c] = (int)getArrayValue(fieldType);
 						in.seek(saveLoc);
 					}
 					break;
@@ -518,13 +586,18 @@ public class TiffDecoder {
 				case PREDICTOR:
 					if (value==2 && fi.compression==FileInfo.LZW)
 						fi.compression = FileInfo.LZW_WITH_DIFFERENCING;
+					else if (value==2 && fi.compression==FileInfo.ZIP)
+						fi.compression = FileInfo.ZIP_WITH_DIFFERENCING;
 					break;
 				case COLOR_MAP: 
 					if (count==768)
 						getColorMap(lvalue, fi);
 					break;
 				case TILE_WIDTH:
-					error("ImageJ cannot open tiled TIFFs.\nTry using the Bio-Formats plugin.");
+					fi.tileWidth = value;
+					break;
+				case TILE_LENGTH:
+					fi.tileHeight = value;
 					break;
 				case SAMPLE_FORMAT:
 					if (fi.fileType==FileInfo.GRAY32_INT && value==FLOATING_POINT)
@@ -569,17 +642,22 @@ public class TiffDecoder {
 					in.seek(lvalue);
 					metaDataCounts = new int[count];
 					for (int c=0; c<count; c++)
-						metaDataCounts[c] = getInt();
+						metaDataCounts[c] = (int)getArrayValue(fieldType);
 					in.seek(saveLoc);
 					break;
  				case META_DATA: 
- 					getMetaData(value, fi);
+ 					getMetaData(lvalue, fi);
  					break;
 				default:
 					if (tag>10000 && tag<32768 && ifdCount>1)
 						return null;
 			}
 		}
+		if (fi.tileWidth>0) {
+			if (!ImageReader.isTileable(fi))
+				error("ImageJ cannot open tiled TIFFs of this type.\nTry using the Bio-Formats plugin.");
+			fi.nImages = 1; // tiled images are not contiguous
+		}
 		fi.fileFormat = fi.TIFF;
 		fi.fileName = name;
 		fi.directory = directory;
@@ -588,7 +666,7 @@ public class TiffDecoder {
 		return fi;
 	}
 
-	void getMetaData(int loc, FileInfo fi) throws IOException {
+	void getMetaData(long loc, FileInfo fi) throws IOException {
 		if (metaDataCounts==null || metaDataCounts.length==0)
 			return;
 		int maxTypes = 10;
@@ -767,7 +845,7 @@ public class TiffDecoder {
 			FileInfo fi = OpenIFD();
 			if (fi!=null) {
 				list.add(fi);
-				ifdOffset = ((long)getInt())&0xffffffffL;
+				ifdOffset = bigTiff?readLong():((long)getInt())&0xffffffffL;
 			} else
 				ifdOffset = 0L;
 			if (debugMode && ifdCount<10) dInfo += "  nextIFD=" + ifdOffset + "\n";
@@ -1,12 +1,25 @@
 package ij.io;
 import java.io.*;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import ij.IJ;
+import ij.Prefs;
+import ij.process.ImageProcessor;
+import ij.util.ThreadUtil;
 
-/**Saves an image described by a FileInfo object as an uncompressed, big-endian TIFF file.*/
+/**Saves an image described by a FileInfo object as a TIFF file. Images are saved
+uncompressed unless LZW or ZIP (Deflate) compression is set with setCompression().
+Files that could be larger than 4GB are saved as BigTIFF, with 64-bit offsets.*/
 public class TiffEncoder {
 	static final int HDR_SIZE = 8;
+	static final int BIG_TIFF_HDR_SIZE = 16;
 	static final int MAP_SIZE = 768; // in 16-bit words
 	static final int BPS_DATA_SIZE = 6;
 	static final int SCALE_DATA_SIZE = 16;
+	static final int STRIP_SIZE = 65536; // approximate size of compressed strips before compression
+	static final int CLEAR_CODE = 256;
+	static final int EOI_CODE = 257;
+	static final int LZW_HASH_SIZE = 8192;
 		
 	private FileInfo fi;
 	private int bitsPerSample;
@@ -15,7 +28,7 @@ public class TiffEncoder {
 	private int nEntries;
 	private int ifdSize;
 	private long imageOffset;
-	private int imageSize;
+	private long imageSize;
 	private long stackSize;
 	private byte[] description;
 	private int metaDataSize;
@@ -27,7 +40,14 @@ public class TiffEncoder {
 	private boolean littleEndian = ij.Prefs.intelByteOrder;
 	private byte buffer[] = new byte[8];
 	private int colorMapSize = 0;
-
+	private int bytesPerPixel;
+	private int bpsSize;
+	private int tagDataSize;
+	private long tagDataStart;
+	private boolean bigTiff, bigTiffSet, bigTiffFixed;
+	private int compression = FileInfo.COMPRESSION_NONE;
+	private int rowsPerStrip;
+	private int nStrips = 1;
 		
 	public TiffEncoder (FileInfo fi) {
 		this.fi = fi;
@@ -35,8 +55,8 @@ public class TiffEncoder {
 		bitsPerSample = 8;
 		samplesPerPixel = 1;
 		nEntries = 9;
-		int bytesPerPixel = 1;
-		int bpsSize = 0;
+		bytesPerPixel = 1;
+		bpsSize = 0;
 
 		switch (fi.fileType) {
 			case FileInfo.GRAY8:
@@ -90,49 +110,154 @@ public class TiffEncoder {
 		makeDescriptionString();
 		if (description!=null)
 			nEntries++;  // ImageDescription tag
-		long size = (long)fi.width*fi.height*bytesPerPixel;
-		imageSize = size<=0xffffffffL?(int)size:0;
-		stackSize = (long)imageSize*fi.nImages;
+		imageSize = (long)fi.width*fi.height*bytesPerPixel;
+		stackSize = imageSize*fi.nImages;
 		metaDataSize = getMetaDataSize();
 		if (metaDataSize>0)
 			nEntries += 2; // MetaData & MetaDataCounts
-		ifdSize = 2 + nEntries*12 + 4;
-		int descriptionSize = description!=null?description.length:0;
 		scaleSize = fi.unit!=null && fi.pixelWidth!=0 && fi.pixelHeight!=0?SCALE_DATA_SIZE:0;
-		imageOffset = HDR_SIZE+ifdSize+bpsSize+descriptionSize+scaleSize+colorMapSize + nMetaDataEntries*4 + metaDataSize;
+		rowsPerStrip = fi.height;
+		updateLayout();
+	}
+
+	/** Decides whether a BigTIFF is required, then computes the IFD
+		size and the offset of the first image. */
+	private void updateLayout() {
+		bigTiff = bigTiffSet;
+		computeOffsets();
+		if (!bigTiff && !bigTiffFixed) {
+			long maxImageSize = compression==FileInfo.COMPRESSION_NONE?imageSize:imageSize+imageSize/2; // LZW may expand noisy images
+			long fileSize = imageOffset + fi.nImages*(maxImageSize+ifdSize+8L*nStrips+1);
+			if (fileSize>=0xffffffffL) {
+				bigTiff = true;
+				computeOffsets();
+			}
+		}
 		fi.offset = (int)imageOffset;
-		//ij.IJ.log(imageOffset+", "+ifdSize+", "+bpsSize+", "+descriptionSize+", "+scaleSize+", "+colorMapSize+", "+nMetaDataEntries*4+", "+metaDataSize);
+		//ij.IJ.log(imageOffset+", "+ifdSize+", "+bpsSize+", "+scaleSize+", "+colorMapSize+", "+nMetaDataEntries*4+", "+metaDataSize+", "+bigTiff);
+	}
+
+	private void computeOffsets() {
+		ifdSize = bigTiff?8+nEntries*20+8:2+nEntries*12+4;
+		tagDataSize = colorMapSize + metaDataSize;
+		if (bpsSize>0 && !isInline(BPS_DATA_SIZE))
+			tagDataSize += bpsSize;
+		if (description!=null && !isInline(description.length))
+			tagDataSize += description.length;
+		if (scaleSize>0 && !isInline(8))
+			tagDataSize += scaleSize;
+		if (!isInline(nMetaDataEntries*4))
+			tagDataSize += nMetaDataEntries*4;
+		int stripArraysSize = nStrips>1?2*nStrips*getOffsetSize():0;
+		tagDataStart = getHeaderSize()+ifdSize;
+		imageOffset = tagDataStart+tagDataSize+stripArraysSize;
+	}
+
+	/** Returns 'true' if data of this size are stored in the value field of IFD entries. */
+	private boolean isInline(int size) {
+		return size<=getOffsetSize();
+	}
+
+	private int getOffsetSize() {
+		return bigTiff?8:4;
+	}
+
+	private int getHeaderSize() {
+		return bigTiff?BIG_TIFF_HDR_SIZE:HDR_SIZE;
+	}
+
+	/** Saves as BigTIFF (with 64-bit offsets) if 'bigTiff' is true. Otherwise, which
+		is the default, a BigTIFF is only written if the file could be larger than 4GB.
+		Must be called before write(). */
+	public void setBigTiff(boolean bigTiff) {
+		bigTiffSet = bigTiff;
+		updateLayout();
+	}
+
+	/** Returns 'true' if the file will be saved as BigTIFF. */
+	public boolean isBigTiff() {
+		return bigTiff;
+	}
+
+	/** Saves as BigTIFF if 'bigTiff' is true, otherwise as classic TIFF, regardless
+		of the file size. Used by TiffStackWriter, which writes the header before
+		the size is known. */
+	void forceBigTiff(boolean bigTiff) {
+		bigTiffSet = bigTiff;
+		bigTiffFixed = true;
+		updateLayout();
 	}
 	
+	/** Sets the compression, which must be FileInfo.COMPRESSION_NONE (the default),
+		FileInfo.LZW, FileInfo.ZIP (Deflate), FileInfo.LZW_WITH_DIFFERENCING or
+		FileInfo.ZIP_WITH_DIFFERENCING. The horizontal differencing predictor
+		usually improves the compression of 8-bit, 16-bit and RGB images; it is not
+		used with 32-bit images. RGB48 images are always saved uncompressed.
+		Compressed images are saved in strips of about 64 KB, which are compressed
+		in parallel. Must be called before write(). */
+	public void setCompression(int compression) {
+		switch (compression) {
+			case FileInfo.LZW: case FileInfo.ZIP:
+				break;
+			case FileInfo.LZW_WITH_DIFFERENCING:
+				if (fi.fileType==FileInfo.GRAY32_FLOAT) compression = FileInfo.LZW;
+				break;
+			case FileInfo.ZIP_WITH_DIFFERENCING:
+				if (fi.fileType==FileInfo.GRAY32_FLOAT) compression = FileInfo.ZIP;
+				break;
+			default:
+				compression = FileInfo.COMPRESSION_NONE;
+		}
+		if (fi.fileType==FileInfo.RGB48 || fi.width==0 || fi.height==0)
+			compression = FileInfo.COMPRESSION_NONE;
+		nEntries += getCompressionEntries(compression) - getCompressionEntries(this.compression);
+		this.compression = compression;
+		if (compression==FileInfo.COMPRESSION_NONE) {
+			rowsPerStrip = fi.height;
+			nStrips = 1;
+		} else {
+			rowsPerStrip = Math.max(1, Math.min(fi.height, STRIP_SIZE/(fi.width*bytesPerPixel)));
+			nStrips = (fi.height+rowsPerStrip-1)/rowsPerStrip;
+		}
+		updateLayout();
+		fi.compression = compression;
+	}
+
+	/** Returns the compression set by setCompression(). */
+	public int getCompression() {
+		return compression;
+	}
+
+	private int getCompressionEntries(int compression) {
+		if (compression==FileInfo.COMPRESSION_NONE)
+			return 0;
+		else if (compression==FileInfo.LZW_WITH_DIFFERENCING || compression==FileInfo.ZIP_WITH_DIFFERENCING)
+			return 2; // Compression & Predictor
+		else
+			return 1;
+	}
+
 	/** Saves the image as a TIFF file. The OutputStream is not closed.
 		The fi.pixels field must contain the image data. If fi.nImages>1
 		then fi.pixels must be a 2D array. The fi.offset field is ignored. */
 	public void write(OutputStream out) throws IOException {
+		if (compression!=FileInfo.COMPRESSION_NONE) {
+			writeCompressed(out);
+			return;
+		}
 		writeHeader(out);
 		long nextIFD = 0L;
 		if (fi.nImages>1)
 			nextIFD = imageOffset+stackSize;
-		boolean bigTiff = nextIFD+fi.nImages*ifdSize>=0xffffffffL;
-		if (bigTiff)
-			nextIFD = 0L;
-		writeIFD(out, (int)imageOffset, (int)nextIFD);
-		if (fi.fileType==FileInfo.RGB||fi.fileType==FileInfo.RGB48)
-			writeBitsPerPixel(out);
-		if (description!=null)
-			writeDescription(out);
-		if (scaleSize>0)
-			writeScale(out);
-		if (colorMapSize>0)
-			writeColorMap(out);
-		if (metaDataSize>0)
-			writeMetaData(out);
+		writeIFD(out, imageOffset, nextIFD, imageSize);
+		writeTagData(out);
 		new ImageWriter(fi).write(out);
 		if (nextIFD>0L) {
 			int ifdSize2 = ifdSize;
 			if (metaDataSize>0) {
 				metaDataSize = 0;
 				nEntries -= 2;
-				ifdSize2 -= 2*12;
+				ifdSize2 -= 2*getEntrySize();
 			}
 			for (int i=2; i<=fi.nImages; i++) {
 				if (i==fi.nImages)
@@ -140,16 +265,245 @@ public class TiffEncoder {
 				else
 					nextIFD += ifdSize2;
 				imageOffset += imageSize;
-				writeIFD(out, (int)imageOffset, (int)nextIFD);
+				writeIFD(out, imageOffset, nextIFD, imageSize);
 			}
-		} else if (bigTiff)
-				ij.IJ.log("Stack is larger than 4GB. Most TIFF readers will only open the first image. Use this information to open as raw:\n"+fi);
+		}
 	}
 	
 	public void write(DataOutputStream out) throws IOException {
 		write((OutputStream)out);
 	}
 
+	/** Writes a compressed TIFF. Each IFD is followed by the strip offsets and
+		byte counts (if there is more than one strip) and the compressed image,
+		thus the offset of the next IFD is known when an IFD is written. To limit
+		the memory needed, the images of stacks are compressed in batches. */
+	void writeCompressed(OutputStream out) throws IOException {
+		if (fi.pixels==null && fi.virtualStack==null)
+			throw new IOException("TiffEncoder: fi.pixels==null");
+		if (fi.nImages>1 && fi.virtualStack==null && !(fi.pixels instanceof Object[]))
+			throw new IOException("TiffEncoder: fi.pixels not a stack");
+		writeHeader(out);
+		int stripArraysSize = nStrips>1?2*nStrips*getOffsetSize():0;
+		int ifdSize2 = metaDataSize>0?ifdSize-2*getEntrySize():ifdSize; // metadata is only saved with the first image
+		long ifdOffset = getHeaderSize();
+		int batchSize = Math.max(2*Prefs.getThreads(), 1);
+		for (int first=0; first<fi.nImages; first+=batchSize) {
+			int n = Math.min(batchSize, fi.nImages-first);
+			if (fi.nImages>1)
+				IJ.showStatus("Writing: " + (first+n) + "/" + fi.nImages);
+			byte[][][] strips = compressImages(first, n);
+			for (int i=0; i<n; i++) {
+				int image = first + i;
+				if (image==1 && metaDataSize>0) {
+					metaDataSize = 0;
+					nEntries -= 2;
+				}
+				long offset = image==0?imageOffset:ifdOffset+ifdSize2+stripArraysSize;
+				long end = offset;
+				for (int s=0; s<nStrips; s++)
+					end += strips[i][s].length;
+				if (end>=0xffffffffL && !bigTiff)
+					throw new IOException("TiffEncoder: compressed data larger than expected; use setBigTiff(true)");
+				boolean pad = (end&1)!=0; // IFDs must start on a word boundary
+				long nextIFD = image<fi.nImages-1?end+(pad?1:0):0L;
+				writeIFD(out, offset, nextIFD, end-offset);
+				if (image==0)
+					writeTagData(out);
+				if (nStrips>1) {
+					long stripOffset = offset;
+					for (int s=0; s<nStrips; s++) {
+						writeOffset(out, stripOffset);
+						stripOffset += strips[i][s].length;
+					}
+					for (int s=0; s<nStrips; s++)
+						writeOffset(out, strips[i][s].length);
+				}
+				for (int s=0; s<nStrips; s++)
+					out.write(strips[i][s]);
+				if (pad)
+					out.write(0);
+				strips[i] = null;
+				ifdOffset = nextIFD;
+			}
+			if (fi.nImages>1)
+				IJ.showProgress(first+n, fi.nImages);
+		}
+	}
+
+	/** Returns the strips of an image as they are written to the file, i.e.,
+		compressed if a compression has been set. Used by TiffStackWriter. */
+	byte[][] encodeImage(Object pixels) {
+		if (compression==FileInfo.COMPRESSION_NONE)
+			return new byte[][] {getStripBytes(pixels, 0, fi.height)};
+		else
+			return compressImages(new Object[] {pixels})[0];
+	}
+
+	/** Compresses the strips of 'n' images, starting with image 'first'
+		(0-based), in parallel. Returns the strips as [image][strip][]. */
+	private byte[][][] compressImages(int first, int n) {
+		Object[] pixels = new Object[n];
+		for (int i=0; i<n; i++)
+			pixels[i] = getPixels(first+i);
+		return compressImages(pixels);
+	}
+
+	private byte[][][] compressImages(final Object[] pixels) {
+		int n = pixels.length;
+		final byte[][][] strips = new byte[n][nStrips][];
+		ThreadUtil.parallelFor(0, n*nStrips, 1, new ThreadUtil.RangeTask() {
+			public void run(int from, int to) {
+				for (int k=from; k<to; k++) {
+					int image = k/nStrips;
+					int strip = k%nStrips;
+					int y = strip*rowsPerStrip;
+					byte[] bytes = getStripBytes(pixels[image], y, Math.min(rowsPerStrip, fi.height-y));
+					if (compression==FileInfo.LZW || compression==FileInfo.LZW_WITH_DIFFERENCING)
+						strips[image][strip] = lzwCompress(bytes);
+					else
+						strips[image][strip] = zipCompress(bytes);
+				}
+			}
+		});
+		return strips;
+	}
+
+	/** Returns the pixel array of an image (0-based) of fi.pixels or fi.virtualStack. */
+	private Object getPixels(int image) {
+		if (fi.nImages==1)
+			return fi.pixels;
+		else if (fi.virtualStack!=null) {
+			ImageProcessor ip = fi.virtualStack.getProcessor(image+1);
+			if ("FlipTheseImages".equals(fi.fileName)) ip.flipVertical();
+			return ip.getPixels();
+		} else
+			return ((Object[])fi.pixels)[image];
+	}
+
+	/** Converts 'rows' lines of the image, starting at line 'y', to bytes in
+		file byte order, and applies the predictor, if any. */
+	private byte[] getStripBytes(Object pixels, int y, int rows) {
+		int width = fi.width;
+		boolean differencing = compression==FileInfo.LZW_WITH_DIFFERENCING || compression==FileInfo.ZIP_WITH_DIFFERENCING;
+		byte[] bytes = new byte[width*rows*bytesPerPixel];
+		int index = y*width;
+		if (pixels instanceof byte[])
+			System.arraycopy((byte[])pixels, index, bytes, 0, bytes.length);
+		else if (pixels instanceof short[]) {
+			short[] p = (short[])pixels;
+			for (int row=0,j=0; row<rows; row++) {
+				int last = 0;
+				for (int x=0; x<width; x++,j+=2) {
+					int value = p[index++];
+					int v = differencing?value-last:value;
+					last = value;
+					if (littleEndian) {
+						bytes[j] = (byte)v;
+						bytes[j+1] = (byte)(v>>>8);
+					} else {
+						bytes[j] = (byte)(v>>>8);
+						bytes[j+1] = (byte)v;
+					}
+				}
+			}
+		} else if (pixels instanceof float[]) {
+			float[] p = (float[])pixels;
+			for (int j=0; j<bytes.length; j+=4) {
+				int v = Float.floatToRawIntBits(p[index++]);
+				if (littleEndian) {
+					bytes[j] = (byte)v;
+					bytes[j+1] = (byte)(v>>8);
+					bytes[j+2] = (byte)(v>>16);
+					bytes[j+3] = (byte)(v>>24);
+				} else {
+					bytes[j] = (byte)(v>>24);
+					bytes[j+1] = (byte)(v>>16);
+					bytes[j+2] = (byte)(v>>8);
+					bytes[j+3] = (byte)v;
+				}
+			}
+		} else if (pixels instanceof int[]) {
+			int[] p = (int[])pixels;
+			for (int j=0; j<bytes.length; j+=3) {
+				int c = p[index++];
+				bytes[j] = (byte)(c>>16);	//red
+				bytes[j+1] = (byte)(c>>8);	//green
+				bytes[j+2] = (byte)c;		//blue
+			}
+		}
+		if (differencing && (pixels instanceof byte[] || pixels instanceof int[])) {
+			int rowBytes = width*samplesPerPixel;
+			for (int row=0; row<rows; row++) {
+				int start = row*rowBytes;
+				for (int b=start+rowBytes-1; b>=start+samplesPerPixel; b--)
+					bytes[b] -= bytes[b-samplesPerPixel];
+			}
+		}
+		return bytes;
+	}
+
+	/** Compresses 'input' with the TIFF variant of LZW compression
+		(the inverse of ImageReader.lzwUncompress()). */
+	public static byte[] lzwCompress(byte[] input) {
+		BitWriter out = new BitWriter(input.length/2+16);
+		int[] keys = new int[LZW_HASH_SIZE];
+		short[] codes = new short[LZW_HASH_SIZE];
+		Arrays.fill(keys, -1);
+		int nextCode = 258;
+		int codeLength = 9;
+		out.write(CLEAR_CODE, codeLength);
+		if (input.length==0) {
+			out.write(EOI_CODE, codeLength);
+			return out.toByteArray();
+		}
+		int prefix = input[0]&255;
+		for (int i=1; i<input.length; i++) {
+			int c = input[i]&255;
+			int key = (prefix<<8)|c;
+			int h = (key*0x9E3779B1)>>>19;
+			while (keys[h]!=-1 && keys[h]!=key)
+				h = (h+1)&(LZW_HASH_SIZE-1);
+			if (keys[h]==key) {
+				prefix = codes[h];
+				continue;
+			}
+			out.write(prefix, codeLength);
+			keys[h] = key;
+			codes[h] = (short)nextCode++;
+			if (nextCode==4094) { // table full, start again
+				out.write(CLEAR_CODE, codeLength);
+				Arrays.fill(keys, -1);
+				nextCode = 258;
+				codeLength = 9;
+			} else if (nextCode==512 || nextCode==1024 || nextCode==2048)
+				codeLength++;
+			prefix = c;
+		}
+		out.write(prefix, codeLength);
+		nextCode++; // the decoder adds a table entry after reading the last code
+		if (nextCode==512 || nextCode==1024 || nextCode==2048)
+			codeLength++;
+		out.write(EOI_CODE, codeLength);
+		return out.toByteArray();
+	}
+
+	/** Compresses 'input' with ZIP (Deflate) compression
+		(the inverse of ImageReader.zipUncompress()). */
+	public static byte[] zipCompress(byte[] input) {
+		Deflater deflater = new Deflater();
+		deflater.setInput(input);
+		deflater.finish();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(input.length/2+64);
+		byte[] buffer = new byte[8192];
+		while (!deflater.finished()) {
+			int n = deflater.deflate(buffer);
+			out.write(buffer, 0, n);
+		}
+		deflater.end();
+		return out.toByteArray();
+	}
+
 	int getMetaDataSize() {
         //if (stackSize+IMAGE_START>0xffffffffL) return 0;
 		nSliceLabels = 0;
@@ -228,68 +582,176 @@ public class TiffEncoder {
 		return size;
 	}
 	
-	/** Writes the 8-byte image file header. */
+	/** Writes the 8-byte image file header, or the 16-byte header of a BigTIFF. */
 	void writeHeader(OutputStream out) throws IOException {
-		byte[] hdr = new byte[8];
-		if (littleEndian) {
-			hdr[0] = 73; // "II" (Intel byte order)
-			hdr[1] = 73;
-			hdr[2] = 42;  // 42 (magic number)
-			hdr[3] = 0;
-			hdr[4] = 8;  // 8 (offset to first IFD)
-			hdr[5] = 0;
-			hdr[6] = 0;
-			hdr[7] = 0;
+		writeHeader(out, getHeaderSize());
+	}
+
+	/** Writes the file header, with 'firstIFD' as the offset of the first IFD. */
+	void writeHeader(OutputStream out, long firstIFD) throws IOException {
+		writeShort(out, littleEndian?0x4949:0x4d4d); // "II" (Intel) or "MM" (Motorola byte order)
+		if (bigTiff) {
+			writeShort(out, 43); // BigTIFF magic number
+			writeShort(out, 8); // bytes per offset
+			writeShort(out, 0);
+			writeLong(out, firstIFD);
 		} else {
-			hdr[0] = 77; // "MM" (Motorola byte order)
-			hdr[1] = 77;
-			hdr[2] = 0;  // 42 (magic number)
-			hdr[3] = 42;
-			hdr[4] = 0;  // 8 (offset to first IFD)
-			hdr[5] = 0;
-			hdr[6] = 0;
-			hdr[7] = 8;
+			writeShort(out, 42); // magic number
+			writeInt(out, (int)firstIFD);
 		}
-		out.write(hdr);
+	}
+
+	/** Writes the tag data of the first IFD at 'position', followed by the IFDs
+		of all images, where 'offsets' and 'byteCounts' give the position and size of
+		the (already written) image data. Used by TiffStackWriter, which writes the
+		IFDs at the end of the file. Returns the offset of the first IFD. */
+	long writeIFDs(OutputStream out, long position, long[] offsets, long[] byteCounts, int n) throws IOException {
+		tagDataStart = position;
+		writeTagData(out);
+		long ifdOffset = position + tagDataSize;
+		if ((ifdOffset&1)!=0) { // IFDs must start on a word boundary
+			out.write(0);
+			ifdOffset++;
+		}
+		long firstIFD = ifdOffset;
+		int ifdSize2 = metaDataSize>0?ifdSize-2*getEntrySize():ifdSize; // metadata is only saved with the first image
+		for (int i=0; i<n; i++) {
+			if (i==1 && metaDataSize>0) {
+				metaDataSize = 0;
+				nEntries -= 2;
+			}
+			long nextIFD = i<n-1?ifdOffset+(i==0?ifdSize:ifdSize2):0L;
+			writeIFD(out, offsets[i], nextIFD, byteCounts[i]);
+			ifdOffset = nextIFD;
+		}
+		return firstIFD;
 	}
 	
-	/** Writes one 12-byte IFD entry. */
-	void writeEntry(OutputStream out, int tag, int fieldType, int count, int value) throws IOException {
+	/** Writes one 12-byte IFD entry, or a 20-byte entry of a BigTIFF. */
+	void writeEntry(OutputStream out, int tag, int fieldType, int count, long value) throws IOException {
 		writeShort(out, tag);
 		writeShort(out, fieldType);
+		if (bigTiff) {
+			writeLong(out, count);
+			if (count==1 && fieldType==TiffDecoder.SHORT) {
+				writeShort(out, (int)value);
+				writeShort(out, 0);
+				writeInt(out, 0);
+			} else if (count==1 && fieldType==TiffDecoder.LONG) {
+				writeInt(out, (int)value);
+				writeInt(out, 0);
+			} else
+				writeLong(out, value); // may be an offset
+			return;
+		}
 		writeInt(out, count);
 		if (count==1 && fieldType==TiffDecoder.SHORT) {
-			writeShort(out, value);
+			writeShort(out, (int)value);
 			writeShort(out, 0);
 		} else
-			writeInt(out, value); // may be an offset
+			writeInt(out, (int)value); // may be an offset
+	}
+
+	/** Writes an IFD entry with data that fit into the value field. */
+	void writeEntry(OutputStream out, int tag, int fieldType, int count, byte[] data) throws IOException {
+		writeShort(out, tag);
+		writeShort(out, fieldType);
+		if (bigTiff)
+			writeLong(out, count);
+		else
+			writeInt(out, count);
+		out.write(data);
+		for (int i=data.length; i<getOffsetSize(); i++)
+			out.write(0);
+	}
+
+	private int getEntrySize() {
+		return bigTiff?20:12;
+	}
+
+	/** Writes a strip offset or byte count, 64-bit for BigTIFF. */
+	void writeOffset(OutputStream out, long value) throws IOException {
+		if (bigTiff)
+			writeLong(out, value);
+		else
+			writeInt(out, (int)value);
 	}
 	
-	/** Writes one IFD (Image File Directory). */
-	void writeIFD(OutputStream out, int imageOffset, int nextIFD) throws IOException {	
-		int tagDataOffset = HDR_SIZE + ifdSize;
-		writeShort(out, nEntries);
+	/** Writes the data of the first IFD that does not fit into the IFD entries. */
+	void writeTagData(OutputStream out) throws IOException {
+		if (bpsSize>0 && !isInline(BPS_DATA_SIZE))
+			writeBitsPerPixel(out);
+		if (description!=null && !isInline(description.length))
+			writeDescription(out);
+		if (scaleSize>0 && !isInline(8))
+			writeScale(out);
+		if (colorMapSize>0)
+			writeColorMap(out);
+		if (metaDataSize>0) {
+			if (!isInline(nMetaDataEntries*4))
+				writeMetaDataCounts(out);
+			writeMetaData(out);
+		}
+	}
+
+	/** Writes one IFD (Image File Directory). With more than one strip,
+		the strip offsets and byte counts must precede the image data. */
+	void writeIFD(OutputStream out, long imageOffset, long nextIFD, long byteCount) throws IOException {	
+		long tagDataOffset = tagDataStart;
+		if (bigTiff)
+			writeLong(out, nEntries);
+		else
+			writeShort(out, nEntries);
 		writeEntry(out, TiffDecoder.NEW_SUBFILE_TYPE, 4, 1, 0);
 		writeEntry(out, TiffDecoder.IMAGE_WIDTH, 4, 1, fi.width);
 		writeEntry(out, TiffDecoder.IMAGE_LENGTH, 4, 1, fi.height);
-		if (fi.fileType==FileInfo.RGB||fi.fileType==FileInfo.RGB48) {
+		if (bpsSize>0 && isInline(BPS_DATA_SIZE)) {
+			ByteArrayOutputStream data = new ByteArrayOutputStream();
+			writeBitsPerPixel(data);
+			writeEntry(out, TiffDecoder.BITS_PER_SAMPLE,  3, 3, data.toByteArray());
+		} else if (bpsSize>0) {
 			writeEntry(out, TiffDecoder.BITS_PER_SAMPLE,  3, 3, tagDataOffset);
 			tagDataOffset += BPS_DATA_SIZE;
 		} else
 			writeEntry(out, TiffDecoder.BITS_PER_SAMPLE,  3, 1, bitsPerSample);
+		if (compression!=FileInfo.COMPRESSION_NONE) {
+			boolean lzw = compression==FileInfo.LZW || compression==FileInfo.LZW_WITH_DIFFERENCING;
+			writeEntry(out, TiffDecoder.COMPRESSION,  3, 1, lzw?5:8);
+		}
 		writeEntry(out, TiffDecoder.PHOTO_INTERP,     3, 1, photoInterp);
-		if (description!=null) {
+		if (description!=null && isInline(description.length))
+			writeEntry(out, TiffDecoder.IMAGE_DESCRIPTION, 2, description.length, description);
+		else if (description!=null) {
 			writeEntry(out, TiffDecoder.IMAGE_DESCRIPTION, 2, description.length, tagDataOffset);
 			tagDataOffset += description.length;
 		}
-		writeEntry(out, TiffDecoder.STRIP_OFFSETS,    4, 1, imageOffset);
+		int offsetType = bigTiff?TiffDecoder.LONG8:TiffDecoder.LONG;
+		int arraySize = nStrips*getOffsetSize();
+		if (nStrips>1)
+			writeEntry(out, TiffDecoder.STRIP_OFFSETS, offsetType, nStrips, imageOffset-2*arraySize);
+		else
+			writeEntry(out, TiffDecoder.STRIP_OFFSETS, offsetType, 1, imageOffset);
 		writeEntry(out, TiffDecoder.SAMPLES_PER_PIXEL,3, 1, samplesPerPixel);
-		writeEntry(out, TiffDecoder.ROWS_PER_STRIP,   3, 1, fi.height);
-		writeEntry(out, TiffDecoder.STRIP_BYTE_COUNT, 4, 1, imageSize);
+		writeEntry(out, TiffDecoder.ROWS_PER_STRIP,   3, 1, rowsPerStrip);
+		if (nStrips>1)
+			writeEntry(out, TiffDecoder.STRIP_BYTE_COUNT, offsetType, nStrips, imageOffset-arraySize);
+		else
+			writeEntry(out, TiffDecoder.STRIP_BYTE_COUNT, offsetType, 1, byteCount);
 		if (fi.unit!=null && fi.pixelWidth!=0 && fi.pixelHeight!=0) {
-			writeEntry(out, TiffDecoder.X_RESOLUTION, 5, 1, tagDataOffset);
-			writeEntry(out, TiffDecoder.Y_RESOLUTION, 5, 1, tagDataOffset+8);
-			tagDataOffset += SCALE_DATA_SIZE;
+			if (isInline(8)) {
+				ByteArrayOutputStream data = new ByteArrayOutputStream();
+				writeScale(data);
+				byte[] scale = data.toByteArray();
+				byte[] xScale = new byte[8], yScale = new byte[8];
+				System.arraycopy(scale, 0, xScale, 0, 8);
+				System.arraycopy(scale, 8, yScale, 0, 8);
+				writeEntry(out, TiffDecoder.X_RESOLUTION, 5, 1, xScale);
+				writeEntry(out, TiffDecoder.Y_RESOLUTION, 5, 1, yScale);
+			} else {
+				writeEntry(out, TiffDecoder.X_RESOLUTION, 5, 1, tagDataOffset);
+				writeEntry(out, TiffDecoder.Y_RESOLUTION, 5, 1, tagDataOffset+8);
+				tagDataOffset += SCALE_DATA_SIZE;
+			}
 			int unit = 1;
 			if (fi.unit.equals("inch"))
 				unit = 2;
@@ -297,6 +759,8 @@ public class TiffEncoder {
 				unit = 3;
 			writeEntry(out, TiffDecoder.RESOLUTION_UNIT, 3, 1, unit);
 		}
+		if (compression==FileInfo.LZW_WITH_DIFFERENCING || compression==FileInfo.ZIP_WITH_DIFFERENCING)
+			writeEntry(out, TiffDecoder.PREDICTOR, 3, 1, 2);
 		if (fi.fileType==fi.GRAY32_FLOAT) {
 			int format = TiffDecoder.FLOATING_POINT;
 			writeEntry(out, TiffDecoder.SAMPLE_FORMAT, 3, 1, format);
@@ -306,11 +770,21 @@ public class TiffEncoder {
 			tagDataOffset += MAP_SIZE*2;
 		}
 		if (metaDataSize>0) {
-			writeEntry(out, TiffDecoder.META_DATA_BYTE_COUNTS, 4, nMetaDataEntries, tagDataOffset);
-			writeEntry(out, TiffDecoder.META_DATA, 1, metaDataSize, tagDataOffset+4*nMetaDataEntries);
-			tagDataOffset += nMetaDataEntries*4 + metaDataSize;
+			if (isInline(4*nMetaDataEntries)) {
+				ByteArrayOutputStream data = new ByteArrayOutputStream();
+				writeMetaDataCounts(data);
+				writeEntry(out, TiffDecoder.META_DATA_BYTE_COUNTS, 4, nMetaDataEntries, data.toByteArray());
+			} else {
+				writeEntry(out, TiffDecoder.META_DATA_BYTE_COUNTS, 4, nMetaDataEntries, tagDataOffset);
+				tagDataOffset += 4*nMetaDataEntries;
+			}
+			writeEntry(out, TiffDecoder.META_DATA, 1, metaDataSize, tagDataOffset);
+			tagDataOffset += metaDataSize;
 		}
-		writeInt(out, nextIFD);
+		if (bigTiff)
+			writeLong(out, nextIFD);
+		else
+			writeInt(out, (int)nextIFD);
 	}
 	
 	/** Writes the 6 bytes of data required by RGB BitsPerSample tag. */
@@ -352,12 +826,8 @@ public class TiffEncoder {
 		out.write(colorTable16);
 	}
 	
-	/** Writes image metadata ("info" image propery, 
-		stack slice labels, channel display ranges, luts, ROIs,
-		overlays and extra metadata). */
-	void writeMetaData(OutputStream out) throws IOException {
-	
-		// write byte counts (META_DATA_BYTE_COUNTS tag)
+	/** Writes the byte counts of the metadata (META_DATA_BYTE_COUNTS tag). */
+	void writeMetaDataCounts(OutputStream out) throws IOException {
 		writeInt(out, 4+nMetaDataTypes*8); // header size	
 		if (fi.info!=null && fi.info.length()>0)
 			writeInt(out, fi.info.length()*2);
@@ -381,6 +851,12 @@ public class TiffEncoder {
 		}
 		for (int i=0; i<extraMetaDataEntries; i++)
 			writeInt(out, fi.metaData[i].length);	
+	}
+
+	/** Writes image metadata ("info" image propery, 
+		stack slice labels, channel display ranges, luts, ROIs,
+		overlays and extra metadata). */
+	void writeMetaData(OutputStream out) throws IOException {
 		
 		// write header (META_DATA tag header)
 		writeInt(out, TiffDecoder.MAGIC_NUMBER); // "IJIJ"
@@ -521,4 +997,31 @@ public class TiffEncoder {
         }
     }
     
-}
+	/** Writes LZW codes, most significant bit first. */
+	private static class BitWriter {
+		private ByteArrayOutputStream out;
+		private int buffer, nBits;
+
+		BitWriter(int size) {
+			out = new ByteArrayOutputStream(size);
+		}
+
+		void write(int code, int length) {
+			buffer = (buffer<<length) | code;
+			nBits += length;
+			while (nBits>=8) {
+				nBits -= 8;
+				out.write(buffer>>>nBits);
+			}
+			buffer &= (1<<nBits)-1;
+		}
+
+		byte[] toByteArray() {
+			if (nBits>0)
+				out.write(buffer<<(8-nBits));
+			nBits = 0;
+			return out.toByteArray();
+		}
+	}
+
+}
\ No newline at end of file
@@ -0,0 +1,206 @@
+package ij.io;
+import java.io.*;
+import ij.process.*;
+
+/** Saves a stack as a TIFF file plane by plane, thus stacks that do not fit into
+	memory, such as long acquisitions or processed virtual stacks, can be saved.
+	Each plane is (compressed and) written as soon as it is appended; the IFDs,
+	slice labels and other metadata are written at the end of the file by close().
+	Besides the offsets and labels of the planes, no memory is used for the planes
+	already written.
+	<pre>
+	TiffStackWriter writer = new TiffStackWriter(imp.getFileInfo());
+	writer.open(path);
+	for (int i=1; i&lt;=stack.getSize(); i++)
+		writer.appendPlane(stack.getProcessor(i), stack.getSliceLabel(i));
+	writer.close();
+	</pre>
+	@see TiffEncoder
+*/
+public class TiffStackWriter {
+	private FileInfo fi;
+	private int compression = FileInfo.COMPRESSION_NONE;
+	private boolean bigTiff;
+	private TiffEncoder encoder;
+	private String path;
+	private OutputStream out;
+	private long position;
+	private long[] offsets = new long[16];
+	private long[] byteCounts = new long[16];
+	private String[] labels;
+	private int nPlanes;
+
+	/** Creates a writer for planes described by 'fi' (width, height, file type, LUT,
+		calibration, description and metadata). The file type must be GRAY8, COLOR8,
+		GRAY16_UNSIGNED, GRAY32_FLOAT or RGB (the channels of RGB48 images are saved as
+		16-bit planes). fi.nImages is the expected number of planes; it is only used
+		to decide whether a BigTIFF is needed. Slice labels are set with appendPlane(). */
+	public TiffStackWriter(FileInfo fi) {
+		this.fi = (FileInfo)fi.clone();
+		if (this.fi.fileType==FileInfo.RGB48)
+			this.fi.fileType = FileInfo.GRAY16_UNSIGNED;
+		this.fi.pixels = null;
+		this.fi.virtualStack = null;
+		this.fi.sliceLabels = null;
+	}
+
+	/** Sets the compression (see TiffEncoder.setCompression). Must be called before open(). */
+	public void setCompression(int compression) {
+		this.compression = compression;
+	}
+
+	/** Saves as BigTIFF, which is required if the file will be larger than 4GB and
+		fi.nImages does not tell so. Must be called before open(). */
+	public void setBigTiff(boolean bigTiff) {
+		this.bigTiff = bigTiff;
+	}
+
+	/** Creates the file and writes the TIFF header. */
+	public void open(String path) throws IOException {
+		if (out!=null)
+			throw new IOException("TiffStackWriter: file is already open");
+		switch (fi.fileType) {
+			case FileInfo.GRAY8: case FileInfo.COLOR8: case FileInfo.GRAY16_UNSIGNED:
+			case FileInfo.GRAY32_FLOAT: case FileInfo.RGB:
+				break;
+			default:
+				throw new IOException("TiffStackWriter: unsupported file type ("+fi.fileType+")");
+		}
+		encoder = new TiffEncoder((FileInfo)fi.clone());
+		encoder.setCompression(compression);
+		if (bigTiff)
+			encoder.setBigTiff(true);
+		compression = encoder.getCompression();
+		this.path = path;
+		out = new BufferedOutputStream(new FileOutputStream(path), 65536);
+		encoder.writeHeader(out, 0L); // the offset of the first IFD is set by close()
+		position = encoder.isBigTiff()?TiffEncoder.BIG_TIFF_HDR_SIZE:TiffEncoder.HDR_SIZE;
+		nPlanes = 0;
+		labels = null;
+	}
+
+	/** Appends a plane, without a slice label. */
+	public void appendPlane(ImageProcessor ip) throws IOException {
+		appendPlane(ip, null);
+	}
+
+	/** Appends a plane with the given slice label (may be null). The image
+		must have the size and type given by the FileInfo. */
+	public void appendPlane(ImageProcessor ip, String label) throws IOException {
+		if (out==null)
+			throw new IOException("TiffStackWriter: file is not open");
+		if (ip.getWidth()!=fi.width || ip.getHeight()!=fi.height)
+			throw new IllegalArgumentException("Image is not "+fi.width+"x"+fi.height);
+		Object pixels = ip.getPixels();
+		boolean ok = false;
+		switch (fi.fileType) {
+			case FileInfo.GRAY8: case FileInfo.COLOR8: ok = pixels instanceof byte[]; break;
+			case FileInfo.GRAY16_UNSIGNED: ok = pixels instanceof short[]; break;
+			case FileInfo.GRAY32_FLOAT: ok = pixels instanceof float[]; break;
+			case FileInfo.RGB: ok = pixels instanceof int[]; break;
+		}
+		if (!ok)
+			throw new IllegalArgumentException("Image type does not match FileInfo ("+fi.fileType+")");
+		byte[][] strips = encoder.encodeImage(pixels);
+		int nStrips = strips.length;
+		long offset = position;
+		if (nStrips>1) {	// strip offsets and byte counts precede the image data
+			offset += 2*nStrips*(encoder.isBigTiff()?8:4);
+			long stripOffset = offset;
+			for (int s=0; s<nStrips; s++) {
+				encoder.writeOffset(out, stripOffset);
+				stripOffset += strips[s].length;
+			}
+			for (int s=0; s<nStrips; s++)
+				encoder.writeOffset(out, strips[s].length);
+		}
+		long byteCount = 0L;
+		for (int s=0; s<nStrips; s++)
+			byteCount += strips[s].length;
+		if (offset+byteCount>=0xffffffffL && !encoder.isBigTiff())
+			throw new IOException("TiffStackWriter: file larger than 4GB; use setBigTiff(true)");
+		for (int s=0; s<nStrips; s++)
+			out.write(strips[s]);
+		if (nPlanes==offsets.length) {
+			offsets = grow(offsets);
+			byteCounts = grow(byteCounts);
+			if (labels!=null)
+				labels = grow(labels);
+		}
+		if (label!=null && labels==null)
+			labels = new String[offsets.length];
+		if (labels!=null)
+			labels[nPlanes] = label;
+		offsets[nPlanes] = offset;
+		byteCounts[nPlanes] = byteCount;
+		nPlanes++;
+		position = offset + byteCount;
+	}
+
+	/** Returns the number of planes written. */
+	public int getPlaneCount() {
+		return nPlanes;
+	}
+
+	/** Writes the IFDs and metadata, and closes the file. */
+	public void close() throws IOException {
+		if (out==null)
+			return;
+		try {
+			if (nPlanes==0)
+				throw new IOException("TiffStackWriter: no planes");
+			FileInfo fi2 = (FileInfo)fi.clone();
+			fi2.nImages = nPlanes;
+			if (labels!=null) {
+				fi2.sliceLabels = new String[nPlanes];
+				System.arraycopy(labels, 0, fi2.sliceLabels, 0, nPlanes);
+			}
+			fi2.description = updateDescription(fi.description, nPlanes);
+			TiffEncoder encoder2 = new TiffEncoder(fi2);
+			encoder2.setCompression(compression);
+			encoder2.forceBigTiff(encoder.isBigTiff());
+			long firstIFD = encoder2.writeIFDs(out, position, offsets, byteCounts, nPlanes);
+			out.close();
+			out = null;
+			ByteArrayOutputStream header = new ByteArrayOutputStream();
+			encoder2.writeHeader(header, firstIFD);
+			RandomAccessFile raf = new RandomAccessFile(path, "rw");
+			try {
+				raf.write(header.toByteArray());
+			} finally {
+				raf.close();
+			}
+		} finally {
+			if (out!=null) {
+				out.close();
+				out = null;
+			}
+		}
+	}
+
+	/** Sets the "images=" entry of an ImageJ description to the number of planes written. */
+	private static String updateDescription(String description, int n) {
+		if (description==null)
+			return null;
+		int index1 = description.indexOf("images=");
+		if (index1<0)
+			return description;
+		int index2 = description.indexOf("\n", index1);
+		if (index2<0)
+			return description;
+		return description.substring(0, index1)+"images="+n+description.substring(index2);
+	}
+
+	private static long[] grow(long[] a) {
+		long[] a2 = new long[a.length*2];
+		System.arraycopy(a, 0, a2, 0, a.length);
+		return a2;
+	}
+
+	private static String[] grow(String[] a) {
+		String[] a2 = new String[a.length*2];
+		System.arraycopy(a, 0, a2, 0, a.length);
+		return a2;
+	}
+
+}
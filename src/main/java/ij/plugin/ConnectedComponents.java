@@ -0,0 +1,232 @@
+package ij.plugin;
+import ij.*;
+import ij.gui.*;
+import ij.process.*;
+import ij.measure.*;
+import ij.plugin.filter.Analyzer;
+import ij.util.ThreadUtil;
+import java.awt.Rectangle;
+
+/** This plugin implements the Analyze/Connected Components command. It labels
+	the particles (connected components) of a thresholded or binary image or stack
+	and creates a 32-bit label image, where the pixels of each particle have the
+	value of its label. The area (volume), centroid, bounding box and mean value
+	of each particle are listed in a results table; the mean is measured in the
+	redirect image if one is set in Analyze>Set Measurements. Stacks are labeled
+	in 3D, with 6- or 26-connected particles, or slice by slice, with 4- or
+	8-connected particles. Labels are exact up to 16777216 (2^24).
+	@see ij.process.ComponentLabeler
+*/
+public class ConnectedComponents implements PlugIn {
+	private static final String[] connectivities2D = {"4", "8"};
+	private static final String[] connectivities3D = {"4 (2D)", "8 (2D)", "6 (3D)", "26 (3D)"};
+	private static String staticConnectivity = "8";
+	private static String staticConnectivity3D = "26 (3D)";
+	private static boolean staticShowLabels = true;
+	private static boolean staticShowResults = true;
+	private String connectivity;
+	private boolean showLabels = true;
+	private boolean showResults = true;
+	private double level1, level2;
+
+	public void run(String arg) {
+		ImagePlus imp = IJ.getImage();
+		if (!setThresholdLevels(imp)) {
+			IJ.error("Connected Components",
+				"A thresholded image or 8-bit binary image is\n"
+				+"required. Threshold levels can be set using\n"
+				+"the Image->Adjust->Threshold tool.");
+			return;
+		}
+		if (!showDialog(imp))
+			return;
+		int connectivity = Integer.parseInt(this.connectivity.split(" ")[0]);
+		if (connectivity>=6 && (imp.getNChannels()>1 || imp.getNFrames()>1)) {
+			IJ.error("Connected Components", "3D labeling requires a stack with one channel and one frame.");
+			return;
+		}
+		ImagePlus values = imp;
+		if (Analyzer.isRedirectImage()) {
+			values = Analyzer.getRedirectImage(imp);
+			if (values==null) return;
+			if (connectivity>=6 && values.getStackSize()!=imp.getStackSize()) {
+				IJ.error("Connected Components", "The redirect image must have "+imp.getStackSize()+" slices.");
+				return;
+			}
+		}
+		imp.startTiming();
+		ResultsTable rt = showResults ? new ResultsTable() : null;
+		ImagePlus labelImp = label(imp, connectivity, values, rt);
+		if (labelImp==null)
+			return;
+		IJ.showTime(imp, imp.getStartTime(), "", imp.getStackSize());
+		if (showLabels)
+			labelImp.show();
+		if (rt!=null)
+			rt.show("Connected Components of "+imp.getTitle());
+	}
+
+	boolean showDialog(ImagePlus imp) {
+		boolean stack = imp.getStackSize()>1;
+		String[] items = stack ? connectivities3D : connectivities2D;
+		connectivity = stack ? staticConnectivity3D : staticConnectivity;
+		if (!IJ.isMacro()) {
+			showLabels = staticShowLabels;
+			showResults = staticShowResults;
+		}
+		GenericDialog gd = new GenericDialog("Connected Components");
+		gd.addChoice("Connectivity:", items, connectivity);
+		gd.addCheckbox("Show label image", showLabels);
+		gd.addCheckbox("Display results", showResults);
+		gd.showDialog();
+		if (gd.wasCanceled())
+			return false;
+		connectivity = gd.getNextChoice();
+		showLabels = gd.getNextBoolean();
+		showResults = gd.getNextBoolean();
+		if (!IJ.isMacro()) {
+			if (stack)
+				staticConnectivity3D = connectivity;
+			else
+				staticConnectivity = connectivity;
+			staticShowLabels = showLabels;
+			staticShowResults = showResults;
+		}
+		return true;
+	}
+
+	/** Labels the particles of 'imp', which must be thresholded or 8-bit binary,
+		and returns the 32-bit label image, or null if 'imp' is neither thresholded
+		nor binary. With a 'connectivity' of 4 or 8, each slice is labeled separately;
+		with 6 or 26, the stack is labeled in 3D. If 'rt' is not null, the area
+		(volume), centroid, bounding box and mean value of each particle are added
+		to it, where the mean is measured in 'values' ('imp' if null), which must
+		have the same size as 'imp' in 3D. */
+	public ImagePlus label(ImagePlus imp, int connectivity, ImagePlus values, ResultsTable rt) {
+		if (!setThresholdLevels(imp))
+			return null;
+		if (values==null)
+			values = imp;
+		boolean in3D = connectivity==6 || connectivity==26;
+		ImageStack stack = imp.getStack();
+		int width = stack.getWidth();
+		int height = stack.getHeight();
+		int depth = stack.getSize();
+		ImageStack labelStack = new ImageStack(width, height);
+		Calibration cal = imp.getCalibration();
+		float[] cTable = values.getCalibration().getCTable();
+		int maxLabel = 0;
+		if (in3D) {
+			IJ.showStatus("Labeling...");
+			ComponentLabeler labeler = new ComponentLabeler(width, height, depth);
+			maxLabel = labeler.label(getForeground(stack, 1, depth), connectivity);
+			if (rt!=null)
+				measure(labeler, maxLabel, values.getStack(), cTable, cal, true, 0, rt);
+			labelStack = labeler.getLabelStack();
+		} else {
+			ImageStack valueStack = values.getStack();
+			for (int z=1; z<=depth; z++) {
+				IJ.showProgress(z, depth);
+				ComponentLabeler labeler = new ComponentLabeler(width, height);
+				int count = labeler.label(getForeground(stack, z, z)[0], connectivity==8);
+				if (rt!=null) {
+					ImageStack slice = new ImageStack(width, height);
+					slice.addSlice(null, valueStack.getProcessor(depth==valueStack.getSize()?z:1));
+					measure(labeler, count, slice, cTable, cal, false, depth>1?z:0, rt);
+				}
+				maxLabel = Math.max(maxLabel, count);
+				labelStack.addSlice(stack.getSliceLabel(z), labeler.getLabelStack().getProcessor(1));
+			}
+		}
+		IJ.showStatus("");
+		ImagePlus labelImp = new ImagePlus("Labels of "+imp.getShortTitle(), labelStack);
+		labelImp.setCalibration(cal);
+		if (depth>1 && imp.isHyperStack()) {
+			labelImp.setDimensions(imp.getNChannels(), imp.getNSlices(), imp.getNFrames());
+			labelImp.setOpenAsHyperStack(true);
+		}
+		labelImp.getProcessor().setMinAndMax(0, Math.max(maxLabel, 1));
+		return labelImp;
+	}
+
+	/** Returns the foreground of slices 'first' to 'last' (1-based) as byte arrays,
+		with pixels inside the threshold range nonzero */
+	private byte[][] getForeground(final ImageStack stack, final int first, int last) {
+		final byte[][] foreground = new byte[last-first+1][];
+		final int nPixels = stack.getWidth()*stack.getHeight();
+		ThreadUtil.parallelFor(first, last+1, 1, new ThreadUtil.RangeTask() {
+			public void run(int from, int to) {
+				for (int z=from; z<to; z++) {
+					ImageProcessor ip = stack.getProcessor(z);
+					byte[] fg = new byte[nPixels];
+					for (int i=0; i<nPixels; i++) {
+						float v = ip.getf(i);
+						if (v>=level1 && v<=level2)
+							fg[i] = (byte)255;
+					}
+					foreground[z-first] = fg;
+				}
+			}
+		});
+		return foreground;
+	}
+
+	/** Adds the measurements of the labeled particles to the results table;
+		'slice' is written to a "Slice" column unless it is zero */
+	private void measure(ComponentLabeler labeler, int count, ImageStack values, float[] cTable, Calibration cal, boolean in3D, int slice, ResultsTable rt) {
+		double[] means = labeler.getMeanValues(values, cTable);
+		double pixelArea = cal.pixelWidth*cal.pixelHeight;
+		int height = values.getHeight();
+		for (int label=1; label<=count; label++) {
+			rt.incrementCounter();
+			rt.addValue("Label", label);
+			if (slice>0)
+				rt.addValue("Slice", slice);
+			int n = labeler.getPixelCount(label);
+			if (in3D) {
+				rt.addValue("Volume", n*pixelArea*cal.pixelDepth);
+				rt.addValue("Voxels", n);
+			} else {
+				rt.addValue("Area", n*pixelArea);
+				rt.addValue("Pixels", n);
+			}
+			rt.addValue("Mean", means[label]);
+			double[] centroid = labeler.getCentroid(label);
+			rt.addValue("X", cal.getX(centroid[0]+0.5));
+			rt.addValue("Y", cal.getY(centroid[1]+0.5, height));
+			if (in3D)
+				rt.addValue("Z", cal.getZ(centroid[2]+0.5));
+			Rectangle r = labeler.getBounds(label);
+			rt.addValue("BX", cal.getX(r.x));
+			rt.addValue("BY", cal.getY(r.y, height));
+			if (in3D)
+				rt.addValue("BZ", cal.getZ(labeler.getFirstSlice(label)));
+			rt.addValue("Width", r.width*cal.pixelWidth);
+			rt.addValue("Height", r.height*cal.pixelHeight);
+			if (in3D)
+				rt.addValue("Depth", (labeler.getLastSlice(label)-labeler.getFirstSlice(label)+1)*cal.pixelDepth);
+		}
+	}
+
+	/** Sets the range of foreground values as the ParticleAnalyzer does;
+		returns false if the image is neither thresholded nor binary */
+	boolean setThresholdLevels(ImagePlus imp) {
+		ImageProcessor ip = imp.getProcessor();
+		double t1 = ip.getMinThreshold();
+		if (t1==ImageProcessor.NO_THRESHOLD) {
+			if (!(ip instanceof ByteProcessor) || !ip.isBinary())
+				return false;
+			boolean threshold255 = imp.isInvertedLut();
+			if (Prefs.blackBackground)
+				threshold255 = !threshold255;
+			level1 = level2 = threshold255 ? 255 : 0;
+		} else {
+			if (ip instanceof ColorProcessor)
+				return false;
+			level1 = t1;
+			level2 = ip.getMaxThreshold();
+		}
+		return true;
+	}
+
+}
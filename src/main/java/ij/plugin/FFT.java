@@ -160,20 +160,22 @@ public class FFT implements  PlugIn, Measurements {
         return fht;
     }
     
+    /** Pads the image with its mean value to a size where the width and height are
+        even (so the origin of the power spectrum is at the center) and have no prime
+        factors larger than 7 (for a fast mixed-radix transform). Square images with a
+        power of 2 size are not padded. */
     ImageProcessor pad(ImageProcessor ip) {
         originalWidth = ip.getWidth();
         originalHeight = ip.getHeight();
-        int maxN = Math.max(originalWidth, originalHeight);
-        int i = 2;
-        while(i<maxN) i *= 2;
-        if (i==maxN && originalWidth==originalHeight) {
+        int width = MixedRadixFHT.getFastEvenLength(originalWidth);
+        int height = MixedRadixFHT.getFastEvenLength(originalHeight);
+        if (width==originalWidth && height==originalHeight) {
             padded = false;
             return ip;
         }
-        maxN = i;
-        showStatus("Padding to "+ maxN + "x" + maxN);
+        showStatus("Padding to "+ width + "x" + height);
         ImageStatistics stats = ImageStatistics.getStatistics(ip, MEAN, null);
-        ImageProcessor ip2 = ip.createProcessor(maxN, maxN);
+        ImageProcessor ip2 = ip.createProcessor(width, height);
         ip2.setValue(stats.mean);
         ip2.fill();
         ip2.insert(ip, 0, 0);
@@ -214,7 +216,7 @@ public class FFT implements  PlugIn, Measurements {
         //IJ.log("smoothing time:"+(System.currentTimeMillis()-t0));
         if (IJ.debugMode || IJ.altKeyDown())
         	new ImagePlus("mask", mask.duplicate()).show();
-        ip.swapQuadrants(mask);
+        ip.swapQuadrants(mask, true);
         byte[] maskPixels = (byte[])mask.getPixels();
         for (int i=0; i<fht.length; i++) {
             fht[i] = (float)(fht[i]*(maskPixels[i]&255)/255.0);
@@ -224,42 +226,47 @@ public class FFT implements  PlugIn, Measurements {
     }
 
     // Change pixels not equal to v1 to the new value v2.
-    // For pixels equal to v1, also the symmetry-equivalent pixel is set to v1
-    // Requires a quadratic 8-bit image.
+    // For pixels equal to v1, also the symmetry-equivalent pixel (point reflection
+    // at the origin of the power spectrum, at width/2, height/2) is set to v1.
+    // Requires an 8-bit image.
     void changeValuesAndSymmetrize(ImageProcessor ip, byte v1, byte v2) {
         byte[] pixels = (byte[])ip.getPixels();
-        int n = ip.getWidth();
-        for (int i=0; i<pixels.length; i++) {
-            if (pixels[i] == v1) {  //pixel has been edited for pass or filter, set symmetry-equivalent
-                if (i%n==0) {       //left edge
-                    if (i>0) pixels[n*n-i] = v1;
-                } else if (i<n)     //top edge
-                    pixels[n-i] = v1;
-                else                //no edge
-                    pixels[n*(n+1)-i] = v1;
-            } else
-                pixels[i] = v2;     //reset all other pixel values
+        int width = ip.getWidth();
+        int height = ip.getHeight();
+        for (int y=0, i=0; y<height; y++) {
+            int ySym = (2*(height/2)-y+height)%height;
+            for (int x=0; x<width; x++, i++) {
+                if (pixels[i] == v1)    //pixel has been edited for pass or filter, set symmetry-equivalent
+                    pixels[ySym*width + (2*(width/2)-x+width)%width] = v1;
+                else
+                    pixels[i] = v2;     //reset all other pixel values
+            }
         }
     }
 
-    // Smooth an 8-bit square image with periodic boundary conditions
+    // Smooth an 8-bit image with periodic boundary conditions
     // by averaging over 3x3 pixels
-    // Requires a quadratic 8-bit image.
     static void smooth(ImageProcessor ip) {
         byte[] pixels = (byte[])ip.getPixels();
         byte[] pixels2 = (byte[])pixels.clone();
-        int n = ip.getWidth();
-        int[] iMinus = new int[n];  //table of previous index modulo n
-        int[] iPlus = new int[n];   //table of next index modulo n
+        int width = ip.getWidth();
+        int height = ip.getHeight();
+        int n = Math.max(width, height);
+        int[] iMinus = new int[n];  //table of previous index modulo width
+        int[] iPlus = new int[n];   //table of next index modulo width
+        int[] yMinus = new int[n];  //the same modulo height
+        int[] yPlus = new int[n];
         for (int i=0; i<n; i++) {   //creating the tables in advance is faster calculating each time
-            iMinus[i] = (i-1+n)%n;
-            iPlus[i] = (i+1)%n;
+            iMinus[i] = (i-1+width)%width;
+            iPlus[i] = (i+1)%width;
+            yMinus[i] = (i-1+height)%height;
+            yPlus[i] = (i+1)%height;
         }
-        for (int y=0; y<n; y++) {
-            int offset1 = n*iMinus[y];
-            int offset2 = n*y;
-            int offset3 = n*iPlus[y];
-            for (int x=0; x<n; x++) {
+        for (int y=0; y<height; y++) {
+            int offset1 = width*yMinus[y];
+            int offset2 = width*y;
+            int offset3 = width*yPlus[y];
+            for (int x=0; x<width; x++) {
                 int sum = (pixels2[offset1+iMinus[x]]&255)
                         + (pixels2[offset1+x]&255)
                         + (pixels2[offset1+iPlus[x]]&255)
@@ -283,9 +290,13 @@ public class FFT implements  PlugIn, Measurements {
     }
     
     void swapQuadrants(ImageStack stack) {
+        swapQuadrants(stack, false);
+    }
+
+    void swapQuadrants(ImageStack stack, boolean inverse) {
         FHT fht = new FHT(new FloatProcessor(1, 1));
         for (int i=1; i<=stack.getSize(); i++)
-            fht.swapQuadrants(stack.getProcessor(i));
+            fht.swapQuadrants(stack.getProcessor(i), inverse);
     }
 
     void showDialog() {
@@ -325,14 +336,15 @@ public class FFT implements  PlugIn, Measurements {
         ImageStack stack = imp.getStack();
         if (!stack.getSliceLabel(1).equals("Real"))
             return;
-        int maxN = imp.getWidth();
-        swapQuadrants(stack);
+        int width = imp.getWidth();
+        int height = imp.getHeight();
+        swapQuadrants(stack, true);
         float[] rein = (float[])stack.getPixels(1);
         float[] imin = (float[])stack.getPixels(2);
-        float[] reout= new float[maxN*maxN];
-        float[] imout = new float[maxN*maxN];
-        c2c2DFFT(rein, imin, maxN, reout, imout);
-        ImageStack stack2 = new ImageStack(maxN, maxN);
+        float[] reout= new float[width*height];
+        float[] imout = new float[width*height];
+        c2c2DFFT(rein, imin, width, height, reout, imout);
+        ImageStack stack2 = new ImageStack(width, height);
         swapQuadrants(stack);
         stack2.addSlice("Real", reout);
         stack2.addSlice("Imaginary", imout);
@@ -359,38 +371,38 @@ public class FFT implements  PlugIn, Measurements {
     /** Complex to Complex Inverse Fourier Transform
     *   @author Joachim Wesner
     */
-    void c2c2DFFT(float[] rein, float[] imin, int maxN, float[] reout, float[] imout) {
-            FHT fht = new FHT(new FloatProcessor(maxN,maxN));
+    void c2c2DFFT(float[] rein, float[] imin, int width, int height, float[] reout, float[] imout) {
+            FHT fht = new FHT(new FloatProcessor(width,height));
             float[] fhtpixels = (float[])fht.getPixels();
             // Real part of inverse transform
-            for (int iy = 0; iy < maxN; iy++)
-                  cplxFHT(iy, maxN, rein, imin, false, fhtpixels);
+            for (int iy = 0; iy < height; iy++)
+                  cplxFHT(iy, width, height, rein, imin, false, fhtpixels);
             fht.inverseTransform();
             // Save intermediate result, so we can do a "in-place" transform
-            float[] hlp = new float[maxN*maxN];
-            System.arraycopy(fhtpixels, 0, hlp, 0, maxN*maxN);
+            float[] hlp = new float[width*height];
+            System.arraycopy(fhtpixels, 0, hlp, 0, width*height);
             // Imaginary part of inverse transform
-            for (int iy = 0; iy < maxN; iy++)
-                  cplxFHT(iy, maxN, rein, imin, true, fhtpixels);
+            for (int iy = 0; iy < height; iy++)
+                  cplxFHT(iy, width, height, rein, imin, true, fhtpixels);
             fht.inverseTransform();
-            System.arraycopy(hlp, 0, reout, 0, maxN*maxN);
-            System.arraycopy(fhtpixels, 0, imout, 0, maxN*maxN);
+            System.arraycopy(hlp, 0, reout, 0, width*height);
+            System.arraycopy(fhtpixels, 0, imout, 0, width*height);
       }
 
     /** Build FHT input for equivalent inverse FFT
     *   @author Joachim Wesner
     */
-    void cplxFHT(int row, int maxN, float[] re, float[] im, boolean reim, float[] fht) {
-            int base = row*maxN;
-            int offs = ((maxN-row)%maxN) * maxN;
+    void cplxFHT(int row, int width, int height, float[] re, float[] im, boolean reim, float[] fht) {
+            int base = row*width;
+            int offs = ((height-row)%height) * width;
             if (!reim) {
-                  for (int c=0; c<maxN; c++) {
-                        int l =  offs + (maxN-c)%maxN;
+                  for (int c=0; c<width; c++) {
+                        int l =  offs + (width-c)%width;
                         fht[base+c] = ((re[base+c]+re[l]) - (im[base+c]-im[l]))*0.5f;
                   }
             } else {
-                  for (int c=0; c<maxN; c++) {
-                        int l = offs + (maxN-c)%maxN;
+                  for (int c=0; c<width; c++) {
+                        int l = offs + (width-c)%width;
                         fht[base+c] = ((im[base+c]+im[l]) + (re[base+c]-re[l]))*0.5f;
                   }
             }
@@ -7,7 +7,10 @@ import ij.measure.Calibration;
 import java.awt.*;
 import java.io.*;
 
-/** The class implements the Process/FFT/Math command. */
+/** The class implements the Process/FFT/Math command. The images may have any size;
+    sizes with prime factors 2, 3, 5 and 7 only are transformed fastest. If both images
+    are stacks, the operation is done in 3D, using FHT.transform3D. Otherwise, the
+    current slice of a stack is used, as with earlier versions. */
 public class FFTMath implements PlugIn {
 
     private static final int CONJUGATE_MULTIPLY=0, MULTIPLY=1, DIVIDE=2;
@@ -33,19 +36,19 @@ public class FFTMath implements PlugIn {
         int nGoodImages = 0;
         for (int i=0; i<wList.length; i++) {
             ImagePlus imp = WindowManager.getImage(wList[i]);
-            if (imp == null || imp.getWidth() != imp.getHeight() || !FHT.isPowerOf2(imp.getWidth()))
-                wList[i] = 0;               //mark images that are not a power of 2
+            if (imp == null)
+                wList[i] = 0;
             else
                 nGoodImages++;
         }
         if (nGoodImages == 0) {
-        	IJ.error("FFT Math", "Images must be a power of 2 size (256x256, 512x512, etc.)");
+        	IJ.noImage();
         	return false;
         }
         int[] wList2 = new int[nGoodImages];
         String[] titles = new String[nGoodImages];
         for (int i=0, i2=0; i<wList.length; i++) {
-            if (wList[i] == 0) continue;    //ignore this image, not power of 2
+            if (wList[i] == 0) continue;    //ignore this image, closed in the meanwhile
             wList2[i2] = wList[i];
             ImagePlus imp = WindowManager.getImage(wList2[i2]);
             if (imp!=null)
@@ -79,6 +82,10 @@ public class FFTMath implements PlugIn {
    }
     
     public void doMath(ImagePlus imp1, ImagePlus imp2) {
+    	if (imp1.getStackSize()>1 && imp2.getStackSize()>1) {
+    		doMath3D(imp1, imp2);
+    		return;
+    	}
     	FHT h1, h2=null;
     	ImageProcessor fht1, fht2;
 		fht1  = (ImageProcessor)imp1.getProperty("FHT");
@@ -97,11 +104,7 @@ public class FFTMath implements PlugIn {
         	if (imp2!=imp1)
        	 		h2 = new FHT(ip2);
        	}
-        if (!h1.powerOf2Size()) {
-        	IJ.error("FFT Math", "Images must be a power of 2 size (256x256, 512x512, etc.)");
-        	return;
-        }
-        if (imp1.getWidth()!=imp2.getWidth()) {
+        if (h2!=null && (h1.getWidth()!=h2.getWidth() || h1.getHeight()!=h2.getHeight())) {
         	IJ.error("FFT Math", "Images must be the same size");
         	return;
         }
@@ -148,6 +151,73 @@ public class FFTMath implements PlugIn {
 			result.quadrantSwapNeeded = true;
 			imp3.setProperty("FHT", result);
 		}
+		setCalibration(imp3, imp1, imp2);
+		imp3.show();
+		IJ.showProgress(1.0);
+    }
+
+    /** Correlates, convolves or deconvolves two stacks in 3D. */
+    void doMath3D(ImagePlus imp1, ImagePlus imp2) {
+        if (imp1.getWidth()!=imp2.getWidth() || imp1.getHeight()!=imp2.getHeight()
+        || imp1.getStackSize()!=imp2.getStackSize()) {
+            IJ.error("FFT Math", "Stacks must be the same size");
+            return;
+        }
+        IJ.showStatus("Transform stack1");
+        ImageStack h1 = toFloat(imp1.getStack());
+        FHT.transform3D(h1, false);
+        ImageStack h2;
+        if (imp2==imp1)
+            h2 = h1;
+        else {
+            IJ.showStatus("Transform stack2");
+            h2 = toFloat(imp2.getStack());
+            FHT.transform3D(h2, false);
+        }
+        ImageStack result = null;
+        switch (operation) {
+            case CONJUGATE_MULTIPLY: 
+                IJ.showStatus("Complex conjugate multiply");
+                result = FHT.multiply(h1, h2, true);
+                break;
+            case MULTIPLY: 
+                IJ.showStatus("Fourier domain multiply");
+                result = FHT.multiply(h1, h2, false);
+                break;
+            case DIVIDE: 
+                IJ.showStatus("Fourier domain divide");
+                result = FHT.divide(h1, h2);
+                break;
+        }
+        if (doInverse) {
+            IJ.showStatus("Inverse transform");
+            FHT.transform3D(result, true);
+            FHT.swapQuadrants3D(result, false);
+        } else {
+            IJ.showStatus("Amplitude");
+            result = FHT.getAmplitude(result);
+        }
+        ImagePlus imp3 = new ImagePlus(title, result);
+        setCalibration(imp3, imp1, imp2);
+        imp3.resetDisplayRange();
+        imp3.show();
+        IJ.showProgress(1.0);
+    }
+
+    /** Returns a 32-bit copy of the stack */
+    private ImageStack toFloat(ImageStack stack) {
+        ImageStack stack2 = new ImageStack(stack.getWidth(), stack.getHeight());
+        for (int n=1; n<=stack.getSize(); n++) {
+            ImageProcessor ip = stack.getProcessor(n);
+            ImageProcessor ip2 = ip.convertToFloat();
+            if (ip2==ip || ip2.getPixels()==ip.getPixels())
+                ip2 = ip2.duplicate();
+            stack2.addSlice(null, ip2);
+        }
+        return stack2;
+    }
+
+    private void setCalibration(ImagePlus imp3, ImagePlus imp1, ImagePlus imp2) {
 		Calibration cal1 = imp1.getCalibration();
 		Calibration cal2 = imp2.getCalibration();
 		Calibration cal3 = cal1.scaled() ? cal1 : cal2;
@@ -156,8 +226,6 @@ public class FFTMath implements PlugIn {
 		imp3.setCalibration(cal3);
 		cal3 = imp3.getCalibration();   //imp3 has a copy, which we may modify
 		cal3.disableDensityCalibration();
-		imp3.show();
-		IJ.showProgress(1.0);
     }
 
 }
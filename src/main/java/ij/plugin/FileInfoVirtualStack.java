@@ -163,12 +163,13 @@ public class FileInfoVirtualStack extends VirtualStack implements PlugIn {
 			info[i-1] = info[i];
 		info[nImages-1] = null;
 		nImages--;
+		SliceCache.remove(this);
 	}
 	
-	/** Returns an ImageProcessor for the specified image,
-		were 1<=n<=nImages. Returns null if the stack is empty.
+	/** Reads the specified image from disk, were 1<=n<=nImages. Use getProcessor(n),
+		which keeps recently used images in the SliceCache, to access images.
 	*/
-	public ImageProcessor getProcessor(int n) {
+	protected ImageProcessor readProcessor(int n) {
 		if (n<1 || n>nImages)
 			throw new IllegalArgumentException("Argument out of range: "+n);
 		//if (n>1) IJ.log("  "+(info[n-1].getOffset()-info[n-2].getOffset()));
@@ -44,6 +44,7 @@ public class Filters3D implements PlugIn {
 		if (!showDialog(name))
 			return;
 		imp.startTiming();
+		IJ.resetEscape();
 		run(imp, filter, xradius, yradius, zradius);
 		IJ.showTime(imp, imp.getStartTime(), "", imp.getStackSize());
 	}
@@ -69,6 +70,8 @@ public class Filters3D implements PlugIn {
 			return;
 		}
 		ImageStack res = filter(imp.getStack(), filter, radX, radY, radZ);
+		if (IJ.escapePressed())
+			return;
 		imp.setStack(res);
 	}
 	
@@ -93,25 +96,18 @@ public class Filters3D implements PlugIn {
 			else
 				res = ImageStack.create(width, height, depth, stackorig.getBitDepth());
 			IJ.showStatus("3D filtering...");
-			// PARALLEL 
+			// PARALLEL: one slice per task, handed out to the threads of the shared executor
 			final ImageStack out = res;
-			final AtomicInteger ai = new AtomicInteger(0);
-			final int n_cpus = Prefs.getThreads();
-
+			final AtomicInteger slicesDone = new AtomicInteger(0);
 			final int f = filter;
-			final int dec = (int) Math.ceil((double) stack.getSize() / (double) n_cpus);
-			Thread[] threads = ThreadUtil.createThreadArray(n_cpus);
-			for (int ithread = 0; ithread < threads.length; ithread++) {
-				threads[ithread] = new Thread() {
-					public void run() {
-						StackProcessor processor = new StackProcessor(stack);
-						for (int k = ai.getAndIncrement(); k < n_cpus; k = ai.getAndIncrement()) {
-							processor.filter3D(out, voisx, voisy, voisz, dec * k, dec * (k + 1), f);
-						}
-					}
-				};
-			}
-			ThreadUtil.startAndJoin(threads);
+			ThreadUtil.parallelFor(0, depth, 1, new ThreadUtil.RangeTask() {
+				public void run(int zmin, int zmax) {
+					if (IJ.escapePressed()) return;
+					StackProcessor processor = new StackProcessor(stack);
+					processor.filter3D(out, voisx, voisy, voisz, zmin, zmax, f);
+					IJ.showProgress(slicesDone.addAndGet(zmax-zmin), depth);
+				}
+			});
 		}
 		return res;
 	}
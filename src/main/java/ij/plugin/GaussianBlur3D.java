@@ -4,9 +4,21 @@ import ij.process.*;
 import ij.gui.*;
 import java.awt.*;
 import ij.plugin.filter.*;
+import ij.measure.Calibration;
+import ij.util.ThreadUtil;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/** This plugin implements the Process/Filters/Gaussian Blur 3D command.
+	The x and y directions are blurred slice by slice with GaussianBlur,
+	the slices being processed in parallel. The z direction is blurred
+	in tiles of adjacent pixels across all slices, with the convolution
+	running over all pixels of a tile at once; this is cache friendly
+	also for large stacks and works in place for 32-bit stacks.
+*/
 public class GaussianBlur3D implements PlugIn {
+	private static final int TILE_BYTES = 1<<19;	// size of the data of one tile in z blurring
 	private static double xsigma=2, ysigma=2, zsigma=2;
+	private static boolean sigmaScaled;
 
 	public void run(String arg) {
 		ImagePlus imp = IJ.getImage();
@@ -14,40 +26,42 @@ public class GaussianBlur3D implements PlugIn {
 			IJ.error("3D Gaussian Blur", "Composite color images not supported");
 			return;
 		}
-		if (!showDialog())
+		Calibration cal = imp.getCalibration();
+		if (!showDialog(cal))
 			return;
 		imp.startTiming();
-		blur(imp, xsigma, ysigma, zsigma);
+		if (sigmaScaled)
+			blur(imp, xsigma/cal.pixelWidth, ysigma/cal.pixelHeight, zsigma/cal.pixelDepth);
+		else
+			blur(imp, xsigma, ysigma, zsigma);
 		IJ.showTime(imp, imp.getStartTime(), "", imp.getStackSize());
 	}
 	
-	private boolean showDialog() {
+	private boolean showDialog(Calibration cal) {
 		GenericDialog gd = new GenericDialog("3D Gaussian Blur");
 		gd.addNumericField("X sigma:", xsigma, 1);
 		gd.addNumericField("Y sigma:", ysigma, 1);
 		gd.addNumericField("Z sigma:", zsigma, 1);
+		boolean hasScale = cal.scaled();
+		if (hasScale)
+			gd.addCheckbox("Scaled units ("+cal.getUnits()+")", sigmaScaled);
 		gd.showDialog();
 		if (gd.wasCanceled())
 			return false;
 		xsigma = gd.getNextNumber();
 		ysigma = gd.getNextNumber();
 		zsigma = gd.getNextNumber();
+		sigmaScaled = hasScale ? gd.getNextBoolean() : false;
 		return true;
 	}
 	
+	/** Blurs an image or stack with the given standard deviations in pixels.
+		For a hyperstack, the z direction is blurred separately for each
+		channel and time point (or across time if there is only one slice). */
 	public static void blur(ImagePlus imp, double sigmaX, double sigmaY, double sigmaZ) {
 		imp.deleteRoi();
 		ImageStack stack = imp.getStack();
-		if (sigmaX>0.0 || sigmaY>0.0) {
-			GaussianBlur gb = new GaussianBlur();
-			int channels = stack.getProcessor(1).getNChannels();
-			gb.setNPasses(channels*imp.getStackSize());
-			for (int i=1; i<=imp.getStackSize(); i++) {
-				ImageProcessor ip = stack.getProcessor(i);
-				double accuracy = (imp.getBitDepth()==8||imp.getBitDepth()==24)?0.002:0.0002;
-				gb.blurGaussian(ip, sigmaX, sigmaY, accuracy);
-			}
-		}
+		blurXY(stack, sigmaX, sigmaY);
 		if (sigmaZ>0.0) {
 			if (imp.isHyperStack())
 				blurHyperStackZ(imp, sigmaZ);
@@ -57,29 +71,178 @@ public class GaussianBlur3D implements PlugIn {
 		}
 	}
 
-	private static void blurZ(ImageStack stack, double sigmaZ) {
-		GaussianBlur gb = new GaussianBlur();
-		double accuracy = (stack.getBitDepth()==8||stack.getBitDepth()==24)?0.002:0.0002;
-		int w=stack.getWidth(), h=stack.getHeight(), d=stack.getSize();
-		float[] zpixels = null;
-		FloatProcessor fp =null;
+	/** Blurs a stack with the given standard deviations in pixels. */
+	public static void blur(ImageStack stack, double sigmaX, double sigmaY, double sigmaZ) {
+		blurXY(stack, sigmaX, sigmaY);
+		if (sigmaZ>0.0)
+			blurZ(stack, sigmaZ);
+	}
+
+	/** Blurs the slices in x and y, processing several slices in parallel */
+	private static void blurXY(final ImageStack stack, final double sigmaX, final double sigmaY) {
+		if (!(sigmaX>0.0 || sigmaY>0.0))
+			return;
+		final int n = stack.getSize();
+		final double accuracy = getAccuracy(stack);
+		final Thread mainThread = Thread.currentThread();
+		final AtomicInteger done = new AtomicInteger();
+		IJ.showStatus("XY blurring");
+		ThreadUtil.parallelFor(1, n+1, 1, new ThreadUtil.RangeTask() {
+			public void run(int from, int to) {
+				GaussianBlur gb = new GaussianBlur();
+				gb.showProgress(false);
+				for (int i=from; i<to; i++) {
+					gb.blurGaussian(stack.getProcessor(i), sigmaX, sigmaY, accuracy);
+					int count = done.incrementAndGet();
+					if (Thread.currentThread()==mainThread)
+						IJ.showProgress(count, n);
+				}
+			}
+		});
+		IJ.showStatus("");
+	}
+
+	/** Blurs a stack in z direction. The pixels are processed in tiles of
+		consecutive pixel indices, which are converted to float, convolved
+		for all pixels of the tile at once and written back; the tiles are
+		handed out to the threads of the shared executor. */
+	private static void blurZ(final ImageStack stack, double sigmaZ) {
+		final int d = stack.getSize();
+		if (d<2)
+			return;
+		final int nPixels = stack.getWidth()*stack.getHeight();
+		final float[][] kernel = new GaussianBlur().makeGaussianKernel(sigmaZ, getAccuracy(stack), d);
+		final int channels = stack.getBitDepth()==24 ? 3 : 1;
+		final Object[] slices = new Object[d];
+		for (int z=0; z<d; z++)
+			slices[z] = stack.getPixels(z+1);
+		int tileLength = Math.max(TILE_BYTES/(4*d), 64);
+		if (tileLength>nPixels) tileLength = nPixels;
+		final int tileSize = tileLength;
+		final int nTiles = (nPixels+tileSize-1)/tileSize;
+		final Thread mainThread = Thread.currentThread();
+		final AtomicInteger done = new AtomicInteger();
 		IJ.showStatus("Z blurring");
-		gb.showProgress(false);
-		int channels = stack.getProcessor(1).getNChannels();
-		for (int y=0; y<h; y++) {
-			IJ.showProgress(y, h-1);
-			for (int channel=0; channel<channels; channel++) {
-				zpixels = stack.getVoxels(0, y, 0, w, 1, d, zpixels, channel);
-				if (fp==null)
-					fp = new FloatProcessor(w, d, zpixels);
-				//if (y==h/2) new ImagePlus("before-"+h/2, fp.duplicate()).show();
-				gb.blur1Direction(fp, sigmaZ, accuracy, false, 0);
-				stack.setVoxels(0, y, 0, w, 1, d, zpixels, channel);
+		ThreadUtil.parallelFor(0, nTiles, ThreadUtil.getChunkSize(nTiles, 1), new ThreadUtil.RangeTask() {
+			public void run(int from, int to) {
+				float[][] tile = new float[d][tileSize];
+				float[] sum = new float[tileSize];
+				for (int t=from; t<to; t++) {
+					int offset = t*tileSize;
+					int length = Math.min(tileSize, nPixels-offset);
+					for (int c=0; c<channels; c++) {
+						for (int z=0; z<d; z++)
+							getTile(slices[z], c, offset, length, tile[z]);
+						for (int z=0; z<d; z++) {
+							convolveZ(tile, z, length, kernel, sum);
+							putTile(sum, c, offset, length, slices[z]);
+						}
+					}
+					int count = done.incrementAndGet();
+					if (Thread.currentThread()==mainThread)
+						IJ.showProgress(count, nTiles);
+				}
 			}
-		}
+		});
+		IJ.showProgress(1.0);
 		IJ.showStatus("");
 	}
 
+	/** Calculates the z convolution at slice 'z' for the first 'length' pixels of the
+		tile. Out-of-stack slices are replaced by the first or last slice. The sums are
+		calculated in the same order as by the GaussianBlur class. */
+	private static void convolveZ(float[][] tile, int z, int length, float[][] kernel, float[] sum) {
+		int d = tile.length;
+		float[] kern = kernel[0];
+		float[] kernSum = kernel[1];
+		int kRadius = kern.length;
+		float[] v0 = tile[z];
+		float kern0 = kern[0];
+		for (int i=0; i<length; i++)
+			sum[i] = v0[i]*kern0;
+		boolean nearStart = z<kRadius;
+		if (nearStart) {
+			float[] first = tile[0];
+			float k = kernSum[z];
+			for (int i=0; i<length; i++)
+				sum[i] += k*first[i];
+		}
+		if (nearStart ? z+kRadius>d : z+kRadius>=d) {
+			float[] last = tile[d-1];
+			float k = kernSum[d-z-1];
+			for (int i=0; i<length; i++)
+				sum[i] += k*last[i];
+		}
+		for (int k=1; k<kRadius; k++) {
+			float kk = kern[k];
+			float[] below = z-k>=0 ? tile[z-k] : null;
+			float[] above = z+k<d ? tile[z+k] : null;
+			if (below!=null && above!=null) {
+				for (int i=0; i<length; i++)
+					sum[i] += kk*(below[i]+above[i]);
+			} else if (below!=null) {
+				for (int i=0; i<length; i++)
+					sum[i] += kk*below[i];
+			} else if (above!=null) {
+				for (int i=0; i<length; i++)
+					sum[i] += kk*above[i];
+			}
+		}
+	}
+
+	/** Converts 'length' pixels (of channel 'c' for RGB) starting at 'offset' to float */
+	private static void getTile(Object pixels, int c, int offset, int length, float[] values) {
+		if (pixels instanceof float[])
+			System.arraycopy((float[])pixels, offset, values, 0, length);
+		else if (pixels instanceof byte[]) {
+			byte[] bytes = (byte[])pixels;
+			for (int i=0; i<length; i++)
+				values[i] = bytes[offset+i]&255;
+		} else if (pixels instanceof short[]) {
+			short[] shorts = (short[])pixels;
+			for (int i=0; i<length; i++)
+				values[i] = shorts[offset+i]&0xffff;
+		} else {
+			int[] ints = (int[])pixels;
+			int shift = 16 - 8*c;
+			for (int i=0; i<length; i++)
+				values[i] = (ints[offset+i]>>shift)&255;
+		}
+	}
+
+	/** Writes 'length' values to the pixels starting at 'offset', with rounding and clamping */
+	private static void putTile(float[] values, int c, int offset, int length, Object pixels) {
+		if (pixels instanceof float[])
+			System.arraycopy(values, 0, (float[])pixels, offset, length);
+		else if (pixels instanceof byte[]) {
+			byte[] bytes = (byte[])pixels;
+			for (int i=0; i<length; i++) {
+				float v = values[i] + 0.5f;
+				bytes[offset+i] = (byte)(v<0f ? 0 : (v>255f ? 255 : (int)v));
+			}
+		} else if (pixels instanceof short[]) {
+			short[] shorts = (short[])pixels;
+			for (int i=0; i<length; i++) {
+				float v = values[i] + 0.5f;
+				shorts[offset+i] = (short)(v<0f ? 0 : (v>65535f ? 65535 : (int)v));
+			}
+		} else {
+			int[] ints = (int[])pixels;
+			int shift = 16 - 8*c;
+			int mask = ~(255<<shift);
+			for (int i=0; i<length; i++) {
+				float v = values[i] + 0.5f;
+				int value = v<0f ? 0 : (v>255f ? 255 : (int)v);
+				ints[offset+i] = (ints[offset+i]&mask) | (value<<shift);
+			}
+		}
+	}
+
+	private static double getAccuracy(ImageStack stack) {
+		int bitDepth = stack.getBitDepth();
+		return (bitDepth==8||bitDepth==24) ? 0.002 : 0.0002;
+	}
+
 	private static void blurHyperStackZ(ImagePlus imp, double zsigma) {
 		int channels = imp.getNChannels();
 		int slices = imp.getNSlices();
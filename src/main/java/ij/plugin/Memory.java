@@ -28,6 +28,10 @@ public class Memory implements PlugIn {
 		GenericDialog gd = new GenericDialog(title);
 		gd.addNumericField("Maximum memory:", max, 0, 5, "MB");
 		gd.addNumericField("Parallel threads:", Prefs.getThreads(), 0, 5, "");
+		int cacheSize = (int)(SliceCache.getMaxMemory()/1048576L);
+		gd.addNumericField("Virtual stack cache:", cacheSize, 0, 5, "MB");
+		gd.addMessage("Cache: "+SliceCache.getHits()+" hits, "+SliceCache.getMisses()+" misses, "
+			+IJ.d2s(SliceCache.getMemory()/1048576.0,1)+"MB used");
 		gd.setInsets(12, 0, 0);
 		gd.addCheckbox("Keep multiple undo buffers", Prefs.keepUndoBuffers);
 		gd.setInsets(12, 0, 0);
@@ -37,6 +41,9 @@ public class Memory implements PlugIn {
 		if (gd.wasCanceled()) return;
 		int max2 = (int)gd.getNextNumber();
 		Prefs.setThreads((int)gd.getNextNumber());
+		int cacheSize2 = (int)gd.getNextNumber();
+		if (cacheSize2!=cacheSize && !gd.invalidNumber())
+			SliceCache.setMaxMemory(cacheSize2);
 		Prefs.keepUndoBuffers = gd.getNextBoolean();
 		Prefs.noClickToGC = !gd.getNextBoolean();
 		if (gd.invalidNumber()) {
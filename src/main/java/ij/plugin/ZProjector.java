@@ -8,6 +8,8 @@ import java.lang.*;
 import java.awt.*; 
 import java.awt.event.*; 
 import java.util.Arrays;
+import ij.util.ThreadUtil;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** This plugin performs a z-projection of the input stack. Type of
     output image is same as type of input image.
@@ -20,10 +22,14 @@ public class ZProjector implements PlugIn {
     public static final int SUM_METHOD = 3;
 	public static final int SD_METHOD = 4;
 	public static final int MEDIAN_METHOD = 5;
+	public static final int PERCENTILE_METHOD = 6;
 	public static final String[] METHODS = 
-		{"Average Intensity", "Max Intensity", "Min Intensity", "Sum Slices", "Standard Deviation", "Median"}; 
+		{"Average Intensity", "Max Intensity", "Min Intensity", "Sum Slices", "Standard Deviation", "Median", "Percentile"}; 
     private static final String METHOD_KEY = "zproject.method";
+    private static final long MAX_BAND_BYTES = 256L*1024*1024;	// buffer size for median and percentile of virtual stacks
     private int method = (int)Prefs.get(METHOD_KEY, AVG_METHOD);
+    private static double defaultPercentile = 50.0;
+    private double percentile = defaultPercentile;
 
     private static final int BYTE_TYPE  = 0; 
     private static final int SHORT_TYPE = 1; 
@@ -84,6 +90,15 @@ public class ZProjector implements PlugIn {
 	public void setMethod(int projMethod){
 		method = projMethod;
 	}
+
+	/** Sets the percentile (0-100) used by PERCENTILE_METHOD. Values between
+		the data values of two slices are linearly interpolated; the 50th
+		percentile is the median. */
+	public void setPercentile(double percentile) {
+		if (percentile<0.0) percentile = 0.0;
+		if (percentile>100.0) percentile = 100.0;
+		this.percentile = percentile;
+	}
     
     /** Retrieve results of most recent projection operation.*/
     public ImagePlus getProjection() {
@@ -141,6 +156,10 @@ public class ZProjector implements PlugIn {
 		gd.setSmartRecording(false);
 		method = gd.getNextChoiceIndex();
 		Prefs.set(METHOD_KEY, method);
+		gd.setSmartRecording(true);
+		setPercentile(gd.getNextNumber());
+		gd.setSmartRecording(false);
+		defaultPercentile = percentile;
 		if (isHyperstack) {
 			allTimeFrames = imp.getNFrames()>1&&imp.getNSlices()>1?gd.getNextBoolean():false;
 			doHyperStackProjection(allTimeFrames);
@@ -218,8 +237,20 @@ public class ZProjector implements PlugIn {
 		gd.addNumericField("Start slice:",startSlice,0/*digits*/); 
 		gd.addNumericField("Stop slice:",stopSlice,0/*digits*/);
 		gd.addChoice("Projection type", METHODS, METHODS[method]); 
+		gd.addNumericField("Percentile (%):", percentile, 1);
 		if (isHyperstack && imp.getNFrames()>1&& imp.getNSlices()>1)
 			gd.addCheckbox("All time frames", allTimeFrames); 
+		if (gd.getChoices()!=null && gd.getNumericFields()!=null) {
+			// the percentile can only be entered with the 'Percentile' method
+			final Choice methodChoice = (Choice)gd.getChoices().lastElement();
+			final TextField percentileField = (TextField)gd.getNumericFields().lastElement();
+			percentileField.setEnabled(method==PERCENTILE_METHOD);
+			methodChoice.addItemListener(new ItemListener() {
+				public void itemStateChanged(ItemEvent e) {
+					percentileField.setEnabled(methodChoice.getSelectedIndex()==PERCENTILE_METHOD);
+				}
+			});
+		}
 		return gd; 
     }
 
@@ -228,67 +259,161 @@ public class ZProjector implements PlugIn {
 		if (imp==null)
 			return;
 		sliceCount = 0;
-		if (method<AVG_METHOD || method>MEDIAN_METHOD)
+		if (method<AVG_METHOD || method>PERCENTILE_METHOD)
 			method = AVG_METHOD;
     	for (int slice=startSlice; slice<=stopSlice; slice+=increment)
     		sliceCount++;
-		if (method==MEDIAN_METHOD) {
-			projImage = doMedianProjection();
+		if (method==MEDIAN_METHOD || method==PERCENTILE_METHOD) {
+			projImage = doPercentileProjection(method==MEDIAN_METHOD ? 50.0 : percentile);
 			return;
 		} 
 		
-		// Create new float processor for projected pixels.
-		FloatProcessor fp = new FloatProcessor(imp.getWidth(),imp.getHeight()); 
 		ImageStack stack = imp.getStack();
-		RayFunction rayFunc = getRayFunction(method, fp);
 		if (IJ.debugMode==true) {
 	    	IJ.log("\nProjecting stack from: "+startSlice
 		     	+" to: "+stopSlice); 
 		}
-
-		// Determine type of input image. Explicit determination of
-		// processor type is required for subsequent pixel
-		// manipulation.  This approach is more efficient than the
-		// more general use of ImageProcessor's getPixelValue and
-		// putPixel methods.
-		int ptype; 
-		if (stack.getProcessor(1) instanceof ByteProcessor) ptype = BYTE_TYPE; 
-		else if (stack.getProcessor(1) instanceof ShortProcessor) ptype = SHORT_TYPE; 
-		else if (stack.getProcessor(1) instanceof FloatProcessor) ptype = FLOAT_TYPE; 
-		else {
+		int ptype = getPixelType(stack);
+		if (ptype<0) {
 	    	IJ.error("Z Project", "Non-RGB stack required"); 
 	    	return; 
 		}
+		FloatProcessor fp = project(stack, startSlice, stopSlice, increment, new int[] {method}, !isHyperstack)[0];
+		projImage = new ImagePlus(makeTitle(), finishProjection(fp, method, ptype, sliceCount, imp.getProcessor()));
+		if(projImage==null)
+	    	IJ.error("Z Project", "Error computing projection.");
+    }
 
-		// Do the projection
-		int sliceCount = 0;
-		for (int n=startSlice; n<=stopSlice; n+=increment) {
-			if (!isHyperstack) {
-	    		IJ.showStatus("ZProjection " + color +": " + n + "/" + stopSlice);
-	    		IJ.showProgress(n-startSlice, stopSlice-startSlice);
-	    	}
-	    	projectSlice(stack.getPixels(n), rayFunc, ptype);
-	    	sliceCount++;
+	/** Projects the stack with several methods (AVG_METHOD, MAX_METHOD, MIN_METHOD,
+		SUM_METHOD and SD_METHOD) in a single pass through the stack and returns
+		one image per method. Median and percentile projections, hyperstacks and RGB
+		stacks need a separate pass for each method. */
+	public ImagePlus[] doProjections(int[] methods) {
+		ImagePlus[] images = new ImagePlus[methods.length];
+		ImageStack stack = imp.getStack();
+		int ptype = getPixelType(stack);
+		boolean onePass = !isHyperstack && ptype>=0;
+		int nRays = 0;
+		for (int i=0; i<methods.length; i++)
+			if (methods[i]<MEDIAN_METHOD && methods[i]>=AVG_METHOD) nRays++;
+		int saveMethod = method;
+		if (onePass && nRays>1) {
+			int[] rayMethods = new int[nRays];
+			for (int i=0, k=0; i<methods.length; i++)
+				if (methods[i]<MEDIAN_METHOD && methods[i]>=AVG_METHOD) rayMethods[k++] = methods[i];
+			sliceCount = 0;
+			for (int slice=startSlice; slice<=stopSlice; slice+=increment)
+				sliceCount++;
+			FloatProcessor[] fps = project(stack, startSlice, stopSlice, increment, rayMethods, true);
+			for (int i=0, k=0; i<methods.length; i++) {
+				if (methods[i]<MEDIAN_METHOD && methods[i]>=AVG_METHOD) {
+					method = methods[i];
+					images[i] = new ImagePlus(makeTitle(), finishProjection(fps[k++], method, ptype, sliceCount, imp.getProcessor()));
+				}
+			}
+		}
+		for (int i=0; i<methods.length; i++) {
+			if (images[i]!=null) continue;
+			method = methods[i];
+			if (isHyperstack)
+				doHyperStackProjection(allTimeFrames);
+			else if (imp.getType()==ImagePlus.COLOR_RGB)
+				doRGBProjection();
+			else
+				doProjection();
+			images[i] = projImage;
 		}
+		method = saveMethod;
+		return images;
+	}
+
+	/** Returns BYTE_TYPE, SHORT_TYPE or FLOAT_TYPE, or -1 for RGB stacks */
+	private static int getPixelType(ImageStack stack) {
+		switch (stack.getBitDepth()) {
+			case 8: return BYTE_TYPE;
+			case 16: return SHORT_TYPE;
+			case 32: return FLOAT_TYPE;
+			default: return -1;
+		}
+	}
 
-		// Finish up projection.
+	/** Projects slices 'first', first+inc, ... 'last' of the stack with the given methods
+		(not median or percentile) in one pass. The pixels are split into bands that are
+		processed by the threads of the shared executor, each band accumulating all slices
+		while it is in the cache; the slices of virtual stacks are read one by one
+		(and each slice processed in parallel). */
+	private static FloatProcessor[] project(ImageStack stack, int first, int last, int inc, int[] methods, boolean showProgress) {
+		int width = stack.getWidth(), height = stack.getHeight();
+		int nSlices = 0;
+		for (int n=first; n<=last; n+=inc)
+			nSlices++;
+		final FloatProcessor[] fps = new FloatProcessor[methods.length];
+		final RayFunction[] rayFuncs = new RayFunction[methods.length];
+		for (int i=0; i<methods.length; i++) {
+			fps[i] = new FloatProcessor(width, height);
+			rayFuncs[i] = getRayFunction(methods[i], fps[i], nSlices);
+		}
+		final int len = width*height;
+		final int bandSize = ThreadUtil.getChunkSize(len, 4096);
+		final Object[] slices = new Object[nSlices];
+		final Thread mainThread = Thread.currentThread();
+		if (stack.isVirtual()) {
+			for (int n=first, i=0; n<=last; n+=inc, i++) {
+				if (showProgress) {
+					IJ.showStatus("ZProjection: " + n + "/" + last);
+					IJ.showProgress(i, nSlices);
+				}
+				final Object pixels = stack.getPixels(n);
+				ThreadUtil.parallelFor(0, len, bandSize, new ThreadUtil.RangeTask() {
+					public void run(int from, int to) {
+						for (int r=0; r<rayFuncs.length; r++)
+							projectSlice(pixels, rayFuncs[r], from, to);
+					}
+				});
+			}
+			ThreadUtil.parallelFor(0, len, bandSize, new ThreadUtil.RangeTask() {
+				public void run(int from, int to) {
+					for (int r=0; r<rayFuncs.length; r++)
+						rayFuncs[r].postProcess(from, to);
+				}
+			});
+		} else {
+			for (int n=first, i=0; n<=last; n+=inc, i++)
+				slices[i] = stack.getPixels(n);
+			final boolean progress = showProgress;
+			final int nBands = (len+bandSize-1)/bandSize;
+			final AtomicInteger bandsDone = new AtomicInteger();
+			ThreadUtil.parallelFor(0, len, bandSize, new ThreadUtil.RangeTask() {
+				public void run(int from, int to) {
+					for (int i=0; i<slices.length; i++)
+						for (int r=0; r<rayFuncs.length; r++)
+							projectSlice(slices[i], rayFuncs[r], from, to);
+					for (int r=0; r<rayFuncs.length; r++)
+						rayFuncs[r].postProcess(from, to);
+					int done = bandsDone.incrementAndGet();
+					if (progress && Thread.currentThread()==mainThread)
+						IJ.showProgress(done, nBands);
+				}
+			});
+		}
+		if (showProgress)
+			IJ.showProgress(1.0);
+		return fps;
+	}
+
+	/** Converts the result of a projection to the output type */
+	private ImageProcessor finishProjection(FloatProcessor fp, int method, int ptype, int sliceCount, ImageProcessor template) {
 		if (method==SUM_METHOD) {
 			if (imp.getCalibration().isSigned16Bit())
 				fp.subtract(sliceCount*32768.0);
 			fp.resetMinAndMax();
-			projImage = new ImagePlus(makeTitle(), fp);
+			return fp;
 		} else if (method==SD_METHOD) {
-			rayFunc.postProcess();
 			fp.resetMinAndMax();
-			projImage = new ImagePlus(makeTitle(), fp); 
-		} else {
-			rayFunc.postProcess(); 
-			projImage = makeOutputImage(imp, fp, ptype);
-		}
-
-		if(projImage==null)
-	    	IJ.error("Z Project", "Error computing projection.");
-    }
+			return fp;
+		} else
+			return makeOutputImage(template, fp, ptype);
+	}
 
 	//Added by Marcel Boeglin 2013.09.23
 	/** Performs actual projection using specified method. If handleOverlay,
@@ -334,7 +459,9 @@ public class ZProjector implements PlugIn {
 		int frames = lastFrame-firstFrame+1;
 		increment = channels;
 		boolean rgb = imp.getBitDepth()==24;
-		for (int frame=firstFrame; frame<=lastFrame; frame++) {
+		if (!rgb && method>=AVG_METHOD && method<MEDIAN_METHOD)
+			projectHyperStack(stack, start, stop, firstFrame, lastFrame, channels, slices);
+		else for (int frame=firstFrame; frame<=lastFrame; frame++) {
 			IJ.showStatus(""+ (frame-firstFrame) + "/" + (lastFrame-firstFrame));
 			IJ.showProgress(frame-firstFrame, lastFrame-firstFrame);
 			for (int channel=1; channel<=channels; channel++) {
@@ -369,6 +496,45 @@ public class ZProjector implements PlugIn {
         IJ.showProgress(1, 1);
 	}
 	
+	/** Projects all channels of the time frames 'firstFrame' to 'lastFrame' concurrently
+		and adds the projections to 'stack2' in the order of the frames and channels. */
+	private void projectHyperStack(ImageStack stack2, int start, int stop, int firstFrame, int lastFrame, final int channels, int slices) {
+		final ImageStack stack = imp.getStack();
+		final int ptype = getPixelType(stack);
+		final ImageProcessor template = imp.getProcessor();
+		final int nTasks = (lastFrame-firstFrame+1)*channels;
+		final int[] first = new int[nTasks];
+		final int[] last = new int[nTasks];
+		for (int i=0; i<nTasks; i++) {
+			int frame = firstFrame + i/channels;
+			int channel = 1 + i%channels;
+			first[i] = (frame-1)*channels*slices + (start-1)*channels + channel;
+			last[i] = (frame-1)*channels*slices + (stop-1)*channels + channel;
+		}
+		final ImageProcessor[] results = new ImageProcessor[nTasks];
+		final AtomicInteger tasksDone = new AtomicInteger();
+		final Thread mainThread = Thread.currentThread();
+		ThreadUtil.parallelFor(0, nTasks, 1, new ThreadUtil.RangeTask() {
+			public void run(int from, int to) {
+				for (int i=from; i<to; i++) {
+					int count = (last[i]-first[i])/channels + 1;
+					FloatProcessor fp = project(stack, first[i], last[i], channels, new int[] {method}, false)[0];
+					results[i] = finishProjection(fp, method, ptype, count, template);
+					int done = tasksDone.incrementAndGet();
+					if (Thread.currentThread()==mainThread) {
+						IJ.showStatus(""+done+"/"+nTasks);
+						IJ.showProgress(done, nTasks);
+					}
+				}
+			}
+		});
+		for (int i=0; i<nTasks; i++)
+			stack2.addSlice(null, results[i]);
+		startSlice = first[nTasks-1];
+		stopSlice = last[nTasks-1];
+		sliceCount = (stopSlice-startSlice)/channels + 1;
+	}
+
 	//Added by Marcel Boeglin 2013.09.22
     private Overlay projectRGBHyperStackRois(Overlay overlay) {
         if (overlay==null) return null;
@@ -436,10 +602,12 @@ public class ZProjector implements PlugIn {
 		doRGBProjection(stack2);
 	}
 
- 	private RayFunction getRayFunction(int method, FloatProcessor fp) {
+ 	private static RayFunction getRayFunction(int method, FloatProcessor fp, int sliceCount) {
  		switch (method) {
- 			case AVG_METHOD: case SUM_METHOD:
+ 			case AVG_METHOD:
 	    		return new AverageIntensity(fp, sliceCount); 
+ 			case SUM_METHOD:
+	    		return new AverageIntensity(fp, 1); 
 			case MAX_METHOD:
 	    		return new MaxIntensity(fp);
 	    	case MIN_METHOD:
@@ -447,15 +615,14 @@ public class ZProjector implements PlugIn {
 			case SD_METHOD:
 	    		return new StandardDeviation(fp, sliceCount); 
 			default:
-	    		IJ.error("Z Project", "Unknown method.");
-	    		return null;
+	    		throw new IllegalArgumentException("Unknown method: "+method);
 	    }
 	}
 
     /** Generate output image whose type is same as input image. */
-    private ImagePlus makeOutputImage(ImagePlus imp, FloatProcessor fp, int ptype) {
-		int width = imp.getWidth(); 
-		int height = imp.getHeight(); 
+    private static ImageProcessor makeOutputImage(ImageProcessor template, FloatProcessor fp, int ptype) {
+		int width = fp.getWidth(); 
+		int height = fp.getHeight(); 
 		float[] pixels = (float[])fp.getPixels(); 
 		ImageProcessor oip=null; 
 
@@ -463,13 +630,13 @@ public class ZProjector implements PlugIn {
 		int size = pixels.length;
 		switch (ptype) {
 			case BYTE_TYPE:
-				oip = imp.getProcessor().createProcessor(width,height);
+				oip = template.createProcessor(width,height);
 				byte[] pixels8 = (byte[])oip.getPixels(); 
 				for(int i=0; i<size; i++)
 					pixels8[i] = (byte)pixels[i];
 				break;
 			case SHORT_TYPE:
-				oip = imp.getProcessor().createProcessor(width,height);
+				oip = template.createProcessor(width,height);
 				short[] pixels16 = (short[])oip.getPixels(); 
 				for(int i=0; i<size; i++)
 					pixels16[i] = (short)pixels[i];
@@ -483,30 +650,20 @@ public class ZProjector implements PlugIn {
 	    // Calling this on non-ByteProcessors ensures image
 	    // processor is set up to correctly display image.
 	    oip.resetMinAndMax(); 
-
-		// Create new image plus object. Don't use
-		// ImagePlus.createImagePlus here because there may be
-		// attributes of input image that are not appropriate for
-		// projection.
-		return new ImagePlus(makeTitle(), oip); 
+		return oip;
     }
 
     /** Handles mechanics of projection by selecting appropriate pixel
 	array type. We do this rather than using more general
 	ImageProcessor getPixelValue() and putPixel() methods because
 	direct manipulation of pixel arrays is much more efficient.  */
-	private void projectSlice(Object pixelArray, RayFunction rayFunc, int ptype) {
-		switch(ptype) {
-			case BYTE_TYPE:
-	    		rayFunc.projectSlice((byte[])pixelArray); 
-	    		break; 
-			case SHORT_TYPE:
-	    		rayFunc.projectSlice((short[])pixelArray); 
-	    		break; 
-			case FLOAT_TYPE:
-	    		rayFunc.projectSlice((float[])pixelArray); 
-	    		break; 
-		}
+	private static void projectSlice(Object pixelArray, RayFunction rayFunc, int from, int to) {
+		if (pixelArray instanceof byte[])
+	    	rayFunc.projectSlice((byte[])pixelArray, from, to); 
+		else if (pixelArray instanceof short[])
+	    	rayFunc.projectSlice((short[])pixelArray, from, to); 
+		else
+	    	rayFunc.projectSlice((float[])pixelArray, from, to); 
     }
     
     String makeTitle() {
@@ -517,95 +674,184 @@ public class ZProjector implements PlugIn {
 	    	case MIN_METHOD: prefix = "MIN_"; break;
 			case SD_METHOD:  prefix = "STD_"; break;
 			case MEDIAN_METHOD:  prefix = "MED_"; break;
+			case PERCENTILE_METHOD:  prefix = "PCT_"; break;
 	    }
     	return WindowManager.makeUniqueName(prefix+imp.getTitle());
     }
 
-	ImagePlus doMedianProjection() {
-		IJ.showStatus("Calculating median...");
-		ImageStack stack = imp.getStack();
-		ImageProcessor[] slices = new ImageProcessor[sliceCount];
+	/** Calculates the given percentile of the slices for each pixel, in parallel for
+		bands of rows. The values are found by selection; for 8-bit stacks with many
+		slices, by counting. Virtual stacks are read in bands of rows (each band needs
+		one pass through the stack), so that not all slices need to be in memory. */
+	ImagePlus doPercentileProjection(double percentile) {
+		IJ.showStatus(percentile==50.0 ? "Calculating median..." : "Calculating percentile...");
+		final ImageStack stack = imp.getStack();
+		final int n = sliceCount;
+		final int[] sliceNumbers = new int[n];
 		int index = 0;
 		for (int slice=startSlice; slice<=stopSlice; slice+=increment)
-			slices[index++] = stack.getProcessor(slice);
-		ImageProcessor ip2 = slices[0].duplicate();
-		ip2 = ip2.convertToFloat();
-		float[] values = new float[sliceCount];
-		int width = ip2.getWidth();
-		int height = ip2.getHeight();
-		int inc = Math.max(height/30, 1);
-		for (int y=0; y<height; y++) {
-			if (y%inc==0) IJ.showProgress(y, height-1);
-			for (int x=0; x<width; x++) {
-				for (int i=0; i<sliceCount; i++)
-				values[i] = slices[i].getPixelValue(x, y);
-				ip2.putPixelValue(x, y, median(values));
+			sliceNumbers[index++] = slice;
+		final int width = imp.getWidth();
+		final int height = imp.getHeight();
+		final float[] result = new float[width*height];
+		final double rank = percentile/100.0*(n-1);
+		final boolean virtual = stack.isVirtual();
+		int bytesPerPixel = stack.getBitDepth()/8;
+		int bandHeight = height;
+		if (virtual)
+			bandHeight = (int)Math.max(1, Math.min(height, MAX_BAND_BYTES/((long)n*width*bytesPerPixel)));
+		final Object[] band = new Object[n];
+		for (int y0=0; y0<height; y0+=bandHeight) {
+			final int y1 = Math.min(y0+bandHeight, height);
+			final int offset = virtual ? y0*width : 0;
+			for (int i=0; i<n; i++) {
+				if (virtual) {
+					if (bandHeight<height) IJ.showStatus("Reading rows "+y0+"-"+(y1-1)+": "+(i+1)+"/"+n);
+					Object pixels = stack.getProcessor(sliceNumbers[i]).getPixels();
+					if (band[i]==null)
+						band[i] = bandHeight==height ? pixels : makeArray(pixels, bandHeight*width);
+					if (bandHeight<height)
+						System.arraycopy(pixels, y0*width, band[i], 0, (y1-y0)*width);
+				} else
+					band[i] = stack.getPixels(sliceNumbers[i]);
 			}
+			final int rows = y1-y0, firstRow = y0;
+			final Thread mainThread = Thread.currentThread();
+			ThreadUtil.parallelFor(y0, y1, ThreadUtil.getChunkSize(rows, 1), new ThreadUtil.RangeTask() {
+				public void run(int from, int to) {
+					float[] values = new float[n];
+					int[] histogram = band[0] instanceof byte[] && n>=128 ? new int[256] : null;
+					for (int y=from; y<to; y++) {
+						if (Thread.currentThread()==mainThread)
+							IJ.showProgress(y-firstRow, rows);
+						for (int x=0, p=y*width-offset; x<width; x++, p++)
+							result[p+offset] = histogram!=null ? getPercentile(band, p, rank, histogram)
+								: getPercentile(band, p, rank, values);
+					}
+				}
+			});
 		}
+		ImageProcessor ip2 = new FloatProcessor(width, height, result, imp.getProcessor().getColorModel());
+		ip2.resetMinAndMax();
 		if (imp.getBitDepth()==8)
 			ip2 = ip2.convertToByte(false);
 		IJ.showProgress(1, 1);
 		return new ImagePlus(makeTitle(), ip2);
 	}
 
-	float median(float[] a) {
-		Arrays.sort(a);
-		int middle = a.length/2;
-		if ((a.length&1)==0) //even
-			return (a[middle-1] + a[middle])/2f;
+	private static Object makeArray(Object pixels, int length) {
+		if (pixels instanceof byte[])
+			return new byte[length];
+		else if (pixels instanceof short[])
+			return new short[length];
 		else
-			return a[middle];
+			return new float[length];
+	}
+
+	/** Returns the value at the given (fractional) rank of the values at index 'p' of the
+		arrays, with linear interpolation between adjacent values. */
+	private static float getPercentile(Object[] arrays, int p, double rank, float[] values) {
+		int n = arrays.length;
+		if (arrays[0] instanceof byte[]) {
+			for (int i=0; i<n; i++)
+				values[i] = ((byte[])arrays[i])[p]&255;
+		} else if (arrays[0] instanceof short[]) {
+			for (int i=0; i<n; i++)
+				values[i] = ((short[])arrays[i])[p]&0xffff;
+		} else {
+			for (int i=0; i<n; i++)
+				values[i] = ((float[])arrays[i])[p];
+		}
+		int lower = (int)rank;
+		float v1 = RankFilters.findNthLowestNumber(values, n, lower);
+		double fraction = rank - lower;
+		if (fraction==0.0)
+			return v1;
+		float v2 = values[lower+1];		// values above 'lower' are not lower than v1
+		for (int i=lower+2; i<n; i++)
+			if (values[i]<v2) v2 = values[i];
+		return interpolate(v1, v2, fraction);
+	}
+
+	/** Like getPercentile, using a histogram for 8-bit data */
+	private static float getPercentile(Object[] arrays, int p, double rank, int[] histogram) {
+		int n = arrays.length;
+		for (int i=0; i<n; i++)
+			histogram[((byte[])arrays[i])[p]&255]++;
+		int lower = (int)rank;
+		double fraction = rank - lower;
+		int v1 = -1, v2 = -1;
+		int count = 0;
+		for (int v=0; v<256; v++) {
+			count += histogram[v];
+			if (v1<0 && count>lower)
+				v1 = v;
+			if (count>lower+1 || count==n) {
+				v2 = v;
+				break;
+			}
+		}
+		Arrays.fill(histogram, 0);
+		return fraction==0.0 ? v1 : interpolate(v1, v2, fraction);
+	}
+
+	private static float interpolate(float v1, float v2, double fraction) {
+		if (fraction==0.5)
+			return (v1 + v2)/2f;
+		return (float)(v1 + fraction*(v2-v1));
 	}
 
      /** Abstract class that specifies structure of ray
 	function. Preprocessing should be done in derived class
-	constructors.
+	constructors. The pixels are processed in ranges of pixel
+	indices, which may be processed by different threads.
 	*/
-    abstract class RayFunction {
-		/** Do actual slice projection for specific data types. */
-		public abstract void projectSlice(byte[] pixels);
-		public abstract void projectSlice(short[] pixels);
-		public abstract void projectSlice(float[] pixels);
+    static abstract class RayFunction {
+		/** Do actual slice projection for specific data types,
+			for pixel indices 'from' (inclusive) to 'to' (exclusive). */
+		public abstract void projectSlice(byte[] pixels, int from, int to);
+		public abstract void projectSlice(short[] pixels, int from, int to);
+		public abstract void projectSlice(float[] pixels, int from, int to);
 		
 		/** Perform any necessary post processing operations, e.g.
 	    	averging values. */
-		public void postProcess() {}
+		public void postProcess(int from, int to) {}
 
     } // end RayFunction
 
 
     /** Compute average intensity projection. */
-    class AverageIntensity extends RayFunction {
+    static class AverageIntensity extends RayFunction {
      	private float[] fpixels;
- 		private int num, len; 
+ 		private int num; 
 
 		/** Constructor requires number of slices to be
 	    	projected. This is used to determine average at each
 	    	pixel. */
 		public AverageIntensity(FloatProcessor fp, int num) {
 			fpixels = (float[])fp.getPixels();
-			len = fpixels.length;
 	    	this.num = num;
 		}
 
-		public void projectSlice(byte[] pixels) {
-	    	for(int i=0; i<len; i++)
+		public void projectSlice(byte[] pixels, int from, int to) {
+	    	for(int i=from; i<to; i++)
 				fpixels[i] += (pixels[i]&0xff); 
 		}
 
-		public void projectSlice(short[] pixels) {
-	    	for(int i=0; i<len; i++)
+		public void projectSlice(short[] pixels, int from, int to) {
+	    	for(int i=from; i<to; i++)
 				fpixels[i] += pixels[i]&0xffff;
 		}
 
-		public void projectSlice(float[] pixels) {
-	    	for(int i=0; i<len; i++)
+		public void projectSlice(float[] pixels, int from, int to) {
+	    	for(int i=from; i<to; i++)
 				fpixels[i] += pixels[i]; 
 		}
 
-		public void postProcess() {
+		public void postProcess(int from, int to) {
+			if (num==1) return;
 			float fnum = num;
-	    	for(int i=0; i<len; i++)
+	    	for(int i=from; i<to; i++)
 				fpixels[i] /= fnum;
 		}
 
@@ -613,34 +859,31 @@ public class ZProjector implements PlugIn {
 
 
      /** Compute max intensity projection. */
-    class MaxIntensity extends RayFunction {
+    static class MaxIntensity extends RayFunction {
     	private float[] fpixels;
- 		private int len; 
 
 		/** Simple constructor since no preprocessing is necessary. */
 		public MaxIntensity(FloatProcessor fp) {
 			fpixels = (float[])fp.getPixels();
-			len = fpixels.length;
-			for (int i=0; i<len; i++)
-				fpixels[i] = -Float.MAX_VALUE;
+			Arrays.fill(fpixels, -Float.MAX_VALUE);
 		}
 
-		public void projectSlice(byte[] pixels) {
-	    	for(int i=0; i<len; i++) {
+		public void projectSlice(byte[] pixels, int from, int to) {
+	    	for(int i=from; i<to; i++) {
 				if((pixels[i]&0xff)>fpixels[i])
 		    		fpixels[i] = (pixels[i]&0xff); 
 	    	}
 		}
 
-		public void projectSlice(short[] pixels) {
-	    	for(int i=0; i<len; i++) {
+		public void projectSlice(short[] pixels, int from, int to) {
+	    	for(int i=from; i<to; i++) {
 				if((pixels[i]&0xffff)>fpixels[i])
 		    		fpixels[i] = pixels[i]&0xffff;
 	    	}
 		}
 
-		public void projectSlice(float[] pixels) {
-	    	for(int i=0; i<len; i++) {
+		public void projectSlice(float[] pixels, int from, int to) {
+	    	for(int i=from; i<to; i++) {
 				if(pixels[i]>fpixels[i])
 		    		fpixels[i] = pixels[i]; 
 	    	}
@@ -649,34 +892,31 @@ public class ZProjector implements PlugIn {
     } // end MaxIntensity
 
      /** Compute min intensity projection. */
-    class MinIntensity extends RayFunction {
+    static class MinIntensity extends RayFunction {
     	private float[] fpixels;
- 		private int len; 
 
 		/** Simple constructor since no preprocessing is necessary. */
 		public MinIntensity(FloatProcessor fp) {
 			fpixels = (float[])fp.getPixels();
-			len = fpixels.length;
-			for (int i=0; i<len; i++)
-				fpixels[i] = Float.MAX_VALUE;
+			Arrays.fill(fpixels, Float.MAX_VALUE);
 		}
 
-		public void projectSlice(byte[] pixels) {
-	    	for(int i=0; i<len; i++) {
+		public void projectSlice(byte[] pixels, int from, int to) {
+	    	for(int i=from; i<to; i++) {
 				if((pixels[i]&0xff)<fpixels[i])
 		    		fpixels[i] = (pixels[i]&0xff); 
 	    	}
 		}
 
-		public void projectSlice(short[] pixels) {
-	    	for(int i=0; i<len; i++) {
+		public void projectSlice(short[] pixels, int from, int to) {
+	    	for(int i=from; i<to; i++) {
 				if((pixels[i]&0xffff)<fpixels[i])
 		    		fpixels[i] = pixels[i]&0xffff;
 	    	}
 		}
 
-		public void projectSlice(float[] pixels) {
-	    	for(int i=0; i<len; i++) {
+		public void projectSlice(float[] pixels, int from, int to) {
+	    	for(int i=from; i<to; i++) {
 				if(pixels[i]<fpixels[i])
 		    		fpixels[i] = pixels[i]; 
 	    	}
@@ -686,50 +926,50 @@ public class ZProjector implements PlugIn {
 
 
     /** Compute standard deviation projection. */
-    class StandardDeviation extends RayFunction {
+    static class StandardDeviation extends RayFunction {
     	private float[] result;
     	private double[] sum, sum2;
-		private int num,len; 
+		private int num; 
 
 		public StandardDeviation(FloatProcessor fp, int num) {
 			result = (float[])fp.getPixels();
-			len = result.length;
+			int len = result.length;
 		    this.num = num;
 			sum = new double[len];
 			sum2 = new double[len];
 		}
 	
-		public void projectSlice(byte[] pixels) {
+		public void projectSlice(byte[] pixels, int from, int to) {
 			int v;
-		    for(int i=0; i<len; i++) {
+		    for(int i=from; i<to; i++) {
 		    	v = pixels[i]&0xff;
 				sum[i] += v;
 				sum2[i] += v*v;
 			} 
 		}
 	
-		public void projectSlice(short[] pixels) {
+		public void projectSlice(short[] pixels, int from, int to) {
 			double v;
-		    for(int i=0; i<len; i++) {
+		    for(int i=from; i<to; i++) {
 		    	v = pixels[i]&0xffff;
 				sum[i] += v;
 				sum2[i] += v*v;
 			} 
 		}
 	
-		public void projectSlice(float[] pixels) {
+		public void projectSlice(float[] pixels, int from, int to) {
 			double v;
-		    for(int i=0; i<len; i++) {
+		    for(int i=from; i<to; i++) {
 		    	v = pixels[i];
 				sum[i] += v;
 				sum2[i] += v*v;
 			} 
 		}
 	
-		public void postProcess() {
+		public void postProcess(int from, int to) {
 			double stdDev;
 			double n = num;
-		    for(int i=0; i<len; i++) {
+		    for(int i=from; i<to; i++) {
 				if (num>1) {
 					stdDev = (n*sum2[i]-sum[i]*sum[i])/n;
 					if (stdDev>0.0)
@@ -744,5 +984,3 @@ public class ZProjector implements PlugIn {
     } // end StandardDeviation
 
 }  // end ZProjection
-
-
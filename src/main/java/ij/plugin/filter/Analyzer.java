@@ -507,137 +507,28 @@ public class Analyzer implements PlugInFilter, Measurements {
 		}
 		if ((measurements&LABELS)!=0)
 			rt.addLabel("Label", getFileName());
-		if ((measurements&AREA)!=0) rt.addValue(ResultsTable.AREA,stats.area);
-		if ((measurements&MEAN)!=0) rt.addValue(ResultsTable.MEAN,stats.mean);
-		if ((measurements&STD_DEV)!=0) rt.addValue(ResultsTable.STD_DEV,stats.stdDev);
-		if ((measurements&MODE)!=0) rt.addValue(ResultsTable.MODE, stats.dmode);
-		if ((measurements&MIN_MAX)!=0) {
-			if (showMin) rt.addValue(ResultsTable.MIN,stats.min);
-			rt.addValue(ResultsTable.MAX,stats.max);
-		}
-		if ((measurements&CENTROID)!=0) {
-			rt.addValue(ResultsTable.X_CENTROID,stats.xCentroid);
-			rt.addValue(ResultsTable.Y_CENTROID,stats.yCentroid);
-		}
-		if ((measurements&CENTER_OF_MASS)!=0) {
-			rt.addValue(ResultsTable.X_CENTER_OF_MASS,stats.xCenterOfMass);
-			rt.addValue(ResultsTable.Y_CENTER_OF_MASS,stats.yCenterOfMass);
-		}
-		if ((measurements&PERIMETER)!=0 || (measurements&SHAPE_DESCRIPTORS)!=0) {
-			double perimeter;
-			if (roi!=null)
-				perimeter = roi.getLength();
-			else
-				perimeter = imp!=null?imp.getWidth()*2+imp.getHeight()*2:0.0;
-			if ((measurements&PERIMETER)!=0) 
-				rt.addValue(ResultsTable.PERIMETER,perimeter);
-			if ((measurements&SHAPE_DESCRIPTORS)!=0) {
-				double circularity = perimeter==0.0?0.0:4.0*Math.PI*(stats.area/(perimeter*perimeter));
-				if (circularity>1.0) circularity = 1.0;
-				rt.addValue(ResultsTable.CIRCULARITY, circularity);
-				Polygon ch = null;
-				boolean isArea = roi==null || roi.isArea();
-				double convexArea = roi!=null?getArea(roi.getConvexHull()):stats.pixelCount;
-				rt.addValue(ResultsTable.ASPECT_RATIO, isArea?stats.major/stats.minor:0.0);
-				rt.addValue(ResultsTable.ROUNDNESS, isArea?4.0*stats.area/(Math.PI*stats.major*stats.major):0.0);
-				rt.addValue(ResultsTable.SOLIDITY, isArea?stats.pixelCount/convexArea:Double.NaN);
-				if (rt.size()==1) {
-					rt.setDecimalPlaces(ResultsTable.CIRCULARITY, precision);
-					rt.setDecimalPlaces(ResultsTable.ASPECT_RATIO, precision);
-					rt.setDecimalPlaces(ResultsTable.ROUNDNESS, precision);
-					rt.setDecimalPlaces(ResultsTable.SOLIDITY, precision);
-				}
-				//rt.addValue(ResultsTable.CONVEXITY, getConvexPerimeter(roi, ch)/perimeter);
-			}
-		}
-		if ((measurements&RECT)!=0) {
-			if (roi!=null && roi.isLine()) {
-				Rectangle bounds = roi.getBounds();
-				double rx = bounds.x;
-				double ry = bounds.y;
-				double rw = bounds.width;
-				double rh = bounds.height;
-				Calibration cal = imp!=null?imp.getCalibration():null;
-				if (cal!=null) {
-					rx = cal.getX(rx);
-					ry = cal.getY(ry);
-					rw *= cal.pixelWidth;
-					rh *= cal.pixelHeight;
-				}
-				rt.addValue(ResultsTable.ROI_X, rx);
-				rt.addValue(ResultsTable.ROI_Y, ry);
-				rt.addValue(ResultsTable.ROI_WIDTH, rw);
-				rt.addValue(ResultsTable.ROI_HEIGHT, rh);
-			} else {
-				rt.addValue(ResultsTable.ROI_X,stats.roiX);
-				rt.addValue(ResultsTable.ROI_Y,stats.roiY);
-				rt.addValue(ResultsTable.ROI_WIDTH,stats.roiWidth);
-				rt.addValue(ResultsTable.ROI_HEIGHT,stats.roiHeight);
-			}
-		}
-		if ((measurements&ELLIPSE)!=0) {
-			rt.addValue(ResultsTable.MAJOR,stats.major);
-			rt.addValue(ResultsTable.MINOR,stats.minor);
-			rt.addValue(ResultsTable.ANGLE,stats.angle);
-		}
-		if ((measurements&FERET)!=0) {
-			boolean extras = true;
-			double FeretDiameter=Double.NaN, feretAngle=Double.NaN, minFeret=Double.NaN,
-				feretX=Double.NaN, feretY=Double.NaN;
-			Roi roi2 = roi;
-			if (roi2==null && imp!=null)
-				roi2 = new Roi(0, 0, imp.getWidth(), imp.getHeight());
-			if (roi2!=null) {
-				double[] a = roi2.getFeretValues();
-				if (a!=null) {
-					FeretDiameter = a[0];
-					feretAngle = a[1];
-					minFeret = a[2];
-					feretX = a[3];
-					feretY = a[4];
-				}
-			}
-			rt.addValue(ResultsTable.FERET, FeretDiameter);
-			rt.addValue(ResultsTable.FERET_X, feretX);
-			rt.addValue(ResultsTable.FERET_Y, feretY);
-			rt.addValue(ResultsTable.FERET_ANGLE, feretAngle);
-			rt.addValue(ResultsTable.MIN_FERET, minFeret);
-		}
-		if ((measurements&INTEGRATED_DENSITY)!=0) {
-			rt.addValue(ResultsTable.INTEGRATED_DENSITY,stats.area*stats.mean);
-			rt.addValue(ResultsTable.RAW_INTEGRATED_DENSITY,stats.pixelCount*stats.umean);
-		}
-		if ((measurements&MEDIAN)!=0) rt.addValue(ResultsTable.MEDIAN, stats.median);
-		if ((measurements&SKEWNESS)!=0) rt.addValue(ResultsTable.SKEWNESS, stats.skewness);
-		if ((measurements&KURTOSIS)!=0) rt.addValue(ResultsTable.KURTOSIS, stats.kurtosis);
-		if ((measurements&AREA_FRACTION)!=0) rt.addValue(ResultsTable.AREA_FRACTION, stats.areaFraction);
-		if ((measurements&STACK_POSITION)!=0) {
-			boolean update = false;
-			if (imp!=null && (imp.isHyperStack()||imp.isComposite())) {
-				int[] position = imp.convertIndexToPosition(imp.getCurrentSlice());
-				if (imp.getNChannels()>1) {
-					int index = rt.getColumnIndex("Ch");
-					if (index<0 || !rt.columnExists(index)) update=true;
-					rt.addValue("Ch", position[0]);
-				}
-				if (imp.getNSlices()>1) {
-					int index = rt.getColumnIndex("Slice");
-					if (index<0 || !rt.columnExists(index)) update=true;
-					rt.addValue("Slice", position[1]);
-				}
-				if (imp.getNFrames()>1) {
-					int index = rt.getColumnIndex("Frame");
-					if (index<0 || !rt.columnExists(index)) update=true;
-					rt.addValue("Frame", position[2]);
-				}
-			} else {
-				int index = rt.getColumnIndex("Slice");
+		int[] columns = getColumns(roi);
+		double[] values = new double[columns.length];
+		getValues(columns, stats, roi, getRoiValues(roi), values);
+		boolean update = false;
+		for (int i=0; i<columns.length; i++) {
+			int column = columns[i];
+			if (column==ResultsTable.CHANNEL || column==ResultsTable.SLICE || column==ResultsTable.FRAME) {
+				String heading = ResultsTable.getDefaultHeading(column);
+				int index = rt.getColumnIndex(heading);
 				if (index<0 || !rt.columnExists(index)) update=true;
-				rt.addValue("Slice", imp!=null?imp.getCurrentSlice():1.0);
-			}
-			if (update && rt==systemRT && IJ.isResultsWindow())
-				rt.update(measurements, imp, roi);
+				rt.addValue(heading, values[i]);
+			} else
+				rt.addValue(column, values[i]);
+		}
+		if ((measurements&SHAPE_DESCRIPTORS)!=0 && rt.size()==1) {
+			rt.setDecimalPlaces(ResultsTable.CIRCULARITY, precision);
+			rt.setDecimalPlaces(ResultsTable.ASPECT_RATIO, precision);
+			rt.setDecimalPlaces(ResultsTable.ROUNDNESS, precision);
+			rt.setDecimalPlaces(ResultsTable.SOLIDITY, precision);
 		}
+		if (update && rt==systemRT && IJ.isResultsWindow())
+			rt.update(measurements, imp, roi);
 		if (roi!=null) {
 			if (roi.isLine()) {
 				rt.addValue("Length", roi.getLength());
@@ -654,9 +545,188 @@ public class Analyzer implements PlugInFilter, Measurements {
 			} else if (roi.getType()==Roi.POINT)
 				savePoints(roi);
 		}
+	}
+
+	/** Returns the ResultsTable columns (such as ResultsTable.MEAN) that saveResults
+		fills for the given selection (null: no selection) with the measurements of
+		this Analyzer, in ascending order. Labels and the columns of line, angle and
+		point selections ('Length', 'Angle', point coordinates) are not included. */
+	public int[] getColumns(Roi roi) {
+		int[] columns = new int[ResultsTable.LAST_HEADING+1];
+		int n = 0;
+		if ((measurements&AREA)!=0) columns[n++] = ResultsTable.AREA;
+		if ((measurements&MEAN)!=0) columns[n++] = ResultsTable.MEAN;
+		if ((measurements&STD_DEV)!=0) columns[n++] = ResultsTable.STD_DEV;
+		if ((measurements&MODE)!=0) columns[n++] = ResultsTable.MODE;
+		if ((measurements&MIN_MAX)!=0) {
+			if (showMin) columns[n++] = ResultsTable.MIN;
+			columns[n++] = ResultsTable.MAX;
+		}
+		if ((measurements&CENTROID)!=0) {
+			columns[n++] = ResultsTable.X_CENTROID;
+			columns[n++] = ResultsTable.Y_CENTROID;
+		}
+		if ((measurements&CENTER_OF_MASS)!=0) {
+			columns[n++] = ResultsTable.X_CENTER_OF_MASS;
+			columns[n++] = ResultsTable.Y_CENTER_OF_MASS;
+		}
+		if ((measurements&PERIMETER)!=0) columns[n++] = ResultsTable.PERIMETER;
+		if ((measurements&RECT)!=0) {
+			columns[n++] = ResultsTable.ROI_X;
+			columns[n++] = ResultsTable.ROI_Y;
+			columns[n++] = ResultsTable.ROI_WIDTH;
+			columns[n++] = ResultsTable.ROI_HEIGHT;
+		}
+		if ((measurements&ELLIPSE)!=0) {
+			columns[n++] = ResultsTable.MAJOR;
+			columns[n++] = ResultsTable.MINOR;
+			columns[n++] = ResultsTable.ANGLE;
+		}
+		if ((measurements&SHAPE_DESCRIPTORS)!=0) columns[n++] = ResultsTable.CIRCULARITY;
+		if ((measurements&FERET)!=0) columns[n++] = ResultsTable.FERET;
+		if ((measurements&INTEGRATED_DENSITY)!=0) columns[n++] = ResultsTable.INTEGRATED_DENSITY;
+		if ((measurements&MEDIAN)!=0) columns[n++] = ResultsTable.MEDIAN;
+		if ((measurements&SKEWNESS)!=0) columns[n++] = ResultsTable.SKEWNESS;
+		if ((measurements&KURTOSIS)!=0) columns[n++] = ResultsTable.KURTOSIS;
+		if ((measurements&AREA_FRACTION)!=0) columns[n++] = ResultsTable.AREA_FRACTION;
+		if ((measurements&INTEGRATED_DENSITY)!=0) columns[n++] = ResultsTable.RAW_INTEGRATED_DENSITY;
+		if ((measurements&STACK_POSITION)!=0) {
+			if (imp!=null && (imp.isHyperStack()||imp.isComposite())) {
+				if (imp.getNChannels()>1) columns[n++] = ResultsTable.CHANNEL;
+				if (imp.getNSlices()>1) columns[n++] = ResultsTable.SLICE;
+				if (imp.getNFrames()>1) columns[n++] = ResultsTable.FRAME;
+			} else
+				columns[n++] = ResultsTable.SLICE;
+		}
+		if ((measurements&FERET)!=0) {
+			columns[n++] = ResultsTable.FERET_X;
+			columns[n++] = ResultsTable.FERET_Y;
+			columns[n++] = ResultsTable.FERET_ANGLE;
+			columns[n++] = ResultsTable.MIN_FERET;
+		}
+		if ((measurements&SHAPE_DESCRIPTORS)!=0) {
+			columns[n++] = ResultsTable.ASPECT_RATIO;
+			columns[n++] = ResultsTable.ROUNDNESS;
+			columns[n++] = ResultsTable.SOLIDITY;
+		}
 		if ((measurements&LIMIT)!=0 && imp!=null && imp.getBitDepth()!=24) {
-			rt.addValue(ResultsTable.MIN_THRESHOLD, stats.lowerThreshold);
-			rt.addValue(ResultsTable.MAX_THRESHOLD, stats.upperThreshold);
+			columns[n++] = ResultsTable.MIN_THRESHOLD;
+			columns[n++] = ResultsTable.MAX_THRESHOLD;
+		}
+		int[] columns2 = new int[n];
+		System.arraycopy(columns, 0, columns2, 0, n);
+		return columns2;
+	}
+
+	/** Returns the values that saveResults needs for the given selection (null: no
+		selection) and that do not depend on the pixel values: perimeter, convex hull
+		area and Feret values. Only those required by the measurements are calculated.
+		For use with getValues. */
+	public double[] getRoiValues(Roi roi) {
+		double[] a = new double[7];
+		if ((measurements&PERIMETER)!=0 || (measurements&SHAPE_DESCRIPTORS)!=0) {
+			if (roi!=null)
+				a[0] = roi.getLength();
+			else
+				a[0] = imp!=null?imp.getWidth()*2+imp.getHeight()*2:0.0;
+		}
+		if ((measurements&SHAPE_DESCRIPTORS)!=0 && roi!=null)
+			a[1] = getArea(roi.getConvexHull());
+		if ((measurements&FERET)!=0) {
+			for (int i=2; i<7; i++)
+				a[i] = Double.NaN;
+			Roi roi2 = roi;
+			if (roi2==null && imp!=null)
+				roi2 = new Roi(0, 0, imp.getWidth(), imp.getHeight());
+			if (roi2!=null) {
+				double[] feret = roi2.getFeretValues();
+				if (feret!=null)
+					System.arraycopy(feret, 0, a, 2, 5);
+			}
+		}
+		return a;
+	}
+
+	/** Writes the values of the given ResultsTable columns (see getColumns), as
+		saveResults adds them to the table, to 'values'. 'roiValues' must be those
+		of getRoiValues(roi). Stack positions are those of the current slice. */
+	public void getValues(int[] columns, ImageStatistics stats, Roi roi, double[] roiValues, double[] values) {
+		double perimeter = roiValues[0];
+		boolean isArea = roi==null || roi.isArea();
+		int[] position = null;
+		for (int i=0; i<columns.length; i++) {
+			double value = Double.NaN;
+			switch (columns[i]) {
+				case ResultsTable.AREA: value = stats.area; break;
+				case ResultsTable.MEAN: value = stats.mean; break;
+				case ResultsTable.STD_DEV: value = stats.stdDev; break;
+				case ResultsTable.MODE: value = stats.dmode; break;
+				case ResultsTable.MIN: value = stats.min; break;
+				case ResultsTable.MAX: value = stats.max; break;
+				case ResultsTable.X_CENTROID: value = stats.xCentroid; break;
+				case ResultsTable.Y_CENTROID: value = stats.yCentroid; break;
+				case ResultsTable.X_CENTER_OF_MASS: value = stats.xCenterOfMass; break;
+				case ResultsTable.Y_CENTER_OF_MASS: value = stats.yCenterOfMass; break;
+				case ResultsTable.PERIMETER: value = perimeter; break;
+				case ResultsTable.CIRCULARITY:
+					value = perimeter==0.0?0.0:4.0*Math.PI*(stats.area/(perimeter*perimeter));
+					if (value>1.0) value = 1.0;
+					break;
+				case ResultsTable.ASPECT_RATIO: value = isArea?stats.major/stats.minor:0.0; break;
+				case ResultsTable.ROUNDNESS: value = isArea?4.0*stats.area/(Math.PI*stats.major*stats.major):0.0; break;
+				case ResultsTable.SOLIDITY:
+					double convexArea = roi!=null?roiValues[1]:stats.pixelCount;
+					value = isArea?stats.pixelCount/convexArea:Double.NaN;
+					break;
+				case ResultsTable.ROI_X: case ResultsTable.ROI_Y: case ResultsTable.ROI_WIDTH: case ResultsTable.ROI_HEIGHT:
+					value = getRectValue(columns[i], stats, roi);
+					break;
+				case ResultsTable.MAJOR: value = stats.major; break;
+				case ResultsTable.MINOR: value = stats.minor; break;
+				case ResultsTable.ANGLE: value = stats.angle; break;
+				case ResultsTable.FERET: value = roiValues[2]; break;
+				case ResultsTable.FERET_ANGLE: value = roiValues[3]; break;
+				case ResultsTable.MIN_FERET: value = roiValues[4]; break;
+				case ResultsTable.FERET_X: value = roiValues[5]; break;
+				case ResultsTable.FERET_Y: value = roiValues[6]; break;
+				case ResultsTable.INTEGRATED_DENSITY: value = stats.area*stats.mean; break;
+				case ResultsTable.RAW_INTEGRATED_DENSITY: value = stats.pixelCount*stats.umean; break;
+				case ResultsTable.MEDIAN: value = stats.median; break;
+				case ResultsTable.SKEWNESS: value = stats.skewness; break;
+				case ResultsTable.KURTOSIS: value = stats.kurtosis; break;
+				case ResultsTable.AREA_FRACTION: value = stats.areaFraction; break;
+				case ResultsTable.CHANNEL: case ResultsTable.SLICE: case ResultsTable.FRAME:
+					if (imp!=null && (imp.isHyperStack()||imp.isComposite())) {
+						if (position==null)
+							position = imp.convertIndexToPosition(imp.getCurrentSlice());
+						value = position[columns[i]-ResultsTable.CHANNEL];
+					} else
+						value = imp!=null?imp.getCurrentSlice():1.0;
+					break;
+				case ResultsTable.MIN_THRESHOLD: value = stats.lowerThreshold; break;
+				case ResultsTable.MAX_THRESHOLD: value = stats.upperThreshold; break;
+			}
+			values[i] = value;
+		}
+	}
+
+	/** Bounding rectangle values; for line selections, the calibrated bounds of the line */
+	private double getRectValue(int column, ImageStatistics stats, Roi roi) {
+		if (roi!=null && roi.isLine()) {
+			Rectangle bounds = roi.getBounds();
+			Calibration cal = imp!=null?imp.getCalibration():null;
+			switch (column) {
+				case ResultsTable.ROI_X: return cal!=null?cal.getX(bounds.x):bounds.x;
+				case ResultsTable.ROI_Y: return cal!=null?cal.getY(bounds.y):bounds.y;
+				case ResultsTable.ROI_WIDTH: return cal!=null?bounds.width*cal.pixelWidth:bounds.width;
+				default: return cal!=null?bounds.height*cal.pixelHeight:bounds.height;
+			}
+		}
+		switch (column) {
+			case ResultsTable.ROI_X: return stats.roiX;
+			case ResultsTable.ROI_Y: return stats.roiY;
+			case ResultsTable.ROI_WIDTH: return stats.roiWidth;
+			default: return stats.roiHeight;
 		}
 	}
 	
@@ -718,14 +788,16 @@ public class Analyzer implements PlugInFilter, Measurements {
 		} else if (imp.getStackSize()>1)
 			rt.addValue("Slice", cal.getZ(imp.getCurrentSlice()));
 		if (imp.getProperty("FHT")!=null) {
-			double center = imp.getWidth()/2.0;
+			double xCenter = imp.getWidth()/2.0;
+			double yCenter = imp.getHeight()/2.0;
 			y = imp.getHeight()-y-1;
-			double r = Math.sqrt((x-center)*(x-center) + (y-center)*(y-center));
-			if (r<1.0) r = 1.0;
-			double theta = Math.atan2(y-center, x-center);
+			double fx = (x-xCenter)/imp.getWidth(), fy = (y-yCenter)/imp.getHeight();
+			double f = Math.sqrt(fx*fx + fy*fy);	// frequency in cycles per pixel
+			if (f<1.0/Math.max(imp.getWidth(),imp.getHeight())) f = 1.0/imp.getWidth();	// origin
+			double theta = Math.atan2(fy, fx);
 			theta = theta*180.0/Math.PI;
 			if (theta<0) theta = 360.0+theta;
-			rt.addValue("R", (imp.getWidth()/r)*cal.pixelWidth);
+			rt.addValue("R", (1.0/f)*cal.pixelWidth);
 			rt.addValue("Theta", theta);
 		}
 		//if ((measurements&MEAN)==0)
@@ -4,6 +4,7 @@ import ij.gui.*;
 import ij.process.*;
 import ij.measure.*;
 import ij.util.Tools;
+import ij.util.ThreadUtil;
 import java.awt.*;
 
 
@@ -42,6 +43,12 @@ Rolling ball code based on the NIH Image Pascal version by Michael Castle and Ja
 Keller of the University of Michigan Mental Health Research Institute.
 Sliding Paraboloid by Michael Schmid, 2007.
 
+All steps (smoothing, shrinking, rolling the ball, enlarging and sliding the
+parabolae) are done in parallel with the threads of the shared executor. The
+images are split into bands of lines (or into the lines of one direction for the
+sliding paraboloid); since each output pixel is calculated in the same way as
+with a single thread, the result does not depend on the number of threads.
+
 Version 10-Jan-2008
 */
 public class BackgroundSubtracter implements ExtendedPlugInFilter, DialogListener {
@@ -316,11 +323,13 @@ public class BackgroundSubtracter implements ExtendedPlugInFilter, DialogListene
     }
 
     /** Filter by subtracting a sliding parabola for all lines in one direction, x, y or one of
-     *  the two diagonal directions (diagonals are processed only for half the image per call). */
-    void filter1D(FloatProcessor fp, int direction, float coeff2, float[] cache, int[] nextPoint) {
-        float[] pixels = (float[])fp.getPixels();   //this will become the background
-        int width = fp.getWidth();
-        int height = fp.getHeight();
+     *  the two diagonal directions (diagonals are processed only for half the image per call).
+     *  The lines are independent of each other and processed in parallel; 'cache' and 'nextPoint'
+     *  are used by the calling thread, the other threads create their own work arrays. */
+    void filter1D(FloatProcessor fp, final int direction, final float coeff2, final float[] cache, final int[] nextPoint) {
+        final float[] pixels = (float[])fp.getPixels();   //this will become the background
+        final int width = fp.getWidth();
+        final int height = fp.getHeight();
         int startLine = 0;          //index of the first line to handle
         int nLines = 0;             //index+1 of the last line to handle (initialized to avoid compile-time error)
         int lineInc = 0;            //increment from one line to the next in pixels array
@@ -363,21 +372,31 @@ public class BackgroundSubtracter implements ExtendedPlugInFilter, DialogListene
                 pointInc = width - 1;
             break;
         }
-        for (int i=startLine; i<nLines; i++) {
-            if (i%50==0) {
-                if (Thread.currentThread().isInterrupted()) return;
-                showProgress(i/(double)nLines);
-            }
-            int startPixel = i*lineInc;
-            if (direction == DIAGONAL_2B) startPixel += width-1;
-            switch (direction) {
-                case DIAGONAL_1A: length = Math.min(height, width-i); break;
-                case DIAGONAL_1B: length = Math.min(width, height-i); break;
-                case DIAGONAL_2A: length = Math.min(height, i+1);     break;
-                case DIAGONAL_2B: length = Math.min(width, height-i); break;
+        final int lineInc1 = lineInc, pointInc1 = pointInc, length1 = length, nLines1 = nLines;
+        final Thread mainThread = Thread.currentThread();
+        ThreadUtil.parallelFor(startLine, nLines, ThreadUtil.getChunkSize(nLines-startLine, 16), new ThreadUtil.RangeTask() {
+            final public void run(int from, int to) {
+                boolean isMainThread = Thread.currentThread() == mainThread;
+                float[] cache1 = isMainThread ? cache : new float[cache.length];
+                int[] nextPoint1 = isMainThread ? nextPoint : new int[nextPoint.length];
+                int length = length1;
+                for (int i=from; i<to; i++) {
+                    if (i%50==0) {
+                        if (Thread.currentThread().isInterrupted()) return;
+                        if (isMainThread) showProgress(i/(double)nLines1);
+                    }
+                    int startPixel = i*lineInc1;
+                    if (direction == DIAGONAL_2B) startPixel += width-1;
+                    switch (direction) {
+                        case DIAGONAL_1A: length = Math.min(height, width-i); break;
+                        case DIAGONAL_1B: length = Math.min(width, height-i); break;
+                        case DIAGONAL_2A: length = Math.min(height, i+1);     break;
+                        case DIAGONAL_2B: length = Math.min(width, height-i); break;
+                    }
+                    lineSlideParabola(pixels, startPixel, pointInc1, length, coeff2, cache1, nextPoint1, null);
+                }
             }
-            lineSlideParabola(pixels, startPixel, pointInc, length, coeff2, cache, nextPoint, null);
-        }
+        });
         pass++;
     } //void filter1D
 
@@ -559,23 +578,32 @@ public class BackgroundSubtracter implements ExtendedPlugInFilter, DialogListene
         int sHeight = (height+shrinkFactor-1)/shrinkFactor;
         showProgress(0.1);
         FloatProcessor smallImage = new FloatProcessor(sWidth, sHeight);
-        float[] sPixels = (float[])smallImage.getPixels();
-        float min, thispixel;
-        for (int ySmall=0; ySmall<sHeight; ySmall++) {
-            for (int xSmall=0; xSmall<sWidth; xSmall++) {
-                min = Float.MAX_VALUE;
-                for (int j=0, y=shrinkFactor*ySmall; j<shrinkFactor&&y<height; j++, y++) {
-                    for (int k=0, x=shrinkFactor*xSmall; k<shrinkFactor&&x<width; k++, x++) {
-                        thispixel = pixels[x+y*width];
-                        if (thispixel<min)
-                            min = thispixel;
+        shrink(pixels, width, height, (float[])smallImage.getPixels(), sWidth, sHeight, shrinkFactor);
+        //new ImagePlus("smallImage", smallImage).show();
+        return smallImage;
+    }
+
+    /** Each point in the small image becomes the minimum of its neighborhood; lines in parallel */
+    private static void shrink(final float[] pixels, final int width, final int height,
+            final float[] sPixels, final int sWidth, int sHeight, final int shrinkFactor) {
+        ThreadUtil.parallelFor(0, sHeight, ThreadUtil.getChunkSize(sHeight, 16), new ThreadUtil.RangeTask() {
+            final public void run(int from, int to) {
+                float min, thispixel;
+                for (int ySmall=from; ySmall<to; ySmall++) {
+                    for (int xSmall=0; xSmall<sWidth; xSmall++) {
+                        min = Float.MAX_VALUE;
+                        for (int j=0, y=shrinkFactor*ySmall; j<shrinkFactor&&y<height; j++, y++) {
+                            for (int k=0, x=shrinkFactor*xSmall; k<shrinkFactor&&x<width; k++, x++) {
+                                thispixel = pixels[x+y*width];
+                                if (thispixel<min)
+                                    min = thispixel;
+                            }
+                        }
+                        sPixels[xSmall+ySmall*sWidth] = min; // each point in small image is minimum of its neighborhood
                     }
                 }
-                sPixels[xSmall+ySmall*sWidth] = min; // each point in small image is minimum of its neighborhood
             }
-        }
-        //new ImagePlus("smallImage", smallImage).show();
-        return smallImage;
+        });
     }
 
     /** 'Rolls' a filtering object over a (shrunken) image in order to find the
@@ -591,60 +619,87 @@ public class BackgroundSubtracter implements ExtendedPlugInFilter, DialogListene
         processing time increases with ball radius^2.
     */
     void rollBall(RollingBall ball, FloatProcessor fp) {
-        float[] pixels = (float[])fp.getPixels();   //the input pixels
-        int width = fp.getWidth();
-        int height = fp.getHeight();
-        float[] zBall = ball.data;
-        int ballWidth = ball.width;
-        int radius = ballWidth/2;
-        float[] cache = new float[width*ballWidth]; //temporarily stores the pixels we work on
-
-		Thread thread = Thread.currentThread();
-		long lastTime = System.currentTimeMillis();
-        for (int y=-radius; y<height+radius; y++) { //for all positions of the ball center:
-			long time = System.currentTimeMillis();
-			if (time-lastTime > 100) {
-				lastTime = time;
-				if (thread.isInterrupted()) return;
-				showProgress(0.1+0.8*y/(height+ballWidth));
-            }
-            int nextLineToWriteInCache = (y+radius)%ballWidth;
-            int nextLineToRead = y + radius;        //line of the input not touched yet
-            if (nextLineToRead<height) {
-                System.arraycopy(pixels, nextLineToRead*width, cache, nextLineToWriteInCache*width, width);
-                for (int x=0, p=nextLineToRead*width; x<width; x++,p++)
-                    pixels[p] = -Float.MAX_VALUE;   //unprocessed pixels start at minus infinity
-            }
-            int y0 = y-radius;                      //the first line to see whether the ball touches
-            if (y0 < 0) y0 = 0;
-            int yBall0 = y0-y+radius;               //y coordinate in the ball corresponding to y0
-            int yend = y+radius;                    //the last line to see whether the ball touches
-            if (yend>=height) yend = height-1;
-            for (int x=-radius; x<width+radius; x++) {
-                float z = Float.MAX_VALUE;          //the height of the ball (ball is in position x,y)
-                int x0 = x-radius;
-                if (x0 < 0) x0 = 0;
-                int xBall0 = x0-x+radius;
-                int xend = x+radius;
-                if (xend>=width) xend = width-1;
-                for (int yp=y0, yBall=yBall0; yp<=yend; yp++,yBall++) { //for all points inside the ball
-                    int cachePointer = (yp%ballWidth)*width+x0;
-                    for (int xp=x0, bp=xBall0+yBall*ballWidth; xp<=xend; xp++, cachePointer++, bp++) {
-                        float zReduced = cache[cachePointer] - zBall[bp];
-                        if (z > zReduced)           //does this point imply a greater height?
-                            z = zReduced;
+        final float[] pixels = (float[])fp.getPixels();   //the input pixels
+        final int width = fp.getWidth();
+        final int height = fp.getHeight();
+        final float[] zBall = ball.data;
+        final int ballWidth = ball.width;
+        final int radius = ballWidth/2;
+        /* First, the height of the ball is determined for all positions of the ball center,
+         * (x, y) from (-radius, -radius) to (width+radius-1, height+radius-1), then the pixels
+         * are raised to the ball surface. Both steps are done for bands of lines in parallel;
+         * the result is the same as when rolling the ball line by line. */
+        final int zWidth = width + 2*radius;
+        final int zHeight = height + 2*radius;
+        final float[] zCenter = new float[zWidth*zHeight]; //the height of the ball at each position
+        final Thread mainThread = Thread.currentThread();
+        ThreadUtil.parallelFor(-radius, height+radius, ThreadUtil.getChunkSize(zHeight, 4), new ThreadUtil.RangeTask() {
+            final public void run(int from, int to) {
+                boolean isMainThread = Thread.currentThread() == mainThread;
+                long lastTime = System.currentTimeMillis();
+                for (int y=from; y<to; y++) {       //for all positions of the ball center:
+                    long time = System.currentTimeMillis();
+                    if (time-lastTime > 100) {
+                        lastTime = time;
+                        if (Thread.currentThread().isInterrupted()) return;
+                        if (isMainThread) showProgress(0.1+0.4*(y+radius)/zHeight);
+                    }
+                    int y0 = y-radius;                  //the first line to see whether the ball touches
+                    if (y0 < 0) y0 = 0;
+                    int yBall0 = y0-y+radius;           //y coordinate in the ball corresponding to y0
+                    int yend = y+radius;                //the last line to see whether the ball touches
+                    if (yend>=height) yend = height-1;
+                    for (int x=-radius, zp=(y+radius)*zWidth; x<width+radius; x++, zp++) {
+                        float z = Float.MAX_VALUE;      //the height of the ball (ball is in position x,y)
+                        int x0 = x-radius;
+                        if (x0 < 0) x0 = 0;
+                        int xBall0 = x0-x+radius;
+                        int xend = x+radius;
+                        if (xend>=width) xend = width-1;
+                        for (int yp=y0, yBall=yBall0; yp<=yend; yp++,yBall++) { //for all points inside the ball
+                            for (int xp=x0, p=xp+yp*width, bp=xBall0+yBall*ballWidth; xp<=xend; xp++, p++, bp++) {
+                                float zReduced = pixels[p] - zBall[bp];
+                                if (z > zReduced)       //does this point imply a greater height?
+                                    z = zReduced;
+                            }
+                        }
+                        zCenter[zp] = z;
                     }
                 }
-                for (int yp=y0, yBall=yBall0; yp<=yend; yp++,yBall++) //raise pixels to ball surface
-                    for (int xp=x0, p=xp+yp*width, bp=xBall0+yBall*ballWidth; xp<=xend; xp++, p++, bp++) {
-                        float zMin = z + zBall[bp];
-                        if (pixels[p] < zMin)
-                            pixels[p] = zMin;
+            }
+        });
+        if (Thread.currentThread().isInterrupted()) return;
+        ThreadUtil.parallelFor(0, height, ThreadUtil.getChunkSize(height, 4), new ThreadUtil.RangeTask() {
+            final public void run(int from, int to) {
+                boolean isMainThread = Thread.currentThread() == mainThread;
+                long lastTime = System.currentTimeMillis();
+                for (int yp=from; yp<to; yp++) {    //for all lines of the output
+                    long time = System.currentTimeMillis();
+                    if (time-lastTime > 100) {
+                        lastTime = time;
+                        if (Thread.currentThread().isInterrupted()) return;
+                        if (isMainThread) showProgress(0.5+0.4*yp/height);
                     }
-            // if (x>=0&&y>=0&&x<width&&y<height) bgPixels[x+y*width] = z; //debug, ball height output
+                    for (int p=yp*width; p<(yp+1)*width; p++)
+                        pixels[p] = -Float.MAX_VALUE;   //unprocessed pixels start at minus infinity
+                    for (int y=yp-radius, yBall=ballWidth-1; y<=yp+radius; y++, yBall--) { //ball positions touching this line
+                        for (int x=-radius, zp=(y+radius)*zWidth; x<width+radius; x++, zp++) {
+                            float z = zCenter[zp];
+                            int x0 = x-radius;
+                            if (x0 < 0) x0 = 0;
+                            int xBall0 = x0-x+radius;
+                            int xend = x+radius;
+                            if (xend>=width) xend = width-1;
+                            for (int xp=x0, p=xp+yp*width, bp=xBall0+yBall*ballWidth; xp<=xend; xp++, p++, bp++) {
+                                float zMin = z + zBall[bp];
+                                if (pixels[p] < zMin)   //raise pixels to ball surface
+                                    pixels[p] = zMin;
+                            }
+                        }
+                    }
+                }
             }
-        }
-        
+        });
         //new ImagePlus("bg rolled", fp.duplicate()).show();
     }
     
@@ -665,27 +720,39 @@ public class BackgroundSubtracter implements ExtendedPlugInFilter, DialogListene
         int[] ySmallIndices = new int[height];
         float[] yWeights = new float[height];
         makeInterpolationArrays(ySmallIndices, yWeights, height, smallHeight, shrinkFactor);
-        float[] line0 = new float[width];
-        float[] line1 = new float[width];
-        for (int x=0; x<width; x++)                 //x-interpolation of the first smallImage line
-            line1[x] = sPixels[xSmallIndices[x]] * xWeights[x] +
-                    sPixels[xSmallIndices[x]+1] * (1f - xWeights[x]);
-        int ySmallLine0 = -1;                       //line0 corresponds to this y of smallImage
-        for (int y=0; y<height; y++) {
-            if (ySmallLine0 < ySmallIndices[y]) {
-                float[] swap = line0;               //previous line1 -> line0
-                line0 = line1;
-                line1 = swap;                       //keep the other array for filling with new data
-                ySmallLine0++;
-                int sYPointer = (ySmallIndices[y]+1)*smallWidth; //points to line0 + 1 in smallImage
-                for (int x=0; x<width; x++)         //x-interpolation of the new smallImage line -> line1
+        enlarge(sPixels, smallWidth, pixels, width, height, xSmallIndices, xWeights, ySmallIndices, yWeights);
+    }
+
+    /** Bilinear interpolation for enlargeImage, in bands of lines in parallel */
+    private static void enlarge(final float[] sPixels, final int smallWidth, final float[] pixels,
+            final int width, int height, final int[] xSmallIndices, final float[] xWeights,
+            final int[] ySmallIndices, final float[] yWeights) {
+        ThreadUtil.parallelFor(0, height, ThreadUtil.getChunkSize(height, 16), new ThreadUtil.RangeTask() {
+            final public void run(int from, int to) {
+                float[] line0 = new float[width];
+                float[] line1 = new float[width];
+                int ySmallLine0 = ySmallIndices[from] - 1; //line0 corresponds to this y of smallImage
+                int sYPointer = ySmallIndices[from]*smallWidth;
+                for (int x=0; x<width; x++)         //x-interpolation of the first smallImage line needed
                     line1[x] = sPixels[sYPointer+xSmallIndices[x]] * xWeights[x] +
                             sPixels[sYPointer+xSmallIndices[x]+1] * (1f - xWeights[x]);
+                for (int y=from; y<to; y++) {
+                    if (ySmallLine0 < ySmallIndices[y]) {
+                        float[] swap = line0;       //previous line1 -> line0
+                        line0 = line1;
+                        line1 = swap;               //keep the other array for filling with new data
+                        ySmallLine0++;
+                        sYPointer = (ySmallIndices[y]+1)*smallWidth; //points to line0 + 1 in smallImage
+                        for (int x=0; x<width; x++) //x-interpolation of the new smallImage line -> line1
+                            line1[x] = sPixels[sYPointer+xSmallIndices[x]] * xWeights[x] +
+                                    sPixels[sYPointer+xSmallIndices[x]+1] * (1f - xWeights[x]);
+                    }
+                    float weight = yWeights[y];
+                    for (int x=0, p=y*width; x<width; x++,p++)
+                        pixels[p] = line0[x]*weight + line1[x]*(1f - weight);
+                }
             }
-            float weight = yWeights[y];
-            for (int x=0, p=y*width; x<width; x++,p++)
-                pixels[p] = line0[x]*weight + line1[x]*(1f - weight);
-        }
+        });
     }
 
     /** Create arrays of indices and weigths for interpolation.
@@ -713,22 +780,37 @@ public class BackgroundSubtracter implements ExtendedPlugInFilter, DialogListene
     /** Replace the pixels by the mean or maximum in a 3x3 neighborhood.
      *  No snapshot is required (less memory needed than e.g., fp.smooth()).
      *  When used as maximum filter, it returns the average change of the
-     *  pixel value by this operation
+     *  pixel value by this operation. The lines and columns are processed
+     *  in parallel; the changes are added up in a fixed order.
      */
-    double filter3x3(FloatProcessor fp, int type) {
-        int width = fp.getWidth();
-        int height = fp.getHeight();
+    double filter3x3(FloatProcessor fp, final int type) {
+        final int width = fp.getWidth();
+        final int height = fp.getHeight();
+        final float[] pixels = (float[])fp.getPixels();
+        final double[] lineShifts = new double[height];
+        final double[] columnShifts = new double[width];
+        ThreadUtil.parallelFor(0, height, ThreadUtil.getChunkSize(height, 16), new ThreadUtil.RangeTask() {
+            final public void run(int from, int to) {
+                for (int y=from; y<to; y++)
+                    lineShifts[y] = filter3(pixels, width, y*width, 1, type);
+            }
+        });
+        ThreadUtil.parallelFor(0, width, ThreadUtil.getChunkSize(width, 16), new ThreadUtil.RangeTask() {
+            final public void run(int from, int to) {
+                for (int x=from; x<to; x++)
+                    columnShifts[x] = filter3(pixels, height, x, width, type);
+            }
+        });
         double shiftBy = 0;
-        float[] pixels = (float[])fp.getPixels();
         for (int y=0; y<height; y++)
-            shiftBy += filter3(pixels, width, y*width, 1, type);
+            shiftBy += lineShifts[y];
         for (int x=0; x<width; x++)
-            shiftBy += filter3(pixels, height, x, width, type);
+            shiftBy += columnShifts[x];
         return shiftBy/width/height;
     }
 
     /** Filter a line: maximum or average of 3-pixel neighborhood */
-    double filter3(float[] pixels, int length, int pixel0, int inc, int type) {
+    static double filter3(float[] pixels, int length, int pixel0, int inc, int type) {
         double shiftBy = 0;
         float v3 = pixels[pixel0];  //will be pixel[i+1]
         float v2 = v3;              //will be pixel[i]
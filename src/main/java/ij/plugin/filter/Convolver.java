@@ -11,7 +11,10 @@ import java.util.*;
 import java.awt.event.*;
 import java.io.*;
 
-/** This plugin convolves images using user user defined kernels. */
+/** This plugin convolves images using user user defined kernels. Separable kernels
+	(the outer product of a column and a row vector) are applied as two 1D passes;
+	large kernels may also be applied via the Fast Hartley Transform, depending on
+	the estimated computing time. */
 public class Convolver implements ExtendedPlugInFilter, DialogListener, ActionListener {
 
 	private ImagePlus imp;
@@ -29,6 +32,8 @@ public class Convolver implements ExtendedPlugInFilter, DialogListener, ActionLi
 	private PlugInFilterRunner pfr;
 	private Thread mainThread;
 	private int pass;
+	private static final double FFT_COST = 12.0;	// FFT time per pixel and log2(pixels), in units of a multiply-add
+	private static final float SEPARABLE_TOLERANCE = 1e-6f; // relative error allowed for separable kernels
 
 	
 	static String kernelText = "-1 -1 -1 -1 -1\n-1 -1 -1 -1 -1\n-1 -1 24 -1 -1\n-1 -1 -1 -1 -1\n-1 -1 -1 -1 -1\n";
@@ -207,7 +212,9 @@ public class Convolver implements ExtendedPlugInFilter, DialogListener, ActionLi
 	
 	/** Convolves the float image <code>ip</code> with a kernel of width 
 		<code>kw</code> and height <code>kh</code>. Returns false if 
-		the user cancels the operation by pressing 'Esc'. */
+		the user cancels the operation by pressing 'Esc'. Depending on the
+		estimated computing time, the convolution is done directly, with two
+		1D passes (for separable kernels) or with the Fast Hartley Transform. */
 	public boolean convolveFloat(ImageProcessor ip, float[] kernel, int kw, int kh) {
 		if (!(ip instanceof FloatProcessor))
 			throw new IllegalArgumentException("FloatProcessor required");
@@ -215,6 +222,28 @@ public class Convolver implements ExtendedPlugInFilter, DialogListener, ActionLi
 		int width = ip.getWidth();
 		int height = ip.getHeight();
 		Rectangle r = ip.getRoi();
+		float[] pixels2 = (float[])ip.getSnapshotPixels();
+		if (pixels2==null)
+			pixels2 = (float[])ip.getPixelsCopy();
+		double scale = normalize?getScale(kernel):1.0;
+		Thread thread = Thread.currentThread();
+		boolean isMainThread = thread==mainThread || thread.getName().indexOf("Preview")!=-1;
+		if (isMainThread) pass++;
+		double nPixels = (double)r.width*r.height;
+		double directCost = nPixels*kw*kh;
+		double[][] factors = kw>1 && kh>1 ? getSeparableFactors(kernel, kw, kh) : null;
+		double separableCost = factors!=null ? (double)r.width*(r.height+kh-1)*kw + nPixels*kh : Double.MAX_VALUE;
+		int fftWidth = MixedRadixFHT.getFastEvenLength(r.width+kw-1);
+		int fftHeight = MixedRadixFHT.getFastEvenLength(r.height+kh-1);
+		double fftPixels = (double)fftWidth*fftHeight;
+		double fftCost = fftPixels<Integer.MAX_VALUE/2 ?
+				FFT_COST*fftPixels*Math.log(fftPixels)/Math.log(2.0) : Double.MAX_VALUE;
+		if (fftCost<directCost && fftCost<separableCost && !isFinite(pixels2, width, height, r, kw/2, kh/2))
+			fftCost = Double.MAX_VALUE;	// with the FFT, NaN or Infinity would spread over the whole roi
+		if (separableCost<=directCost && separableCost<=fftCost)
+			return convolveSeparable(ip, pixels2, factors[0], factors[1], scale, isMainThread);
+		else if (fftCost<directCost)
+			return convolveFFT(ip, pixels2, kernel, kw, kh, fftWidth, fftHeight, scale, isMainThread);
 		int x1 = r.x;
 		int y1 = r.y;
 		int x2 = x1 + r.width;
@@ -222,13 +251,6 @@ public class Convolver implements ExtendedPlugInFilter, DialogListener, ActionLi
 		int uc = kw/2;    
 		int vc = kh/2;
 		float[] pixels = (float[])ip.getPixels();
-		float[] pixels2 = (float[])ip.getSnapshotPixels();
-		if (pixels2==null)
-			pixels2 = (float[])ip.getPixelsCopy();
-		double scale = normalize?getScale(kernel):1.0;
-        Thread thread = Thread.currentThread();
-        boolean isMainThread = thread==mainThread || thread.getName().indexOf("Preview")!=-1;
-        if (isMainThread) pass++;
 		double sum;
 		int offset, i;
 		boolean edgePixel;
@@ -239,18 +261,8 @@ public class Convolver implements ExtendedPlugInFilter, DialogListener, ActionLi
 			long time = System.currentTimeMillis();
 			if (time-lastTime>100) {
 				lastTime = time;
-				if (thread.isInterrupted()) return false;
-				if (isMainThread) {
-					if (IJ.escapePressed()) {
-						canceled = true;
-						ip.reset();
-						ImageProcessor originalIp = imp.getProcessor();
-						if (originalIp.getNChannels() > 1)
-							originalIp.reset();
-						return false;
-					}
-					showProgress((y-y1)/(double)(y2-y1));
-				}
+				if (isCanceled(ip, isMainThread, (y-y1)/(double)(y2-y1)))
+					return false;
 			}
 			for (int x=x1; x<x2; x++) {
 				if (canceled) return false;
@@ -274,6 +286,174 @@ public class Convolver implements ExtendedPlugInFilter, DialogListener, ActionLi
    		return true;
    	 }
 
+	/** Returns whether the operation has been interrupted or cancelled by pressing 'Esc';
+		in the latter case, the image is reset. Also updates the progress bar in the main thread. */
+	private boolean isCanceled(ImageProcessor ip, boolean isMainThread, double progress) {
+		if (Thread.currentThread().isInterrupted()) return true;
+		if (isMainThread) {
+			if (IJ.escapePressed()) {
+				canceled = true;
+				ip.reset();
+				ImageProcessor originalIp = imp.getProcessor();
+				if (originalIp.getNChannels() > 1)
+					originalIp.reset();
+				return true;
+			}
+			showProgress(progress);
+		}
+		return false;
+	}
+
+	/** If the kernel is separable, i.e., the outer product of a column vector
+		and a row vector (a matrix of rank 1), returns the column vector (element 0)
+		and the row vector (element 1); otherwise returns null. The kernel is
+		factorized at its element with the largest magnitude (like a singular value
+		decomposition with only one nonzero singular value, but much faster);
+		the factorization must reproduce all elements within float accuracy. */
+	public static double[][] getSeparableFactors(float[] kernel, int kw, int kh) {
+		int pivot = 0;
+		for (int i=1; i<kernel.length; i++)
+			if (Math.abs(kernel[i])>Math.abs(kernel[pivot])) pivot = i;
+		double max = Math.abs(kernel[pivot]);
+		if (max==0.0)
+			return null;
+		int u0 = pivot%kw, v0 = pivot/kw;
+		double[] column = new double[kh];
+		double[] row = new double[kw];
+		for (int v=0; v<kh; v++)
+			column[v] = kernel[u0+v*kw];
+		for (int u=0; u<kw; u++)
+			row[u] = kernel[u+v0*kw]/(double)kernel[pivot];
+		double tolerance = SEPARABLE_TOLERANCE*max;
+		for (int v=0, i=0; v<kh; v++)
+			for (int u=0; u<kw; u++, i++)
+				if (Math.abs(kernel[i]-column[v]*row[u])>tolerance)
+					return null;
+		return new double[][] {column, row};
+	}
+
+	/** Convolves the roi of 'ip' with the outer product of 'column' and 'row':
+		First each line (including the lines above and below the roi needed for the second
+		pass) is convolved with 'row', then each column of the result with 'column'.
+		Out-of-image pixels are replaced by the nearest edge pixels, as with the direct convolution. */
+	private boolean convolveSeparable(ImageProcessor ip, float[] pixels2, double[] column, double[] row,
+			double scale, boolean isMainThread) {
+		int width = ip.getWidth();
+		int height = ip.getHeight();
+		Rectangle r = ip.getRoi();
+		int kw = row.length, kh = column.length;
+		int uc = kw/2;
+		int vc = kh/2;
+		int ya = Math.max(r.y-vc, 0);						// lines needed for the vertical pass
+		int yb = Math.min(r.y+r.height+vc, height);
+		float[] pixels = (float[])ip.getPixels();
+		float[] line = new float[r.width+kw-1];
+		float[] temp = new float[r.width*(yb-ya)];			// result of the horizontal pass
+		long lastTime = System.currentTimeMillis();
+		for (int y=ya; y<yb; y++) {
+			long time = System.currentTimeMillis();
+			if (time-lastTime>100) {
+				lastTime = time;
+				if (isCanceled(ip, isMainThread, 0.5*(y-ya)/(yb-ya)))
+					return false;
+			}
+			for (int i=0, x=r.x-uc; i<line.length; i++, x++)
+				line[i] = pixels2[(x<0 ? 0 : (x>=width ? width-1 : x)) + y*width];
+			for (int x=0, p=(y-ya)*r.width; x<r.width; x++, p++) {
+				double sum = 0.0;
+				for (int u=0; u<kw; u++)
+					sum += line[x+u]*row[u];
+				temp[p] = (float)sum;
+			}
+		}
+		double[] sums = new double[r.width];
+		for (int y=r.y; y<r.y+r.height; y++) {
+			long time = System.currentTimeMillis();
+			if (time-lastTime>100) {
+				lastTime = time;
+				if (isCanceled(ip, isMainThread, 0.5+0.5*(y-r.y)/r.height))
+					return false;
+			}
+			Arrays.fill(sums, 0.0);
+			for (int v=0; v<kh; v++) {
+				int yy = y - vc + v;
+				if (yy<ya) yy = ya;
+				if (yy>=yb) yy = yb-1;
+				double c = column[v];
+				for (int x=0, p=(yy-ya)*r.width; x<r.width; x++, p++)
+					sums[x] += temp[p]*c;
+			}
+			for (int x=0, p=r.x+y*width; x<r.width; x++, p++)
+				pixels[p] = (float)(sums[x]*scale);
+		}
+		return true;
+	}
+
+	/** Returns whether all pixels read for convolving the roi 'r' with a kernel of
+		radius 'uc', 'vc' are finite, i.e., neither NaN nor Infinity */
+	private static boolean isFinite(float[] pixels, int width, int height, Rectangle r, int uc, int vc) {
+		int x1 = Math.max(r.x-uc, 0), x2 = Math.min(r.x+r.width+uc, width);
+		int y1 = Math.max(r.y-vc, 0), y2 = Math.min(r.y+r.height+vc, height);
+		for (int y=y1; y<y2; y++)
+			for (int x=x1, p=x1+y*width; x<x2; x++, p++)
+				if (Float.isNaN(pixels[p]) || Float.isInfinite(pixels[p]))
+					return false;
+		return true;
+	}
+
+	/** Convolves the roi of 'ip' via the Fast Hartley Transform, with an fftWidth*fftHeight
+		image containing the roi and the out-of-roi pixels needed, where out-of-image pixels
+		are replaced by the nearest edge pixels. The mean of these pixels is subtracted
+		before the transform and added back after it, so that a large offset does not
+		cost accuracy. Thus the result is the same as with the direct convolution, within
+		float accuracy relative to the range of the pixel values. All pixels must be finite. */
+	private boolean convolveFFT(ImageProcessor ip, float[] pixels2, float[] kernel, int kw, int kh,
+			int fftWidth, int fftHeight, double scale, boolean isMainThread) {
+		int width = ip.getWidth();
+		int height = ip.getHeight();
+		Rectangle r = ip.getRoi();
+		int uc = kw/2;
+		int vc = kh/2;
+		float[] data = new float[fftWidth*fftHeight];
+		double sum = 0.0;
+		for (int j=0, y=r.y-vc; j<r.height+kh-1; j++, y++) {
+			int yy = y<0 ? 0 : (y>=height ? height-1 : y);
+			for (int i=0, x=r.x-uc; i<r.width+kw-1; i++, x++) {
+				float v = pixels2[(x<0 ? 0 : (x>=width ? width-1 : x)) + yy*width];
+				data[i+j*fftWidth] = v;
+				sum += v;
+			}
+		}
+		double mean = sum/((double)(r.width+kw-1)*(r.height+kh-1));
+		for (int j=0; j<r.height+kh-1; j++)
+			for (int i=0, p=j*fftWidth; i<r.width+kw-1; i++, p++)
+				data[p] = (float)(data[p]-mean);
+		double kernelSum = 0.0;
+		for (int i=0; i<kernel.length; i++)
+			kernelSum += kernel[i];
+		double offset = mean*kernelSum;		// the convolution of the mean, added back below
+		float[] kernelData = new float[fftWidth*fftHeight];
+		for (int v=0; v<kh; v++)
+			System.arraycopy(kernel, v*kw, kernelData, v*fftWidth, kw);
+		FHT fht = new FHT(new FloatProcessor(fftWidth, fftHeight, data, null));
+		FHT kernelFht = new FHT(new FloatProcessor(fftWidth, fftHeight, kernelData, null));
+		fht.setShowProgress(false);
+		kernelFht.setShowProgress(false);
+		fht.transform();
+		if (isCanceled(ip, isMainThread, 0.33)) return false;
+		kernelFht.transform();
+		FHT result = fht.conjugateMultiply(kernelFht);		// correlation, i.e., convolution with the kernel as used here
+		result.setShowProgress(false);
+		if (isCanceled(ip, isMainThread, 0.67)) return false;
+		result.inverseTransform();
+		float[] resultData = (float[])result.getPixels();
+		float[] pixels = (float[])ip.getPixels();
+		for (int y=0; y<r.height; y++)
+			for (int x=0, p=r.x+(r.y+y)*width, q=y*fftWidth; x<r.width; x++, p++, q++)
+				pixels[p] = (float)((resultData[q]+offset)*scale);
+		return true;
+	}
+
 	/** Convolves the image <code>ip</code> with a kernel of width
 		<code>kw</code> and height <code>kh</code>. */
 	public void convolveFloat1D(FloatProcessor ip, float[] kernel, int kw, int kh) {
@@ -3,6 +3,8 @@ import ij.*;
 import ij.plugin.*;
 import ij.process.*;
 import ij.gui.*;
+import ij.measure.Calibration;
+import ij.util.ThreadUtil;
 
 /**
  * This plugin implements the Euclidean Distance Map (EDM), Watershed,
@@ -28,23 +30,19 @@ import ij.gui.*;
  * Watershed, Ultimate Eroded Points and Voronoi are handled by the MaximumFinder 
  * plugin applied to the EDM
  * Note: These functions do not take ROIs into account.
- * Setup is called with argument "" (empty string) for EDM,
+ * Setup is called with argument "" (empty string) for EDM, "3d" for the 3D EDM,
  * "watershed" for watershed segmentation, "points" for ultimate eroded points and
  * "voronoi" for Voronoi segmentation of the background
  *
- * The EDM algorithm is similar to the 8SSEDT in
- *   F. Leymarie, M. D. Levine, in: CVGIP Image Understanding, vol. 55 (1992), pp 84-94
- *   http://dx.doi.org/10.1016/1049-9660(92)90008-Q
- *
- * The algorithm provides a fast approximation of the EDM, with the deviation from a
- * full calculation being between -0.09 and 0. The algorithm is exact for distances<13.
- * For d>=13, deviations from the true result can occur, but are very rare: typically
- * the fraction of pixels deviating from the exact result is in the 10^-5 range, with
- * most deviations between -0.03 and -0.04.
- *
- * Limitations:
- * Maximum image diagonal for EDM: 46340 pixels (sqrt(2^31)); if the particles are
- * dense enough it also works for width, height <=65534.
+ * The EDM is exact; it is calculated by the separable algorithm of
+ *   P. F. Felzenszwalb, D. P. Huttenlocher, Theory of Computing, vol. 8 (2012), pp 415-428
+ *   http://dx.doi.org/10.4086/toc.2012.v008a019
+ * (see also A. Meijster, J. B. T. M. Roerdink, W. H. Hesselink, in: Mathematical Morphology
+ * and its Applications to Image and Signal Processing (2000), pp 331-340), with the
+ * lower envelope of parabolas taken along the lines in z (stacks only), y and x.
+ * The lines are processed in parallel threads; non-square pixels and anisotropic
+ * voxels are supported by the makeFloatEDM methods with pixel size arguments.
+ * In the 3D EDM, distances are in units of the pixel width.
  *
  * Version 30-Apr-2008 Michael Schmid:  more accurate EDM algorithm,
  *                                      16-bit and float output possible,
@@ -93,7 +91,8 @@ public class EDM implements ExtendedPlugInFilter {
     //prefixes for titles of separate output images; for each processType:
     private static final String[] TITLE_PREFIX = new String[] {
             "EDM of ", null, "UEPs of ", "Voronoi of "};
-    private static final int NO_POINT = -1; //no nearest point in array of nearest points
+    private static final float INFINITE = Float.MAX_VALUE; //squared distance if there is no background
+    private static final int COLUMN_BLOCK = 16; //number of columns processed together (for cache efficiency)
     private static final double MAXFINDER_TOLERANCE = 0.5; //reasonable values are 0.3 ... 0.8;
                                     //segmentation is more aggressive with smaller values
     /** Output type (BYTE_OVERWRITE, BYTE, SHORT or FLOAT) */
@@ -116,6 +115,10 @@ public class EDM implements ExtendedPlugInFilter {
             processType = UEP;
         else if (arg.equals("voronoi"))
             processType = VORONOI;
+        else if (arg.equals("3d")) {
+            if (imp != null) makeStackEDM(imp);
+            return DONE;
+        }
 
         //output type
         if (processType != WATERSHED)           //Watershed always has output BYTE_OVERWRITE=0
@@ -268,127 +271,264 @@ public class EDM implements ExtendedPlugInFilter {
      *                          Returns null if the thread is interrupted.
      */
     public FloatProcessor makeFloatEDM (ImageProcessor ip, int backgroundValue, boolean edgesAreBackground) {
-        int width = ip.getWidth();
-        int height = ip.getHeight();
-        FloatProcessor fp = new FloatProcessor(width, height);
-        byte[] bPixels = (byte[])ip.getPixels();
-        float[] fPixels = (float[])fp.getPixels();
-        final int progressInterval = 100;
-        int nProgressUpdates = height/progressInterval;  //how often the progress bar is updated when passing once through y range
-        double progressAddendum = (nProgressUpdates>0) ? 0.5/nProgressUpdates : 0;
+        return makeFloatEDM(ip, backgroundValue, edgesAreBackground, 1.0, 1.0);
+    } //public FloatProcessor makeFloatEDM
 
-        for (int i=0; i<width*height; i++)
-            if (bPixels[i]!=backgroundValue) fPixels[i] = Float.MAX_VALUE;
+    /**
+     * Creates the Euclidian Distance Map of a (binary) byte image with non-square pixels.
+     * The distances are in the units of 'pixelWidth' and 'pixelHeight'; otherwise as
+     * makeFloatEDM(ip, backgroundValue, edgesAreBackground).
+     */
+    public FloatProcessor makeFloatEDM (ImageProcessor ip, int backgroundValue, boolean edgesAreBackground,
+            double pixelWidth, double pixelHeight) {
+        ImageStack stack = new ImageStack(ip.getWidth(), ip.getHeight());
+        stack.addSlice(null, ip);
+        ImageStack edmStack = makeFloatEDM(stack, backgroundValue, edgesAreBackground, pixelWidth, pixelHeight, 1.0);
+        return edmStack==null ? null : (FloatProcessor)edmStack.getProcessor(1);
+    }
 
-        int[][] pointBufs = new int[2][width];  //two buffers for two passes; low short contains x, high short y
-        int yDist = Integer.MAX_VALUE;          //this value is used only if edges are not background
-        // pass 1 & 2: increasing y
-        for (int x=0; x<width; x++) {
-            pointBufs[0][x] = NO_POINT;
-            pointBufs[1][x] = NO_POINT;
+    /**
+     * Creates the 3D Euclidian Distance Map of a (binary) 8-bit stack, where the
+     * voxel size is given by 'pixelWidth', 'pixelHeight' and 'pixelDepth'.
+     * For a stack with one slice, this is the 2D EDM.
+     * @param stack             The input stack, not modified; must be 8-bit.
+     * @param backgroundValue   Voxels in the input with this value are interpreted as background.
+     *                          Note: for pixel value 255, write either -1 or (byte)255.
+     * @param edgesAreBackground Whether out-of-stack voxels are considered background
+     * @return                  The EDM as a 32-bit stack, containing the distances to the
+     *                          nearest background voxel, in the units of the voxel size.
+     *                          Returns null if the thread is interrupted.
+     */
+    public ImageStack makeFloatEDM (ImageStack stack, final int backgroundValue, final boolean edgesAreBackground,
+            double pixelWidth, double pixelHeight, double pixelDepth) {
+        final int width = stack.getWidth();
+        final int height = stack.getHeight();
+        final int depth = stack.getSize();
+        if (stack.getBitDepth() != 8)
+            throw new IllegalArgumentException("8-bit stack required");
+        final byte[][] bPixels = new byte[depth][];
+        final float[][] fPixels = new float[depth][];
+        for (int z=0; z<depth; z++) {
+            bPixels[z] = (byte[])stack.getPixels(z+1);
+            fPixels[z] = new float[width*height];
         }
-        for (int y=0; y<height; y++) {
-            if (edgesAreBackground) yDist = y+1; //distance to nearest background point (along y)
-            edmLine(bPixels, fPixels, pointBufs, width, y*width, y, backgroundValue, yDist);
-            if (y%progressInterval == 0) {
-                if (Thread.currentThread().isInterrupted()) return null;
-                addProgress(progressAddendum);
+        final Thread thread = Thread.currentThread();
+        double progressAddendum = depth>1 ? 1./3 : 0.5;
+        // pass 1: distances along z, by scanning up and down (in 2D, only background or not)
+        final float pd = (float)pixelDepth;
+        ThreadUtil.parallelFor(0, width*height, ThreadUtil.getChunkSize(width*height, 4096), new ThreadUtil.RangeTask() {
+            public void run(int from, int to) {
+                zDistances(bPixels, fPixels, from, to, backgroundValue, edgesAreBackground && depth>1, pd);
+            }
+        });
+        if (depth>1) addProgress(progressAddendum);
+        // pass 2: along y, lower envelope of parabolas for blocks of columns in each slice
+        final float ph2 = (float)(pixelHeight*pixelHeight);
+        final int nColumnBlocks = (width+COLUMN_BLOCK-1)/COLUMN_BLOCK;
+        ThreadUtil.parallelFor(0, depth*nColumnBlocks, 1, new ThreadUtil.RangeTask() {
+            public void run(int from, int to) {
+                float[][] columns = new float[COLUMN_BLOCK][height];
+                EdtBuffers buffers = new EdtBuffers(height);
+                for (int task=from; task<to; task++) {
+                    if (thread.isInterrupted()) return;
+                    float[] pixels = fPixels[task/nColumnBlocks];
+                    int x0 = (task%nColumnBlocks)*COLUMN_BLOCK;
+                    int nColumns = Math.min(COLUMN_BLOCK, width-x0);
+                    for (int y=0, p=x0; y<height; y++, p+=width)
+                        for (int c=0; c<nColumns; c++)
+                            columns[c][y] = pixels[p+c];
+                    for (int c=0; c<nColumns; c++)
+                        edt1D(columns[c], height, ph2, edgesAreBackground, buffers);
+                    for (int y=0, p=x0; y<height; y++, p+=width)
+                        for (int c=0; c<nColumns; c++)
+                            pixels[p+c] = columns[c][y];
+                }
+            }
+        });
+        addProgress(progressAddendum);
+        // pass 3: along x, lower envelope of parabolas for each line; then square root
+        final float pw2 = (float)(pixelWidth*pixelWidth);
+        ThreadUtil.parallelFor(0, depth*height, ThreadUtil.getChunkSize(depth*height, 16), new ThreadUtil.RangeTask() {
+            public void run(int from, int to) {
+                float[] line = new float[width];
+                EdtBuffers buffers = new EdtBuffers(width);
+                for (int row=from; row<to; row++) {
+                    if (thread.isInterrupted()) return;
+                    float[] pixels = fPixels[row/height];
+                    int offset = (row%height)*width;
+                    System.arraycopy(pixels, offset, line, 0, width);
+                    edt1D(line, width, pw2, edgesAreBackground, buffers);
+                    for (int x=0; x<width; x++)
+                        pixels[offset+x] = (float)Math.sqrt(line[x]);
+                }
             }
+        });
+        if (thread.isInterrupted()) return null;
+        addProgress(progressAddendum);
+        ImageStack edmStack = new ImageStack(width, height);
+        for (int z=0; z<depth; z++)
+            edmStack.addSlice(stack.getSliceLabel(z+1), new FloatProcessor(width, height, fPixels[z], null));
+        return edmStack;
+    } //public ImageStack makeFloatEDM
+
+    // Pass 1 for pixels 'from' to 'to'-1 of each slice: squared distance along z to the nearest
+    // background voxel, INFINITE if there is none
+    private static void zDistances(byte[][] bPixels, float[][] fPixels, int from, int to,
+            int backgroundValue, boolean edgesAreBackground, float pixelDepth) {
+        int depth = bPixels.length;
+        float edgeDistance = edgesAreBackground ? 1f : INFINITE;
+        for (int z=0; z<depth; z++) {       // upwards: distance to the background below, in voxels
+            byte[] bPix = bPixels[z];
+            float[] fPix = fPixels[z];
+            float[] previous = z>0 ? fPixels[z-1] : null;
+            for (int i=from; i<to; i++) {
+                if (bPix[i] == backgroundValue)
+                    fPix[i] = 0f;
+                else if (previous == null)
+                    fPix[i] = edgeDistance;
+                else
+                    fPix[i] = previous[i]==INFINITE ? INFINITE : previous[i] + 1f;
+            }
+        }
+        if (edgesAreBackground && depth>1) {
+            float[] fPix = fPixels[depth-1];
+            for (int i=from; i<to; i++)
+                if (fPix[i] > 1f) fPix[i] = 1f;
         }
-        //pass 3 & 4: decreasing y
-        for (int x=0; x<width; x++) {
-            pointBufs[0][x] = NO_POINT;
-            pointBufs[1][x] = NO_POINT;
+        for (int z=depth-2; z>=0; z--) {    // downwards: distance to the background above
+            float[] fPix = fPixels[z];
+            float[] next = fPixels[z+1];
+            for (int i=from; i<to; i++)
+                if (next[i] != INFINITE && next[i] + 1f < fPix[i])
+                    fPix[i] = next[i] + 1f;
         }
-        for (int y=height-1; y>=0; y--) {
-            if (edgesAreBackground) yDist = height-y;
-            edmLine(bPixels, fPixels, pointBufs, width, y*width, y, backgroundValue, yDist);
-            if (y%progressInterval == 0) {
-                if (Thread.currentThread().isInterrupted()) return null;
-                addProgress(progressAddendum);
+        for (int z=0; z<depth; z++) {       // conversion to squared distance
+            float[] fPix = fPixels[z];
+            for (int i=from; i<to; i++) {
+                float d = fPix[i];
+                if (d != INFINITE)
+                    fPix[i] = (d*pixelDepth)*(d*pixelDepth);
             }
         }
+    }
 
-        fp.sqrt();
-        return fp;
-    } //public FloatProcessor makeFloatEDM
-
-    // Handle a line; two passes: left-to-right and right-to-left
-    private void edmLine(byte[] bPixels, float[] fPixels, int[][] pointBufs, int width,
-            int offset, int y, int backgroundValue, int yDist) {
-        int[] points = pointBufs[0];        // the buffer for the left-to-right pass
-        int pPrev = NO_POINT;
-        int pDiag = NO_POINT;               // point at (-/+1, -/+1) to current one (-1,-1 in the first pass)
-        int pNextDiag;
-        boolean edgesAreBackground = yDist != Integer.MAX_VALUE;
-        int distSqr = Integer.MAX_VALUE;    // this value is used only if edges are not background
-        for (int x=0; x<width; x++, offset++) {
-            pNextDiag = points[x];
-            if (bPixels[offset] == backgroundValue) {
-                points[x] = x | y<<16;      // remember coordinates as a candidate for nearest background point
-            } else {                        // foreground pixel:
-                if (edgesAreBackground)
-                    distSqr = (x+1 < yDist) ? (x+1)*(x+1) : yDist*yDist; //distance from edge
-                float dist2 = minDist2(points, pPrev, pDiag, x, y, distSqr);
-                if (fPixels[offset] > dist2) fPixels[offset] = dist2;
+    // Replaces f[0..n-1] by the exact squared distance transform along a line with squared
+    // pixel size 'spacing2':  f[x] = min_q (spacing2*(x-q)^2 + f[q]), where points with f=INFINITE
+    // are ignored. This is the lower envelope of parabolas, see Felzenszwalb & Huttenlocher.
+    // If 'edgesAreBackground', out-of-line points are considered background.
+    private static void edt1D(float[] f, int n, float spacing2, boolean edgesAreBackground, EdtBuffers buffers) {
+        int[] v = buffers.v;            // positions of the parabolas of the lower envelope
+        float[] fv = buffers.fv;        // their values at the vertex
+        double[] z = buffers.z;         // z[k] to z[k+1]: range where parabola k is lowest
+        int k = -1;
+        for (int q=0; q<n; q++) {
+            float fq = f[q];
+            if (fq == INFINITE) continue;
+            double s = Double.NEGATIVE_INFINITY;
+            while (k >= 0) {
+                s = ((fq + spacing2*(double)q*q) - (fv[k] + spacing2*(double)v[k]*v[k]))/(2.0*spacing2*(q - v[k]));
+                if (s > z[k]) break;
+                k--;
             }
-            pPrev = points[x];
-            pDiag = pNextDiag;
+            if (k < 0) s = Double.NEGATIVE_INFINITY;
+            k++;
+            v[k] = q;
+            fv[k] = fq;
+            z[k] = s;
         }
-        offset--; //now points to the last pixel in the line
-        points = pointBufs[1];              // the buffer for the right-to-left pass. Low short contains x, high short y
-        pPrev = NO_POINT;
-        pDiag = NO_POINT;
-        for (int x=width-1; x>=0; x--, offset--) {
-            pNextDiag = points[x];
-            if (bPixels[offset] == backgroundValue) {
-                points[x] = x | y<<16;      // remember coordinates as a candidate for nearest background point
-            } else {                        // foreground pixel:
-                if (edgesAreBackground)
-                    distSqr = (width-x < yDist) ? (width-x)*(width-x) : yDist*yDist;
-                float dist2 = minDist2(points, pPrev, pDiag, x, y, distSqr);
-                if (fPixels[offset] > dist2) fPixels[offset] = dist2;
+        if (k < 0 && !edgesAreBackground) return;   // no background: all remain INFINITE
+        int nParabolas = k+1;
+        k = 0;
+        for (int x=0; x<n; x++) {
+            double d = INFINITE;
+            if (nParabolas > 0) {
+                while (k+1 < nParabolas && z[k+1] < x) k++;
+                double dx = x - v[k];
+                d = spacing2*dx*dx + fv[k];
+            }
+            if (edgesAreBackground) {
+                int dEdge = Math.min(x+1, n-x);
+                double dEdge2 = spacing2*(double)dEdge*dEdge;
+                if (dEdge2 < d) d = dEdge2;
             }
-            pPrev = points[x];
-            pDiag = pNextDiag;
+            f[x] = d >= INFINITE ? INFINITE : (float)d;
         }
-    } //private void edmLine
+    }
 
-    // Calculates minimum distance^2 of x,y from the following three points:
-    //  - points[x] (nearest point found for previous line, same x)
-    //  - pPrev (nearest point found for same line, previous x), and
-    //  - pDiag (nearest point found for diagonal, i.e., previous line, previous x)
-    // Sets array element points[x] to the coordinates of the point having the minimum distance to x,y
-    // If the distSqr parameter is lower than the distance^2, then distSqr is used
-    // Returns to the minimum distance^2 obtained
-    private float minDist2 (int[] points, int pPrev, int pDiag, int x, int y, int distSqr) {
-        int p0 = points[x];              // the nearest background point for the same x in the previous line
-        int nearestPoint = p0;
-        if (p0 != NO_POINT) {
-            int x0 = p0& 0xffff; int y0 = (p0>>16)&0xffff;
-            int dist1Sqr = (x-x0)*(x-x0)+(y-y0)*(y-y0);
-            if (dist1Sqr < distSqr)
-                distSqr = dist1Sqr;
+    /** Work arrays for edt1D */
+    private static class EdtBuffers {
+        int[] v;
+        float[] fv;
+        double[] z;
+        EdtBuffers(int n) {
+            v = new int[n];
+            fv = new float[n];
+            z = new double[n];
         }
-        if (pDiag!=p0 && pDiag!=NO_POINT) {
-            int x1 = pDiag&0xffff; int y1 = (pDiag>>16)&0xffff;
-            int dist1Sqr = (x-x1)*(x-x1)+(y-y1)*(y-y1);
-            if (dist1Sqr < distSqr) {
-                nearestPoint = pDiag;
-                distSqr = dist1Sqr;
+    }
+
+    /** Creates the 3D EDM of a binary stack, with distances in units of the pixel width,
+     *  taking the voxel aspect ratio into account. Depending on the output type, the
+     *  stack is overwritten or a new stack is shown */
+    private void makeStackEDM(ImagePlus imp) {
+        ImageStack stack = imp.getStack();
+        for (int i=1; i<=stack.getSize(); i++) {
+            if (!stack.getProcessor(i).isBinary()) {
+                IJ.error("8-bit binary stack (0 and 255) required.");
+                return;
             }
         }
-        if (pPrev!=pDiag && pPrev!=NO_POINT) {
-            int x1 = pPrev& 0xffff; int y1 = (pPrev>>16)&0xffff;
-            int dist1Sqr = (x-x1)*(x-x1)+(y-y1)*(y-y1);
-            if (dist1Sqr < distSqr) {
-                nearestPoint = pPrev;
-                distSqr = dist1Sqr;
+        if (imp.getNChannels()>1 || imp.getNFrames()>1) {
+            IJ.error("3D EDM requires a stack with one channel and one frame.");
+            return;
+        }
+        boolean invertedLut = imp.isInvertedLut();
+        boolean background255 = (invertedLut && Prefs.blackBackground) || (!invertedLut && !Prefs.blackBackground);
+        Calibration cal = imp.getCalibration();
+        double pixelWidth = cal.pixelWidth;
+        imp.startTiming();
+        nPasses = 1;
+        progressDone = 0;
+        ImageStack edmStack = makeFloatEDM(stack, background255 ? (byte)255 : 0, false,
+                1.0, cal.pixelHeight/pixelWidth, cal.pixelDepth/pixelWidth);
+        IJ.showProgress(1.0);
+        if (edmStack == null) return;
+        int outImageType = outputType;
+        ImageStack outStack = outImageType==BYTE_OVERWRITE ? stack : new ImageStack(stack.getWidth(), stack.getHeight());
+        double max = 0;
+        for (int i=1; i<=edmStack.getSize(); i++) {
+            FloatProcessor floatEdm = (FloatProcessor)edmStack.getProcessor(i);
+            switch (outImageType) {
+                case FLOAT:
+                    outStack.addSlice(stack.getSliceLabel(i), floatEdm);
+                    break;
+                case SHORT:
+                    floatEdm.setMinAndMax(0., 65535.);
+                    outStack.addSlice(stack.getSliceLabel(i), floatEdm.convertToShort(true));
+                    break;
+                case BYTE:
+                    floatEdm.setMinAndMax(0., 255.);
+                    outStack.addSlice(stack.getSliceLabel(i), floatEdm.convertToByte(true));
+                    break;
+                case BYTE_OVERWRITE:
+                    byteFromFloat(stack.getProcessor(i), floatEdm);
             }
+            max = Math.max(max, floatEdm.getMax());
         }
-        points[x] = nearestPoint;
-        return (float)distSqr;
-    } //private float minDist2
+        IJ.showTime(imp, imp.getStartTime(), "", stack.getSize());
+        if (outImageType == BYTE_OVERWRITE) {
+            Undo.reset();
+            imp.getProcessor().resetMinAndMax();
+            imp.updateAndDraw();
+        } else {
+            ImagePlus outImp = new ImagePlus(TITLE_PREFIX[EDM]+imp.getShortTitle(), outStack);
+            outImp.setCalibration(cal);
+            ImageProcessor ip = outImp.getProcessor();
+            if (!Prefs.blackBackground) ip.invertLut();
+            ip.setMinAndMax(0, outImageType==FLOAT ? max : Math.min(max, ip.maxValue()));
+            outImp.show();
+        }
+    }
 
     // overwrite ip with floatEdm converted to bytes
     private void byteFromFloat(ImageProcessor ip, FloatProcessor floatEdm) {
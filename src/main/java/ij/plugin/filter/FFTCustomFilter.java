@@ -42,7 +42,7 @@ public class FFTCustomFilter implements  PlugInFilter, Measurements {
 			return;
 		FHT fht = newFHT(ip);
 		if (slice==1) {
-			filter = getFilter(fht.getWidth());
+			filter = getFilter(fht.getWidth(), fht.getHeight());
 			if (filter==null) {
 				done = true;
 				return;
@@ -88,21 +88,21 @@ public class FFTCustomFilter implements  PlugInFilter, Measurements {
 		FHT fht;
 		int width = ip.getWidth();
 		int height = ip.getHeight();
-		int maxN = Math.max(width, height);
-		int size = 2;
-		while (size<1.5*maxN) size *= 2;		
-		rect.x = (int)Math.round((size-width)/2.0);
-		rect.y = (int)Math.round((size-height)/2.0);
+		// mirror-pad by at least 50% to avoid wrap-around effects, to a size suitable for the mixed-radix FHT
+		int paddedWidth = MixedRadixFHT.getFastEvenLength((int)Math.ceil(1.5*width));
+		int paddedHeight = MixedRadixFHT.getFastEvenLength((int)Math.ceil(1.5*height));
+		rect.x = (int)Math.round((paddedWidth-width)/2.0);
+		rect.y = (int)Math.round((paddedHeight-height)/2.0);
 		rect.width = width;
 		rect.height = height;
 		FFTFilter fftFilter = new FFTFilter();
 		if (ip instanceof ColorProcessor) {
 			showStatus("Extracting brightness");
 			ImageProcessor ip2 = ((ColorProcessor)ip).getBrightness();
-			fht = new FHT(fftFilter.tileMirror(ip2, size, size, rect.x, rect.y));
+			fht = new FHT(fftFilter.tileMirror(ip2, paddedWidth, paddedHeight, rect.x, rect.y));
 			fht.rgb = (ColorProcessor)ip.duplicate(); // save so we can later update the brightness
 		} else
-			fht = new FHT(fftFilter.tileMirror(ip, size, size, rect.x, rect.y));
+			fht = new FHT(fftFilter.tileMirror(ip, paddedWidth, paddedHeight, rect.x, rect.y));
 		fht.originalWidth = originalWidth;
 		fht.originalHeight = originalHeight;
 		fht.originalBitDepth = imp.getBitDepth();
@@ -117,9 +117,8 @@ public class FFTCustomFilter implements  PlugInFilter, Measurements {
 	}
 		
 	void customFilter(FHT fht) {
-		int size = fht.getWidth();
 		showStatus("Filtering");
-		fht.swapQuadrants(filter);
+		fht.swapQuadrants(filter, true);
 		float[] fhtPixels = (float[])fht.getPixels();
 		byte[] filterPixels = (byte[])filter.getPixels();
 		for (int i=0; i<fhtPixels.length; i++)
@@ -127,7 +126,7 @@ public class FFTCustomFilter implements  PlugInFilter, Measurements {
 		fht.swapQuadrants(filter);
 	}
 	
-	ImageProcessor getFilter(int size) {
+	ImageProcessor getFilter(int width, int height) {
 		int[] wList = WindowManager.getIDList();
 		if (wList==null || wList.length<2) {
 			IJ.error("FFT", "A filter (as an open image) is required.");
@@ -162,18 +161,16 @@ public class FFTCustomFilter implements  PlugInFilter, Measurements {
 		}		
 		ImageProcessor filter = filterImp.getProcessor();		
 		filter =  filter.convertToByte(true);		
-		filter = resizeFilter(filter, size);
+		filter = resizeFilter(filter, width, height);
 		//new ImagePlus("Resized Filter", filter.duplicate()).show();
 		return filter;
 	}
 	
-	ImageProcessor resizeFilter(ImageProcessor ip, int maxN) {
-		int width = ip.getWidth();
-		int height = ip.getHeight();
-		if (width==maxN && height==maxN)
+	ImageProcessor resizeFilter(ImageProcessor ip, int width, int height) {
+		if (ip.getWidth()==width && ip.getHeight()==height)
 			return ip;
-		showStatus("Scaling filter to "+ maxN + "x" + maxN);
-		return ip.resize(maxN, maxN);
+		showStatus("Scaling filter to "+ width + "x" + height);
+		return ip.resize(width, height);
 	}
 		
 }
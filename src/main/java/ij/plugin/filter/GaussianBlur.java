@@ -3,6 +3,7 @@ import ij.*;
 import ij.gui.DialogListener;
 import ij.gui.GenericDialog;
 import ij.process.*;
+import ij.util.ThreadUtil;
 
 import java.awt.AWTEvent;
 import java.awt.Rectangle;
@@ -222,8 +223,6 @@ public class GaussianBlur implements ExtendedPlugInFilter, DialogListener {
         pass++;
         if (pass>nPasses) pass =1;
         
-        final int numThreads = Math.min(Prefs.getThreads(), lineTo-lineFrom);
-        final Thread[] lineThreads = new Thread[numThreads];
 
         /* large radius (sigma): scale down, then convolve, then scale up */
         final boolean doDownscaling = sigma > 2*MIN_DOWNSCALED_SIGMA + 0.5;
@@ -253,59 +252,37 @@ public class GaussianBlur implements ExtendedPlugInFilter, DialogListener {
         final float[] downscaleKernel = doDownscaling ? makeDownscaleKernel(reduceBy) : null;
         final float[] upscaleKernel = doDownscaling ? makeUpscaleKernel(reduceBy) : null;
            
-        for ( int t = 0; t < numThreads; ++t ) {
-            final int ti = t;
-            final float[] cache1 = new float[newLength];  //holds data before convolution (after downscaling, if any)
-            final float[] cache2 = doDownscaling ? new float[newLength] : null;  //holds data after convolution
-            
-            final Thread thread = new Thread(
-                    new Runnable() {
-                        final public void run() { /*try{*/
-                            long lastTime = System.currentTimeMillis();
-                            boolean canShowProgress = Thread.currentThread() == lineThreads[0];
-                            int pixel0 = (lineFrom+ti)*lineInc;
-                            for (int line=lineFrom + ti; line<lineTo; line += numThreads, pixel0+=numThreads*lineInc) {
-                                long time = System.currentTimeMillis();
-                                if (time - lastTime >110) {
-                                    if (canShowProgress)
-                                        showProgress((double)(line-lineFrom)/(lineTo-lineFrom));
-                                    if (Thread.currentThread().isInterrupted()) return; // interruption for new parameters during preview?
-                                    lastTime = time;
-                                }
-                                if (doDownscaling) {
-                                    downscaleLine(pixels, cache1, downscaleKernel, reduceBy, pixel0, unscaled0, length, pointInc, newLength);
-                                    convolveLine(cache1, cache2, gaussKernel, 0, newLength, 1, newLength-1, 0, 1);
-                                    upscaleLine(cache2, pixels, upscaleKernel, reduceBy, pixel0, unscaled0, writeFrom, writeTo, pointInc);
-                                } else {
-                                    int p = pixel0 + readFrom*pointInc;
-                                    for (int i=readFrom; i<readTo; i++ ,p+=pointInc)
-                                        cache1[i] = pixels[p];
-                                    convolveLine(cache1, pixels, gaussKernel, readFrom, readTo, writeFrom, writeTo, pixel0, pointInc);
-                                }
-                                    
-                            }
-                        } /*catch(Exception ex) {IJ.handleException(ex);} }*/
-                    },
-                    "GaussianBlur-"+t);
-            
-            thread.setPriority( Thread.currentThread().getPriority() );
-            lineThreads[ ti ] = thread;
-            thread.start();
-        }
-        try {
-            for ( final Thread thread : lineThreads )
-                if ( thread != null ) thread.join();
-        }
-        catch ( InterruptedException e ) {
-            for ( final Thread thread : lineThreads )
-                thread.interrupt();
-            try {
-                for ( final Thread thread : lineThreads )
-                    thread.join();
+        /* the lines are processed in blocks, handed out to the threads of the shared executor */
+        final Thread mainThread = Thread.currentThread();
+        final int linesPerChunk = ThreadUtil.getChunkSize(lineTo-lineFrom, 16);
+        ThreadUtil.parallelFor(lineFrom, lineTo, linesPerChunk, new ThreadUtil.RangeTask() {
+            final public void run(int chunkFrom, int chunkTo) {
+                final float[] cache1 = new float[newLength];  //holds data before convolution (after downscaling, if any)
+                final float[] cache2 = doDownscaling ? new float[newLength] : null;  //holds data after convolution
+                long lastTime = System.currentTimeMillis();
+                boolean canShowProgress = Thread.currentThread() == mainThread;
+                int pixel0 = chunkFrom*lineInc;
+                for (int line=chunkFrom; line<chunkTo; line++, pixel0+=lineInc) {
+                    long time = System.currentTimeMillis();
+                    if (time - lastTime >110) {
+                        if (canShowProgress)
+                            showProgress((double)(line-lineFrom)/(lineTo-lineFrom));
+                        if (Thread.currentThread().isInterrupted()) return; // interruption for new parameters during preview?
+                        lastTime = time;
+                    }
+                    if (doDownscaling) {
+                        downscaleLine(pixels, cache1, downscaleKernel, reduceBy, pixel0, unscaled0, length, pointInc, newLength);
+                        convolveLine(cache1, cache2, gaussKernel, 0, newLength, 1, newLength-1, 0, 1);
+                        upscaleLine(cache2, pixels, upscaleKernel, reduceBy, pixel0, unscaled0, writeFrom, writeTo, pointInc);
+                    } else {
+                        int p = pixel0 + readFrom*pointInc;
+                        for (int i=readFrom; i<readTo; i++ ,p+=pointInc)
+                            cache1[i] = pixels[p];
+                        convolveLine(cache1, pixels, gaussKernel, readFrom, readTo, writeFrom, writeTo, pixel0, pointInc);
+                    }
+                }
             }
-            catch ( InterruptedException f ) {}
-            Thread.currentThread().interrupt();
-        }
+        });
             
         showProgress(1.0);
         return;
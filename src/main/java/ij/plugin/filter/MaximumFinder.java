@@ -19,8 +19,9 @@ import java.util.*;
  * can be left unprocessed.
  *
  * Except for segmentation, this plugin works with ROIs, including non-rectangular ROIs.
- * Since this plug-in creates a separate output image it processes
- *    only single images or slices, no stacks.
+ * With the output types creating an image (Single Points, Maxima Within Tolerance and
+ * Segmented Particles), all slices of a stack can be processed (in parallel threads), with
+ * the output in a new stack. Otherwise, only single images or slices are processed.
  *
  * Notes:
  * - When using one instance of MaximumFinder for more than one image in parallel threads,
@@ -87,6 +88,8 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
     /** directions to 8 neighboring pixels, clockwise: 0=North (-y), 1=NE, 2=East (+x), ... 7=NW */
     private int[]     dirOffset;                    // pixel offsets of neighbor pixels for direct addressing
     private Polygon points;                    // maxima found by findMaxima() when outputType is POINT_SELECTION
+    private PlugInFilterRunner pfr;                 // needed to get the stack slice number
+    private ImageStack outStack;                    // output when processing a stack
     final static int[] DIR_X_OFFSET = new int[] {  0,  1,  1,  1,  0, -1, -1, -1 };
     final static int[] DIR_Y_OFFSET = new int[] { -1, -1,  0,  1,  1,  1,  0, -1 };
     /** the following constants are used to set bits corresponding to pixel types */
@@ -109,6 +112,10 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
      * (see ij.plugin.filter.PlugInFilter & ExtendedPlugInFilter)
      */
     public int setup(String arg, ImagePlus imp) {
+        if (arg.equals("final")) {
+            showOutputStack();
+            return DONE;
+        }
         this.imp = imp;
         return flags;
     }
@@ -141,6 +148,14 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
         if (!dialogItemChanged(gd, null))   //read parameters
             return DONE;
         IJ.register(this.getClass());       //protect static class variables (parameters) from garbage collection
+        if (imp.getStackSize()>1 && (outputType==SINGLE_POINTS || outputType==IN_TOLERANCE || outputType==SEGMENTED)) {
+            flags = IJ.setupDialog(imp, flags); //ask whether to process all slices
+            if ((flags&DOES_STACKS)!=0) {
+                this.pfr = pfr;
+                outStack = new ImageStack(imp.getWidth(), imp.getHeight(), imp.getStackSize());
+                flags |= PARALLELIZE_STACKS|FINAL_PROCESSING;
+            }
+        }
         return flags;
     } // boolean showDialog
 
@@ -213,6 +228,10 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
         ByteProcessor outIp = null;
         outIp = findMaxima(ip, tolerance, threshold, outputType, excludeOnEdges, false); //process the image
         if (outIp == null) return;              //cancelled by user or previewing or no output image
+        if (outStack != null) {                 //stack: the output is shown at the very end
+            outStack.setPixels(outIp.getPixels(), pfr.getSliceNumber());
+            return;
+        }
         if (!Prefs.blackBackground)             //normally, output has an inverted LUT, "active" pixels black (255) - like a mask
             outIp.invertLut();
         String resultName;
@@ -232,6 +251,26 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
         maxImp.setCalibration(cal);             //keep the spatial calibration
         maxImp.show();
      } //public void run
+
+    /** Shows the output after processing all slices of a stack */
+    private void showOutputStack() {
+        if (outStack == null) return;
+        String outname = imp.getTitle() + (outputType==SEGMENTED ? " Segmented" : " Maxima");
+        if (WindowManager.getImage(outname)!=null)
+            outname = WindowManager.getUniqueName(outname);
+        ImageStack stack = imp.getStack();
+        for (int i=1; i<=stack.getSize(); i++)
+            outStack.setSliceLabel(stack.getSliceLabel(i), i);
+        ImagePlus maxImp = new ImagePlus(outname, outStack);
+        int[] d = imp.getDimensions();
+        maxImp.setDimensions(d[2], d[3], d[4]);
+        if (!Prefs.blackBackground)             //normally, output has an inverted LUT, "active" pixels black (255) - like a mask
+            maxImp.getProcessor().invertLut();
+        Calibration cal = imp.getCalibration().copy();
+        cal.disableDensityCalibration();
+        maxImp.setCalibration(cal);             //keep the spatial calibration
+        maxImp.show();
+    }
      
 
     /** Finds the image maxima and returns them as a Polygon. There
@@ -468,11 +507,11 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
             if (y%50==0 && thread.isInterrupted()) return null;
             for (int x=roi.x, i=x+y*width; x<roi.x+roi.width; x++, i++) {      // for better performance with rois, restrict search to roi
                 float v = ip.getPixelValue(x,y);
-                float vTrue = isEDM ? trueEdmHeight(x,y,ip) : v;  // for EDMs, use interpolated ridge height
                 if (v==globalMin) continue;
                 if (excludeEdgesNow && (x==0 || x==width-1 || y==0 || y==height-1)) continue;
                 if (checkThreshold && v<threshold) continue;
                 boolean isMax = true;
+                float vTrue = Float.NaN;                          // for EDMs, interpolated ridge height; only calculated if needed
                 /* check wheter we have a local maximum.
                  Note: For an EDM, we need all maxima: those of the EDM-corrected values
                  (needed by findMaxima) and those of the raw values (needed by cleanupMaxima) */
@@ -480,11 +519,13 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
                 for (int d=0; d<8; d++) {                         // compare with the 8 neighbor pixels
                     if (isInner || isWithin(x, y, d)) {
                         float vNeighbor = ip.getPixelValue(x+DIR_X_OFFSET[d], y+DIR_Y_OFFSET[d]);
-                        float vNeighborTrue = isEDM ? trueEdmHeight(x+DIR_X_OFFSET[d], y+DIR_Y_OFFSET[d], ip) : vNeighbor;
-                        if (vNeighbor > v && vNeighborTrue > vTrue) {
-                            isMax = false;
-                            break;
+                        if (vNeighbor <= v) continue;
+                        if (isEDM) {
+                            if (Float.isNaN(vTrue)) vTrue = trueEdmHeight(x, y, ip);
+                            if (trueEdmHeight(x+DIR_X_OFFSET[d], y+DIR_Y_OFFSET[d], ip) <= vTrue) continue;
                         }
+                        isMax = false;
+                        break;
                     }
                 }
                 if (isMax) {
@@ -797,7 +838,9 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
     /** eliminate unmarked maxima for use by watershed. Starting from each previous maximum,
      * explore the surrounding down to successively lower levels until a marked maximum is
      * touched (or the plateau of a previously eliminated maximum leads to a marked maximum).
-     * Then set all the points above this value to this value
+     * Then set all the points above this value to this value.
+     * The points bordering the explored area are kept in a bucket queue (one linked list
+     * per level), thus the area is not scanned again for each level.
      * @param outIp     the image containing the pixel values
      * @param typeP     the types of the pixels are marked here
      * @param maxPoints array containing the coordinates of all maxima that might be relevant
@@ -807,49 +850,68 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
         byte[] types = (byte[])typeP.getPixels();
         int nMax = maxPoints.length;
         int[] pList = new int[width*height];
+        int[] nextInBucket = new int[width*height]; //linked lists of the bordering points of each level
+        int[] bucketStart = new int[256];
+        Arrays.fill(bucketStart, -1);
         for (int iMax = nMax-1; iMax>=0; iMax--) {
             int offset0 = (int)maxPoints[iMax];     //type cast gets lower 32 bits where pixel offset is encoded
             if ((types[offset0]&(MAX_AREA|ELIMINATED))!=0) continue;
             int level = pixels[offset0]&255;
-            int loLevel = level+1;
+            int loLevel = level;
             pList[0] = offset0;                     //we start the list at the current maximum
-            //if (xList[0]==122) IJ.write("max#"+iMax+" at x,y="+xList[0]+","+yList[0]+"; level="+level);
             types[offset0] |= LISTED;               //mark first point as listed
             int listLen = 1;                        //number of elements in the list
-            int lastLen = 1;
+            int lastLen = 1;                        //number of elements above the current level
             int listI = 0;                          //index of current element in the list
             boolean saddleFound = false;
-            while (!saddleFound && loLevel >0) {
-                loLevel--;
-                lastLen = listLen;                  //remember end of list for previous level
-                listI = 0;                          //in each level, start analyzing the neighbors of all pixels
-                do {                                //for all pixels listed so far
+            while (true) {
+                while (listI < listLen) {           //add all points >= loLevel connected to the list
                     int offset = pList[listI];
                     int x = offset % width;
                     int y = offset / width;
                     boolean isInner = (y!=0 && y!=height-1) && (x!=0 && x!=width-1); //not necessary, but faster than isWithin
-                    for (int d=0; d<8; d++) {       //analyze all neighbors (in 8 directions) at the same level
+                    for (int d=0; d<8; d++) {       //analyze all neighbors (in 8 directions)
                         int offset2 = offset+dirOffset[d];
                         if ((isInner || isWithin(x, y, d)) && (types[offset2]&LISTED)==0) {
-                            if ((types[offset2]&MAX_AREA)!=0 || (((types[offset2]&ELIMINATED)!=0) && (pixels[offset2]&255)>=loLevel)) {
+                            int v2 = pixels[offset2]&255;
+                            if ((types[offset2]&MAX_AREA)!=0 || (((types[offset2]&ELIMINATED)!=0) && v2>=loLevel)) {
                                 saddleFound = true; //we have reached a point touching a "true" maximum...
-                                //if (xList[0]==122) IJ.write("saddle found at level="+loLevel+"; x,y="+xList[listI]+","+yList[listI]+", dir="+d);
                                 break;              //...or a level not lower, but touching a "true" maximum
-                            } else if ((pixels[offset2]&255)>=loLevel && (types[offset2]&ELIMINATED)==0) {
-                                pList[listLen] = offset2;
-                                //xList[listLen] = x+DIR_X_OFFSET[d];
-                                //yList[listLen] = x+DIR_Y_OFFSET[d];
-                                listLen++;          //we have found a new point to be processed
-                                types[offset2] |= LISTED;
+                            }
+                            types[offset2] |= LISTED;
+                            if (v2>=loLevel && (types[offset2]&ELIMINATED)==0)
+                                pList[listLen++] = offset2; //we have found a new point to be processed
+                            else {                  //lower or eliminated point: remember it for its level
+                                nextInBucket[offset2] = bucketStart[v2];
+                                bucketStart[v2] = offset2;
                             }
                         } // if isWithin & not LISTED
                     } // for directions d
                     if (saddleFound) break;         //no reason to search any further
                     listI++;
-                } while (listI < listLen);
-            } // while !levelFound && loLevel>=0
+                }
+                if (saddleFound || loLevel==0) break;
+                loLevel--;
+                lastLen = listLen;                  //remember end of list for previous level
+                int offset = bucketStart[loLevel];
+                while (offset>=0) {                 //points of the new level bordering the list
+                    if ((types[offset]&ELIMINATED)!=0) {
+                        saddleFound = true;
+                        break;
+                    }
+                    pList[listLen++] = offset;
+                    offset = nextInBucket[offset];
+                }
+                bucketStart[loLevel] = offset;      //not empty only if the saddle was found
+                if (saddleFound) break;
+            } // while !saddleFound && loLevel>=0
             for (listI=0; listI<listLen; listI++)   //reset attribute since we may come to this place again
                 types[pList[listI]] &= ~LISTED;
+            for (int v=0; v<=level; v++) {          //also for the bordering points; and empty the buckets
+                for (int offset=bucketStart[v]; offset>=0; offset=nextInBucket[offset])
+                    types[offset] &= ~LISTED;
+                bucketStart[v] = -1;
+            }
             for (listI=0; listI<lastLen; listI++) { //for all points higher than the level of the saddle point
                 int offset = pList[listI];
                 pixels[offset] = (byte)loLevel;     //set pixel value to the level of the saddle point
@@ -1008,6 +1070,9 @@ public class MaximumFinder implements ExtendedPlugInFilter, DialogListener {
      * other than the marked ones. Local minima will lead to artifacts that can be removed
      * later. On output, all particles will be set to 255, segmentation lines remain at their
      * old value.
+     * The particles are dilated level by level, in passes over the eight directions; the
+     * segmentation lines depend on the sequence of these passes. Flooding with a priority
+     * queue would need fewer passes, but gives lines at different positions.
      * @param ip  The byteProcessor containing the image, with size given by the class variables width and height
      * @return    false if canceled by the user (note: can be cancelled only if called by "run" with a known ImagePlus)
      */    
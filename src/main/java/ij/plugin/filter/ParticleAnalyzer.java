@@ -13,19 +13,20 @@ import ij.plugin.frame.RoiManager;
 import ij.plugin.Colors;
 import ij.macro.Interpreter;
 import ij.util.Tools;
+import ij.util.ThreadUtil;
 
 /** Implements ImageJ's Analyze Particles command.
 	<p>
 	<pre>
-	for each line do
-		for each pixel in this line do
-			if the pixel value is "inside" the threshold range then
-				trace the edge to mark the object
-				do the measurement
-				fill the object with a color outside the threshold range
-			else
-				continue the scan
+	label the connected areas "inside" the threshold range (in two scans)
+	for each particle (in the order of its first pixel) do
+		if the size and edge criteria are met then
+			do the measurement (in parallel with the following particles)
+			trace the edge if an outline is needed
 	</pre>
+	If particles touching the edge of a non-rectangular selection are excluded,
+	the image is scanned and each particle is traced, measured and filled with a
+	color outside the threshold range, one at a time.
 */
 public class ParticleAnalyzer implements PlugInFilter, Measurements {
 
@@ -138,6 +139,7 @@ public class ParticleAnalyzer implements PlugInFilter, Measurements {
 	private ImageProcessor mask;
 	private double totalArea;
 	private FloodFiller ff;
+	private static final int PARTICLE_BATCH = 4096;	// particles measured in parallel before saving the results
 	private Polygon polygon;
 	private RoiManager roiManager;
 	private static RoiManager staticRoiManager;
@@ -527,9 +529,6 @@ public class ParticleAnalyzer implements PlugInFilter, Measurements {
 		}
 		beginningCount = Analyzer.getCounter();
 
-		byte[] pixels = null;
-		if (ip instanceof ByteProcessor)
-			pixels = (byte[])ip.getPixels();
 		if (r==null) {
 			r = ip.getRoi();
 			mask = ip.getMask();
@@ -544,10 +543,6 @@ public class ParticleAnalyzer implements PlugInFilter, Measurements {
 		if (r.width<width || r.height<height || mask!=null) {
 			if (!eraseOutsideRoi(ip, r, mask)) return false;
 		}
-		int offset;
-		double value;
-		int inc = Math.max(r.height/25, 1);
-		int mi = 0;
 		ImageWindow win = imp.getWindow();
 		if (win!=null)
 			win.running = true;
@@ -556,14 +551,49 @@ public class ParticleAnalyzer implements PlugInFilter, Measurements {
 		roiNeedsImage = (measurements&PERIMETER)!=0 || (measurements&SHAPE_DESCRIPTORS)!=0 || (measurements&FERET)!=0;
 		particleCount = 0;
 		wand = new Wand(ip);
+		roiType = Wand.allPoints()?Roi.FREEROI:Roi.TRACED_ROI;
+		if ((excludeEdgeParticles && polygon!=null) || (level1==0.0&&level2==255.0&&imp.getBitDepth()==8))
+			traceParticles(imp, ip, win);
+		else
+			labelParticles(imp, ip, win);
+		if (showProgress)
+			IJ.showProgress(1.0);
+		if (showResults && showResultsWindow && rt.getCounter()>0)
+			rt.updateResults();
+		imp.deleteRoi();
+		ip.resetRoi();
+		ip.reset();
+		if (displaySummary && IJ.getInstance()!=null)
+			updateSliceSummary();
+		if (addToManager && roiManager!=null) {
+			if (imp.getWindow()!=null)
+				roiManager.setEditMode(imp, true);
+			else
+				roiManager.runCommand("show all with labels");
+		}
+		maxParticleCount = (particleCount > maxParticleCount) ? particleCount : maxParticleCount;
+		totalCount += particleCount;
+		if (!canceled)
+			showResults();
+		return true;
+	}
+	
+	/** Scans the image and traces, measures and fills the particles one by one.
+		Used if particles touching a non-rectangular selection are excluded,
+		which requires the image with the particles already analyzed filled. */
+	void traceParticles(ImagePlus imp, ImageProcessor ip, ImageWindow win) {
+		byte[] pixels = null;
+		if (ip instanceof ByteProcessor)
+			pixels = (byte[])ip.getPixels();
+		int offset;
+		double value;
+		int inc = Math.max(r.height/25, 1);
 		pf = new PolygonFiller();
 		if (floodFill) {
 			ImageProcessor ipf = ip.duplicate();
 			ipf.setValue(fillColor);
 			ff = new FloodFiller(ipf);
 		}
-		roiType = Wand.allPoints()?Roi.FREEROI:Roi.TRACED_ROI;
-
 		boolean done = false;
 		for (int y=r.y; y<(r.y+r.height); y++) {
 			offset = y*width;
@@ -588,28 +618,126 @@ public class ParticleAnalyzer implements PlugInFilter, Measurements {
 				break;
 			}
 		}
-		if (showProgress)
-			IJ.showProgress(1.0);
-		if (showResults && showResultsWindow && rt.getCounter()>0)
-			rt.updateResults();
-		imp.deleteRoi();
-		ip.resetRoi();
-		ip.reset();
-		if (displaySummary && IJ.getInstance()!=null)
-			updateSliceSummary();
-		if (addToManager && roiManager!=null) {
-			if (imp.getWindow()!=null)
-				roiManager.setEditMode(imp, true);
-			else
-				roiManager.runCommand("show all with labels");
+	}
+
+	/** Finds all particles by connected-component labeling, i.e., in two linear
+		scans, instead of tracing and filling them one by one. The particles are
+		measured in parallel, in batches. Outlines are only traced for the particles
+		accepted and only if required (ROI Manager, outline display, perimeter,
+		shape descriptors, Feret's diameter or circularity limits). */
+	void labelParticles(ImagePlus imp, ImageProcessor ip, ImageWindow win) {
+		int rWidth = r.width, rHeight = r.height;
+		byte[] foreground = new byte[rWidth*rHeight];
+		byte[] pixels = null;
+		if (ip instanceof ByteProcessor)
+			pixels = (byte[])ip.getPixels();
+		double value;
+		for (int y=r.y, i=0; y<(r.y+rHeight); y++) {
+			int offset = y*width;
+			for (int x=r.x; x<(r.x+rWidth); x++, i++) {
+				if (pixels!=null)
+					value = pixels[offset+x]&255;
+				else if (imageType==SHORT)
+					value = ip.getPixel(x, y);
+				else
+					value = ip.getPixelValue(x, y);
+				if (value>=level1 && value<=level2)
+					foreground[i] = (byte)255;
+			}
+		}
+		boolean eightConnected = wandMode!=Wand.FOUR_CONNECTED;
+		if (!floodFill)
+			ComponentLabeler.fillHoles(foreground, rWidth, rHeight, eightConnected);
+		final ComponentLabeler labeler = new ComponentLabeler(rWidth, rHeight);
+		int n = labeler.label(foreground, eightConnected);
+		foreground = null;
+		boolean needsRoi = roiNeedsImage || addToManager || (showChoice!=NOTHING&&showChoice!=ELLIPSES)
+			|| minCircularity>0.0 || maxCircularity<1.0 || getClass()!=ParticleAnalyzer.class;
+		final ImageProcessor ip2 = redirectIP!=null?redirectIP:ip;
+		final ImageStatistics[] stats = new ImageStatistics[Math.min(n, PARTICLE_BATCH)];
+		for (int first=1; first<=n && !canceled; first+=PARTICLE_BATCH) {
+			final int firstLabel = first;
+			int last = Math.min(first+PARTICLE_BATCH, n+1);
+			ThreadUtil.parallelFor(first, last, ThreadUtil.getChunkSize(last-first, 16), new ThreadUtil.RangeTask() {
+				public void run(int from, int to) {
+					ImageProcessor ip3 = (ImageProcessor)ip2.clone();	// shares the pixels, has its own roi and mask
+					Calibration cal = calibration.copy();
+					for (int label=from; label<to; label++)
+						stats[label-firstLabel] = isAccepted(labeler, label) ? measureParticle(ip3, labeler, label, cal) : null;
+				}
+			});
+			for (int label=first; label<last; label++) {
+				if (stats[label-first]!=null)
+					saveParticle(imp, ip, labeler, label, stats[label-first], needsRoi);
+				stats[label-first] = null;
+			}
+			if (showProgress)
+				IJ.showProgress((double)(last-1)/n);
+			if (win!=null)
+				canceled = !win.running;
+			if (canceled)
+				Macro.abort();
+		}
+	}
+
+	/** Returns the bounds of a labeled particle in image coordinates */
+	Rectangle getBounds(ComponentLabeler labeler, int label) {
+		Rectangle bounds = labeler.getBounds(label);
+		bounds.x += r.x;
+		bounds.y += r.y;
+		return bounds;
+	}
+
+	/** Applies the size and edge criteria to a labeled particle */
+	boolean isAccepted(ComponentLabeler labeler, int label) {
+		int pixelCount = labeler.getPixelCount(label);
+		if (pixelCount<minSize || pixelCount>maxSize)
+			return false;
+		if (excludeEdgeParticles) {
+			Rectangle r = getBounds(labeler, label);
+			if (r.x==minX||r.y==minY||r.x+r.width==maxX||r.y+r.height==maxY)
+				return false;
 		}
-		maxParticleCount = (particleCount > maxParticleCount) ? particleCount : maxParticleCount;
-		totalCount += particleCount;
-		if (!canceled)
-			showResults();
 		return true;
 	}
-	
+
+	/** Measures a labeled particle; 'ip' must not be used by other threads */
+	ImageStatistics measureParticle(ImageProcessor ip, ComponentLabeler labeler, int label, Calibration cal) {
+		Rectangle r = getBounds(labeler, label);
+		ip.setMask(r.width>1 && r.height>1 ? labeler.getMask(label) : null);
+		ip.setRoi(r);
+		return getStatistics(ip, measurements, cal);
+	}
+
+	/** Outlines a labeled particle (if required), applies the circularity
+		limits and saves the results */
+	void saveParticle(ImagePlus imp, ImageProcessor ip, ComponentLabeler labeler, int label, ImageStatistics stats, boolean needsRoi) {
+		int x = r.x + labeler.getStartX(label);
+		int y = r.y + labeler.getStartY(label);
+		Roi roi = null;
+		if (needsRoi) {
+			wand.autoOutline(x, y, level1, level2, wandMode);
+			if (wand.npoints==0)
+				{IJ.log("wand error: "+x+" "+y); return;}
+			roi = new PolygonRoi(wand.xpoints, wand.ypoints, wand.npoints, roiType);
+		}
+		if (minCircularity>0.0 || maxCircularity<1.0) {
+			double perimeter = roi.getLength();
+			double circularity = perimeter==0.0?0.0:4.0*Math.PI*(stats.pixelCount/(perimeter*perimeter));
+			if (circularity>1.0) circularity = 1.0;
+			if (circularity<minCircularity || circularity>maxCircularity) return;
+		}
+		particleCount++;
+		if (roiNeedsImage)
+			roi.setImage(imp);
+		stats.xstart=x; stats.ystart=y;
+		saveResults(stats, roi);
+		if (showChoice!=NOTHING) {
+			Rectangle r = getBounds(labeler, label);
+			drawParticle(drawIP, roi, stats, r.width>1&&r.height>1?labeler.getMask(label):null);
+		}
+	}
+
 	void updateSliceSummary() {
 		int slices = imp.getStackSize();
 		if (slices==1) {
@@ -6,7 +6,11 @@ import ij.plugin.filter.PlugInFilter.*;
 import ij.plugin.filter.*;
 import ij.measure.Calibration;
 import ij.macro.Interpreter;
+import ij.io.*;
+import ij.plugin.FileInfoVirtualStack;
+import ij.util.ThreadUtil;
 import java.awt.*;
+import java.io.*;
 import java.util.*;
 
 public class PlugInFilterRunner implements Runnable, DialogListener {
@@ -25,8 +29,6 @@ public class PlugInFilterRunner implements Runnable, DialogListener {
 	private long previewTime;				// time (ms) needed for preview processing
 	private boolean ipChanged;			// whether the image data have been changed
 	private int processedAsPreview;			// the slice processed during preview (if non-zero)
-	private Hashtable<Thread, int[]> slicesForThread;		// gives first&last slice that a given thread should process
-	private Hashtable<Thread, ImageProcessor> roisForThread;// gives ROI that a given thread should process
 	Hashtable sliceForThread = new Hashtable(); // here the stack slice currently processed is stored.
 	private int nPasses;						// the number of calls to the run(ip) method of the filter
 	private int pass;						// passes done so far
@@ -129,29 +131,18 @@ public class PlugInFilterRunner implements Runnable, DialogListener {
 				if ((flags&PlugInFilter.PARALLELIZE_STACKS)!=0) {
 					threads = Prefs.getThreads(); // multithread support for multiprocessor machines
 					if (threads>slicesToDo) threads = slicesToDo;
-					if (threads>1) slicesForThread = new Hashtable<Thread, int[]>(threads-1);
-				}
-				int startSlice = 1;
-				for (int i=1; i<threads; i++) {				// setup the background threads
-					int endSlice = (slicesToDo*i)/threads;
-					if (processedAsPreview!=0 && processedAsPreview<=endSlice) endSlice++;
-					Thread bgThread = new Thread(this, command+" "+startSlice+"-"+endSlice);
-					slicesForThread.put(bgThread, new int[] {startSlice, endSlice});
-					bgThread.start();
-					//IJ.log("Stack: Thread for slices "+startSlice+"-"+endSlice+" started");
-					startSlice = endSlice+1;
-				}
-				//IJ.log("Stack: Slices "+startSlice+"-"+slices+" by main thread");
-				processStack(startSlice, slices);			// the current thread does the rest
-				if (slicesForThread != null) {
-					while (slicesForThread.size()>0) {	  // for all other threads:
-						Thread theThread = (Thread)slicesForThread.keys().nextElement();
-						try {
-							theThread.join();				// wait until thread has finished
-						} catch (InterruptedException e) {}
-						slicesForThread.remove(theThread);	// and remove it from the list.
-					}
 				}
+				if (imp.getStack().isVirtual() && (flags&PlugInFilter.NO_CHANGES)==0)
+					processVirtualStack(threads);
+				else if (threads>1) {	// slices are handed out one by one to the threads of the shared executor
+					ThreadUtil.parallelFor(1, slices+1, 1, new ThreadUtil.RangeTask() {
+						public void run(int from, int to) {
+							if (!IJ.escapePressed())
+								processStack(from, to-1);
+						}
+					});
+				} else
+					processStack(1, slices);
 			}
 		} // end processing:
 		if ((flags&PlugInFilter.FINAL_PROCESSING)!=0 && !IJ.escapePressed())
@@ -189,7 +180,8 @@ public class PlugInFilterRunner implements Runnable, DialogListener {
 		for (int i=firstSlice; i<=endSlice; i++) {
 			if (i != processedAsPreview) {
 				announceSliceNumber(i);
-				ip.setPixels(stack.getPixels(i));
+				if (i != firstSlice)		// the pixels of firstSlice are there already
+					ip.setPixels(stack.getPixels(i));
 				ip.setSliceNumber(i);
 				processOneImage(ip, fp, false);
 				if (IJ.escapePressed()) {IJ.beep(); break;}
@@ -197,6 +189,94 @@ public class PlugInFilterRunner implements Runnable, DialogListener {
 		}
 	}
 
+	/** Processes a virtual stack out of core: The slices are read, processed by
+	 *	'threads' threads in parallel and written to a new TIFF file in batches of
+	 *	'threads' slices, thus only a few slices are in memory at any time. When done,
+	 *	the image shows the new file as a virtual stack. The slice given by
+	 *	processedAsPreview is taken from the ImageProcessor of the image.
+	 */
+	private void processVirtualStack(int threads) {
+		final ImageStack stack = imp.getStack();
+		int slices = stack.getSize();
+		SaveDialog sd = new SaveDialog("Save Processed Stack", imp.getShortTitle()+"-1", ".tif");
+		String name = sd.getFileName();
+		if (name==null) {
+			IJ.showStatus(command+" canceled");
+			return;
+		}
+		String path = sd.getDirectory()+name;
+		FileInfo ofi = imp.getOriginalFileInfo();
+		if (ofi!=null && path.equals(ofi.directory+ofi.fileName)) {
+			IJ.error(command, "The processed stack cannot be saved in place.");
+			return;
+		}
+		FileInfo fi = imp.getFileInfo();
+		fi.info = imp.getInfoProperty();
+		fi.description = new FileSaver(imp).getDescriptionString();
+		TiffStackWriter writer = new TiffStackWriter(fi);
+		final ImageProcessor[] batch = new ImageProcessor[threads];
+		boolean done = false;
+		String error = null;
+		try {
+			writer.open(path);
+			for (int first=1; first<=slices && error==null && !IJ.escapePressed(); first+=threads) {
+				final int n = Math.min(threads, slices-first+1);
+				final int first2 = first;
+				ThreadUtil.parallelFor(0, n, 1, new ThreadUtil.RangeTask() {
+					public void run(int from, int to) {
+						for (int j=from; j<to && !IJ.escapePressed(); j++)
+							batch[j] = processVirtualSlice(stack, first2+j);
+					}
+				});
+				for (int j=0; j<n && error==null && !IJ.escapePressed(); j++) {
+					ImageProcessor ip = batch[j];
+					if (ip.getWidth()!=fi.width || ip.getHeight()!=fi.height || ip.getBitDepth()!=imp.getBitDepth())
+						error = "The filter has changed the size or type of slice "+(first+j)+",\n"
+							+"thus the virtual stack cannot be processed.";
+					else
+						writer.appendPlane(ip, stack.getSliceLabel(first+j));
+					batch[j] = null;
+				}
+			}
+			done = error==null && !IJ.escapePressed();
+			writer.close();
+		} catch (IOException e) {
+			String msg = e.getMessage();
+			IJ.error(command, "Error writing "+path+"\n"+(msg!=null?msg:""+e));
+			done = false;
+		} finally {
+			if (!done) {
+				try {writer.close();} catch (IOException e) {}
+				new File(path).delete();
+			}
+		}
+		if (error!=null)
+			IJ.error(command, error);
+		if (!done)
+			return;
+		ImagePlus imp2 = FileInfoVirtualStack.openVirtual(path);
+		if (imp2==null || imp2.getStackSize()!=slices)
+			return;
+		if (stack instanceof VirtualStack)
+			SliceCache.remove((VirtualStack)stack);
+		imp.setStack(imp2.getStack(), imp.getNChannels(), imp.getNSlices(), imp.getNFrames());
+		imp.setFileInfo(imp2.getOriginalFileInfo());
+		imp.setTitle(name);
+	}
+
+	/** Reads and processes one slice of a virtual stack; may be called by several threads */
+	private ImageProcessor processVirtualSlice(ImageStack stack, int n) {
+		if (n==processedAsPreview)
+			return imp.getProcessor();
+		ImageProcessor ip = stack.getProcessor(n);
+		prepareProcessor(ip, imp);
+		ip.setLineWidth(Line.getWidth());
+		ip.setSliceNumber(n);
+		announceSliceNumber(n);
+		processOneImage(ip, null, false);
+		return ip;
+	}
+
 	/** prepare an ImageProcessor by setting roi and CalibrationTable.
 	 */
 	private void prepareProcessor(ImageProcessor ip, ImagePlus imp) {
@@ -304,44 +384,24 @@ public class PlugInFilterRunner implements Runnable, DialogListener {
 	}
 
 	/** process an image or a single color channel of an RGB image by splitting
-	 *	into ROIs and using a separate thread for each roi */
-	private void processChannelUsingThreads(ImageProcessor ip) {
+	 *	into ROIs (bands of lines), which are processed by the threads of the shared executor */
+	private void processChannelUsingThreads(final ImageProcessor ip) {
 		ImageProcessor mask = ip.getMask();
-		Rectangle roi = ip.getRoi();
-		int threads = Prefs.getThreads();
+		final Rectangle roi = ip.getRoi();
+		int bandHeight = ThreadUtil.getChunkSize(roi.height, 1);
 		if (IJ.debugMode)
-			IJ.log("processing channel: "+threads);
-		if (threads>roi.height) threads = roi.height;
-		if (threads>1) roisForThread = new Hashtable<Thread, ImageProcessor>(threads-1);
-		int y1 = roi.y;
-		for (int i=1; i<threads; i++) {
-			int y2 = roi.y+(roi.height*i)/threads-1;
-			Thread bgThread = new Thread(this, command+" "+y1+"-"+y2);
-			Rectangle roi2 = new Rectangle(roi.x, y1, roi.width, y2-y1+1);
-			roisForThread.put(bgThread, duplicateProcessor(ip, roi2));
-			bgThread.start();
-			if (IJ.debugMode)
-				IJ.log("  starting thread: "+y1+"-"+y2);
-			y1 = y2+1;
-		}
-		if (IJ.debugMode)
-			IJ.log("  main thread "+y1+"-"+(roi.y+roi.height));
-		Rectangle roi2 = new Rectangle(roi.x, y1, roi.width, roi.y+roi.height-y1);
-		((PlugInFilter)theFilter).run(duplicateProcessor(ip, roi2)); 	// current thread does the rest
-		pass++;
-		if (roisForThread != null) {
-			for (Enumeration<Thread> en = roisForThread.keys(); en.hasMoreElements();) {
-				Thread theThread = en.nextElement();
-				try {
-					theThread.join();		// wait until thread has finished
-				} catch (InterruptedException e) { // if preview cancelled:
-					interruptRoiThreads(roisForThread); //interrupt all threads and join
-					Thread.currentThread().interrupt(); //restore 'interrupted' state
-					break;
-				}
+			IJ.log("processing channel: "+Prefs.getThreads()+" threads, bands of "+bandHeight+" lines");
+		ThreadUtil.parallelFor(roi.y, roi.y+roi.height, bandHeight, new ThreadUtil.RangeTask() {
+			public void run(int y1, int y2) {
+				if (Thread.currentThread().isInterrupted()) return;	// preview cancelled?
+				Rectangle roi2 = new Rectangle(roi.x, y1, roi.width, y2-y1);
+				ImageProcessor ip2 = duplicateProcessor(ip, roi2);
+				((PlugInFilter)theFilter).run(ip2);
+				ip2.setPixels(null);
+				ip2.setSnapshotPixels(null);
 			}
-		}
-		roisForThread = null;
+		});
+		pass++;
 		ip.setMask(mask);  // restore ROI
 		ip.setRoi(roi);
 	}
@@ -352,17 +412,6 @@ public class PlugInFilterRunner implements Runnable, DialogListener {
 		return ip2;
 	}
 
-	/** interrupt threads processing the rois of an image and wait till they have finished */
-	void interruptRoiThreads(Hashtable<Thread, ImageProcessor> roisForThread) {
-		if (roisForThread==null) return;	//class variable may become null in other thread
-		for (Enumeration<Thread> en = roisForThread.keys(); en.hasMoreElements();)
-			((Thread)en.nextElement()).interrupt(); //interrupt all threads
-		for (Enumeration<Thread> en = roisForThread.keys(); en.hasMoreElements();)
-			try {
-				((Thread)en.nextElement()).join();
-			} catch (Exception e){}
-	}
- 
 	/** test whether an ImagePlus can be processed based on the flags specified
 	 *	and display an error message if not.
 	 */
@@ -443,15 +492,7 @@ public class PlugInFilterRunner implements Runnable, DialogListener {
 		try {
 			if (thread==previewThread)
 				runPreview();
-			else if (roisForThread!=null && roisForThread.containsKey(thread)) {
-				ImageProcessor ip = (ImageProcessor)roisForThread.get(thread);
-				((PlugInFilter)theFilter).run(ip);
-				ip.setPixels(null);
-				ip.setSnapshotPixels(null);
-			} else if (slicesForThread!=null && slicesForThread.containsKey(thread)) {
-				int[] range = (int[])slicesForThread.get(thread);
-				processStack(range[0], range[1]);
-			} else
+			else
 				IJ.error("PlugInFilterRunner internal error:\nunsolicited background thread");
 		} catch (Exception err) {
 			if (thread==previewThread) {
@@ -549,8 +590,6 @@ public class PlugInFilterRunner implements Runnable, DialogListener {
 		synchronized (this) {
 			previewThread.interrupt();		//ask for premature finishing (interrupt first -> no keepPreview)
 			bgPreviewOn = false;				//tell a possible background thread to terminate when it has finished
-			if (roisForThread!=null)
-				interruptRoiThreads(roisForThread);
 		}
 		waitForPreviewDone();
 		imp.setOverlay(originalOverlay);
@@ -5,6 +5,7 @@ import ij.gui.DialogListener;
 import ij.gui.Roi;
 import ij.process.*;
 import ij.plugin.ContrastEnhancer;
+import ij.util.ThreadUtil;
 import java.awt.*;
 import java.awt.event.*;
 import java.util.Arrays;
@@ -229,6 +230,8 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 
 	// Filter a grayscale image or one channel of an RGB image with several threads
 	// Implementation: each thread uses the same input buffer (cache), always works on the next unfiltered line
+	// The threads are those of the shared executor (ij.util.ThreadUtil); a thread that starts late (because
+	// the executor is busy) simply joins in at the next unfiltered line.
 	// Usually, one thread reads reads several lines into the cache, while the others are processing the data.
 	// 'aborted[0]' is set if the main thread has been interrupted (during preview) or ESC pressed.
 	// 'aborted' must not be a class variable because it signals the other threads to stop; and this may be caused
@@ -251,36 +254,17 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 		highestYinCache = Math.max(roi.y-kHeight/2, 0) - 1; //this line+1 will be read into the cache first 
 
 		final int[] yForThread = new int[numThreads];		//threads announce here which line they currently process
-		Arrays.fill(yForThread, -1);
-		yForThread[numThreads-1] = roi.y-1;					//first thread started should begin at roi.y
+		Arrays.fill(yForThread, -1);						//-1 means not started yet
 		//IJ.log("going to filter lines "+roi.y+"-"+(roi.y+roi.height-1)+"; cacheHeight="+cacheHeight);
-		final Thread[] threads = new Thread[numThreads-1];	//thread number 0 is this one, not in the array
-		for (int t=numThreads-1; t>0; t--) {
-			final int ti=t;
-			final Thread thread = new Thread(
-					new Runnable() {
-						final public void run() {
-							doFiltering(ip, lineRadii, cache, cacheWidth, cacheHeight,
-									filterType, minMaxOutliersSign, threshold, colorChannel,
-									yForThread, ti, aborted);
-						}
-					},
-			"RankFilters-"+t);
-			thread.setPriority(Thread.currentThread().getPriority());
-			thread.start();
-			threads[ti-1] = thread;
-		}
-
-		doFiltering(ip, lineRadii, cache, cacheWidth, cacheHeight,
-				filterType, minMaxOutliersSign, threshold, colorChannel,
-				yForThread, 0, aborted);
-		for (final Thread thread : threads)
-			try {
-					if (thread != null) thread.join();
-			} catch (InterruptedException e) {
-				aborted[0] = true;
-				Thread.currentThread().interrupt();	  //keep interrupted status (PlugInFilterRunner needs it)
+		ThreadUtil.runInParallel(numThreads, new ThreadUtil.RangeTask() {	//thread number 0 is this one
+			final public void run(int ti, int tiEnd) {
+				doFiltering(ip, lineRadii, cache, cacheWidth, cacheHeight,
+						filterType, minMaxOutliersSign, threshold, colorChannel,
+						yForThread, ti, aborted);
 			}
+		});
+		if (Thread.currentThread().isInterrupted())
+			aborted[0] = true;								//interrupted (preview); the interrupted status is kept
 		showProgress(1.0, ip instanceof ColorProcessor);
 		pass++;
 	}
@@ -308,6 +292,10 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 	// For outliers, calculate the median only if the pixel deviates by more than the threshold
 	// from any pixel in the area. Therfore min or max is calculated; this is a much faster
 	// operation than the median.
+	// For 8-bit, 16-bit and RGB data and large kernels, median, min, max and outliers use a
+	// histogram of the kernel area instead (see KernelHistogram). It is created for the first
+	// pixel of every line; for the following pixels, only the values entering and leaving the
+	// kernel are added and removed, thus the time per pixel grows with the kernel height only.
 	private void doFiltering(ImageProcessor ip, int[] lineRadii, float[] cache, int cacheWidth, int cacheHeight,
 			int filterType, float minMaxOutliersSign, float threshold, int colorChannel,
 			int [] yForThread, int threadNumber, boolean[] aborted) {
@@ -344,6 +332,8 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 		boolean isFloat = pixels instanceof float[];
 		float maxValue = isFloat ? Float.NaN : (float)ip.maxValue();
 		float[] values = isFloat ? (float[])pixels : new float[roi.width];
+		KernelHistogram histogram = isFloat ? null :
+				KernelHistogram.create(filterType, pixels instanceof short[] ? 16 : 8, kNPoints, kHeight);
 
 		int numThreads = yForThread.length;
 		long lastTime = System.currentTimeMillis();
@@ -351,7 +341,7 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 		boolean rgb = ip instanceof ColorProcessor;
 		
 		while (!aborted[0]) {
-			int y = arrayMax(yForThread) + 1;		// y of the next line that needs processing
+			int y = Math.max(arrayMax(yForThread) + 1, roi.y);	// y of the next line that needs processing
 			yForThread[threadNumber] = y;
 			//IJ.log("thread "+threadNumber+" @y="+y+" needs"+(y-kHeight/2)+"-"+(y+kHeight/2)+" highestYinC="+highestYinCache);
 			boolean threadFinished = y >= roi.y+roi.height;
@@ -427,9 +417,13 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 			}
 
 			int cacheLineP = cacheWidth * (y % cacheHeight) + kRadius;	//points to pixel (roi.x, y)
-			filterLine(values, width, cache, cachePointers, kNPoints, cacheLineP, roi, y,	// F I L T E R
-					sums, medianBuf1, medianBuf2, minMaxOutliersSign, maxValue, isFloat, filterType,
-					smallKernel, sumFilter, minOrMax, minOrMaxOrOutliers, threshold);
+			if (histogram!=null)																// F I L T E R
+				filterLine(values, cache, cachePointers, kNPoints, cacheLineP, roi.width, histogram,
+						minMaxOutliersSign, filterType, threshold);
+			else
+				filterLine(values, width, cache, cachePointers, kNPoints, cacheLineP, roi, y,
+						sums, medianBuf1, medianBuf2, minMaxOutliersSign, maxValue, isFloat, filterType,
+						smallKernel, sumFilter, minOrMax, minOrMaxOrOutliers, threshold);
 			if (!isFloat)		//Float images: data are written already during 'filterLine'
 				writeLineToPixels(values, pixels, roi.x+y*width, roi.width, colorChannel);	// W R I T E
 			//IJ.log("thread "+threadNumber+" @y="+y+" line done");
@@ -443,12 +437,12 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 		return max;
 	}
 
-	//returns the minimum of the array, but not less than 0
+	//returns the minimum of the non-negative array elements (i.e., of the threads that have started), 0 if none
 	private int arrayMinNonNegative(int[] array) {
 		int min = Integer.MAX_VALUE;
 		for (int i=0; i<array.length; i++)
-			if (array[i]<min) min = array[i];
-		return min<0 ? 0 : min;
+			if (array[i]>=0 && array[i]<min) min = array[i];
+		return min==Integer.MAX_VALUE ? 0 : min;
 	}
 
 	private void filterLine(float[] values, int width, float[] cache, int[] cachePointers, int kNPoints, int cacheLineP, Rectangle roi, int y,
@@ -517,6 +511,115 @@ public class RankFilters implements ExtendedPlugInFilter, DialogListener {
 			} // for x
 		}
 
+	/** Filters a line of 8-bit, 16-bit or RGB data with the MEDIAN, MIN, MAX or OUTLIERS filter,
+	 *	using a histogram of the kernel area. The results are the same as with the float
+	 *	algorithm of the other filterLine method. */
+	private static void filterLine(float[] values, float[] cache, int[] kernel, int kNPoints, int cacheLineP, int roiWidth,
+			KernelHistogram histogram, float minMaxOutliersSign, int filterType, float threshold) {
+		for (int kk=0; kk<kernel.length; kk++)				// the histogram of the first kernel area
+			for (int p=kernel[kk++]; p<=kernel[kk]; p++)
+				histogram.add((int)cache[p]);
+		int half = kNPoints/2;
+		for (int x=0; x<roiWidth; x++) {
+			if (x>0) {
+				for (int kk=0; kk<kernel.length; kk+=2) {
+					histogram.remove((int)cache[kernel[kk]+(x-1)]);
+					histogram.add((int)cache[kernel[kk+1]+x]);
+				}
+			}
+			if (filterType == MEDIAN)
+				values[x] = histogram.getNthLowest(half);
+			else {
+				float max = minMaxOutliersSign>0 ? histogram.getNthLowest(kNPoints-1) : -histogram.getNthLowest(0);
+				if (filterType != OUTLIERS) {						// MIN or MAX, as determined by the sign
+					values[x] = max*minMaxOutliersSign;
+					continue;
+				}
+				float v = cache[cacheLineP+x];					// OUTLIERS, see the other filterLine method
+				if (v*minMaxOutliersSign+threshold < max) {
+					float median = histogram.getNthLowest(half);
+					if (v*minMaxOutliersSign+threshold < median*minMaxOutliersSign)
+						v = median;
+				}
+				values[x] = v;
+			}
+		}
+		int x = roiWidth - 1;									// empty the histogram for the next line
+		for (int kk=0; kk<kernel.length; kk++)
+			for (int p=kernel[kk++]+x; p<=kernel[kk]+x; p++)
+				histogram.remove((int)cache[p]);
+	}
+
+	/** Histogram of the kernel area for integer data with 8 or 16 bits. For finding the n-th
+	 *	lowest value quickly, there is also a coarse histogram, where each bin is the sum of
+	 *	2^(bits/2) bins of the fine one. Since the values of neighboring pixels are usually
+	 *	similar, the search starts at the coarse bin of the previous result.
+	 */
+	private static class KernelHistogram {
+		private final int[] fine, coarse;
+		private final int shift;			// fine bin >> shift = coarse bin
+		private int coarseBin;				// the coarse bin of the previous result
+		private int countBelow;				// number of values in the coarse bins below coarseBin
+
+		KernelHistogram(int bits) {
+			shift = bits/2;
+			fine = new int[1<<bits];
+			coarse = new int[1<<(bits-shift)];
+		}
+
+		/** Returns a histogram if it is faster than the float algorithm for the given filter
+		 *	type and kernel, otherwise null. */
+		static KernelHistogram create(int filterType, int bits, int kNPoints, int kHeight) {
+			int cost = 2*kHeight + (1<<(bits/2))/8;			// updates and search in the fine bins per pixel
+			boolean faster;
+			if (filterType==MEDIAN || filterType==OUTLIERS)
+				faster = kNPoints > cost;
+			else if (filterType==MIN || filterType==MAX)
+				faster = kNPoints > 4*cost;					// the float algorithm is incremental, usually fast
+			else
+				faster = false;
+			return faster ? new KernelHistogram(bits) : null;
+		}
+
+		final void add(int v) {
+			fine[v]++;
+			int c = v>>shift;
+			coarse[c]++;
+			if (c<coarseBin) countBelow++;
+		}
+
+		final void remove(int v) {
+			fine[v]--;
+			int c = v>>shift;
+			coarse[c]--;
+			if (c<coarseBin) countBelow--;
+		}
+
+		/** Returns the n-th lowest value, n=0 for the lowest */
+		final int getNthLowest(int n) {
+			while (countBelow>n)
+				countBelow -= coarse[--coarseBin];
+			while (countBelow+coarse[coarseBin]<=n)
+				countBelow += coarse[coarseBin++];
+			int remaining = n - countBelow;					// 0 <= remaining < coarse[coarseBin]
+			int count = coarse[coarseBin];
+			if (remaining < count/2) {						// search from the lower end of the coarse bin
+				int bin = coarseBin<<shift;
+				remaining -= fine[bin];
+				while (remaining>=0)
+					remaining -= fine[++bin];
+				return bin;
+			} else {										// search from the upper end
+				int above = count - 1 - remaining;
+				int bin = ((coarseBin+1)<<shift) - 1;
+				above -= fine[bin];
+				while (above>=0)
+					above -= fine[--bin];
+				return bin;
+			}
+		}
+	}
+
 	/** Read a line into the cache (including padding in x).
 	 *	If y>=height, instead of reading new data, it duplicates the line y=height-1.
 	 *	If y==0, it also creates the data for y<0, as far as necessary, thus filling the cache with
@@ -5,6 +5,7 @@ import ij.gui.DialogListener;
 import ij.process.*;
 import ij.plugin.filter.GaussianBlur;
 import ij.measure.Measurements;
+import ij.util.ThreadUtil;
 import java.awt.*;
 
 /** This plugin-filter implements ImageJ's Unsharp Mask command.
@@ -42,18 +43,23 @@ public class UnsharpMask implements ExtendedPlugInFilter, DialogListener {
         sharpenFloat((FloatProcessor)ip, sigma, (float)weight);
     }
     
-    /** Unsharp Mask filtering of a float image. 'fp' must have a valid snapshot. */
-    public void sharpenFloat(FloatProcessor fp, double sigma, float weight) {
+    /** Unsharp Mask filtering of a float image. 'fp' must have a valid snapshot.
+     * Both, the Gaussian blur and subtracting it, are done in parallel for bands of lines. */
+    public void sharpenFloat(FloatProcessor fp, double sigma, final float weight) {
         if (gb == null) gb = new GaussianBlur();
         gb.blurGaussian(fp, sigma, sigma, 0.01);
         if (Thread.currentThread().isInterrupted()) return;
-        float[] pixels = (float[])fp.getPixels();
-        float[] snapshotPixels = (float[])fp.getSnapshotPixels();
-        int width = fp.getWidth();
-        Rectangle roi = fp.getRoi();
-        for (int y=roi.y; y<roi.y+roi.height; y++)
-            for (int x=roi.x, p=width*y+x; x<roi.x+roi.width; x++,p++)
-                pixels[p] = (snapshotPixels[p] - weight*pixels[p])/(1f - weight);
+        final float[] pixels = (float[])fp.getPixels();
+        final float[] snapshotPixels = (float[])fp.getSnapshotPixels();
+        final int width = fp.getWidth();
+        final Rectangle roi = fp.getRoi();
+        ThreadUtil.parallelFor(roi.y, roi.y+roi.height, ThreadUtil.getChunkSize(roi.height, 64), new ThreadUtil.RangeTask() {
+            final public void run(int from, int to) {
+                for (int y=from; y<to; y++)
+                    for (int x=roi.x, p=width*y+x; x<roi.x+roi.width; x++,p++)
+                        pixels[p] = (snapshotPixels[p] - weight*pixels[p])/(1f - weight);
+            }
+        });
     }
 
     /** Ask the user for the parameters */
@@ -997,6 +997,8 @@ public class RoiManager extends PlugInFrame implements ActionListener, ItemListe
 		if (appendResults && mmResults!=null)
 			rtMulti = mmResults;
 		rtSys.reset();
+		if (multiMeasureAreas(imp, indexes, nSlices, rtMulti))
+			return rtMulti;
 		int currentSlice = imp.getCurrentSlice();
 		for (int slice=1; slice<=nSlices; slice++) {
 			int sliceUse = slice;
@@ -1004,7 +1006,7 @@ public class RoiManager extends PlugInFrame implements ActionListener, ItemListe
 			imp.setSliceWithoutUpdate(sliceUse);
 			rtMulti.incrementCounter();
 			if ((Analyzer.getMeasurements()&Measurements.LABELS)!=0)
-				rtMulti.addLabel("Label", imp.getTitle());
+				rtMulti.addLabel(imp.getTitle());
 			int roiIndex = 0;
 			for (int i=0; i<indexes.length; i++) {
 				if (restoreWithoutUpdate(imp, indexes[i])) {
@@ -1021,7 +1023,7 @@ public class RoiManager extends PlugInFrame implements ActionListener, ItemListe
 								suffix = "("+name+")";
 						}
 						if (head!=null && col!=null && !head.equals("Slice"))
-							rtMulti.addValue(head+suffix, rtSys.getValue(j,rtSys.getCounter()-1));
+							rtMulti.addValue(head+suffix, rtSys.getValueAsDouble(j,rtSys.getCounter()-1));
 					}
 				} else
 					break;
@@ -1030,6 +1032,99 @@ public class RoiManager extends PlugInFrame implements ActionListener, ItemListe
 		return rtMulti;
 	}
 
+	/** Multi-measure ("one row per slice") of area selections. The selections, their
+		masks and the values that only depend on the selection (perimeter, convex hull
+		area, Feret values) are prepared once. Then each slice is read once (also with
+		virtual stacks), the statistics of all selections are calculated in parallel and
+		the values (from Analyzer.getValues, as with Analyzer.saveResults) are written
+		to the table directly. Gives the same results as measuring the selections one by one. Returns false, without measuring, if a selection is
+		not an area or a redirect image is set. */
+	private boolean multiMeasureAreas(final ImagePlus imp, int[] indexes, int nSlices, ResultsTable rtMulti) {
+		if (restoreCentered || Analyzer.isRedirectImage())
+			return false;
+		final int nRois = indexes.length;
+		final Roi[] rois2 = new Roi[nRois];
+		String[] suffixes = new String[nRois];
+		int width = imp.getWidth(), height = imp.getHeight();
+		for (int i=0; i<nRois; i++) {
+			Roi roi = (Roi)rois.get(indexes[i]);
+			if (roi==null || !roi.isArea())
+				return false;
+			Rectangle r = roi.getBounds();
+			if (r.width==0 && r.height==0)
+				return false;
+			roi = (Roi)roi.clone();
+			if (r.x>=width || r.y>=height || (r.x+r.width)<0 || (r.y+r.height)<0)
+				roi.setLocation((width-r.width)/2, (height-r.height)/2);
+			roi.setImage(imp);
+			rois2[i] = roi;
+			String name = roi.getName();
+			if (name!=null && name.length()>0 && (name.length()<9||!Character.isDigit(name.charAt(0))))
+				suffixes[i] = "("+name+")";
+			else
+				suffixes[i] = ""+(i+1);
+		}
+		final int measurements = Analyzer.getMeasurements()&~Measurements.LABELS;
+		final Calibration cal = imp.getCalibration();
+		final Analyzer analyzer = new Analyzer(imp, measurements, new ResultsTable());
+		final Rectangle[] bounds = new Rectangle[nRois];
+		final ImageProcessor[] masks = new ImageProcessor[nRois];
+		final double[][] roiValues = new double[nRois][];
+		ImageProcessor ip = (ImageProcessor)imp.getProcessor().clone();
+		for (int i=0; i<nRois; i++) {	// as ImageProcessor.setRoi(Roi), clipped to the image
+			ip.setRoi(rois2[i]);
+			bounds[i] = ip.getRoi();
+			masks[i] = ip.getMask();
+			roiValues[i] = analyzer.getRoiValues(rois2[i]);
+		}
+		int[] allColumns = analyzer.getColumns(rois2[0]);	// the same for all area selections
+		int nColumns = 0;
+		for (int j=0; j<allColumns.length; j++)
+			if (allColumns[j]!=ResultsTable.SLICE)
+				allColumns[nColumns++] = allColumns[j];
+		final int[] columnCodes = new int[nColumns];
+		System.arraycopy(allColumns, 0, columnCodes, 0, nColumns);
+		final double[][] values = new double[nRois][nColumns];
+		int[][] columns = new int[nRois][];
+		int currentSlice = imp.getCurrentSlice();
+		int chunkSize = ThreadUtil.getChunkSize(nRois, 4);
+		for (int slice=1; slice<=nSlices; slice++) {
+			imp.setSliceWithoutUpdate(nSlices==1?currentSlice:slice);
+			final ImageProcessor sliceIp = imp.getProcessor();
+			ThreadUtil.parallelFor(0, nRois, chunkSize, new ThreadUtil.RangeTask() {
+				public void run(int from, int to) {
+					ImageProcessor ip = (ImageProcessor)sliceIp.clone();	// shallow copy, for the roi and mask
+					ip.setHistogramSize(256);
+					ip.setHistogramRange(0.0, 0.0);
+					for (int i=from; i<to; i++) {
+						ip.setMask(masks[i]);
+						ip.setRoi(bounds[i]);
+						ImageStatistics stats = ImageStatistics.getStatistics(ip, measurements, cal);
+						analyzer.getValues(columnCodes, stats, rois2[i], roiValues[i], values[i]);
+					}
+				}
+			});
+			rtMulti.incrementCounter();
+			if ((Analyzer.getMeasurements()&Measurements.LABELS)!=0)
+				rtMulti.addLabel(imp.getTitle());
+			for (int i=0; i<nRois; i++) {
+				if (columns[i]==null) {
+					columns[i] = new int[nColumns];
+					for (int j=0; j<nColumns; j++) {
+						String heading = ResultsTable.getDefaultHeading(columnCodes[j])+suffixes[i];
+						rtMulti.addValue(heading, values[i][j]);
+						columns[i][j] = rtMulti.getColumnIndex(heading);
+					}
+				} else {
+					for (int j=0; j<nColumns; j++)
+						rtMulti.addValue(columns[i][j], values[i][j]);
+				}
+			}
+		}
+		restoreWithoutUpdate(imp, indexes[nRois-1]);
+		return true;
+	}
+
 	int getColumnCount(ImagePlus imp, int measurements) {
 		ImageStatistics stats = imp.getStatistics(measurements);
 		ResultsTable rt = new ResultsTable();
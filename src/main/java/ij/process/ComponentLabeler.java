@@ -0,0 +1,547 @@
+package ij.process;
+import ij.Prefs;
+import ij.ImageStack;
+import ij.util.ThreadUtil;
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+
+/** This class labels the connected components ('particles') of binary images
+	and stacks with the two-pass union-find algorithm, i.e., with two linear scans,
+	independent of the number and shape of the particles. The particles are numbered
+	1, 2, 3... in the order of their first pixel in raster order (the order in which
+	the particle analyzer finds them); background pixels get label 0.
+	Particles are 4- or 8-connected in 2D, 6- or 26-connected in 3D. For each particle,
+	the bounding box, the first pixel, the pixel count and the centroid are determined.
+	<p>
+	The image or stack is divided into blocks of rows (2D) or slices (3D) that are
+	labeled in parallel; the provisional labels of adjacent blocks are then merged
+	along the block borders.
+*/
+public class ComponentLabeler {
+	private static final int MIN_BLOCK_ROWS = 64;	// 2D blocks are not smaller than this
+	private int width, height, depth;
+	private int[][] labels;			// one array per slice
+	private int count;
+	private Particles particles;	// of the last call to label()
+	private int nBlocks, blockRows;	// blocks of rows (y+z*height) labeled in parallel
+	private int[][] blockLabels;	// final labels occurring in each block, ascending
+
+	/** Constructs a ComponentLabeler for images of the given size. */
+	public ComponentLabeler(int width, int height) {
+		this(width, height, 1);
+	}
+
+	/** Constructs a ComponentLabeler for stacks of the given size. */
+	public ComponentLabeler(int width, int height, int depth) {
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+	}
+
+	/** Labels the nonzero pixels of 'foreground', an array of width*height pixels, and
+		returns the number of particles. Particles are 8-connected if 'eightConnected'
+		is true, 4-connected otherwise. */
+	public int label(byte[] foreground, boolean eightConnected) {
+		return label(new byte[][] {foreground}, eightConnected?8:4);
+	}
+
+	/** Labels the nonzero voxels of 'foreground', one array of width*height pixels
+		per slice, and returns the number of particles. 'connectivity' is 6 (voxels
+		sharing a face are connected) or 26 (sharing a face, edge or corner); for
+		a single image, 6 is the same as 4 and 26 is the same as 8. */
+	public int label(final byte[][] foreground, int connectivity) {
+		if (connectivity!=4 && connectivity!=6 && connectivity!=8 && connectivity!=26)
+			throw new IllegalArgumentException("Connectivity must be 4, 6, 8 or 26");
+		if (foreground.length!=depth)
+			throw new IllegalArgumentException("Number of slices must be "+depth);
+		final boolean full = connectivity==8 || connectivity==26;
+		if (labels==null) {
+			labels = new int[depth][];
+			for (int z=0; z<depth; z++)
+				labels[z] = new int[width*height];
+		}
+		int threads = Prefs.getThreads();
+		if (depth>1)
+			blockRows = ((depth+threads-1)/threads)*height;	// 3D blocks start at a slice
+		else
+			blockRows = Math.max((height+threads-1)/threads, MIN_BLOCK_ROWS);
+		nBlocks = (height*depth+blockRows-1)/blockRows;
+		final UnionFind[] blockForests = new UnionFind[nBlocks];
+		ThreadUtil.parallelFor(0, nBlocks, 1, new ThreadUtil.RangeTask() {
+			public void run(int from, int to) {
+				for (int b=from; b<to; b++)
+					blockForests[b] = labelBlock(foreground, b, full);
+			}
+		});
+		// combine the provisional labels of all blocks, then merge along the block borders
+		final int[] base = new int[nBlocks+1];
+		for (int b=0; b<nBlocks; b++)
+			base[b+1] = base[b] + blockForests[b].n;
+		UnionFind forest = new UnionFind(base[nBlocks]);
+		for (int b=0; b<nBlocks; b++) {
+			int[] parent = blockForests[b].parent;
+			for (int k=1; k<=blockForests[b].n; k++)
+				forest.parent[base[b]+k] = base[b] + parent[k];
+			blockForests[b] = null;
+		}
+		for (int b=1; b<nBlocks; b++)
+			mergeBorder(b, base, full, forest);
+		// roots have the lowest provisional label of their particle, i.e., that of the first pixel
+		final int[] map = new int[forest.n+1];
+		count = 0;
+		for (int k=1; k<=forest.n; k++) {
+			int root = forest.find(k);
+			map[k] = root==k ? ++count : map[root];
+		}
+		forest = null;
+		final Particles[] blockParticles = new Particles[nBlocks];
+		blockLabels = new int[nBlocks][];
+		ThreadUtil.parallelFor(0, nBlocks, 1, new ThreadUtil.RangeTask() {
+			public void run(int from, int to) {
+				for (int b=from; b<to; b++)
+					blockParticles[b] = relabelBlock(b, map, base[b], base[b+1]-base[b]);
+			}
+		});
+		particles = new Particles(null, count);
+		for (int b=0; b<nBlocks; b++) {
+			if (blockParticles[b]!=null)
+				particles.add(blockParticles[b]);
+			blockParticles[b] = null;
+		}
+		return count;
+	}
+
+	/** First pass: assigns provisional labels to the rows of block 'b', considering
+		neighbors within the block only */
+	private UnionFind labelBlock(byte[][] foreground, int b, boolean full) {
+		UnionFind forest = new UnionFind(255);
+		forest.n = 0;
+		int row0 = b*blockRows;
+		int row1 = Math.min(row0+blockRows, height*depth);
+		for (int row=row0; row<row1; row++) {
+			int z = row/height, y = row%height;
+			byte[] fg = foreground[z];
+			int[] lab = labels[z];
+			int[] previous = z>0 && row-height>=row0 ? labels[z-1] : null;	// previous slice, in this block
+			boolean hasNorth = y>0 && row>row0;
+			for (int x=0, i=y*width; x<width; x++, i++) {
+				if (fg[i]==0) {
+					lab[i] = 0;
+					continue;
+				}
+				int label = x>0 ? lab[i-1] : 0;
+				if (hasNorth) {
+					label = join(label, lab[i-width], forest);
+					if (full) {
+						if (x>0) label = join(label, lab[i-width-1], forest);
+						if (x<width-1) label = join(label, lab[i-width+1], forest);
+					}
+				}
+				if (previous!=null) {
+					if (full)
+						label = joinPreviousSlice(label, previous, x, y, forest, 0);
+					else
+						label = join(label, previous[i], forest);
+				}
+				if (label==0)
+					label = forest.newLabel();
+				lab[i] = label;
+			}
+		}
+		return forest;
+	}
+
+	/** Returns 'label' or, if zero, 'neighbor'; if both are nonzero, they are joined */
+	private static int join(int label, int neighbor, UnionFind forest) {
+		if (neighbor==0)
+			return label;
+		if (label==0)
+			return neighbor;
+		if (label!=neighbor)
+			forest.union(label, neighbor);
+		return label;
+	}
+
+	/** Joins 'label' with the 3x3 neighbors of (x, y) in the previous slice, where the
+		labels of the previous slice are offset by 'offset' in the forest */
+	private int joinPreviousSlice(int label, int[] previous, int x, int y, UnionFind forest, int offset) {
+		int y1 = Math.max(y-1, 0), y2 = Math.min(y+1, height-1);
+		int x1 = Math.max(x-1, 0), x2 = Math.min(x+1, width-1);
+		for (int yp=y1; yp<=y2; yp++)
+			for (int xp=x1, i=yp*width+x1; xp<=x2; xp++, i++)
+				if (previous[i]!=0)
+					label = join(label, previous[i]+offset, forest);
+		return label;
+	}
+
+	/** Joins the particles touching the first row (2D) or slice (3D) of block 'b'
+		with those of the previous block */
+	private void mergeBorder(int b, int[] base, boolean full, UnionFind forest) {
+		int row0 = b*blockRows;
+		int z = row0/height, y0 = row0%height;
+		int[] lab = labels[z];
+		int offset = base[b], previousOffset = base[b-1];
+		if (depth>1) {
+			int[] previous = labels[z-1];
+			for (int y=0, i=0; y<height; y++) {
+				for (int x=0; x<width; x++, i++) {
+					if (lab[i]==0) continue;
+					int label = lab[i] + offset;
+					if (full)
+						joinPreviousSlice(label, previous, x, y, forest, previousOffset);
+					else if (previous[i]!=0)
+						join(label, previous[i]+previousOffset, forest);
+				}
+			}
+		} else {
+			for (int x=0, i=y0*width; x<width; x++, i++) {
+				if (lab[i]==0) continue;
+				int label = lab[i] + offset;
+				int north = i - width;
+				if (lab[north]!=0)
+					join(label, lab[north]+previousOffset, forest);
+				if (full) {
+					if (x>0 && lab[north-1]!=0)
+						join(label, lab[north-1]+previousOffset, forest);
+					if (x<width-1 && lab[north+1]!=0)
+						join(label, lab[north+1]+previousOffset, forest);
+				}
+			}
+		}
+	}
+
+	/** Second pass: sets the final labels of block 'b', which has the provisional
+		labels offset+1 to offset+n, and returns the data of its particles (null if
+		there are none). The data are indexed by the distinct final labels of the block,
+		thus their size does not depend on the range of labels. */
+	private Particles relabelBlock(int b, int[] map, int offset, int n) {
+		if (n==0)
+			return null;
+		int[] finalLabels = new int[n+1];
+		int[] sorted = new int[n];
+		for (int k=1; k<=n; k++)
+			finalLabels[k] = sorted[k-1] = map[offset+k];
+		Arrays.sort(sorted);
+		int nParticles = 0;
+		for (int k=0; k<n; k++)
+			if (k==0 || sorted[k]!=sorted[k-1])
+				sorted[nParticles++] = sorted[k];
+		int[] labelsOfBlock = new int[nParticles];
+		System.arraycopy(sorted, 0, labelsOfBlock, 0, nParticles);
+		sorted = null;
+		int[] index = new int[n+1];		// from provisional label to index in labelsOfBlock
+		for (int k=1; k<=n; k++)
+			index[k] = Arrays.binarySearch(labelsOfBlock, finalLabels[k]);
+		blockLabels[b] = labelsOfBlock;
+		Particles p = new Particles(labelsOfBlock, nParticles);
+		int row0 = b*blockRows;
+		int row1 = Math.min(row0+blockRows, height*depth);
+		for (int row=row0; row<row1; row++) {
+			int z = row/height, y = row%height;
+			int[] lab = labels[z];
+			for (int x=0, i=y*width; x<width; x++, i++) {
+				int label = lab[i];
+				if (label==0) continue;
+				lab[i] = finalLabels[label];
+				p.add(index[label], x, y, z, row);
+			}
+		}
+		return p;
+	}
+
+	/** Sets all background pixels of 'foreground' (an array of width*height pixels)
+		that are not connected to the edge of the image to 255. Background is
+		4-connected if the particles are 8-connected ('eightConnected' true)
+		and vice versa, thus the particles are filled as with a traced outline. */
+	public static void fillHoles(byte[] foreground, int width, int height, boolean eightConnected) {
+		byte[] outside = new byte[width*height];
+		int[] stack = new int[1024];
+		int stackSize = 0;
+		for (int y=0; y<height; y++) {
+			for (int x=0; x<width; x++) {
+				if (y>0 && y<height-1 && x>0 && x<width-1)
+					x = width-1;
+				int i = y*width + x;
+				if (foreground[i]==0 && outside[i]==0) {
+					outside[i] = 1;
+					if (stackSize==stack.length) {
+						int[] stack2 = new int[2*stack.length];
+						System.arraycopy(stack, 0, stack2, 0, stackSize);
+						stack = stack2;
+					}
+					stack[stackSize++] = i;
+				}
+			}
+		}
+		while (stackSize>0) {
+			int i = stack[--stackSize];
+			int x = i%width;
+			int y = i/width;
+			for (int dy=-1; dy<=1; dy++) {
+				int y2 = y + dy;
+				if (y2<0 || y2>=height) continue;
+				for (int dx=-1; dx<=1; dx++) {
+					int x2 = x + dx;
+					if (x2<0 || x2>=width || (dx==0 && dy==0)) continue;
+					if (eightConnected && dx!=0 && dy!=0) continue;	// 4-connected background
+					int i2 = y2*width + x2;
+					if (foreground[i2]==0 && outside[i2]==0) {
+						outside[i2] = 1;
+						if (stackSize==stack.length) {
+							int[] stack2 = new int[2*stack.length];
+							System.arraycopy(stack, 0, stack2, 0, stackSize);
+							stack = stack2;
+						}
+						stack[stackSize++] = i2;
+					}
+				}
+			}
+		}
+		for (int i=0; i<foreground.length; i++)
+			if (foreground[i]==0 && outside[i]==0)
+				foreground[i] = (byte)255;
+	}
+
+	/** Returns the number of particles found by the last call to label(). */
+	public int getCount() {
+		return count;
+	}
+
+	/** Returns the label image (width*height pixels) of the last call to label(),
+		or the labels of the first slice for stacks. The array is reused by
+		subsequent calls. */
+	public int[] getLabels() {
+		return labels[0];
+	}
+
+	/** Returns the labels of the given slice (0-based) of the last call to label(). */
+	public int[] getLabels(int z) {
+		return labels[z];
+	}
+
+	/** Returns the labels as a stack of 32-bit images. Labels are exact
+		up to 16777216 (2^24). */
+	public ImageStack getLabelStack() {
+		ImageStack stack = new ImageStack(width, height);
+		for (int z=0; z<depth; z++) {
+			int[] lab = labels[z];
+			float[] pixels = new float[width*height];
+			for (int i=0; i<pixels.length; i++)
+				pixels[i] = lab[i];
+			stack.addSlice(null, new FloatProcessor(width, height, pixels, null));
+		}
+		return stack;
+	}
+
+	/** Returns the bounding rectangle (in x and y) of the given particle. */
+	public Rectangle getBounds(int label) {
+		Particles p = particles;
+		return new Rectangle(p.xMin[label-1], p.yMin[label-1], p.xMax[label-1]-p.xMin[label-1]+1, p.yMax[label-1]-p.yMin[label-1]+1);
+	}
+
+	/** Returns the first slice (0-based) of the given particle. */
+	public int getFirstSlice(int label) {
+		return particles.zMin[label-1];
+	}
+
+	/** Returns the last slice (0-based) of the given particle. */
+	public int getLastSlice(int label) {
+		return particles.zMax[label-1];
+	}
+
+	/** Returns the x coordinate of the first pixel (in raster order) of the given particle. */
+	public int getStartX(int label) {
+		return particles.xStart[label-1];
+	}
+
+	/** Returns the y coordinate of the first pixel (in raster order) of the given particle. */
+	public int getStartY(int label) {
+		return particles.rowStart[label-1]%height;
+	}
+
+	/** Returns the slice (0-based) of the first pixel (in raster order) of the given particle. */
+	public int getStartZ(int label) {
+		return particles.rowStart[label-1]/height;
+	}
+
+	/** Returns the number of pixels (voxels) of the given particle. */
+	public int getPixelCount(int label) {
+		return particles.pixelCount[label-1];
+	}
+
+	/** Returns the centroid {x, y, z} of the given particle, in pixels, where
+		(0, 0, 0) is the center of the first pixel of the first slice. */
+	public double[] getCentroid(int label) {
+		Particles p = particles;
+		int n = p.pixelCount[label-1];
+		return new double[] {p.xSum[label-1]/n, p.ySum[label-1]/n, p.zSum[label-1]/n};
+	}
+
+	/** Returns a mask of the given particle with the size of its bounding rectangle;
+		pixels of the particle are 255, all others 0. For stacks, the mask is that
+		of the first slice of the particle. */
+	public ByteProcessor getMask(int label) {
+		Rectangle r = getBounds(label);
+		int[] lab = labels[getFirstSlice(label)];
+		byte[] mask = new byte[r.width*r.height];
+		for (int y=0, i=0; y<r.height; y++) {
+			int offset = (r.y+y)*width + r.x;
+			for (int x=0; x<r.width; x++, i++)
+				if (lab[offset+x]==label)
+					mask[i] = (byte)255;
+		}
+		return new ByteProcessor(r.width, r.height, mask, null);
+	}
+
+	/** Returns the mean pixel values of all particles (index 1 to getCount()) in the
+		given stack, which must have the size of the labeled image. 'cTable' is the
+		calibration function table for 8- and 16-bit data, or null. */
+	public double[] getMeanValues(final ImageStack stack, final float[] cTable) {
+		if (stack.getWidth()!=width || stack.getHeight()!=height || stack.getSize()!=depth)
+			throw new IllegalArgumentException("Stack size does not match");
+		final double[][] blockSums = new double[nBlocks][];
+		ThreadUtil.parallelFor(0, nBlocks, 1, new ThreadUtil.RangeTask() {
+			public void run(int from, int to) {
+				for (int b=from; b<to; b++) {
+					int[] labelsOfBlock = blockLabels[b];
+					if (labelsOfBlock==null) continue;
+					double[] sums = new double[labelsOfBlock.length];
+					int lastLabel = 0, k = 0;
+					int row0 = b*blockRows;
+					int row1 = Math.min(row0+blockRows, height*depth);
+					ImageProcessor ip = null;
+					for (int row=row0; row<row1; row++) {
+						int z = row/height, y = row%height;
+						if (ip==null || y==0)
+							ip = stack.getProcessor(z+1);
+						boolean rgb = ip instanceof ColorProcessor;
+						float[] cTable2 = ip instanceof FloatProcessor ? null : cTable;
+						int[] lab = labels[z];
+						for (int x=0, i=y*width; x<width; x++, i++) {
+							if (lab[i]==0) continue;
+							float v = rgb ? ip.getPixelValue(x, y) : ip.getf(i);
+							if (cTable2!=null && !rgb)
+								v = cTable2[(int)v];
+							if (lab[i]!=lastLabel) {
+								lastLabel = lab[i];
+								k = Arrays.binarySearch(labelsOfBlock, lastLabel);
+							}
+							sums[k] += v;
+						}
+					}
+					blockSums[b] = sums;
+				}
+			}
+		});
+		double[] means = new double[count+1];
+		for (int b=0; b<nBlocks; b++) {
+			double[] sums = blockSums[b];
+			if (sums==null) continue;
+			for (int k=0; k<sums.length; k++)
+				means[blockLabels[b][k]] += sums[k];
+		}
+		for (int label=1; label<=count; label++)
+			means[label] /= particles.pixelCount[label-1];
+		return means;
+	}
+
+	/** Union-find forest of provisional labels 1 to n; the lowest label of a set is its root */
+	private static class UnionFind {
+		int[] parent;
+		int n;
+
+		UnionFind(int n) {
+			parent = new int[n+1];
+			this.n = n;
+		}
+
+		int newLabel() {
+			n++;
+			if (n>=parent.length) {
+				int[] parent2 = new int[2*parent.length];
+				System.arraycopy(parent, 0, parent2, 0, parent.length);
+				parent = parent2;
+			}
+			parent[n] = n;
+			return n;
+		}
+
+		/** Returns the root of label 'k', with path halving */
+		int find(int k) {
+			int[] parent = this.parent;
+			while (parent[k]!=k) {
+				parent[k] = parent[parent[k]];
+				k = parent[k];
+			}
+			return k;
+		}
+
+		void union(int k1, int k2) {
+			int root1 = find(k1);
+			int root2 = find(k2);
+			if (root1<root2)
+				parent[root2] = root1;
+			else if (root2<root1)
+				parent[root1] = root2;
+		}
+	}
+
+	/** Pixel count, bounds, first pixel and coordinate sums of 'n' particles; with
+		index k for label labels[k], or label k+1 if 'labels' is null */
+	private static class Particles {
+		final int[] labels;
+		final int[] pixelCount, xMin, yMin, zMin, xMax, yMax, zMax, xStart, rowStart;
+		final double[] xSum, ySum, zSum;
+
+		Particles(int[] labels, int n) {
+			this.labels = labels;
+			pixelCount = new int[n];
+			xMin = new int[n]; yMin = new int[n]; zMin = new int[n];
+			xMax = new int[n]; yMax = new int[n]; zMax = new int[n];
+			xStart = new int[n]; rowStart = new int[n];
+			xSum = new double[n]; ySum = new double[n]; zSum = new double[n];
+		}
+
+		/** Adds a pixel of the particle with index k; pixels must be added in raster order */
+		void add(int k, int x, int y, int z, int row) {
+			if (pixelCount[k]==0) {
+				xMin[k] = x; xMax[k] = x;
+				yMin[k] = y; yMax[k] = y;
+				zMin[k] = z; zMax[k] = z;
+				xStart[k] = x; rowStart[k] = row;
+			} else {
+				if (x<xMin[k]) xMin[k] = x;
+				if (x>xMax[k]) xMax[k] = x;
+				if (y<yMin[k]) yMin[k] = y;
+				if (y>yMax[k]) yMax[k] = y;
+				zMax[k] = z;
+			}
+			pixelCount[k]++;
+			xSum[k] += x; ySum[k] += y; zSum[k] += z;
+		}
+
+		/** Adds the particles of a subsequent block; 'this' must have labels 1, 2, 3... */
+		void add(Particles p) {
+			for (int k2=0; k2<p.pixelCount.length; k2++) {
+				if (p.pixelCount[k2]==0) continue;
+				int k = p.labels[k2] - 1;
+				if (pixelCount[k]==0) {
+					xMin[k] = p.xMin[k2]; xMax[k] = p.xMax[k2];
+					yMin[k] = p.yMin[k2]; yMax[k] = p.yMax[k2];
+					zMin[k] = p.zMin[k2]; zMax[k] = p.zMax[k2];
+					xStart[k] = p.xStart[k2]; rowStart[k] = p.rowStart[k2];
+				} else {
+					if (p.xMin[k2]<xMin[k]) xMin[k] = p.xMin[k2];
+					if (p.xMax[k2]>xMax[k]) xMax[k] = p.xMax[k2];
+					if (p.yMin[k2]<yMin[k]) yMin[k] = p.yMin[k2];
+					if (p.yMax[k2]>yMax[k]) yMax[k] = p.yMax[k2];
+					zMax[k] = p.zMax[k2];
+				}
+				pixelCount[k] += p.pixelCount[k2];
+				xSum[k] += p.xSum[k2]; ySum[k] += p.ySum[k2]; zSum[k] += p.zSum[k2];
+			}
+		}
+	}
+
+}
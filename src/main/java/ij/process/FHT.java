@@ -2,7 +2,9 @@ package ij.process;
 import ij.*;
 import ij.plugin.FFT;
 import ij.plugin.ContrastEnhancer;
+import ij.util.ThreadUtil;
 import java.awt.image.ColorModel; 
+import java.util.HashMap;
 
 /**
 This class contains a Java implementation of the Fast Hartley
@@ -20,6 +22,9 @@ public class FHT extends FloatProcessor {
 	private int[] bitrev;
 	private float[] tempArr;
 	private boolean showProgress = true;
+	private static HashMap<Integer,float[][]> sinCosTables = new HashMap<Integer,float[][]>();
+	private static HashMap<Integer,int[]> bitRevTables = new HashMap<Integer,int[]>();
+	private static final int COLUMN_BLOCK = 16;	// number of columns copied to a buffer together
 	
 	/** Used by the FFT class. */
 	public boolean quadrantSwapNeeded;
@@ -59,13 +64,15 @@ public class FHT extends FloatProcessor {
 	}
 
 	/** Performs a forward transform, converting this image into the frequency domain. 
-		The image contained in this FHT must be square and its width must be a power of 2. */
+		Square images with a power of 2 width are transformed fastest; other sizes use
+		a mixed-radix transform, which is fast if the width and height have no prime
+		factors other than 2, 3, 5 and 7 (see {@link MixedRadixFHT}). */
 	public void transform() {
 		transform(false);
 	}
 
 	/** Performs an inverse transform, converting this image into the space domain. 
-		The image contained in this FHT must be square and its width must be a power of 2. */
+		Like transform(), it works with images of any size. */
 	public void inverseTransform() {
 		transform(true);
 	}
@@ -154,7 +161,7 @@ public class FHT extends FloatProcessor {
 	}
 
 	/** Performs an optimized 1D Fast Hartley Transform (FHT) of an array.
-	 *  Array size must be a power of 2.
+	 *  Array sizes that are not a power of 2 are transformed with a {@link MixedRadixFHT}.
 	 *  Note that all amplitudes in the output 'x' are multiplied by the array length.
 	 *  Therefore, to get the power spectrum, for 1 <=i < N/2, use
 	 *  ps[i] = (x[i]*x[i]+x[maxN-i]*x[maxN-i])/(maxN*maxN), where maxN is the array length.
@@ -166,37 +173,42 @@ public class FHT extends FloatProcessor {
 	 */
 	public void transform1D(float[] x) {
 		int n = x.length;
-		if (S==null || n!=maxN) {
-			if (!isPowerOf2(n))
-				throw new IllegalArgumentException("Not power of 2 length: "+n);
-			initializeTables(n);
+		if (!isPowerOf2(n)) {
+			MixedRadixFHT.getInstance(n).transform(x, 0, 1, false);
+			return;
 		}
+		if (S==null || n!=maxN)
+			initializeTables(n);
 		dfht3(x, 0, false, n);
 	}
 
     /** Performs an inverse 1D Fast Hartley Transform (FHT) of an array */
 	public void inverseTransform1D(float[] fht) {
 		int n = fht.length;
-		if (S==null || n!=maxN) {
-			if (!isPowerOf2(n))
-				throw new IllegalArgumentException("Not power of 2 length: "+n);
-			initializeTables(n);
+		if (!isPowerOf2(n)) {
+			MixedRadixFHT.getInstance(n).transform(fht, 0, 1, true);
+			return;
 		}
+		if (S==null || n!=maxN)
+			initializeTables(n);
 		dfht3(fht, 0, true, n);
 	}
 
 	void transform(boolean inverse) {
 		//IJ.log("transform: "+maxN+" "+inverse);
-		if (!powerOf2Size())
-			throw new  IllegalArgumentException("Image not power of 2 size or not square: "+width+"x"+height);
-		maxN = width;
-		if (S==null)
-			initializeTables(maxN);
 		float[] fht = (float[])getPixels();
-	 	rc2DFHT(fht, inverse, maxN);
+		if (powerOf2Size()) {
+			maxN = width;
+			if (S==null)
+				initializeTables(maxN);
+		 	rc2DFHT(fht, inverse, maxN);
+		} else
+			mixedRadix2DFHT(fht, inverse, width, height, true);
 		isFrequencyDomain = !inverse;
 	}
 	
+	/** Sets the sine, cosine and bit reversal tables for length maxN. The tables
+		are shared by all FHTs of the same size, i.e., calculated only once. */
 	void initializeTables(int maxN) {
 	    if (maxN>0x40000000)
 	        throw new  IllegalArgumentException("Too large for FHT:  "+maxN+" >2^30");
@@ -206,59 +218,272 @@ public class FHT extends FloatProcessor {
 	}
 
 	void makeSinCosTables(int maxN) {
-		int n = maxN/4;
-		C = new float[n];
-		S = new float[n];
-		double theta = 0.0;
-		double dTheta = 2.0 * Math.PI/maxN;
-		for (int i=0; i<n; i++) {
-			C[i] = (float)Math.cos(theta);
-			S[i] = (float)Math.sin(theta);
-			theta += dTheta;
+		synchronized(sinCosTables) {
+			float[][] tables = sinCosTables.get(maxN);
+			if (tables==null) {
+				int n = maxN/4;
+				C = new float[n];
+				S = new float[n];
+				double theta = 0.0;
+				double dTheta = 2.0 * Math.PI/maxN;
+				for (int i=0; i<n; i++) {
+					C[i] = (float)Math.cos(theta);
+					S[i] = (float)Math.sin(theta);
+					theta += dTheta;
+				}
+				sinCosTables.put(maxN, new float[][] {C, S});
+			} else {
+				C = tables[0];
+				S = tables[1];
+			}
 		}
 	}
 	
 	void makeBitReverseTable(int maxN) {
-		bitrev = new int[maxN];
-		int nLog2 = log2(maxN);
-		for (int i=0; i<maxN; i++)
-			bitrev[i] = bitRevX(i, nLog2);
+		synchronized(bitRevTables) {
+			bitrev = bitRevTables.get(maxN);
+			if (bitrev==null) {
+				bitrev = new int[maxN];
+				int nLog2 = log2(maxN);
+				for (int i=0; i<maxN; i++)
+					bitrev[i] = bitRevX(i, nLog2);
+				bitRevTables.put(maxN, bitrev);
+			}
+		}
 	}
 
-	/** Performs a 2D FHT (Fast Hartley Transform). */
+	/** Performs a 2D FHT (Fast Hartley Transform). The rows and columns are
+		transformed in parallel, using Prefs.getThreads() threads; the columns
+		are copied to a buffer in blocks, for efficient use of the cache. */
 	public void rc2DFHT(float[] x, boolean inverse, int maxN) {
+		rc2DFHT(x, inverse, maxN, true);
+	}
+
+	private void rc2DFHT(final float[] x, final boolean inverse, final int maxN, boolean parallel) {
 		//IJ.write("FFT: rc2DFHT (row-column Fast Hartley Transform)");
 		if (S==null) initializeTables(maxN);
-		for (int row=0; row<maxN; row++)
-			dfht3(x, row*maxN, inverse, maxN);		
+		forRange(parallel, maxN, 16, new ThreadUtil.RangeTask() {
+			public void run(int from, int to) {
+				float[] temp = new float[maxN];
+				for (int row=from; row<to; row++)
+					dfht3(x, row*maxN, inverse, maxN, temp);
+			}
+		});
 		progress(0.4);
-		transposeR(x, maxN);
-		progress(0.5);
-		for (int row=0; row<maxN; row++)		
-			dfht3(x, row*maxN, inverse, maxN);
-		progress(0.7);
-		transposeR(x, maxN);
+		transformColumns(x, maxN, maxN, new ColumnTransform() {
+			public void transform(float[] buffer, int nColumns, float[] temp) {
+				for (int c=0; c<nColumns; c++)
+					dfht3(buffer, c*maxN, inverse, maxN, temp);
+			}
+		}, parallel);
 		progress(0.8);
+		toHartley(x, maxN, maxN, parallel);
+		progress(0.95);
+	}
 
-		int mRow, mCol;
-		float A,B,C,D,E;
-		for (int row=0; row<=maxN/2; row++) { // Now calculate actual Hartley transform
-			for (int col=0; col<=maxN/2; col++) {
-				mRow = (maxN - row) % maxN;
-				mCol = (maxN - col)  % maxN;
-				A = x[row * maxN + col];	//  see Bracewell, 'Fast 2D Hartley Transf.' IEEE Procs. 9/86
-				B = x[mRow * maxN + col];
-				C = x[row * maxN + mCol];
-				D = x[mRow * maxN + mCol];
-				E = ((A + D) - (B + C)) / 2;
-				x[row * maxN + col] = A - E;
-				x[mRow * maxN + col] = B + E;
-				x[row * maxN + mCol] = C + E;
-				x[mRow * maxN + mCol] = D - E;
+	/** Performs a 2D FHT of an image with arbitrary width and height, using
+		mixed-radix 1D transforms of the rows and columns (in parallel). */
+	void mixedRadix2DFHT(final float[] x, final boolean inverse, final int width, final int height, boolean parallel) {
+		final MixedRadixFHT rowFHT = MixedRadixFHT.getInstance(width);
+		final MixedRadixFHT colFHT = MixedRadixFHT.getInstance(height);
+		int nPairs = (height+1)/2;
+		forRange(parallel, nPairs, 8, new ThreadUtil.RangeTask() {
+			public void run(int from, int to) {
+				double[] work = new double[rowFHT.getWorkSize()];
+				for (int row=2*from; row<2*to && row<height; row+=2)
+					rowFHT.transform(x, row*width, row+1<height?(row+1)*width:-1, 1, inverse, work);
 			}
-		}
+		});
+		progress(0.4);
+		transformColumns(x, width, height, new ColumnTransform() {
+			public void transform(float[] buffer, int nColumns, float[] temp) {
+				double[] work = new double[colFHT.getWorkSize()];	// called by several threads
+				for (int c=0; c<nColumns; c+=2)
+					colFHT.transform(buffer, c*height, c+1<nColumns?(c+1)*height:-1, 1, inverse, work);
+			}
+		}, parallel);
+		progress(0.8);
+		toHartley(x, width, height, parallel);
 		progress(0.95);
 	}
+
+	/** Transforms contiguous data of nColumns columns (each 'height' long) in the buffer */
+	private interface ColumnTransform {
+		void transform(float[] buffer, int nColumns, float[] temp);
+	}
+
+	/** Copies blocks of COLUMN_BLOCK columns into a buffer where each column is
+		contiguous, calls the ColumnTransform and copies the data back. The blocks
+		are processed in parallel. */
+	private void transformColumns(final float[] x, final int width, final int height, final ColumnTransform columnTransform, boolean parallel) {
+		int nBlocks = (width+COLUMN_BLOCK-1)/COLUMN_BLOCK;
+		forRange(parallel, nBlocks, 1, new ThreadUtil.RangeTask() {
+			public void run(int from, int to) {
+				float[] buffer = new float[COLUMN_BLOCK*height];
+				float[] temp = new float[height];
+				for (int block=from; block<to; block++) {
+					int col0 = block*COLUMN_BLOCK;
+					int nColumns = Math.min(COLUMN_BLOCK, width-col0);
+					for (int y=0, p=col0; y<height; y++, p+=width)
+						for (int c=0; c<nColumns; c++)
+							buffer[c*height+y] = x[p+c];
+					columnTransform.transform(buffer, nColumns, temp);
+					for (int y=0, p=col0; y<height; y++, p+=width)
+						for (int c=0; c<nColumns; c++)
+							x[p+c] = buffer[c*height+y];
+				}
+			}
+		});
+	}
+
+	/** Converts the result of 1D transforms of all rows and columns (the separable 'cas-cas'
+		transform) into the 2D Hartley transform, see Bracewell, 'Fast 2D Hartley Transf.'
+		IEEE Procs. 9/86 */
+	void toHartley(final float[] x, final int width, final int height, boolean parallel) {
+		int nRows = height/2+1;
+		forRange(parallel, nRows, 16, new ThreadUtil.RangeTask() {
+			public void run(int from, int to) {
+				int mRow, mCol;
+				float A,B,C,D,E;
+				for (int row=from; row<to; row++) {
+					mRow = (height - row) % height;
+					for (int col=0; col<=width/2; col++) {
+						mCol = (width - col)  % width;
+						A = x[row * width + col];
+						B = x[mRow * width + col];
+						C = x[row * width + mCol];
+						D = x[mRow * width + mCol];
+						E = ((A + D) - (B + C)) / 2;
+						x[row * width + col] = A - E;
+						x[mRow * width + col] = B + E;
+						x[row * width + mCol] = C + E;
+						x[mRow * width + mCol] = D - E;
+					}
+				}
+			}
+		});
+	}
+
+	/** Runs the task for indices 0 to n-1 with ThreadUtil.parallelFor or, if 'parallel' is false, in the calling thread. */
+	private static void forRange(boolean parallel, int n, int minChunkSize, ThreadUtil.RangeTask task) {
+		if (parallel)
+			ThreadUtil.parallelFor(0, n, ThreadUtil.getChunkSize(n, minChunkSize), task);
+		else
+			task.run(0, n);
+	}
+
+	/** Transforms all slices of a 32-bit stack in place, into the frequency domain or, if 'inverse'
+		is true, back into the space domain. The slices are processed in parallel; the transform
+		tables are calculated only once, and no FHT objects or copies of the slices are created.
+		Any image size is supported, as with {@link #transform()}. The frequency-domain slices
+		can be converted to FHTs with <code>new FHT(ip, true)</code>. */
+	public static void transform(final ImageStack stack, final boolean inverse) {
+		if (stack.getBitDepth()!=32 || stack.isVirtual())
+			throw new IllegalArgumentException("32-bit stack in RAM required");
+		final int width = stack.getWidth();
+		final int height = stack.getHeight();
+		final int nSlices = stack.getSize();
+		final FHT fht = new FHT();
+		fht.setShowProgress(false);
+		final boolean powerOf2 = width==height && isPowerOf2(width);
+		if (powerOf2)
+			fht.initializeTables(width);
+		final boolean parallelSlices = nSlices>=Prefs.getThreads();
+		final int[] done = new int[1];
+		final Thread mainThread = Thread.currentThread();
+		forRange(parallelSlices, nSlices, 1, new ThreadUtil.RangeTask() {
+			public void run(int from, int to) {
+				for (int n=from; n<to; n++) {
+					float[] pixels = (float[])stack.getPixels(n+1);
+					if (powerOf2)
+						fht.rc2DFHT(pixels, inverse, width, !parallelSlices);
+					else
+						fht.mixedRadix2DFHT(pixels, inverse, width, height, !parallelSlices);
+					synchronized(done) {
+						done[0]++;
+					}
+					if (Thread.currentThread()==mainThread)
+						IJ.showProgress(done[0], nSlices);
+				}
+			}
+		});
+		IJ.showProgress(1.0);
+	}
+
+	/** Performs a 3D Hartley transform of a 32-bit stack in place (or, if 'inverse' is true,
+		the inverse transform). Each slice is transformed in 2D with {@link #transform(ImageStack, boolean)},
+		then all z lines are transformed (in parallel, in blocks of pixels copied to a contiguous
+		buffer) and finally the separable result is converted to the 3D Hartley transform.
+		Any stack size is supported; sizes with prime factors 2, 3, 5 and 7 only are fastest.
+		The frequency-domain stack can be used with {@link #multiply(ImageStack, ImageStack, boolean)}
+		and {@link #divide(ImageStack, ImageStack)}. */
+	public static void transform3D(final ImageStack stack, final boolean inverse) {
+		transform(stack, inverse);
+		final int depth = stack.getSize();
+		if (depth==1)
+			return;
+		final int size = stack.getWidth()*stack.getHeight();
+		final Object[] slices = new Object[depth];
+		for (int z=0; z<depth; z++)
+			slices[z] = stack.getPixels(z+1);
+		final MixedRadixFHT zTransform = MixedRadixFHT.getInstance(depth);
+		int nBlocks = (size+COLUMN_BLOCK-1)/COLUMN_BLOCK;
+		forRange(true, nBlocks, 1, new ThreadUtil.RangeTask() {
+			public void run(int from, int to) {
+				float[] buffer = new float[COLUMN_BLOCK*depth];
+				double[] work = new double[zTransform.getWorkSize()];
+				for (int block=from; block<to; block++) {
+					int p0 = block*COLUMN_BLOCK;
+					int n = Math.min(COLUMN_BLOCK, size-p0);
+					for (int z=0; z<depth; z++) {
+						float[] pixels = (float[])slices[z];
+						for (int i=0, p=z; i<n; i++, p+=depth)
+							buffer[p] = pixels[p0+i];
+					}
+					for (int i=0; i<n; i+=2)
+						zTransform.transform(buffer, i*depth, i+1<n ? (i+1)*depth : -1, 1, inverse, work);
+					for (int z=0; z<depth; z++) {
+						float[] pixels = (float[])slices[z];
+						for (int i=0, p=z; i<n; i++, p+=depth)
+							pixels[p0+i] = buffer[p];
+					}
+				}
+			}
+		});
+		toHartley3D(slices, stack.getWidth(), stack.getHeight());
+	}
+
+	/** Converts the separable transform (2D Hartley in xy, 1D Hartley in z) to the 3D Hartley
+		transform, using H(u,v,w) = (T(u,v,w) + T(u,v,-w) + T(-u,-v,w) - T(-u,-v,-w))/2,
+		where T is the separable transform. Like the Bracewell step in 2D, this is its own inverse. */
+	private static void toHartley3D(final Object[] slices, final int width, final int height) {
+		final int depth = slices.length;
+		forRange(true, depth/2+1, 1, new ThreadUtil.RangeTask() {
+			public void run(int from, int to) {
+				for (int z=from; z<to; z++) {
+					int zMod = (depth-z)%depth;
+					if (zMod==z)
+						continue;							// z=0 or z=depth/2: no change
+					float[] h1 = (float[])slices[z];
+					float[] h2 = (float[])slices[zMod];
+					for (int y=0; y<height; y++) {
+						int yMod = (height-y)%height;
+						for (int x=0; x<width; x++) {
+							int i = y*width + x;
+							int j = yMod*width + (width-x)%width;
+							if (j<i)
+								continue;					// already done as (x,y) mirror point
+							float a = h1[i], b = h2[i], c = h1[j], d = h2[j];
+							h1[i] = (a + b + c - d)*0.5f;
+							h2[i] = (b + a + d - c)*0.5f;
+							h1[j] = (c + d + a - b)*0.5f;
+							h2[j] = (d + c + b - a)*0.5f;
+						}
+					}
+				}
+			}
+		});
+	}
 	
 	void progress(double percent) {
 		if (showProgress)
@@ -274,14 +499,20 @@ public class FHT extends FloatProcessor {
 	 *  Note that all amplitudes in the output 'x' are multiplied by maxN.
 	 */
 	public void dfht3(float[] x, int base, boolean inverse, int maxN) {
+		if (S==null) initializeTables(maxN);
+		dfht3(x, base, inverse, maxN, tempArr);
+	}
+
+	/** The same as dfht3(x, base, inverse, maxN) with a temporary array of size maxN,
+		thus it can be called by several threads concurrently once the tables are initialized. */
+	private void dfht3(float[] x, int base, boolean inverse, int maxN, float[] tempArr) {
 		int i, stage, gpNum, gpIndex, gpSize, numGps, Nlog2;
 		int bfNum, numBfs;
 		int Ad0, Ad1, Ad2, Ad3, Ad4, CSAd;
 		float rt1, rt2, rt3, rt4;
 
-		if (S==null) initializeTables(maxN);
 		Nlog2 = log2(maxN);
-		BitRevRArr(x, base, Nlog2, maxN);	//bitReverse the input array
+		BitRevRArr(x, base, Nlog2, maxN, tempArr);	//bitReverse the input array
 		gpSize = 2;     //first & second stages - do radix 4 butterflies once thru
 		numGps = maxN / 4;
 		for (gpNum=0; gpNum<numGps; gpNum++)  {
@@ -375,7 +606,7 @@ public class FHT extends FloatProcessor {
 		return ((x & (1<<bit)) != 0);
 	}
 
-	void BitRevRArr (float[] x, int base, int bitlen, int maxN) {
+	void BitRevRArr (float[] x, int base, int bitlen, int maxN, float[] tempArr) {
 		for (int i=0; i<maxN; i++)
 			tempArr[i] = x[base+bitrev[i]];
 		for (int i=0; i<maxN; i++)
@@ -404,14 +635,14 @@ public class FHT extends FloatProcessor {
 		float  r, scale;
 		float min = Float.MAX_VALUE;
   		float max = Float.MIN_VALUE;
-   		float[] fps = new float[maxN*maxN];
- 		byte[] ps = new byte[maxN*maxN];
+   		float[] fps = new float[width*height];
+ 		byte[] ps = new byte[width*height];
 		float[] fht = (float[])getPixels();
 
-  		for (int row=0; row<maxN; row++) {
-			FHTps(row, maxN, fht, fps);
-			base = row * maxN;
-			for (int col=0; col<maxN; col++) {
+  		for (int row=0; row<height; row++) {
+			FHTps(row, width, height, fht, fps);
+			base = row * width;
+			for (int col=0; col<width; col++) {
 				r = fps[base+col];
 				if (r<min) min = r;
 				if (r>max) max = r;
@@ -424,9 +655,9 @@ public class FHT extends FloatProcessor {
 			min = max - 50; //display range not more than approx e^50
 		scale = (float)(253.999/(max-min));
 
-		for (int row=0; row<maxN; row++) {
-			base = row*maxN;
-			for (int col=0; col<maxN; col++) {
+		for (int row=0; row<height; row++) {
+			base = row*width;
+			for (int col=0; col<width; col++) {
 				r = fps[base+col];
 				r = ((float)Math.log(r)-min)*scale;
 				if (Float.isNaN(r) || r<0)
@@ -434,15 +665,15 @@ public class FHT extends FloatProcessor {
 				ps[base+col] = (byte)(r+1f); // 1 is min value
 			}
 		}
-		ImageProcessor ip = new ByteProcessor(maxN, maxN, ps, null);
+		ImageProcessor ip = new ByteProcessor(width, height, ps, null);
 		swapQuadrants(ip);
 		if (FFT.displayRawPS) {
-			ImageProcessor ip2 = new FloatProcessor(maxN, maxN, fps, null);
+			ImageProcessor ip2 = new FloatProcessor(width, height, fps, null);
 			swapQuadrants(ip2);
 			new ImagePlus("PS of "+FFT.fileName, ip2).show();
 		}
 		if (FFT.displayFHT) {
-			ImageProcessor ip3 = new FloatProcessor(maxN, maxN, fht, null);
+			ImageProcessor ip3 = new FloatProcessor(width, height, fht, null);
 			ImagePlus imp2 = new ImagePlus("FHT of "+FFT.fileName, ip3.duplicate());
 			(new ContrastEnhancer()).stretchHistogram(imp2, 0.1);
 			imp2.show();
@@ -459,13 +690,11 @@ public class FHT extends FloatProcessor {
 	}
 
 	/** Power Spectrum of one row from 2D Hartley Transform. */
- 	void FHTps(int row, int maxN, float[] fht, float[] ps) {
- 		int base = row*maxN;
-		int l;
-		for (int c=0; c<maxN; c++) {
-			l = ((maxN-row)%maxN) * maxN + (maxN-c)%maxN;
-			ps[base+c] = (sqr(fht[base+c]) + sqr(fht[l]))/2f;
- 		}
+ 	void FHTps(int row, int width, int height, float[] fht, float[] ps) {
+ 		int base = row*width;
+		int offs = ((height-row)%height) * width;
+		for (int c=0; c<width; c++)
+			ps[base+c] = (sqr(fht[base+c]) + sqr(fht[offs+(width-c)%width]))/2f;
 	}
 
 	/** Converts this FHT to a complex Fourier transform and returns it as a two slice stack.
@@ -475,15 +704,15 @@ public class FHT extends FloatProcessor {
 		if (!isFrequencyDomain)
 			throw new  IllegalArgumentException("Frequency domain image required");
 		float[] fht = (float[])getPixels();
-		float[] re = new float[maxN*maxN];
-		float[] im = new float[maxN*maxN];
-		for (int i=0; i<maxN; i++) {
-			FHTreal(i, maxN, fht, re);
-			FHTimag(i, maxN, fht, im);
+		float[] re = new float[width*height];
+		float[] im = new float[width*height];
+		for (int i=0; i<height; i++) {
+			FHTreal(i, width, height, fht, re);
+			FHTimag(i, width, height, fht, im);
 		}
-		swapQuadrants(new FloatProcessor(maxN, maxN, re, null));
-		swapQuadrants(new FloatProcessor(maxN, maxN, im, null));
-		ImageStack stack = new ImageStack(maxN, maxN);
+		swapQuadrants(new FloatProcessor(width, height, re, null));
+		swapQuadrants(new FloatProcessor(width, height, im, null));
+		ImageStack stack = new ImageStack(width, height);
 		stack.addSlice("Real", re);
 		stack.addSlice("Imaginary", im);
 		return stack;
@@ -492,11 +721,11 @@ public class FHT extends FloatProcessor {
 	/**	 FFT real value of one row from 2D Hartley Transform.
 	*	Author: Joachim Wesner
 	*/
-      void FHTreal(int row, int maxN, float[] fht, float[] real) {
-            int base = row*maxN;
-            int offs = ((maxN-row)%maxN) * maxN;
-            for (int c=0; c<maxN; c++) {
-                  real[base+c] = (fht[base+c] + fht[offs+((maxN-c)%maxN)])*0.5f;
+      void FHTreal(int row, int width, int height, float[] fht, float[] real) {
+            int base = row*width;
+            int offs = ((height-row)%height) * width;
+            for (int c=0; c<width; c++) {
+                  real[base+c] = (fht[base+c] + fht[offs+((width-c)%width)])*0.5f;
             }
       }
 
@@ -504,32 +733,30 @@ public class FHT extends FloatProcessor {
 	/** FFT imag value of one row from 2D Hartley Transform.
 	*	@author Joachim Wesner
 	*/
-      void FHTimag(int row, int maxN, float[] fht, float[] imag) {
-            int base = row*maxN;
-            int offs = ((maxN-row)%maxN) * maxN;
-            for (int c=0; c<maxN; c++) {
-                  imag[base+c] = (-fht[base+c] + fht[offs+((maxN-c)%maxN)])*0.5f;
+      void FHTimag(int row, int width, int height, float[] fht, float[] imag) {
+            int base = row*width;
+            int offs = ((height-row)%height) * width;
+            for (int c=0; c<width; c++) {
+                  imag[base+c] = (-fht[base+c] + fht[offs+((width-c)%width)])*0.5f;
             }
       }
 
-	ImageProcessor calculateAmplitude(float[] fht, int maxN) {
-   		float[] amp = new float[maxN*maxN];
-   		for (int row=0; row<maxN; row++) {
-			amplitude(row, maxN, fht, amp);
+	ImageProcessor calculateAmplitude(float[] fht, int width, int height) {
+   		float[] amp = new float[width*height];
+   		for (int row=0; row<height; row++) {
+			amplitude(row, width, height, fht, amp);
 		}
-		ImageProcessor ip = new FloatProcessor(maxN, maxN, amp, null);
+		ImageProcessor ip = new FloatProcessor(width, height, amp, null);
 		swapQuadrants(ip);
 		return ip;
 	}
 
 	/** Amplitude of one row from 2D Hartley Transform. */
- 	void amplitude(int row, int maxN, float[] fht, float[] amplitude) {
- 		int base = row*maxN;
-		int l;
-		for (int c=0; c<maxN; c++) {
-			l = ((maxN-row)%maxN) * maxN + (maxN-c)%maxN;
-			amplitude[base+c] = (float)Math.sqrt(sqr(fht[base+c]) + sqr(fht[l]));
- 		}
+ 	void amplitude(int row, int width, int height, float[] fht, float[] amplitude) {
+ 		int base = row*width;
+		int offs = ((height-row)%height) * width;
+		for (int c=0; c<width; c++)
+			amplitude[base+c] = (float)Math.sqrt(sqr(fht[base+c]) + sqr(fht[offs+(width-c)%width]));
 	}
 
 	private float sqr(float x) {
@@ -542,23 +769,46 @@ public class FHT extends FloatProcessor {
 		    2 1
 		    3 4
 		</pre>
+		With odd image sizes, the origin is moved to (width/2, height/2),
+		rounded down, and calling this method again does not restore the
+		original; use swapQuadrants(ip, true) for the reverse operation.
 	*/
  	public void swapQuadrants(ImageProcessor ip) {
+ 		swapQuadrants(ip, false);
+ 	}
+
+	/**	Swaps the quadrants of the specified ImageProcessor; if 'inverse' is true,
+		the center is moved to the origin. For even sizes, both directions are the same. */
+ 	public void swapQuadrants(ImageProcessor ip, boolean inverse) {
 		//IJ.log("swap");
- 		ImageProcessor t1, t2;
-		int size = ip.getWidth()/2;
-		ip.setRoi(size,0,size,size);
-		t1 = ip.crop();
-  		ip.setRoi(0,size,size,size);
-		t2 = ip.crop();
-		ip.insert(t1,0,size);
-		ip.insert(t2,size,0);
-		ip.setRoi(0,0,size,size);
-		t1 = ip.crop();
-  		ip.setRoi(size,size,size,size);
-		t2 = ip.crop();
-		ip.insert(t1,size,size);
-		ip.insert(t2,0,0);
+		int width = ip.getWidth();
+		int height = ip.getHeight();
+		int dx = inverse ? (width+1)/2 : width/2;		// shift right, with wraparound
+		int dy = inverse ? (height+1)/2 : height/2;	// shift down
+		if (dx==width) dx = 0;
+		if (dy==height) dy = 0;
+		int w1 = width-dx, h1 = height-dy;
+		ImageProcessor t1=null, t2=null, t3=null, t4=null;
+		if (h1>0) {
+			ip.setRoi(0, 0, w1, h1);
+			t1 = ip.crop();
+			if (dx>0) {
+				ip.setRoi(w1, 0, dx, h1);
+				t2 = ip.crop();
+			}
+		}
+		if (dy>0) {
+			ip.setRoi(0, h1, w1, dy);
+			t3 = ip.crop();
+			if (dx>0) {
+				ip.setRoi(w1, h1, dx, dy);
+				t4 = ip.crop();
+			}
+		}
+		if (t1!=null) ip.insert(t1, dx, dy);
+		if (t2!=null) ip.insert(t2, 0, dy);
+		if (t3!=null) ip.insert(t3, dx, 0);
+		if (t4!=null) ip.insert(t4, 0, 0);
 		ip.resetRoi();
 	}
 
@@ -596,24 +846,24 @@ public class FHT extends FloatProcessor {
 	}
 
 	FHT multiply(FHT fht, boolean  conjugate) {
-		int rowMod, cMod, colMod;
+		int rowMod, colMod;
 		double h2e, h2o;
 		float[] h1 = (float[])getPixels();
 		float[] h2 = (float[])fht.getPixels();
-		float[] tmp = new float[maxN*maxN];
-		for (int r =0; r<maxN; r++) {
-			rowMod = (maxN - r) % maxN;
-			for (int c=0; c<maxN; c++) {
-				colMod = (maxN - c) % maxN;
-				h2e = (h2[r * maxN + c] + h2[rowMod * maxN + colMod]) / 2;
-				h2o = (h2[r * maxN + c] - h2[rowMod * maxN + colMod]) / 2;
+		float[] tmp = new float[width*height];
+		for (int r =0; r<height; r++) {
+			rowMod = (height - r) % height;
+			for (int c=0; c<width; c++) {
+				colMod = (width - c) % width;
+				h2e = (h2[r * width + c] + h2[rowMod * width + colMod]) / 2;
+				h2o = (h2[r * width + c] - h2[rowMod * width + colMod]) / 2;
 				if (conjugate) 
-					tmp[r * maxN + c] = (float)(h1[r * maxN + c] * h2e - h1[rowMod * maxN + colMod] * h2o);
+					tmp[r * width + c] = (float)(h1[r * width + c] * h2e - h1[rowMod * width + colMod] * h2o);
 				else
-					tmp[r * maxN + c] = (float)(h1[r * maxN + c] * h2e + h1[rowMod * maxN + colMod] * h2o);
+					tmp[r * width + c] = (float)(h1[r * width + c] * h2e + h1[rowMod * width + colMod] * h2o);
 			}
 		}
-		FHT fht2 =  new FHT(new FloatProcessor(maxN, maxN, tmp, null));
+		FHT fht2 =  new FHT(new FloatProcessor(width, height, tmp, null));
 		fht2.isFrequencyDomain = true;
 		return fht2;
 	}
@@ -623,28 +873,151 @@ public class FHT extends FloatProcessor {
 		the frequency domain. Division in the frequency domain is equivalent 
 		to deconvolution in the space domain. */
 	public FHT divide(FHT fht) {
-		int rowMod, cMod, colMod;
+		int rowMod, colMod;
 		double mag, h2e, h2o;
 		float[] h1 = (float[])getPixels();
 		float[] h2 = (float[])fht.getPixels();
-		float[] out = new float[maxN*maxN];
-		for (int r=0; r<maxN; r++) {
-			rowMod = (maxN - r) % maxN;
-			for (int c=0; c<maxN; c++) {
-				colMod = (maxN - c) % maxN;
-				mag =h2[r*maxN+c] * h2[r*maxN+c] + h2[rowMod*maxN+colMod] * h2[rowMod*maxN+colMod];
+		float[] out = new float[width*height];
+		for (int r=0; r<height; r++) {
+			rowMod = (height - r) % height;
+			for (int c=0; c<width; c++) {
+				colMod = (width - c) % width;
+				mag =h2[r*width+c] * h2[r*width+c] + h2[rowMod*width+colMod] * h2[rowMod*width+colMod];
 				if (mag<1e-20)
 					mag = 1e-20;
-				h2e = (h2[r*maxN+c] + h2[rowMod*maxN+colMod]);
-				h2o = (h2[r*maxN+c] - h2[rowMod*maxN+colMod]);
-				double tmp = (h1[r*maxN+c] * h2e - h1[rowMod*maxN+colMod] * h2o);
-				out[r*maxN+c] = (float)(tmp/mag);
+				h2e = (h2[r*width+c] + h2[rowMod*width+colMod]);
+				h2o = (h2[r*width+c] - h2[rowMod*width+colMod]);
+				double tmp = (h1[r*width+c] * h2e - h1[rowMod*width+colMod] * h2o);
+				out[r*width+c] = (float)(tmp/mag);
 			}
 		}
-		FHT fht2 = new FHT(new FloatProcessor(maxN, maxN, out, null));
+		FHT fht2 = new FHT(new FloatProcessor(width, height, out, null));
 		fht2.isFrequencyDomain = true;
 		return fht2;
 	}
+
+	/** Returns the point by point Hartley multiplication of two stacks transformed
+		with {@link #transform3D}, which is equivalent to 3D convolution in the space
+		domain or, if 'conjugate' is true, to 3D correlation. The slices are
+		processed in parallel. */
+	public static ImageStack multiply(ImageStack stack1, ImageStack stack2, final boolean conjugate) {
+		return stackMath(stack1, stack2, conjugate, false);
+	}
+
+	/** Returns the point by point Hartley division of two stacks transformed
+		with {@link #transform3D}, which is equivalent to 3D deconvolution in
+		the space domain. */
+	public static ImageStack divide(ImageStack stack1, ImageStack stack2) {
+		return stackMath(stack1, stack2, false, true);
+	}
+
+	private static ImageStack stackMath(ImageStack stack1, ImageStack stack2, final boolean conjugate, final boolean divide) {
+		final int width = stack1.getWidth();
+		final int height = stack1.getHeight();
+		final int depth = stack1.getSize();
+		if (stack2.getWidth()!=width || stack2.getHeight()!=height || stack2.getSize()!=depth)
+			throw new IllegalArgumentException("Stacks must be the same size");
+		final Object[] in1 = new Object[depth], in2 = new Object[depth];
+		final float[][] out = new float[depth][];
+		for (int z=0; z<depth; z++) {
+			in1[z] = stack1.getPixels(z+1);
+			in2[z] = stack2.getPixels(z+1);
+		}
+		forRange(true, depth, 1, new ThreadUtil.RangeTask() {
+			public void run(int from, int to) {
+				for (int z=from; z<to; z++) {
+					int zMod = (depth-z)%depth;
+					float[] h1 = (float[])in1[z], h1Mod = (float[])in1[zMod];
+					float[] h2 = (float[])in2[z], h2Mod = (float[])in2[zMod];
+					float[] result = new float[width*height];
+					for (int y=0; y<height; y++) {
+						int yMod = (height-y)%height;
+						for (int x=0; x<width; x++) {
+							int i = y*width + x;
+							int j = yMod*width + (width-x)%width;
+							if (divide) {
+								double mag = h2[i]*h2[i] + h2Mod[j]*h2Mod[j];
+								if (mag<1e-20)
+									mag = 1e-20;
+								double h2e = h2[i] + h2Mod[j];
+								double h2o = h2[i] - h2Mod[j];
+								result[i] = (float)((h1[i]*h2e - h1Mod[j]*h2o)/mag);
+							} else {
+								double h2e = (h2[i] + h2Mod[j])/2;
+								double h2o = (h2[i] - h2Mod[j])/2;
+								if (conjugate)
+									result[i] = (float)(h1[i]*h2e - h1Mod[j]*h2o);
+								else
+									result[i] = (float)(h1[i]*h2e + h1Mod[j]*h2o);
+							}
+						}
+					}
+					out[z] = result;
+				}
+			}
+		});
+		ImageStack stack3 = new ImageStack(width, height);
+		for (int z=0; z<depth; z++)
+			stack3.addSlice(null, out[z]);
+		return stack3;
+	}
+
+	/** Returns the amplitudes of a stack transformed with {@link #transform3D},
+		as 32-bit stack with the origin at the center. */
+	public static ImageStack getAmplitude(ImageStack stack) {
+		final int width = stack.getWidth();
+		final int height = stack.getHeight();
+		final int depth = stack.getSize();
+		final Object[] in = new Object[depth];
+		final float[][] out = new float[depth][];
+		for (int z=0; z<depth; z++)
+			in[z] = stack.getPixels(z+1);
+		forRange(true, depth, 1, new ThreadUtil.RangeTask() {
+			public void run(int from, int to) {
+				for (int z=from; z<to; z++) {
+					float[] h = (float[])in[z], hMod = (float[])in[(depth-z)%depth];
+					float[] amp = new float[width*height];
+					for (int y=0; y<height; y++) {
+						int yMod = (height-y)%height;
+						for (int x=0; x<width; x++) {
+							int i = y*width + x;
+							int j = yMod*width + (width-x)%width;
+							amp[i] = (float)Math.sqrt((h[i]*h[i] + hMod[j]*hMod[j])/2.0);
+						}
+					}
+					out[z] = amp;
+				}
+			}
+		});
+		ImageStack stack2 = new ImageStack(width, height);
+		for (int z=0; z<depth; z++)
+			stack2.addSlice(null, out[z]);
+		swapQuadrants3D(stack2, false);
+		return stack2;
+	}
+
+	/** Shifts the stack circularly in x, y and z so that the origin is at the center
+		(width/2, height/2, depth/2) or, if 'inverse' is true, moves the center to the origin. */
+	public static void swapQuadrants3D(ImageStack stack, boolean inverse) {
+		FHT fht = new FHT();
+		int depth = stack.getSize();
+		for (int z=1; z<=depth; z++)
+			fht.swapQuadrants(stack.getProcessor(z), inverse);
+		int dz = inverse ? (depth+1)/2 : depth/2;
+		if (dz==0 || dz==depth)
+			return;
+		Object[] pixels = new Object[depth];
+		String[] labels = new String[depth];
+		for (int z=0; z<depth; z++) {
+			pixels[z] = stack.getPixels(z+1);
+			labels[z] = stack.getSliceLabel(z+1);
+		}
+		for (int z=0; z<depth; z++) {
+			int z2 = (z+dz)%depth;
+			stack.setPixels(pixels[z], z2+1);
+			stack.setSliceLabel(labels[z], z2+1);
+		}
+	}
 			
 	/** Enables/disables display of the progress bar during transforms. */
 	public void setShowProgress(boolean showProgress) {
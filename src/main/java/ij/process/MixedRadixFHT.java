@@ -0,0 +1,361 @@
+package ij.process;
+import java.util.*;
+
+/**
+This class calculates the 1D Hartley transform of real data of arbitrary length.
+Lengths with prime factors 2, 3, 5 and 7 only are transformed by a self-sorting
+(Stockham) mixed-radix complex FFT; other lengths are handled by Bluestein's
+algorithm, which expresses the transform as a convolution calculated with a
+power-of-2 FFT. Two lines are transformed at once, as real and imaginary part
+of one complex FFT.
+<p>
+The output has the same normalization as FHT.transform1D: all amplitudes are
+multiplied by the length; the inverse transform divides by the length.
+An instance holds only tables and may be used by several threads concurrently;
+use getInstance to share the tables of frequently used sizes.
+*/
+public class MixedRadixFHT {
+	private int n;
+	private int[] radices;			// radices of the FFT stages, empty if Bluestein's algorithm is used
+	private double[][] twiddleRe, twiddleIm;	// per stage
+	private double[] dftCos, dftSin;	// for the generic radix-7 butterfly
+	// Bluestein's algorithm:
+	private MixedRadixFHT convolver;	// power-of-2 FFT used for the convolution
+	private double[] chirpRe, chirpIm;	// exp(-i*pi*k^2/n)
+	private double[] kernelRe, kernelIm;	// FFT of the conjugate chirp, divided by the convolution length
+	private static final int CACHE_SIZE = 16;	// number of most recently used lengths kept
+	private static LinkedHashMap<Integer,MixedRadixFHT> cache = new LinkedHashMap<Integer,MixedRadixFHT>(CACHE_SIZE, 0.75f, true);
+
+	/** Creates the tables for transforms of length 'n'. */
+	public MixedRadixFHT(int n) {
+		if (n<1)
+			throw new IllegalArgumentException("Invalid FHT length: "+n);
+		this.n = n;
+		int[] factors = new int[32];
+		int nFactors = 0;
+		int rest = n;
+		while (rest%4==0) {factors[nFactors++]=4; rest/=4;}
+		int[] primes = {2, 3, 5, 7};
+		for (int i=0; i<primes.length; i++)
+			while (rest%primes[i]==0) {factors[nFactors++]=primes[i]; rest/=primes[i];}
+		if (rest==1) {
+			radices = new int[nFactors];
+			System.arraycopy(factors, 0, radices, 0, nFactors);
+			makeTwiddleTables();
+		} else {
+			radices = new int[0];
+			makeBluesteinTables();
+		}
+	}
+
+	/** Returns a MixedRadixFHT for length 'n', from a cache of recently used sizes
+		if possible. This method is thread-safe. */
+	public static MixedRadixFHT getInstance(int n) {
+		synchronized(cache) {
+			MixedRadixFHT fht = cache.get(n);
+			if (fht!=null)
+				return fht;
+		}
+		MixedRadixFHT fht = new MixedRadixFHT(n);	// outside synchronized, may take some time
+		synchronized(cache) {
+			cache.put(n, fht);
+			if (cache.size()>CACHE_SIZE) {
+				Iterator<Integer> it = cache.keySet().iterator();
+				it.next();
+				it.remove();	// least recently used
+			}
+		}
+		return fht;
+	}
+
+	/** Returns the length of the data transformed. */
+	public int getLength() {
+		return n;
+	}
+
+	/** Returns true if 'n' has no prime factors other than 2, 3, 5 and 7, i.e., the
+		transform does not require Bluestein's algorithm and is fast. */
+	public static boolean isFastLength(int n) {
+		if (n<1) return false;
+		int[] primes = {2, 3, 5, 7};
+		for (int i=0; i<primes.length; i++)
+			while (n%primes[i]==0) n /= primes[i];
+		return n==1;
+	}
+
+	/** Returns the smallest even number >= 'n' that has no prime factors other
+		than 2, 3, 5 and 7. Padding images to this size needs much less memory
+		than padding to a power of 2. */
+	public static int getFastEvenLength(int n) {
+		if (n<2) return 2;
+		int size = n + (n&1);
+		while (!isFastLength(size)) size += 2;
+		return size;
+	}
+
+	/** Returns the number of doubles required for the 'work' array of transform. */
+	public int getWorkSize() {
+		int m = convolver!=null ? convolver.getLength() : 0;
+		return 4*n + 4*m;
+	}
+
+	/** Transforms one line. */
+	public void transform(float[] x, int offset, int stride, boolean inverse) {
+		transform(x, offset, -1, stride, inverse, null);
+	}
+
+	/** Transforms one or two lines of data with n values, x[offset1], x[offset1+stride] ...
+		and x[offset2], x[offset2+stride] ..., in place. If 'offset2' is negative, only one
+		line is transformed. 'work' must have at least getWorkSize() elements, or it may be
+		null (then the work arrays are allocated). */
+	public void transform(float[] x, int offset1, int offset2, int stride, boolean inverse, double[] work) {
+		if (work==null || work.length<getWorkSize())
+			work = new double[getWorkSize()];
+		int reOff=0, imOff=n;		// real and imaginary parts in 'work'
+		for (int i=0, p=offset1; i<n; i++, p+=stride)
+			work[reOff+i] = x[p];
+		if (offset2>=0) {
+			for (int i=0, p=offset2; i<n; i++, p+=stride)
+				work[imOff+i] = x[p];
+		} else {
+			for (int i=0; i<n; i++)
+				work[imOff+i] = 0.0;
+		}
+		fft(work, reOff, imOff, 2*n);
+		double scale = inverse ? 0.5/n : 0.5;
+		for (int k=0, p1=offset1, p2=offset2; k<n; k++, p1+=stride, p2+=stride) {
+			int mk = k==0 ? 0 : n-k;
+			double zr = work[reOff+k], zi = work[imOff+k];
+			double mr = work[reOff+mk], mi = work[imOff+mk];
+			x[p1] = (float)((zr + mr - zi + mi)*scale);
+			if (offset2>=0)
+				x[p2] = (float)((zi + mi - mr + zr)*scale);
+		}
+	}
+
+	/** Forward complex FFT of n values with real parts at work[reOff...] and imaginary
+		parts at work[imOff...], in place. work[tmpOff...] must have room for 2n values
+		(and the Bluestein buffers after these). */
+	private void fft(double[] work, int reOff, int imOff, int tmpOff) {
+		if (convolver!=null)
+			bluestein(work, reOff, imOff, tmpOff);
+		else
+			stockham(work, reOff, imOff, tmpOff, tmpOff+n);
+	}
+
+	/** Self-sorting mixed-radix FFT; the stages alternate between the data and the temporary array. */
+	private void stockham(double[] a, int reOff, int imOff, int tmpReOff, int tmpImOff) {
+		int inRe=reOff, inIm=imOff, outRe=tmpReOff, outIm=tmpImOff;
+		int ns = 1;		// size of the sub-transforms already done
+		double[] vr = new double[7], vi = new double[7];
+		for (int s=0; s<radices.length; s++) {
+			int p = radices[s];
+			int stride = n/p;
+			double[] twRe = twiddleRe[s], twIm = twiddleIm[s];
+			for (int j0=0; j0<stride; j0+=ns) {
+				int out0 = j0*p;
+				for (int k=0; k<ns; k++) {
+					int j = j0 + k;
+					int out = out0 + k;
+					int tw = k*(p-1);
+					switch (p) {
+						case 2: {
+							double r0=a[inRe+j], i0=a[inIm+j];
+							double r1=a[inRe+j+stride], i1=a[inIm+j+stride];
+							if (k>0) {
+								double c=twRe[tw], sn=twIm[tw];
+								double t=r1*c-i1*sn; i1=r1*sn+i1*c; r1=t;
+							}
+							a[outRe+out] = r0+r1; a[outIm+out] = i0+i1;
+							a[outRe+out+ns] = r0-r1; a[outIm+out+ns] = i0-i1;
+							break;
+						}
+						case 3: {
+							double r0=a[inRe+j], i0=a[inIm+j];
+							double r1=a[inRe+j+stride], i1=a[inIm+j+stride];
+							double r2=a[inRe+j+2*stride], i2=a[inIm+j+2*stride];
+							if (k>0) {
+								double c=twRe[tw], sn=twIm[tw];
+								double t=r1*c-i1*sn; i1=r1*sn+i1*c; r1=t;
+								c=twRe[tw+1]; sn=twIm[tw+1];
+								t=r2*c-i2*sn; i2=r2*sn+i2*c; r2=t;
+							}
+							double sr=r1+r2, si=i1+i2;
+							double tr=r0-0.5*sr, ti=i0-0.5*si;
+							double mr=-SIN60*(r1-r2), mi=-SIN60*(i1-i2);
+							a[outRe+out] = r0+sr; a[outIm+out] = i0+si;
+							a[outRe+out+ns] = tr-mi; a[outIm+out+ns] = ti+mr;
+							a[outRe+out+2*ns] = tr+mi; a[outIm+out+2*ns] = ti-mr;
+							break;
+						}
+						case 4: {
+							double r0=a[inRe+j], i0=a[inIm+j];
+							double r1=a[inRe+j+stride], i1=a[inIm+j+stride];
+							double r2=a[inRe+j+2*stride], i2=a[inIm+j+2*stride];
+							double r3=a[inRe+j+3*stride], i3=a[inIm+j+3*stride];
+							if (k>0) {
+								double c=twRe[tw], sn=twIm[tw];
+								double t=r1*c-i1*sn; i1=r1*sn+i1*c; r1=t;
+								c=twRe[tw+1]; sn=twIm[tw+1];
+								t=r2*c-i2*sn; i2=r2*sn+i2*c; r2=t;
+								c=twRe[tw+2]; sn=twIm[tw+2];
+								t=r3*c-i3*sn; i3=r3*sn+i3*c; r3=t;
+							}
+							double t0r=r0+r2, t0i=i0+i2, t1r=r0-r2, t1i=i0-i2;
+							double t2r=r1+r3, t2i=i1+i3, t3r=r1-r3, t3i=i1-i3;
+							a[outRe+out] = t0r+t2r; a[outIm+out] = t0i+t2i;
+							a[outRe+out+ns] = t1r+t3i; a[outIm+out+ns] = t1i-t3r;
+							a[outRe+out+2*ns] = t0r-t2r; a[outIm+out+2*ns] = t0i-t2i;
+							a[outRe+out+3*ns] = t1r-t3i; a[outIm+out+3*ns] = t1i+t3r;
+							break;
+						}
+						case 5: {
+							double r0=a[inRe+j], i0=a[inIm+j];
+							double r1=a[inRe+j+stride], i1=a[inIm+j+stride];
+							double r2=a[inRe+j+2*stride], i2=a[inIm+j+2*stride];
+							double r3=a[inRe+j+3*stride], i3=a[inIm+j+3*stride];
+							double r4=a[inRe+j+4*stride], i4=a[inIm+j+4*stride];
+							if (k>0) {
+								double c=twRe[tw], sn=twIm[tw];
+								double t=r1*c-i1*sn; i1=r1*sn+i1*c; r1=t;
+								c=twRe[tw+1]; sn=twIm[tw+1];
+								t=r2*c-i2*sn; i2=r2*sn+i2*c; r2=t;
+								c=twRe[tw+2]; sn=twIm[tw+2];
+								t=r3*c-i3*sn; i3=r3*sn+i3*c; r3=t;
+								c=twRe[tw+3]; sn=twIm[tw+3];
+								t=r4*c-i4*sn; i4=r4*sn+i4*c; r4=t;
+							}
+							double a1r=r1+r4, a1i=i1+i4, b1r=r1-r4, b1i=i1-i4;
+							double a2r=r2+r3, a2i=i2+i3, b2r=r2-r3, b2i=i2-i3;
+							double t1r=r0+COS72*a1r+COS144*a2r, t1i=i0+COS72*a1i+COS144*a2i;
+							double t2r=r0+COS144*a1r+COS72*a2r, t2i=i0+COS144*a1i+COS72*a2i;
+							double u1r=SIN72*b1r+SIN144*b2r, u1i=SIN72*b1i+SIN144*b2i;
+							double u2r=SIN144*b1r-SIN72*b2r, u2i=SIN144*b1i-SIN72*b2i;
+							a[outRe+out] = r0+a1r+a2r; a[outIm+out] = i0+a1i+a2i;
+							a[outRe+out+ns] = t1r+u1i; a[outIm+out+ns] = t1i-u1r;
+							a[outRe+out+2*ns] = t2r+u2i; a[outIm+out+2*ns] = t2i-u2r;
+							a[outRe+out+3*ns] = t2r-u2i; a[outIm+out+3*ns] = t2i+u2r;
+							a[outRe+out+4*ns] = t1r-u1i; a[outIm+out+4*ns] = t1i+u1r;
+							break;
+						}
+						default: {	// radix 7: direct DFT
+							for (int r=0; r<p; r++) {
+								double xr=a[inRe+j+r*stride], xi=a[inIm+j+r*stride];
+								if (k>0 && r>0) {
+									double c=twRe[tw+r-1], sn=twIm[tw+r-1];
+									double t=xr*c-xi*sn; xi=xr*sn+xi*c; xr=t;
+								}
+								vr[r]=xr; vi[r]=xi;
+							}
+							for (int q=0; q<p; q++) {
+								double sr=vr[0], si=vi[0];
+								for (int r=1, qr=q; r<p; r++, qr+=q) {
+									int idx = qr%p;
+									double c=dftCos[idx], sn=dftSin[idx];
+									sr += vr[r]*c - vi[r]*sn;
+									si += vr[r]*sn + vi[r]*c;
+								}
+								a[outRe+out+q*ns] = sr; a[outIm+out+q*ns] = si;
+							}
+						}
+					}
+				}
+			}
+			ns *= p;
+			int t = inRe; inRe = outRe; outRe = t;
+			t = inIm; inIm = outIm; outIm = t;
+		}
+		if (inRe!=reOff) {
+			System.arraycopy(a, inRe, a, reOff, n);
+			System.arraycopy(a, inIm, a, imOff, n);
+		}
+	}
+
+	/** Bluestein's algorithm: the DFT as convolution with a chirp, calculated with power-of-2 FFTs */
+	private void bluestein(double[] a, int reOff, int imOff, int tmpOff) {
+		int m = convolver.n;
+		int bRe = tmpOff + 2*n, bIm = bRe + m, cTmp = bIm + m;	// convolution data, then FFT temporary space
+		for (int i=0; i<n; i++) {
+			double xr=a[reOff+i], xi=a[imOff+i];
+			a[bRe+i] = xr*chirpRe[i] - xi*chirpIm[i];
+			a[bIm+i] = xr*chirpIm[i] + xi*chirpRe[i];
+		}
+		for (int i=n; i<m; i++)
+			a[bRe+i] = a[bIm+i] = 0.0;
+		convolver.stockham(a, bRe, bIm, cTmp, cTmp+m);
+		for (int i=0; i<m; i++) {		// multiply and conjugate for the inverse FFT
+			double xr=a[bRe+i], xi=a[bIm+i];
+			a[bRe+i] = xr*kernelRe[i] - xi*kernelIm[i];
+			a[bIm+i] = -(xr*kernelIm[i] + xi*kernelRe[i]);
+		}
+		convolver.stockham(a, bRe, bIm, cTmp, cTmp+m);
+		for (int i=0; i<n; i++) {
+			double xr=a[bRe+i], xi=-a[bIm+i];
+			a[reOff+i] = xr*chirpRe[i] - xi*chirpIm[i];
+			a[imOff+i] = xr*chirpIm[i] + xi*chirpRe[i];
+		}
+	}
+
+	private void makeTwiddleTables() {
+		twiddleRe = new double[radices.length][];
+		twiddleIm = new double[radices.length][];
+		int ns = 1;
+		for (int s=0; s<radices.length; s++) {
+			int p = radices[s];
+			double[] twRe = new double[ns*(p-1)];
+			double[] twIm = new double[ns*(p-1)];
+			for (int k=0; k<ns; k++) {
+				for (int r=1; r<p; r++) {
+					double angle = -2.0*Math.PI*k*r/(ns*p);
+					twRe[k*(p-1)+r-1] = Math.cos(angle);
+					twIm[k*(p-1)+r-1] = Math.sin(angle);
+				}
+			}
+			twiddleRe[s] = twRe;
+			twiddleIm[s] = twIm;
+			ns *= p;
+		}
+		dftCos = new double[7];
+		dftSin = new double[7];
+		for (int i=0; i<7; i++) {
+			dftCos[i] = Math.cos(-2.0*Math.PI*i/7);
+			dftSin[i] = Math.sin(-2.0*Math.PI*i/7);
+		}
+	}
+
+	private void makeBluesteinTables() {
+		int m = 1;
+		while (m<2*n-1) m *= 2;
+		convolver = getInstance(m);
+		chirpRe = new double[n];
+		chirpIm = new double[n];
+		long n2 = 2L*n;
+		for (int i=0; i<n; i++) {
+			long k2 = ((long)i*i)%n2;		// avoids loss of accuracy for large i
+			double angle = -Math.PI*k2/n;
+			chirpRe[i] = Math.cos(angle);
+			chirpIm[i] = Math.sin(angle);
+		}
+		double[] a = new double[4*m];
+		for (int i=0; i<n; i++) {
+			a[i] = chirpRe[i];
+			a[m+i] = -chirpIm[i];
+			if (i>0) {
+				a[m-i] = chirpRe[i];
+				a[2*m-i] = -chirpIm[i];
+			}
+		}
+		convolver.stockham(a, 0, m, 2*m, 3*m);
+		kernelRe = new double[m];
+		kernelIm = new double[m];
+		for (int i=0; i<m; i++) {
+			kernelRe[i] = a[i]/m;
+			kernelIm[i] = a[m+i]/m;
+		}
+	}
+
+	private static final double SIN60 = Math.sqrt(0.75);
+	private static final double COS72 = Math.cos(0.4*Math.PI), SIN72 = Math.sin(0.4*Math.PI);
+	private static final double COS144 = Math.cos(0.8*Math.PI), SIN144 = Math.sin(0.8*Math.PI);
+
+}
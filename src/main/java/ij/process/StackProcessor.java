@@ -3,8 +3,9 @@ import java.awt.*;
 import ij.*;
 import ij.process.*;
 import ij.macro.Interpreter;
-import ij.util.ArrayUtil;
 import ij.plugin.Filters3D;
+import ij.plugin.filter.RankFilters;
+import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicInteger;
 
 
@@ -19,7 +20,6 @@ public class StackProcessor {
 	double xScale, yScale;
 	int[] table;
 	double fillValue;
-	float[] voxels;
 	    
     /** Constructs a StackProcessor from a stack. */
     public StackProcessor(ImageStack stack) {
@@ -262,107 +262,347 @@ public class StackProcessor {
     }
 
     /**
-     * 3D filter using threads
+     * 3D filter of the slices zmin to zmax-1 with an ellipsoid kernel; out-of-stack
+     * voxels are not included in the neighborhood. Works on the slice arrays: Each
+     * output row is calculated by sliding the kernel along x, updating the sums (mean,
+     * variance) or the extremum (min, max, local max) with the voxels entering and
+     * leaving the kernel; the median is determined by selection (with the previous
+     * median as the first guess) instead of sorting. Rows of 8, 16 and 24-bit stacks
+     * are converted to float once per output slice and kept in a ring buffer.
+     * Can be called by several threads for different z ranges simultaneously.
      *
-     * @param out
-     * @param radx Radius of mean filter in x
-     * @param rady Radius of mean filter in y
-     * @param radz Radius of mean filter in z
-     * @param zmin
-     * @param zmax
-     * @param filter
+     * @param out  Output stack; 32-bit for FILTER_VAR, else the same type as the input
+     * @param radx Radius of the filter in x
+     * @param rady Radius of the filter in y
+     * @param radz Radius of the filter in z
+     * @param zmin First slice to process (0-based)
+     * @param zmax Last slice to process+1
+     * @param filter FILTER_MEAN, FILTER_MEDIAN, FILTER_MIN, FILTER_MAX, FILTER_VAR or FILTER_MAXLOCAL
      */
     public void filter3D(ImageStack out, float radx, float rady, float radz, int zmin, int zmax, int filter) {
         int[] ker = this.createKernelEllipsoid(radx, rady, radz);
-        int nb = 0;
-        for (int i=0; i<ker.length; i++)
-            nb += ker[i];
+        int vx = (int) Math.ceil(radx);
+        int vy = (int) Math.ceil(rady);
+        int vz = (int) Math.ceil(radz);
+        int ny = 2*vy + 1;
+        // the kernel as rows along x: offsets in z and y, and half width in x
+        int[] rowDz = new int[ny*(2*vz+1)];
+        int[] rowDy = new int[rowDz.length];
+        int[] rowDx = new int[rowDz.length];
+        int nRows = 0, nb = 0, c = 0;
+        for (int k = -vz; k <= vz; k++) {
+            for (int j = -vy; j <= vy; j++) {
+                int dx = -1;
+                for (int i = -vx; i <= vx; i++, c++) {
+                    if (ker[c] > 0) {
+                        nb++;
+                        if (i >= 0) dx = i;
+                    }
+                }
+                if (dx >= 0) {
+                    rowDz[nRows] = k;
+                    rowDy[nRows] = j;
+                    rowDx[nRows] = dx;
+                    nRows++;
+                }
+            }
+        }
         if (zmin<0)
             zmin = 0;
         if (zmax>stack.getSize())
             zmax = stack.getSize();
         int sizex = stack.getWidth();
         int sizey = stack.getHeight();
-        double value;
+        int sizez = stack.getSize();
+        Object[] slices = new Object[sizez];
+        for (int z = Math.max(zmin-vz, 0); z < Math.min(zmax+vz, sizez); z++)
+            slices[z] = stack.getPixels(z+1);
+        boolean isFloat = stack.getBitDepth()==32;
+        float[][] lineCache = isFloat ? null : new float[rowDz.length][sizex];
+        int[] lineTag = new int[rowDz.length];
+        float[][] lines = new float[nRows][];   // the rows of the kernel that are inside the stack
+        int[] offsets = new int[nRows];
+        int[] dxs = new int[nRows];
+        double[] result = new double[sizex];
+        float[] below = filter==FILTER_MEDIAN ? new float[nb] : null;
+        float[] above = filter==FILTER_MEDIAN ? new float[nb] : null;
         for (int z=zmin; z<zmax; z++) {
             if (zmin==0) IJ.showProgress(z+1, zmax);
+            Arrays.fill(lineTag, -1);
+            Object outPixels = out.getPixels(z+1);
             for (int y=0; y<sizey; y++) {
-                for (int x=0; x<sizex; x++) {
-                    ArrayUtil tab = getNeighborhood(ker, nb, x, y, z, radx, rady, radz);
-                    switch (filter) {
-						case FILTER_MEAN:
-							out.setVoxel(x, y, z, tab.getMean()); break;
-						case FILTER_MEDIAN:
-							out.setVoxel(x, y, z, tab.medianSort()); break;
-						case FILTER_MIN:
-							out.setVoxel(x, y, z, tab.getMinimum()); break;
-						case FILTER_MAX:
-							out.setVoxel(x, y, z, tab.getMaximum()); break;
-						case FILTER_VAR:
-							out.setVoxel(x, y, z, tab.getVariance()); break;
-						case FILTER_MAXLOCAL:
-							value = stack.getVoxel(x, y, z);
-							if (tab.isMaximum(value))
-								out.setVoxel(x, y, z, value);
-							else
-								out.setVoxel(x, y, z, 0);
-							break;
-                    } //switch
-                }  //x
+                int n = 0, center = 0;
+                for (int r=0; r<nRows; r++) {
+                    int zz = z + rowDz[r];
+                    int yy = y + rowDy[r];
+                    if (zz<0 || zz>=sizez || yy<0 || yy>=sizey)
+                        continue;
+                    if (isFloat) {
+                        lines[n] = (float[])slices[zz];
+                        offsets[n] = yy*sizex;
+                    } else {
+                        int slot = (rowDz[r]+vz)*ny + yy%ny;
+                        if (lineTag[slot]!=yy) {
+                            getLine(slices[zz], yy*sizex, sizex, lineCache[slot]);
+                            lineTag[slot] = yy;
+                        }
+                        lines[n] = lineCache[slot];
+                        offsets[n] = 0;
+                    }
+                    if (rowDz[r]==0 && rowDy[r]==0)
+                        center = n;
+                    dxs[n] = rowDx[r];
+                    n++;
+                }
+                switch (filter) {
+                    case FILTER_MEAN: case FILTER_VAR:
+                        filterRowSums(lines, offsets, dxs, n, sizex, filter==FILTER_VAR, isFloat, result); break;
+                    case FILTER_MEDIAN:
+                        filterRowMedian(lines, offsets, dxs, n, sizex, below, above, result); break;
+                    case FILTER_MIN:
+                        filterRowMax(lines, offsets, dxs, n, sizex, -1f, -1, result); break;
+                    case FILTER_MAX:
+                        filterRowMax(lines, offsets, dxs, n, sizex, 1f, -1, result); break;
+                    case FILTER_MAXLOCAL:
+                        filterRowMax(lines, offsets, dxs, n, sizex, 1f, center, result); break;
+                }
+                putLine(result, outPixels, y*sizex, sizex);
             } //y
         } //z
     }
 
-    /*
-    private ArrayUtil getNeighborhood(int[] ker, int nbval, int x, int y, int z, float radx, float rady, float radz) {
-        int vx = (int)Math.ceil(radx);
-        int vy = (int)Math.ceil(rady);
-        int vz = (int)Math.ceil(radz);
-        int x0=x-vx, y0=y-vy, z0=z-vz;
-        int w=vx*2, h=vy*2, d=vz*2;
-		if (x0<0 || x0+w>stack.getWidth() || y0<0 || y0+h>stack.getHeight() || z0<0 || z0+d>stack.getSize())
-			return getEdgeNeighborhood(ker, nbval, x, y, z, radx, rady, radz);
-        voxels = stack.getVoxels(x0, y0, z0, w, h, d, voxels);
-		return new ArrayUtil(voxels);
+    /** Mean or variance of a row, sliding the kernel along x. The running sums only
+     *  contain the finite values; NaN and infinite values in the kernel are counted, and
+     *  give the same result as summing up all values (NaN, or +/-Infinity for the mean).
+     *  With 'checkPrecision' (for float data), the sums are calculated anew where a value
+     *  that is large compared to the remaining ones leaves the kernel. */
+    private static void filterRowSums(float[][] lines, int[] offsets, int[] dxs, int nLines, int width,
+            boolean variance, boolean checkPrecision, double[] result) {
+        double[] sums = new double[6];  // sum, sum of squares, n, number of NaN, +Infinity, -Infinity
+        sumArea(lines, offsets, dxs, nLines, width, 0, sums);
+        for (int x=0; x<width; x++) {
+            if (x>0) {
+                double maxOut2 = 0;
+                for (int r=0; r<nLines; r++) {
+                    float[] line = lines[r];
+                    int xOut = x - dxs[r] - 1;
+                    int xIn = x + dxs[r];
+                    if (xOut>=0) {
+                        double v = line[offsets[r]+xOut];
+                        if (addValue(v, -1, sums) && v*v>maxOut2)
+                            maxOut2 = v*v;
+                    }
+                    if (xIn<width)
+                        addValue(line[offsets[r]+xIn], 1, sums);
+                }
+                if (checkPrecision && maxOut2>PRECISION_LIMIT*sums[1])
+                    sumArea(lines, offsets, dxs, nLines, width, x, sums);
+            }
+            double sum = sums[0], sum2 = sums[1], n = sums[2];
+            boolean nonFinite = sums[3]>0 || sums[4]>0 || sums[5]>0;
+            if (variance)
+                result[x] = n>1 ? (nonFinite ? Double.NaN : (sum2 - sum*sum/n)/(n-1)) : 0;
+            else if (nonFinite)
+                result[x] = sums[3]>0 || (sums[4]>0 && sums[5]>0) ? Double.NaN :
+                        (sums[4]>0 ? Double.POSITIVE_INFINITY : Double.NEGATIVE_INFINITY);
+            else
+                result[x] = sum/n;
+        }
     }
-    */
 
-    /**
-     * Gets the neighboring attribute of the Image3D with a kernel as a array
-     *
-     * @param ker The kernel array (>0 ok)
-     * @param nbval The number of non-zero values
-     * @param x Coordinate x of the pixel
-     * @param y Coordinate y of the pixel
-     * @param z Coordinate z of the pixel
-     * @param radx Radius x of the neighboring
-     * @param radz Radius y of the neighboring
-     * @param rady Radius z of the neighboring
-     * @return The values of the nieghbor pixels inside an array
-     */
-    private ArrayUtil getNeighborhood(int[] ker, int nbval, int x, int y, int z, float radx, float rady, float radz) {
-        ArrayUtil pix = new ArrayUtil(nbval);
-        int vx = (int) Math.ceil(radx);
-        int vy = (int) Math.ceil(rady);
-        int vz = (int) Math.ceil(radz);
-        int index = 0;
-        int c = 0;
-        int sizex = stack.getWidth();
-        int sizey = stack.getHeight();
-        int sizez = stack.getSize();
-        for (int k = z - vz; k <= z + vz; k++) {
-            for (int j = y - vy; j <= y + vy; j++) {
-                for (int i = x - vx; i <= x + vx; i++) {
-					if (ker[c]>0 && i>=0 && j>=0 && k>=0 && i<sizex && j<sizey && k<sizez) {
-						pix.putValue(index, (float)stack.getVoxel(i, j, k));
-						index++;
-					}
-                    c++;
+    /** Ratio of the square of a value leaving the kernel and the remaining sum of squares,
+     *  above which the sums are calculated anew (the double-precision sums then have
+     *  lost about 8 of their 16 digits) */
+    private static final double PRECISION_LIMIT = 1e8;
+
+    /** Sums of the values within the kernel at position x, see filterRowSums */
+    private static void sumArea(float[][] lines, int[] offsets, int[] dxs, int nLines, int width, int x, double[] sums) {
+        Arrays.fill(sums, 0.0);
+        for (int r=0; r<nLines; r++) {
+            float[] line = lines[r];
+            int from = Math.max(x-dxs[r], 0);
+            int to = Math.min(x+dxs[r], width-1);
+            for (int p=offsets[r]+from, pEnd=offsets[r]+to; p<=pEnd; p++)
+                addValue(line[p], 1, sums);
+        }
+    }
+
+    /** Adds a value to the sums (sign=1) or removes it (sign=-1); non-finite values are
+     *  only counted. Returns whether the value is finite. */
+    private static boolean addValue(double v, int sign, double[] sums) {
+        sums[2] += sign;
+        if (Double.isNaN(v))
+            sums[3] += sign;
+        else if (v==Double.POSITIVE_INFINITY)
+            sums[4] += sign;
+        else if (v==Double.NEGATIVE_INFINITY)
+            sums[5] += sign;
+        else {
+            sums[0] += sign*v;
+            sums[1] += sign*v*v;
+            return true;
+        }
+        return false;
+    }
+
+    /** Maximum (sign=1) or minimum (sign=-1) of a row, sliding the kernel along x; the
+     *  extremum is only searched in the whole kernel if a value equal to it leaves the kernel.
+     *  NaN values are handled as by ArrayUtil: The result is NaN if the first value of the
+     *  neighborhood (lowest z, y, x) is NaN, otherwise NaN values are ignored.
+     *  With a 'center' line index >= 0, the local maximum is determined instead: the value
+     *  of the center line if it is the maximum and there is no NaN in the kernel, else 0. */
+    private static void filterRowMax(float[][] lines, int[] offsets, int[] dxs, int nLines, int width,
+            float sign, int center, double[] result) {
+        float max = Float.NaN;
+        int nNaN = 0;
+        for (int x=0; x<width; x++) {
+            boolean maxLeaves = max!=max;       // NaN: no value yet, search the whole kernel
+            for (int r=0; r<nLines; r++) {
+                float[] line = lines[r];
+                int xOut = x - dxs[r] - 1;
+                int xIn = x + dxs[r];
+                if (x==0) {
+                    int to = Math.min(dxs[r], width-1);
+                    for (int p=offsets[r], pEnd=offsets[r]+to; p<=pEnd; p++)
+                        if (line[p]!=line[p]) nNaN++;
+                    continue;
+                }
+                if (xOut>=0) {
+                    float v = line[offsets[r]+xOut];
+                    if (v!=v)
+                        nNaN--;
+                    else if (v*sign>=max)
+                        maxLeaves = true;
                 }
+                if (xIn<width) {
+                    float v = line[offsets[r]+xIn];
+                    if (v!=v)
+                        nNaN++;
+                    else if (v*sign>max)
+                        max = v*sign;
+                }
+            }
+            if (maxLeaves)
+                max = getAreaMax(lines, offsets, dxs, nLines, width, x, sign);
+            if (center>=0) {
+                float v = lines[center][offsets[center]+x];
+                result[x] = nNaN==0 && v>=max ? v : 0;
+            } else {
+                float first = lines[0][offsets[0]+Math.max(x-dxs[0], 0)];
+                result[x] = first!=first ? Float.NaN : sign*max;
             }
         }
-        pix.setSize(index);
-        return pix;
     }
-    
+
+    /** Maximum of values*sign within the kernel at position x, ignoring NaN values;
+     *  NaN if there are only NaN values */
+    private static float getAreaMax(float[][] lines, int[] offsets, int[] dxs, int nLines, int width, int x, float sign) {
+        float max = Float.NEGATIVE_INFINITY;
+        boolean found = false;
+        for (int r=0; r<nLines; r++) {
+            float[] line = lines[r];
+            int from = Math.max(x-dxs[r], 0);
+            int to = Math.min(x+dxs[r], width-1);
+            for (int p=offsets[r]+from, pEnd=offsets[r]+to; p<=pEnd; p++) {
+                float v = line[p]*sign;
+                if (v>=max) {
+                    max = v;
+                    found = true;
+                }
+            }
+        }
+        return found ? max : Float.NaN;
+    }
+
+    /** Median of a row. The values are split into those below and above the median
+     *  of the previous position, and the median is selected from one of these parts
+     *  only. For an even number of values, the mean of the two central ones is used.
+     *  NaN values are sorted to the top, as with Arrays.sort. */
+    private static void filterRowMedian(float[][] lines, int[] offsets, int[] dxs, int nLines, int width,
+            float[] below, float[] above, double[] result) {
+        float guess = 0f;
+        for (int x=0; x<width; x++) {
+            int nBelow = 0, nAbove = 0, nEqual = 0, nNaN = 0;
+            for (int r=0; r<nLines; r++) {
+                float[] line = lines[r];
+                int from = Math.max(x-dxs[r], 0);
+                int to = Math.min(x+dxs[r], width-1);
+                for (int p=offsets[r]+from, pEnd=offsets[r]+to; p<=pEnd; p++) {
+                    float v = line[p];
+                    if (v<guess)
+                        below[nBelow++] = v;
+                    else if (v>guess)
+                        above[nAbove++] = v;
+                    else if (v==guess)
+                        nEqual++;
+                    else
+                        nNaN++;
+                }
+            }
+            int n = nBelow + nEqual + nAbove + nNaN;
+            float median = select((n-1)/2, below, nBelow, nEqual, above, nAbove, guess);
+            if (n%2==0)
+                median = 0.5f*(median + select(n/2, below, nBelow, nEqual, above, nAbove, guess));
+            result[x] = median;
+            if (median==median)
+                guess = median;
+        }
+    }
+
+    /** Returns the k-th lowest value (k=0 for the lowest) of the values below, equal to and
+     *  above 'guess', or NaN if k is beyond these (i.e., points to one of the NaN values) */
+    private static float select(int k, float[] below, int nBelow, int nEqual, float[] above, int nAbove, float guess) {
+        if (k<nBelow)
+            return RankFilters.findNthLowestNumber(below, nBelow, k);
+        else if (k<nBelow+nEqual)
+            return guess;
+        else if (k<nBelow+nEqual+nAbove)
+            return RankFilters.findNthLowestNumber(above, nAbove, k-nBelow-nEqual);
+        else
+            return Float.NaN;
+    }
+
+    /** Converts 'length' pixels starting at 'offset' to float */
+    private static void getLine(Object pixels, int offset, int length, float[] line) {
+        if (pixels instanceof byte[]) {
+            byte[] bytes = (byte[])pixels;
+            for (int i=0; i<length; i++)
+                line[i] = bytes[offset+i]&255;
+        } else if (pixels instanceof short[]) {
+            short[] shorts = (short[])pixels;
+            for (int i=0; i<length; i++)
+                line[i] = shorts[offset+i]&0xffff;
+        } else if (pixels instanceof int[]) {
+            int[] ints = (int[])pixels;
+            for (int i=0; i<length; i++)
+                line[i] = ints[offset+i]&0xffffff;
+        } else
+            System.arraycopy((float[])pixels, offset, line, 0, length);
+    }
+
+    /** Writes 'length' values starting at 'offset', rounded and clamped like ImageStack.setVoxel */
+    private static void putLine(double[] values, Object pixels, int offset, int length) {
+        if (pixels instanceof byte[]) {
+            byte[] bytes = (byte[])pixels;
+            for (int i=0; i<length; i++) {
+                double v = values[i];
+                bytes[offset+i] = (byte)((v>255.0 ? 255.0 : (v<0.0 ? 0.0 : v)) + 0.5);
+            }
+        } else if (pixels instanceof short[]) {
+            short[] shorts = (short[])pixels;
+            for (int i=0; i<length; i++) {
+                double v = values[i];
+                shorts[offset+i] = (short)((v>65535.0 ? 65535.0 : (v<0.0 ? 0.0 : v)) + 0.5);
+            }
+        } else if (pixels instanceof int[]) {
+            int[] ints = (int[])pixels;
+            for (int i=0; i<length; i++)
+                ints[offset+i] = (int)values[i];
+        } else {
+            float[] floats = (float[])pixels;
+            for (int i=0; i<length; i++)
+                floats[offset+i] = (float)values[i];
+        }
+    }
+
  }
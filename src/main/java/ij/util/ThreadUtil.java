@@ -1,7 +1,20 @@
 package ij.util;
+import ij.Prefs;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ThreadUtil {
 	
+	private static ThreadPoolExecutor executor;
+	private static final AtomicInteger workerCount = new AtomicInteger();
+
+	/** Interface for tasks that process a range of indices, see {@link #parallelFor}. */
+	public interface RangeTask {
+		/** Processes the indices from 'from' (inclusive) to 'to' (exclusive). */
+		public void run(int from, int to);
+	}
+
 	/** Start all given threads and wait on each of them until all are done.
 	 * From Stephan Preibisch's Multithreading.java class. See:
 	 * http://repo.or.cz/w/trakem2.git?a=blob;f=mpi/fruitfly/general/MultiThreading.java;hb=HEAD
@@ -39,4 +52,178 @@ public class ThreadUtil {
 		return Runtime.getRuntime().availableProcessors();
 	}
 
+	/** Returns the executor shared by all multithreaded ImageJ operations.
+	 * It has Prefs.getThreads() daemon worker threads, which are created
+	 * once and reused; the pool is resized if the number of threads in
+	 * Edit>Options>Memory &amp; Threads is changed.
+	 */
+	public static synchronized ExecutorService getExecutor() {
+		int nThreads = Prefs.getThreads();
+		if (executor==null) {
+			executor = new ThreadPoolExecutor(nThreads, nThreads, 60L, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "ImageJ-worker-"+workerCount.incrementAndGet());
+						thread.setDaemon(true);
+						thread.setPriority(Thread.NORM_PRIORITY);
+						return thread;
+					}
+				});
+		} else if (executor.getMaximumPoolSize()!=nThreads) {
+			if (nThreads>executor.getMaximumPoolSize()) {
+				executor.setMaximumPoolSize(nThreads);
+				executor.setCorePoolSize(nThreads);
+			} else {
+				executor.setCorePoolSize(nThreads);
+				executor.setMaximumPoolSize(nThreads);
+			}
+		}
+		return executor;
+	}
+
+	/** Returns a chunk size for {@link #parallelFor} that splits 'n' indices into
+	 * about four chunks per thread (for load balancing), but not less than 'minChunkSize'.
+	 */
+	public static int getChunkSize(int n, int minChunkSize) {
+		int chunkSize = n/(4*Prefs.getThreads());
+		return Math.max(Math.max(chunkSize, minChunkSize), 1);
+	}
+
+	/** Processes the indices from 'from' (inclusive) to 'to' (exclusive) in chunks
+	 * of 'chunkSize' indices, using the calling thread and the worker threads of the
+	 * shared executor. Chunks are handed out dynamically, i.e., a thread that has
+	 * finished its chunk takes the next unprocessed one, so the load is balanced
+	 * also if some chunks take much longer than others. The calling thread always
+	 * processes the first chunk and all chunks that are not taken by idle workers;
+	 * thus nested calls (from within a task) cannot cause a deadlock.
+	 * <p>
+	 * If the calling thread is interrupted, no further chunks are started and
+	 * the worker threads currently processing a chunk are interrupted; the
+	 * interrupted status of the calling thread is kept. Tasks should check
+	 * <code>Thread.currentThread().isInterrupted()</code> (and IJ.escapePressed(),
+	 * if appropriate) to finish early.
+	 * An exception thrown by a task is rethrown (as RuntimeException, if
+	 * necessary) in the calling thread after all running chunks have finished.
+	 */
+	public static void parallelFor(int from, int to, int chunkSize, RangeTask task) {
+		if (to<=from)
+			return;
+		if (chunkSize<1) chunkSize = 1;
+		int nChunks = (int)(((long)to-from+chunkSize-1)/chunkSize);
+		int nHelpers = Math.min(Prefs.getThreads(), nChunks) - 1;
+		if (nHelpers<1) {
+			task.run(from, to);
+			return;
+		}
+		ParallelJob job = new ParallelJob(from, to, chunkSize, task, Thread.currentThread());
+		int first = job.next.getAndAdd(chunkSize);		//the caller takes the first chunk
+		ExecutorService exec = getExecutor();
+		for (int i=0; i<nHelpers; i++)
+			exec.execute(job);
+		try {
+			job.process(first);
+		} catch (Throwable t) {
+			job.fail(t);
+		}
+		job.waitForHelpers();
+		job.rethrow();
+	}
+
+	/** Runs the given task 'nTasks' times in parallel (with task numbers 0 to nTasks-1),
+	 * using the calling thread and the shared executor; the caller has task number 0.
+	 * Tasks that have not been started by a worker by the time the caller has finished
+	 * its own are run by the calling thread. Cooperating tasks must therefore not wait
+	 * for a task that has not started yet. */
+	public static void runInParallel(int nTasks, final RangeTask task) {
+		parallelFor(0, nTasks, 1, task);
+	}
+
+	/** The shared state of one parallelFor call; also the Runnable executed by helper threads */
+	private static class ParallelJob implements Runnable {
+		final AtomicInteger next;
+		final int to, chunkSize;
+		final RangeTask task;
+		final Thread caller;
+		private final Set<Thread> activeHelpers = new HashSet<Thread>();
+		private boolean finished;
+		private volatile boolean cancelled;
+		private Throwable exception;
+
+		ParallelJob(int from, int to, int chunkSize, RangeTask task, Thread caller) {
+			this.next = new AtomicInteger(from);
+			this.to = to;
+			this.chunkSize = chunkSize;
+			this.task = task;
+			this.caller = caller;
+		}
+
+		/** Helper thread: process chunks unless the caller is done already */
+		public void run() {
+			Thread thread = Thread.currentThread();
+			synchronized(this) {
+				if (finished || cancelled) return;
+				activeHelpers.add(thread);
+			}
+			try {
+				process(next.getAndAdd(chunkSize));
+			} catch (Throwable t) {
+				fail(t);
+			} finally {
+				synchronized(this) {
+					activeHelpers.remove(thread);
+					notifyAll();
+				}
+				Thread.interrupted();				//don't keep interrupts in a pooled thread
+			}
+		}
+
+		/** Processes the chunk starting at 'start' and then further chunks */
+		void process(int start) {
+			while (start<to) {
+				if (cancelled || caller.isInterrupted()) return;
+				int end = (int)Math.min((long)start+chunkSize, to);
+				task.run(start, end);
+				start = next.getAndAdd(chunkSize);
+			}
+		}
+
+		synchronized void fail(Throwable t) {
+			if (exception==null) exception = t;
+			cancel();
+		}
+
+		synchronized void cancel() {
+			cancelled = true;
+			for (Iterator<Thread> it=activeHelpers.iterator(); it.hasNext();)
+				it.next().interrupt();
+		}
+
+		/** Called by the calling thread; waits until all helpers that have started are done */
+		synchronized void waitForHelpers() {
+			boolean interrupted = caller.isInterrupted();
+			if (interrupted) cancel();
+			while (activeHelpers.size()>0) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+					cancel();
+				}
+			}
+			finished = true;
+			if (interrupted)
+				caller.interrupt();					//keep interrupted status
+		}
+
+		void rethrow() {
+			if (exception==null) return;
+			if (exception instanceof RuntimeException)
+				throw (RuntimeException)exception;
+			if (exception instanceof Error)
+				throw (Error)exception;
+			throw new RuntimeException(exception);
+		}
+	}
+
 }
@@ -0,0 +1,135 @@
+package ij.plugin.filter;
+import ij.process.*;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/** Compares the separable and FFT paths of the Convolver with a direct convolution. */
+public class ConvolverTest {
+	private static final int WIDTH = 400, HEIGHT = 300;
+
+	/** Direct convolution with edge pixels replicated, in double precision */
+	private static float[] directConvolution(float[] pixels, float[] kernel, int kw, int kh) {
+		double scale = Convolver.getScale(kernel);
+		float[] result = new float[WIDTH*HEIGHT];
+		for (int y=0; y<HEIGHT; y++) {
+			for (int x=0; x<WIDTH; x++) {
+				double sum = 0.0;
+				for (int v=0, i=0; v<kh; v++) {
+					int yy = Math.min(Math.max(y+v-kh/2, 0), HEIGHT-1);
+					for (int u=0; u<kw; u++, i++) {
+						int xx = Math.min(Math.max(x+u-kw/2, 0), WIDTH-1);
+						sum += pixels[xx+yy*WIDTH]*kernel[i];
+					}
+				}
+				result[x+y*WIDTH] = (float)(sum*scale);
+			}
+		}
+		return result;
+	}
+
+	private static float[] convolve(float[] pixels, float[] kernel, int kw, int kh) {
+		FloatProcessor ip = new FloatProcessor(WIDTH, HEIGHT, (float[])pixels.clone(), null);
+		assertTrue(new Convolver().convolve(ip, kernel, kw, kh));
+		return (float[])ip.getPixels();
+	}
+
+	private static float[] randomImage(Random random, double offset, double range) {
+		float[] pixels = new float[WIDTH*HEIGHT];
+		for (int i=0; i<pixels.length; i++)
+			pixels[i] = (float)(offset + range*random.nextDouble());
+		return pixels;
+	}
+
+	private static float[] randomKernel(Random random, int kw, int kh) {
+		float[] kernel = new float[kw*kh];
+		for (int i=0; i<kernel.length; i++)
+			kernel[i] = (float)random.nextDouble();
+		return kernel;
+	}
+
+	private static float[] separableKernel(int kw, int kh) {
+		float[] kernel = new float[kw*kh];
+		for (int v=0, i=0; v<kh; v++)
+			for (int u=0; u<kw; u++, i++)
+				kernel[i] = (float)(Math.exp(-0.02*(u-kw/2)*(u-kw/2))*(1+v%3));
+		return kernel;
+	}
+
+	private static void assertSimilar(float[] expected, float[] actual, double tolerance) {
+		for (int i=0; i<expected.length; i++) {
+			if (Float.isNaN(expected[i]))
+				assertTrue("pixel "+i+" should be NaN", Float.isNaN(actual[i]));
+			else
+				assertEquals("pixel "+i, expected[i], actual[i], tolerance);
+		}
+	}
+
+	private static int countNaNs(float[] pixels) {
+		int count = 0;
+		for (int i=0; i<pixels.length; i++)
+			if (Float.isNaN(pixels[i])) count++;
+		return count;
+	}
+
+	@Test
+	public void testFFTMatchesDirect() {
+		Random random = new Random(1);
+		float[] pixels = randomImage(random, 0.0, 1000.0);
+		int[] sizes = {21, 31};
+		for (int s=0; s<sizes.length; s++) {
+			int k = sizes[s];
+			float[] kernel = randomKernel(random, k, k);
+			assertSimilar(directConvolution(pixels, kernel, k, k), convolve(pixels, kernel, k, k), 1e-3);
+		}
+	}
+
+	@Test
+	public void testFFTWithLargeOffset() {
+		Random random = new Random(2);
+		float[] pixels = randomImage(random, 100000.0, 1.0);
+		float[] kernel = randomKernel(random, 31, 31);
+		assertSimilar(directConvolution(pixels, kernel, 31, 31), convolve(pixels, kernel, 31, 31), 0.02);
+	}
+
+	@Test
+	public void testSeparableMatchesDirect() {
+		Random random = new Random(3);
+		float[] pixels = randomImage(random, 0.0, 1000.0);
+		float[] kernel = separableKernel(41, 41);
+		assertNotNull(Convolver.getSeparableFactors(kernel, 41, 41));
+		assertSimilar(directConvolution(pixels, kernel, 41, 41), convolve(pixels, kernel, 41, 41), 1e-3);
+	}
+
+	@Test
+	public void testNaNStaysLocal() {
+		Random random = new Random(4);
+		float[] pixels = randomImage(random, 0.0, 1000.0);
+		pixels[150*WIDTH+200] = Float.NaN;
+		int[] sizes = {21, 31};
+		for (int s=0; s<sizes.length; s++) {
+			int k = sizes[s];
+			float[] kernel = randomKernel(random, k, k);
+			float[] result = convolve(pixels, kernel, k, k);
+			assertEquals(k*k, countNaNs(result));
+			assertSimilar(directConvolution(pixels, kernel, k, k), result, 1e-3);
+			kernel = separableKernel(k, k);
+			assertEquals(k*k, countNaNs(convolve(pixels, kernel, k, k)));
+		}
+	}
+
+	@Test
+	public void testInfinityStaysLocal() {
+		Random random = new Random(5);
+		float[] pixels = randomImage(random, 0.0, 1000.0);
+		pixels[10*WIDTH+20] = Float.POSITIVE_INFINITY;
+		float[] kernel = randomKernel(random, 31, 31);
+		float[] result = convolve(pixels, kernel, 31, 31);
+		int nInfinite = 0;
+		for (int i=0; i<result.length; i++)
+			if (Float.isInfinite(result[i])) nInfinite++;
+		assertEquals(0, countNaNs(result));
+		assertEquals(31*26, nInfinite);	// footprint clipped at the top edge
+	}
+
+}
@@ -0,0 +1,111 @@
+package ij.plugin.filter;
+import ij.process.*;
+import java.util.Random;
+import java.util.zip.CRC32;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/** Regression tests of the MaximumFinder on fixed images. The expected checksums
+	are those of the output of ImageJ 1.50d. The images are created with integer
+	arithmetic only, thus they are the same on all platforms. */
+public class MaximumFinderTest {
+	private static final int EDM_WATERSHED_COUNT = 211271;
+	private static final long EDM_WATERSHED_CRC = 2904228010L;
+	private static final int SEGMENTED_COUNT = 456095;
+	private static final long SEGMENTED_CRC = 2343933640L;
+	private static final int THRESHOLD_SEGMENTED_COUNT = 65512;
+	private static final long THRESHOLD_SEGMENTED_CRC = 1539761788L;
+	private static final int SINGLE_POINTS_COUNT = 126;
+	private static final long SINGLE_POINTS_CRC = 2826052607L;
+	private static final int IN_TOLERANCE_COUNT = 12386;
+	private static final long IN_TOLERANCE_CRC = 1003940285L;
+
+	/** Binary image with overlapping disks (value 255) */
+	static ByteProcessor makeDisks(long seed, int width, int height, int n) {
+		Random random = new Random(seed);
+		ByteProcessor ip = new ByteProcessor(width, height);
+		for (int k=0; k<n; k++) {
+			int xc = random.nextInt(width), yc = random.nextInt(height), r = 8+random.nextInt(25);
+			for (int y=Math.max(yc-r, 0); y<Math.min(yc+r+1, height); y++)
+				for (int x=Math.max(xc-r, 0); x<Math.min(xc+r+1, width); x++)
+					if ((x-xc)*(x-xc)+(y-yc)*(y-yc)<=r*r)
+						ip.set(x, y, 255);
+		}
+		return ip;
+	}
+
+	/** 16-bit image with paraboloid blobs on a noisy background */
+	static ShortProcessor makeBlobs(long seed, int width, int height, int n) {
+		Random random = new Random(seed);
+		int[] sum = new int[width*height];
+		for (int k=0; k<n; k++) {
+			int xc = random.nextInt(width), yc = random.nextInt(height);
+			int r = 5+random.nextInt(30), amplitude = 500+random.nextInt(3000);
+			for (int y=Math.max(yc-r, 0); y<Math.min(yc+r+1, height); y++)
+				for (int x=Math.max(xc-r, 0); x<Math.min(xc+r+1, width); x++) {
+					int r2 = (x-xc)*(x-xc)+(y-yc)*(y-yc);
+					if (r2<r*r)
+						sum[x+y*width] += amplitude - amplitude*r2/(r*r);
+				}
+		}
+		ShortProcessor ip = new ShortProcessor(width, height);
+		for (int i=0; i<sum.length; i++)
+			ip.set(i, Math.min(sum[i]+100+random.nextInt(100), 65535));
+		return ip;
+	}
+
+	static long checksum(ImageProcessor ip) {
+		CRC32 crc = new CRC32();
+		crc.update((byte[])ip.getPixels());
+		return crc.getValue();
+	}
+
+	static int count255(ImageProcessor ip) {
+		byte[] pixels = (byte[])ip.getPixels();
+		int count = 0;
+		for (int i=0; i<pixels.length; i++)
+			if (pixels[i]==(byte)255) count++;
+		return count;
+	}
+
+	@Test
+	public void testEDMWatershed() {
+		ByteProcessor ip = makeDisks(1, 800, 600, 200);
+		new EDM().toWatershed(ip);
+		assertEquals(EDM_WATERSHED_COUNT, count255(ip));
+		assertEquals(EDM_WATERSHED_CRC, checksum(ip));
+	}
+
+	@Test
+	public void testSegmented() {
+		ByteProcessor out = new MaximumFinder().findMaxima(makeBlobs(2, 800, 600, 200), 200,
+				ImageProcessor.NO_THRESHOLD, MaximumFinder.SEGMENTED, false, false);
+		assertEquals(SEGMENTED_COUNT, count255(out));
+		assertEquals(SEGMENTED_CRC, checksum(out));
+	}
+
+	@Test
+	public void testSegmentedWithThreshold() {
+		ByteProcessor out = new MaximumFinder().findMaxima(makeBlobs(3, 600, 400, 120), 300,
+				1000, MaximumFinder.SEGMENTED, false, false);
+		assertEquals(THRESHOLD_SEGMENTED_COUNT, count255(out));
+		assertEquals(THRESHOLD_SEGMENTED_CRC, checksum(out));
+	}
+
+	@Test
+	public void testSingleMaxima() {
+		ByteProcessor out = new MaximumFinder().findMaxima(makeBlobs(2, 800, 600, 200), 200,
+				ImageProcessor.NO_THRESHOLD, MaximumFinder.SINGLE_POINTS, true, false);
+		assertEquals(SINGLE_POINTS_COUNT, count255(out));
+		assertEquals(SINGLE_POINTS_CRC, checksum(out));
+	}
+
+	@Test
+	public void testMaximaWithinTolerance() {
+		ByteProcessor out = new MaximumFinder().findMaxima(makeBlobs(2, 800, 600, 200), 200,
+				ImageProcessor.NO_THRESHOLD, MaximumFinder.IN_TOLERANCE, false, false);
+		assertEquals(IN_TOLERANCE_COUNT, count255(out));
+		assertEquals(IN_TOLERANCE_CRC, checksum(out));
+	}
+
+}